@@ -0,0 +1,536 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.rayworks.network.download.cache.BaseCache;
+import org.rayworks.network.download.cache.SaveOptions;
+import org.rayworks.network.download.exception.ChecksumMismatchException;
+import org.rayworks.network.download.exception.HttpRespInvalidState;
+import org.rayworks.network.download.exception.ResourceExpiredException;
+import org.rayworks.network.download.http.AsyncHttpClient;
+import org.rayworks.network.download.http.HttpResponseParser;
+import org.rayworks.network.download.listener.DownloadListener;
+import org.rayworks.network.storage.DownloadRecord;
+import org.rayworks.network.storage.SyncStateStore;
+import org.rayworks.network.util.EFLogger;
+import org.rayworks.network.util.IOUtils;
+import org.rayworks.network.util.LeaseManager;
+import org.rayworks.network.util.StreamingDigest;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/***
+ * Runs the tasks on non-blocking sockets, see {@link DownloadSetting#isNonBlockingIo()}. A download follows the
+ * steps of {@link Downloader}: it resumes the partial file with a Range request if the validators still match,
+ * checkpoints its progress into the {@link SyncStateStore} and commits the temp file into the {@link BaseCache}
+ * once it's complete, but the body is written by an {@link AsynchronousFileChannel} and no thread waits for it.
+ * The threads of the client never touch the disk, the partial file is got ready and committed on the file threads.
+ * <p>
+ * A url other than plain http, or one being downloaded elsewhere, e.g. by a prefetching, is handed to a
+ * {@link Downloader} on a thread of its own.
+ */
+final class AsyncLauncher implements TaskDispatcher.Launcher {
+    private static final String TAG = AsyncLauncher.class.getSimpleName();
+
+    private final SyncStateStore syncStateStore;
+    private final BaseCache cache;
+    private final AtomicLong byteCounter;
+
+    private final AsyncHttpClient client;
+    private final ExecutorService fileExecutor;
+    private final ExecutorService blockingExecutor;
+    private final ScheduledExecutorService throttleTimer;
+
+    private volatile int timeout;
+    private volatile long checkpointInterval;
+
+    AsyncLauncher(SyncStateStore syncStateStore, BaseCache cache, AtomicLong byteCounter, DownloadSetting setting)
+            throws IOException {
+        this.syncStateStore = syncStateStore;
+        this.cache = cache;
+        this.byteCounter = byteCounter;
+
+        client = new AsyncHttpClient(setting.getIoThreadNum(), setting.getMaxConnectionsPerHost(),
+                setting.getTimeout());
+        fileExecutor = Executors.newFixedThreadPool(setting.getIoThreadNum(),
+                new ThreadFactoryBuilder().setNameFormat("FileIo#%d").setDaemon(true).build());
+        blockingExecutor = Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder().setNameFormat("BlockingDownload#%d").setDaemon(true).build());
+        throttleTimer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("Throttle").setDaemon(true).build());
+
+        timeout = setting.getTimeout();
+        checkpointInterval = setting.getCheckpointInterval();
+    }
+
+    @Override
+    public TaskDispatcher.Execution create(BackgroundTask task) {
+        TaskRunner runner = new TaskRunner(syncStateStore, cache, timeout);
+        runner.setCheckpointInterval(checkpointInterval);
+        runner.setByteCounter(byteCounter);
+        return new AsyncExecution(task, runner);
+    }
+
+    @Override
+    public void configure(DownloadSetting setting) {
+        timeout = setting.getTimeout();
+        checkpointInterval = setting.getCheckpointInterval();
+        client.setTimeout(setting.getTimeout());
+        client.setMaxConnectionsPerHost(setting.getMaxConnectionsPerHost());
+    }
+
+    @Override
+    public void shutdown() {
+        client.close();
+        fileExecutor.shutdown();
+        blockingExecutor.shutdown();
+        throttleTimer.shutdownNow();
+    }
+
+    /***
+     * @return number of the open connections, idle or busy
+     */
+    int getConnectionCount() {
+        return client.getConnectionCount();
+    }
+
+    /***
+     * A task going through its urls, one download at a time
+     */
+    private final class AsyncExecution extends TaskDispatcher.Execution {
+        private final TaskRunner runner;
+        private volatile UrlDownload download;
+
+        AsyncExecution(BackgroundTask task, TaskRunner runner) {
+            super(task);
+            this.runner = runner;
+        }
+
+        @Override
+        void start() {
+            step();
+        }
+
+        @Override
+        void onCancel() {
+            runner.cancel();
+            UrlDownload current = download;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        /***
+         * Goes through the urls until one needs the network
+         */
+        private void step() {
+            do {
+                final String remotePath = task.getNextSyncTask();
+                if (runner.completeFromCache(task, remotePath)) {
+                    continue;
+                }
+
+                LeaseManager.Lease<String> lease = isPlainHttp(remotePath) ? Downloader.URL_LEASES.tryAcquire(remotePath)
+                        : null;
+                if (lease == null) {
+                    blockingExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            onOutcome(runner.download(task, remotePath));
+                        }
+                    });
+                    return;
+                }
+
+                UrlDownload current = new UrlDownload(this, remotePath, lease);
+                download = current;
+                if (cancelled) {
+                    current.cancel();
+                }
+                current.start();
+                return;
+            } while (!isStopped() && task.hasNextSyncTask());
+            finish();
+        }
+
+        void onOutcome(TaskRunner.Outcome outcome) {
+            download = null;
+            if (outcome == TaskRunner.Outcome.NEXT && !isStopped() && task.hasNextSyncTask()) {
+                step();
+            } else {
+                finish();
+            }
+        }
+    }
+
+    // the work left after a shutdown is done right away, no thread would pick it up
+    private void executeOnFileThread(Runnable work) {
+        try {
+            fileExecutor.execute(work);
+        } catch (RejectedExecutionException e) {
+            work.run();
+        }
+    }
+
+    private static boolean isPlainHttp(String url) {
+        return url.regionMatches(true, 0, "http://", 0, 7);
+    }
+
+    /***
+     * A download of a url, it's driven by the callbacks of the client and of the file channel
+     */
+    private final class UrlDownload implements AsyncHttpClient.ResponseHandler {
+        private final AsyncExecution execution;
+        private final String remotePath;
+        private final LeaseManager.Lease<String> lease;
+        private final Checksum checksum;
+        private final DownloadListener progressListener;
+        private final BandwidthLimiter.Throttle throttle;
+
+        private volatile boolean cancelled;
+        private volatile AsyncHttpClient.Exchange exchange;
+
+        private DownloadRecord record;
+        private File tempFile;
+        private long start;
+        private long size;
+        private StreamingDigest digest;
+        private AsynchronousFileChannel fileChannel;
+        private long position;
+        private long lastCheckpoint;
+        private int progress;
+        private Exception writeFailure;
+        private DownloadResult abortResult; // set if the download is aborted before the body is taken
+
+        UrlDownload(AsyncExecution execution, String remotePath, LeaseManager.Lease<String> lease) {
+            this.execution = execution;
+            this.remotePath = remotePath;
+            this.lease = lease;
+            checksum = execution.task.getChecksum(remotePath);
+            progressListener = execution.task.getDownloadListener();
+            throttle = execution.task.getThrottle();
+        }
+
+        void start() {
+            EFLogger.v(TAG, "downloadFile, url=" + remotePath);
+            URI uri;
+            try {
+                uri = new URI(remotePath);
+            } catch (Exception e) { // bad url
+                complete(DownloadResult.createUnrecoverableErrorResult(e));
+                return;
+            }
+
+            record = syncStateStore.getOrCreateRecord(remotePath);
+            record.setAttemptCount(record.getAttemptCount() + 1);
+
+            tempFile = cache.getTempFile(remotePath);
+            start = tempFile.exists() ? tempFile.length() : 0;
+
+            Map<String, String> headers = new LinkedHashMap<>();
+            // the body must not be compressed for the sake of downloading from last break point
+            headers.put("Accept-Encoding", "identity");
+            if (start > 0) {
+                headers.put("Range", "bytes=" + start + "-");
+            }
+
+            exchange = client.execute(uri, headers, this);
+            if (cancelled) {
+                exchange.cancel();
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+            AsyncHttpClient.Exchange current = exchange;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        @Override
+        public boolean onResponse(final AsyncHttpClient.Exchange exchange, final HttpResponseParser response) {
+            final int responseCode = response.getStatusCode();
+            if (responseCode < 200 || responseCode > 299) {
+                completeLater(DownloadResult.createUnrecoverableErrorResult(
+                        new HttpRespInvalidState("Bad http response status code " + responseCode, responseCode)));
+                return false;
+            }
+            EFLogger.d(TAG, ">>> resp code " + responseCode);
+
+            // the partial file and the record are on the disk, the threads of the client don't wait for them
+            executeOnFileThread(new Runnable() {
+                @Override
+                public void run() {
+                    DownloadResult failure = prepare(responseCode, response);
+                    if (failure != null) {
+                        abortResult = failure;
+                        exchange.cancel();
+                    }
+                    exchange.resume();
+                }
+            });
+            return true;
+        }
+
+        /***
+         * Gets the partial file and the record ready for the body
+         *
+         * @return the result to end the download with, null if the body can be taken
+         */
+        private DownloadResult prepare(int responseCode, HttpResponseParser response) {
+            String lastModified = response.getHeader(Downloader.LAST_MODIFIED);
+            String etag = response.getHeader("ETag");
+            if (responseCode == 206 && start > 0) {
+                if (Downloader.isExpired(record, lastModified, etag)) {
+                    EFLogger.d(TAG, "Resource Expired:" + remotePath);
+
+                    // dump the stale partial file, so that the next round starts over
+                    tempFile.delete();
+                    record.reset();
+                    syncStateStore.putRecord(record);
+                    return DownloadResult.createFailedDownloadResult(new ResourceExpiredException());
+                }
+            } else {
+                // The whole body is coming, appending it to the partial file would corrupt the content.
+                tempFile.delete();
+                start = 0;
+                record.reset();
+                record.setLastModified(lastModified);
+                record.setEtag(etag);
+            }
+
+            long contentLength = response.getContentLength();
+            size = contentLength < 0 ? -1 : start + contentLength;
+            record.setContentLength(contentLength < 0 ? DownloadRecord.UNKNOWN_LENGTH : size);
+            record.setCommittedBytes(start);
+
+            try {
+                digest = Downloader.prepareDigest(checksum, record, tempFile, start);
+                fileChannel = AsynchronousFileChannel.open(tempFile.toPath(),
+                        EnumSet.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE), fileExecutor);
+            } catch (NoSuchAlgorithmException e) {
+                return DownloadResult.createUnrecoverableErrorResult(e);
+            } catch (IOException e) {
+                return DownloadResult.createFailedDownloadResult(e);
+            }
+            position = start;
+            syncStateStore.putRecord(record);
+            lastCheckpoint = System.currentTimeMillis();
+            return null;
+        }
+
+        @Override
+        public void onBody(final AsyncHttpClient.Exchange exchange, final ByteBuffer data) {
+            final int length = data.remaining();
+            // hash the bytes before they reach the file, the buffer is untouched by it
+            if (digest != null) {
+                digest.update(data.array(), data.arrayOffset() + data.position(), length);
+            }
+            write(exchange, data, length);
+        }
+
+        private void write(final AsyncHttpClient.Exchange exchange, final ByteBuffer data, final int length) {
+            fileChannel.write(data, position, null, new CompletionHandler<Integer, Void>() {
+                @Override
+                public void completed(Integer result, Void attachment) {
+                    position += result;
+                    if (data.hasRemaining()) {
+                        write(exchange, data, length);
+                        return;
+                    }
+                    onBytesWritten(length);
+                    long delay = throttle == null ? 0 : throttle.reserve(length);
+                    if (delay > 0) { // the next read waits, no io thread does
+                        throttleTimer.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                exchange.resume();
+                            }
+                        }, delay, TimeUnit.NANOSECONDS);
+                    } else {
+                        exchange.resume();
+                    }
+                }
+
+                @Override
+                public void failed(Throwable exc, Void attachment) {
+                    writeFailure = exc instanceof Exception ? (Exception) exc : new IOException(exc);
+                    exchange.cancel();
+                    exchange.resume();
+                }
+            });
+        }
+
+        private void onBytesWritten(int length) {
+            if (byteCounter != null) {
+                byteCounter.addAndGet(length);
+            }
+            execution.task.notifyBytes(position, size);
+
+            if (checkpointInterval > 0) {
+                long now = System.currentTimeMillis();
+                if (now - lastCheckpoint >= checkpointInterval) {
+                    lastCheckpoint = now;
+                    record.setCommittedBytes(position);
+                    syncStateStore.putRecord(record);
+                }
+            }
+
+            if (progressListener != null && size > 0) {
+                int percentageComplete = (int) (position * 100 / size);
+                if (progress != percentageComplete) {
+                    progress = percentageComplete;
+                    progressListener.onProgress(progress, remotePath);
+                }
+            }
+        }
+
+        @Override
+        public void onComplete(final AsyncHttpClient.Exchange exchange) {
+            IOUtils.closeSilently(fileChannel);
+            if (size >= 0 && position != size) {
+                onFailure(exchange, new IOException("Incomplete body " + position + " of " + size));
+                return;
+            }
+            size = position;
+
+            // verifying, compressing and moving the file take a while, the threads of the client don't wait
+            executeOnFileThread(new Runnable() {
+                @Override
+                public void run() {
+                    commit();
+                }
+            });
+        }
+
+        private void commit() {
+            SaveOptions options = new SaveOptions().setPartition(
+                    execution.task.getTag().equals("") ? null : execution.task.getTag());
+            if (digest != null) {
+                options.setDigest(digest, checksum.getHexValue());
+            }
+
+            try {
+                if (!cache.commitTempFile(remotePath, size, options)) {
+                    saveState();
+                    complete(DownloadResult.createFailedDownloadResult(
+                            new IOException("Failed to commit the file of " + remotePath)));
+                    return;
+                }
+            } catch (ChecksumMismatchException e) {
+                // the partial file has been dropped, a retry will fetch the resource from scratch
+                EFLogger.w(TAG, e.getMessage() + ", url=" + remotePath);
+                record.reset();
+                syncStateStore.putRecord(record);
+                complete(DownloadResult.createFailedDownloadResult(e));
+                return;
+            } catch (IOException e) {
+                complete(DownloadResult.createFailedDownloadResult(e));
+                return;
+            }
+
+            syncStateStore.removeRecord(record);// remove record when downloading is complete
+            if (progressListener != null) {
+                progressListener.onProgress(100, remotePath);
+            }
+            try {
+                // like Downloader, it names the file written to, the handle looks up the entry by itself
+                complete(DownloadResult.createSuccessfulDownloadResult(new URL(remotePath), tempFile, size));
+            } catch (MalformedURLException e) {
+                complete(DownloadResult.createUnrecoverableErrorResult(e));
+            }
+        }
+
+        @Override
+        public void onFailure(AsyncHttpClient.Exchange exchange, final Throwable cause) {
+            IOUtils.closeSilently(fileChannel);
+            executeOnFileThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (fileChannel != null) {
+                        saveState();
+                    }
+                    fail(cause);
+                }
+            });
+        }
+
+        private void fail(Throwable cause) {
+            if (abortResult != null) {
+                complete(abortResult);
+            } else if (writeFailure != null) {
+                complete(DownloadResult.createFailedDownloadResult(writeFailure));
+            } else if (cause instanceof CancellationException) {
+                complete(DownloadResult.createCancelDownloadResult());
+            } else {
+                EFLogger.d(TAG, "Failed to download " + remotePath + ": " + cause);
+                complete(DownloadResult.createFailedDownloadResult(
+                        cause instanceof Exception ? (Exception) cause : new IOException(cause)));
+            }
+        }
+
+        /***
+         * Stores the progress, so that the next attempt resumes the partial file
+         */
+        private void saveState() {
+            long committed = tempFile.length();
+            String state = null;
+            if (digest != null && committed == digest.getByteCount()) {
+                state = digest.saveState();
+            }
+            record.setDigestState(state);
+            record.setCommittedBytes(committed);
+            syncStateStore.putRecord(record);
+        }
+
+        // the outcome may start the next download, which reads its record, so the threads of the client hand it off
+        private void completeLater(final DownloadResult result) {
+            executeOnFileThread(new Runnable() {
+                @Override
+                public void run() {
+                    complete(result);
+                }
+            });
+        }
+
+        private void complete(DownloadResult result) {
+            lease.close();
+            execution.onOutcome(execution.runner.complete(execution.task, remotePath, result));
+        }
+    }
+}
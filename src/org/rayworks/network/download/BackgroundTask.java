@@ -18,17 +18,35 @@ package org.rayworks.network.download;
 
 import java.lang.ref.WeakReference;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.rayworks.network.download.listener.DownloadListener;
+import org.rayworks.network.util.TokenBucket;
 
 public class BackgroundTask {
 
     private String syncTask;
     private WeakReference<DownloadListener> downloadListenerRef;
+    private DownloadHandle handle;
+    private DownloadEventPublisher eventPublisher;
+    private int publishedPercentage = -1;
+    private long lastPosition = -1;
+    private volatile long transferredBytes;
 
+    private ListenerDispatcher listenerDispatcher;
+
+    private BandwidthLimiter bandwidthLimiter;
+    private BandwidthLimiter.Priority priority = BandwidthLimiter.Priority.NORMAL;
+    private TokenBucket bandwidth = new TokenBucket(0);
+
+    /***
+     * @return the listener to call, its callbacks are queued if the task has a {@link ListenerDispatcher}
+     */
     public DownloadListener getDownloadListener() {
-        return downloadListenerRef == null ? null : downloadListenerRef.get();
+        DownloadListener listener = downloadListenerRef == null ? null : downloadListenerRef.get();
+        return listener != null && listenerDispatcher != null ? listenerDispatcher.wrap(listener) : listener;
     }
 
     private boolean compoundTask;
@@ -51,16 +69,32 @@ public class BackgroundTask {
 
     private String tag = "";
 
+    private final Map<String, Checksum> checksums = new HashMap<>();
+
     public void setTag(String tag) {
         this.tag = tag;
     }
+
+    public String getTag() {
+        return tag;
+    }
     
     public BackgroundTask copyInstance(){
-        BackgroundTask bkgTask = this.syncTask == null ? new BackgroundTask(this.syncTasks, getDownloadListener()) :
-                new BackgroundTask(this.syncTask, getDownloadListener());
+        DownloadListener listener = downloadListenerRef == null ? null : downloadListenerRef.get();
+        BackgroundTask bkgTask = this.syncTask == null ? new BackgroundTask(this.syncTasks, listener) :
+                new BackgroundTask(this.syncTask, listener);
         
         bkgTask.index = 0;
         bkgTask.setTag(this.tag);
+        bkgTask.checksums.putAll(this.checksums);
+        if (handle != null) {
+            bkgTask.setHandle(handle);
+        }
+        bkgTask.eventPublisher = eventPublisher;
+        bkgTask.listenerDispatcher = listenerDispatcher;
+        bkgTask.bandwidthLimiter = bandwidthLimiter;
+        bkgTask.priority = priority;
+        bkgTask.bandwidth = bandwidth;
         
         return bkgTask;
     }
@@ -88,6 +122,84 @@ public class BackgroundTask {
     }
 
     private int index = 0;
+
+    /**
+     * Binds the task to a handle, which is held strongly and follows the task's copies
+     *
+     * @param handle
+     */
+    void setHandle(DownloadHandle handle) {
+        this.handle = handle;
+        handle.attach(this);
+    }
+
+    /**
+     * @param eventPublisher null-ok, it publishes the progress and the results of the task
+     */
+    void setEventPublisher(DownloadEventPublisher eventPublisher) {
+        this.eventPublisher = eventPublisher;
+    }
+
+    /**
+     * @param listenerDispatcher null-ok, it calls the listener off the downloading threads
+     */
+    void setListenerDispatcher(ListenerDispatcher listenerDispatcher) {
+        this.listenerDispatcher = listenerDispatcher;
+    }
+
+    /**
+     * @param bandwidthLimiter null-ok, it caps the bandwidth of the task
+     */
+    void setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+        this.bandwidthLimiter = bandwidthLimiter;
+    }
+
+    void setPriority(BandwidthLimiter.Priority priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * @return the cap of the task itself, it's shared with the copies
+     */
+    TokenBucket getBandwidth() {
+        return bandwidth;
+    }
+
+    /**
+     * @return the throttle of a download of the task, null if the bandwidth isn't limited
+     */
+    BandwidthLimiter.Throttle getThrottle() {
+        return bandwidthLimiter == null ? null : bandwidthLimiter.throttle(priority, bandwidth);
+    }
+
+    /**
+     * @return null if the task wasn't submitted with a handle
+     */
+    DownloadHandle getHandle() {
+        return handle;
+    }
+
+    /**
+     * Sets the expected digest of one resource in this task
+     *
+     * @param url
+     * @param checksum null-ok
+     */
+    public void setChecksum(String url, Checksum checksum) {
+        if (checksum == null) {
+            checksums.remove(url);
+        } else {
+            checksums.put(url, checksum);
+        }
+    }
+
+    /**
+     * @param url
+     * @return the expected digest or null if the resource doesn't need verification
+     */
+    public Checksum getChecksum(String url) {
+        return checksums.get(url);
+    }
     
     public void releaseListener(){
         if(downloadListenerRef != null) {
@@ -117,6 +229,8 @@ public class BackgroundTask {
     }
 
     public String getNextSyncTask() {
+        publishedPercentage = -1;
+        lastPosition = -1;
         if (compoundTask && index < syncTasks.size()) {
             String task = syncTasks.get(index);
             ++index;
@@ -148,17 +262,84 @@ public class BackgroundTask {
 	}*/
 
     public void notifyComplete(String remotePath) {
-        if (downloadListenerRef != null && downloadListenerRef.get() != null) {
-            downloadListenerRef.get().onComplete(remotePath);
+        DownloadListener listener = getDownloadListener();
+        if (listener != null) {
+            listener.onComplete(remotePath);
+        }
+        if (handle != null) {
+            handle.onComplete();
+        }
+        if (eventPublisher != null && eventPublisher.hasSubscribers()) {
+            eventPublisher.publish(DownloadEvent.createCompleteEvent(remotePath));
         }
     }
 
     public void notifyError(String error) {
-        if (downloadListenerRef != null && downloadListenerRef.get() != null) {
-            downloadListenerRef.get().onError(error);
+        DownloadListener listener = getDownloadListener();
+        if (listener != null) {
+            listener.onError(error);
+        }
+        if (handle != null) {
+            handle.onError(error);
+        }
+        if (eventPublisher != null && eventPublisher.hasSubscribers()) {
+            eventPublisher.publish(DownloadEvent.createErrorEvent(getCurrentSyncTask(), error));
+        }
+    }
+
+    /**
+     * The task is dropped before it's done, the listener isn't told as before
+     */
+    void notifyCancelled() {
+        if (handle != null) {
+            handle.onCancelled(this);
+        }
+    }
+
+    /**
+     * Reports the bytes of the file being downloaded
+     */
+    void notifyBytes(long current, long total) {
+        // the first report of a url carries the part resumed from a former run
+        if (lastPosition >= 0 && current > lastPosition) {
+            transferredBytes += current - lastPosition;
+        }
+        lastPosition = current;
+
+        if (handle != null) {
+            handle.onProgress(this, current, total);
+        }
+        if (eventPublisher != null && eventPublisher.hasSubscribers()) {
+            // one event per percent, they're conflated anyway if the subscriber is slow
+            int percentage = total > 0 ? (int) (current * 100 / total) : -1;
+            if (percentage != publishedPercentage || percentage < 0) {
+                publishedPercentage = percentage;
+                eventPublisher.publish(DownloadEvent.createProgressEvent(getCurrentSyncTask(), current, total));
+            }
         }
     }
 
+    /**
+     * @return bytes downloaded from the network for the task so far
+     */
+    long getTransferredBytes() {
+        return transferredBytes;
+    }
+
+    /**
+     * @return the first url of the task, whichever is being downloaded
+     */
+    String getFirstSyncTask() {
+        return compoundTask ? syncTasks.get(0) : syncTask;
+    }
+
+    /**
+     * @return the url being downloaded, i.e. the last one returned by {@link #getNextSyncTask()}
+     */
+    private String getCurrentSyncTask() {
+        return compoundTask ? syncTasks.get(Math.max(index - 1, 0)) : syncTask;
+    }
+
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rayworks.network.download;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.TimeUnit;
+
+import org.rayworks.network.util.TokenBucket;
+
+/**
+ * Caps the bandwidth of the downloads at three levels: all of them, each priority class, and each task. A chunk is
+ * charged to the three buckets at once and waits for the slowest, without taking any lock. All the caps can be
+ * changed at any time and apply from the next chunk.
+ * <p>
+ * The tasks added by {@link DownloadService#prioritizeNewTask} are of {@link Priority#HIGH}, the batched tasks and
+ * the prefetching of {@link Priority#LOW}, the others of {@link Priority#NORMAL}. The cap of a task is set by
+ * {@link DownloadHandle#setMaxBytesPerSecond(long)}.
+ * </p>
+ */
+public final class BandwidthLimiter {
+    public enum Priority {
+        HIGH, NORMAL, LOW
+    }
+
+    private final TokenBucket global = new TokenBucket(0);
+    private final TokenBucket[] classes = new TokenBucket[Priority.values().length];
+
+    public BandwidthLimiter() {
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new TokenBucket(0);
+        }
+    }
+
+    /***
+     * @param bytesPerSecond the cap of all the downloads, 0 for none
+     */
+    public void setMaxBytesPerSecond(long bytesPerSecond) {
+        global.setRate(bytesPerSecond);
+    }
+
+    public long getMaxBytesPerSecond() {
+        return global.getRate();
+    }
+
+    /***
+     * @param bytesPerSecond the cap of the downloads of the priority class, 0 for none
+     */
+    public void setMaxBytesPerSecond(Priority priority, long bytesPerSecond) {
+        classes[priority.ordinal()].setRate(bytesPerSecond);
+    }
+
+    public long getMaxBytesPerSecond(Priority priority) {
+        return classes[priority.ordinal()].getRate();
+    }
+
+    /***
+     * @param taskBucket null-ok, the cap of the task
+     * @return the throttle of a download
+     */
+    Throttle throttle(Priority priority, TokenBucket taskBucket) {
+        return new Throttle(classes[checkNotNull(priority).ordinal()], taskBucket);
+    }
+
+    /***
+     * Charges the chunks of a download to its buckets
+     */
+    final class Throttle {
+        private final TokenBucket classBucket;
+        private final TokenBucket taskBucket;
+
+        private Throttle(TokenBucket classBucket, TokenBucket taskBucket) {
+            this.classBucket = classBucket;
+            this.taskBucket = taskBucket;
+        }
+
+        /***
+         * @return how long to wait before using the bytes, in nanoseconds
+         */
+        long reserve(long bytes) {
+            long delay = Math.max(global.reserve(bytes), classBucket.reserve(bytes));
+            return taskBucket == null ? delay : Math.max(delay, taskBucket.reserve(bytes));
+        }
+
+        /***
+         * Waits until the bytes can be used, an interruption cuts the wait short and is kept
+         */
+        void acquire(long bytes) {
+            long delay = reserve(bytes);
+            if (delay > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
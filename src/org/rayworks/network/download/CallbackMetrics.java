@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rayworks.network.download;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the listener callbacks made on the callback executor, see
+ * {@link DownloadSetting.Builder#setCallbackExecutor(java.util.concurrent.Executor)}. The lag of a callback is the time
+ * from the event on the downloading thread to the call of the listener.
+ */
+public final class CallbackMetrics {
+    private final AtomicLong deliveredCount = new AtomicLong();
+    private final AtomicLong mergedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong totalLagNanos = new AtomicLong();
+    private final AtomicLong maxLagNanos = new AtomicLong();
+
+    CallbackMetrics() {
+    }
+
+    void onDelivered(long lagNanos) {
+        deliveredCount.incrementAndGet();
+        totalLagNanos.addAndGet(lagNanos);
+        long max;
+        do {
+            max = maxLagNanos.get();
+        } while (lagNanos > max && !maxLagNanos.compareAndSet(max, lagNanos));
+    }
+
+    void onMerged() {
+        mergedCount.incrementAndGet();
+    }
+
+    void onDropped() {
+        droppedCount.incrementAndGet();
+    }
+
+    public long getDeliveredCount() {
+        return deliveredCount.get();
+    }
+
+    /***
+     * @return number of the progress callbacks merged into a pending or a recent one of the same download
+     */
+    public long getMergedCount() {
+        return mergedCount.get();
+    }
+
+    /***
+     * @return number of the progress callbacks dropped as the listener was too far behind
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getMaxLagMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxLagNanos.get());
+    }
+
+    public double getAverageLagMillis() {
+        long delivered = deliveredCount.get();
+        return delivered == 0 ? 0 : totalLagNanos.get() / 1e6 / delivered;
+    }
+
+    @Override
+    public String toString() {
+        return "delivered " + getDeliveredCount() + ", merged " + getMergedCount() + ", dropped " + getDroppedCount()
+                + ", lag avg " + String.format("%.1f", getAverageLagMillis()) + " ms, max " + getMaxLagMillis() + " ms";
+    }
+}
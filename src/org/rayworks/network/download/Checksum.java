@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.download;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The expected digest of a remote resource, e.g. "SHA-256" with its hex value.
+ */
+public class Checksum {
+    private final String algorithm;
+    private final String hexValue;
+
+    public Checksum(String algorithm, String hexValue) {
+        checkArgument(algorithm != null && !algorithm.equals(""));
+        checkArgument(hexValue != null && !hexValue.equals(""));
+
+        this.algorithm = algorithm;
+        this.hexValue = hexValue.toLowerCase();
+    }
+
+    public static Checksum sha256(String hexValue) {
+        return new Checksum("SHA-256", hexValue);
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /***
+     * @return the expected digest in lower case hex
+     */
+    public String getHexValue() {
+        return hexValue;
+    }
+
+    @Override
+    public String toString() {
+        return algorithm + ":" + hexValue;
+    }
+}
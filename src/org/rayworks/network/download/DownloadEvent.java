@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rayworks.network.download;
+
+/**
+ * The progress or the result of the download of a url, published by {@link DownloadService#getEventPublisher()}.
+ */
+public final class DownloadEvent {
+    public enum Type {
+        /** Bytes downloaded so far, the events of a url may be conflated */
+        PROGRESS,
+        /** The url is cached, it's never conflated */
+        COMPLETE,
+        /** The url failed once the retries were exhausted, it's never conflated */
+        ERROR
+    }
+
+    private final Type type;
+    private final String url;
+    private final long downloadedBytes;
+    private final long totalBytes;
+    private final String error;
+
+    private DownloadEvent(Type type, String url, long downloadedBytes, long totalBytes, String error) {
+        this.type = type;
+        this.url = url;
+        this.downloadedBytes = downloadedBytes;
+        this.totalBytes = totalBytes;
+        this.error = error;
+    }
+
+    static DownloadEvent createProgressEvent(String url, long downloadedBytes, long totalBytes) {
+        return new DownloadEvent(Type.PROGRESS, url, downloadedBytes, totalBytes, null);
+    }
+
+    static DownloadEvent createCompleteEvent(String url) {
+        return new DownloadEvent(Type.COMPLETE, url, -1, -1, null);
+    }
+
+    static DownloadEvent createErrorEvent(String url, String error) {
+        return new DownloadEvent(Type.ERROR, url, -1, -1, error);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /***
+     * @return bytes of the file on disk, including a resumed part; -1 if it's not a progress event
+     */
+    public long getDownloadedBytes() {
+        return downloadedBytes;
+    }
+
+    /***
+     * @return size of the file, -1 if it's not known
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /***
+     * @return 0 to 100, or -1 if the size isn't known
+     */
+    public int getPercentage() {
+        return totalBytes > 0 ? (int) (downloadedBytes * 100 / totalBytes) : -1;
+    }
+
+    /***
+     * @return the message of an error event, otherwise null
+     */
+    public String getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + url + (type == Type.PROGRESS ? " " + downloadedBytes + "/" + totalBytes : "")
+                + (error != null ? " " + error : "");
+    }
+}
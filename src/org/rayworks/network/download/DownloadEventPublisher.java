@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rayworks.network.download;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.rayworks.network.util.EFLogger;
+import org.rayworks.network.util.Flow;
+
+/**
+ * Publishes the {@link DownloadEvent}s of the downloads to the subscribers, each of them at its own pace.
+ * <p>
+ * Publishing never blocks the downloading thread: the events are buffered per subscriber and delivered on the
+ * executor. While a subscriber has no demand, the progress events of a url are conflated and only the latest is
+ * kept, so a slow subscriber costs one pending event per download. The complete and error events are always
+ * delivered, after the progress of their url.
+ * </p>
+ */
+public final class DownloadEventPublisher implements Flow.Publisher<DownloadEvent> {
+    private static final String TAG = DownloadEventPublisher.class.getSimpleName();
+
+    private final Executor executor;
+    private final List<EventSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final AtomicLong conflatedEvents = new AtomicLong();
+
+    /***
+     * @param executor runs the delivery to the subscribers, one task at a time per subscriber
+     */
+    public DownloadEventPublisher(Executor executor) {
+        this.executor = checkNotNull(executor);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super DownloadEvent> subscriber) {
+        checkNotNull(subscriber);
+        EventSubscription subscription = new EventSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        if (!subscription.cancelled) {
+            subscriptions.add(subscription);
+        }
+    }
+
+    public boolean hasSubscribers() {
+        return !subscriptions.isEmpty();
+    }
+
+    /***
+     * @return number of the progress events replaced by a later one before they were delivered
+     */
+    public long getConflatedEventCount() {
+        return conflatedEvents.get();
+    }
+
+    void publish(DownloadEvent event) {
+        for (EventSubscription subscription : subscriptions) {
+            subscription.offer(event);
+        }
+    }
+
+    private final class EventSubscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super DownloadEvent> subscriber;
+
+        // guarded by this
+        private final ArrayDeque<DownloadEvent> resultEvents = new ArrayDeque<>();
+        private final LinkedHashMap<String, DownloadEvent> progressEvents = new LinkedHashMap<>();
+        private Throwable failure;
+
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger pendingDrains = new AtomicInteger();
+        private volatile boolean cancelled;
+
+        EventSubscription(Flow.Subscriber<? super DownloadEvent> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                synchronized (this) {
+                    failure = new IllegalArgumentException("non-positive request: " + n);
+                }
+            } else {
+                long current;
+                do {
+                    current = demand.get();
+                    if (current == Long.MAX_VALUE) {
+                        break;
+                    }
+                } while (!demand.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+        }
+
+        void offer(DownloadEvent event) {
+            synchronized (this) {
+                if (event.getType() == DownloadEvent.Type.PROGRESS) {
+                    if (progressEvents.put(event.getUrl(), event) != null) {
+                        conflatedEvents.incrementAndGet();
+                    }
+                } else {
+                    if (progressEvents.remove(event.getUrl()) != null) { // the result tells more
+                        conflatedEvents.incrementAndGet();
+                    }
+                    resultEvents.add(event);
+                }
+            }
+            drain();
+        }
+
+        private void drain() {
+            if (pendingDrains.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        private synchronized DownloadEvent poll() {
+            DownloadEvent event = resultEvents.poll();
+            if (event == null && !progressEvents.isEmpty()) {
+                Iterator<DownloadEvent> iterator = progressEvents.values().iterator();
+                event = iterator.next();
+                iterator.remove();
+            }
+            return event;
+        }
+
+        private synchronized Throwable takeFailure() {
+            Throwable throwable = failure;
+            failure = null;
+            return throwable;
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                while (!cancelled) {
+                    Throwable throwable = takeFailure();
+                    if (throwable != null) {
+                        cancel();
+                        subscriber.onError(throwable);
+                        break;
+                    }
+                    if (demand.get() == 0) {
+                        break;
+                    }
+                    DownloadEvent event = poll();
+                    if (event == null) {
+                        break;
+                    }
+                    if (demand.get() != Long.MAX_VALUE) {
+                        demand.decrementAndGet();
+                    }
+                    try {
+                        subscriber.onNext(event);
+                    } catch (RuntimeException e) { // the subscriber is broken, it's dropped
+                        EFLogger.d(TAG, "subscriber failed, it's cancelled", e);
+                        cancel();
+                    }
+                }
+                missed = pendingDrains.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rayworks.network.download;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import org.rayworks.network.download.exception.DownloadException;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * A download submitted by {@link DownloadService#submit(DownloadRequest)}.
+ * <p>
+ * The handle is held strongly by its task, so unlike a {@link org.rayworks.network.download.listener.DownloadListener}
+ * the caller doesn't have to keep anything alive to learn the result. The future succeeds with the cached file,
+ * fails with a {@link DownloadException} once the retries are exhausted, and is cancelled by {@link #cancel()} or by
+ * {@link DownloadService#cancelTask(String)}. Cancelling the future itself cancels the download as well.
+ * </p>
+ */
+public final class DownloadHandle {
+    private final DownloadManager downloadManager;
+    private final String url;
+    private final SettableFuture<DownloadResult> future = SettableFuture.create();
+
+    private volatile BackgroundTask task;
+    private boolean paused;
+    private long maxBytesPerSecond; // applied to each task attached
+
+    private volatile long downloadedBytes;
+    private volatile long totalBytes = -1;
+
+    DownloadHandle(DownloadManager downloadManager, String url) {
+        this.downloadManager = downloadManager;
+        this.url = url;
+
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                onDone();
+            }
+        }, MoreExecutors.sameThreadExecutor());
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /***
+     * @return the result of the download, it's never failed with a recoverable error
+     */
+    public ListenableFuture<DownloadResult> getFuture() {
+        return future;
+    }
+
+    /***
+     * @return bytes of the file on disk so far, including a part resumed from a former run
+     */
+    public long getDownloadedBytes() {
+        return downloadedBytes;
+    }
+
+    /***
+     * @return size of the file, -1 if it's not known yet
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /***
+     * Caps the bandwidth of the download, on top of the caps of the {@link BandwidthLimiter}. It applies at once,
+     * even to a running download, and does nothing once the download is done.
+     *
+     * @param bytesPerSecond 0 for no cap
+     */
+    public synchronized void setMaxBytesPerSecond(long bytesPerSecond) {
+        checkArgument(bytesPerSecond >= 0, "the rate should not be negative");
+        if (future.isDone()) {
+            return;
+        }
+        maxBytesPerSecond = bytesPerSecond;
+        if (task != null) {
+            task.getBandwidth().setRate(bytesPerSecond);
+        }
+    }
+
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    public boolean isDone() {
+        return future.isDone();
+    }
+
+    /***
+     * Cancels the download, the partial file is kept for a later download of the same url.
+     *
+     * @return false if the download was done already
+     */
+    public boolean cancel() {
+        return future.cancel(false);
+    }
+
+    /***
+     * Stops the download and keeps its partial file, the future stays pending until {@link #resume()}.
+     *
+     * @return false if the download was done or paused already
+     */
+    public synchronized boolean pause() {
+        if (paused || future.isDone()) {
+            return false;
+        }
+        paused = true;
+        stop();
+        return true;
+    }
+
+    /***
+     * Queues a paused download again, it's resumed from the partial file.
+     *
+     * @return false if the download wasn't paused
+     */
+    public synchronized boolean resume() {
+        if (!paused || future.isDone()) {
+            return false;
+        }
+        paused = false;
+        downloadManager.enqueueTask(task.copyInstance()); // the copy is attached to the handle
+        return true;
+    }
+
+    /***
+     * Moves the queued download to the head of the queue, see {@link DownloadService#prioritizeNewTask}.
+     *
+     * @return false if the download isn't waiting in the queue, e.g. it's running or paused
+     */
+    public synchronized boolean prioritize() {
+        if (paused || future.isDone() || !downloadManager.removeQueuedTask(task)) {
+            return false;
+        }
+        task.setPriority(BandwidthLimiter.Priority.HIGH);
+        downloadManager.prioritizeTask(task);
+        return true;
+    }
+
+    synchronized void attach(BackgroundTask task) {
+        this.task = task;
+        task.getBandwidth().setRate(maxBytesPerSecond);
+    }
+
+    /***
+     * A task which was rescheduled or paused may still report its last bytes, they're ignored
+     */
+    void onProgress(BackgroundTask task, long current, long total) {
+        if (task == this.task) {
+            onProgress(current, total);
+        }
+    }
+
+    private void onProgress(long current, long total) {
+        downloadedBytes = current;
+        if (total > 0) {
+            totalBytes = total;
+        }
+    }
+
+    void onComplete() {
+        File file = downloadManager.getCachedFileByUrl(url);
+        long total = file == null ? totalBytes : file.length();
+        try {
+            onProgress(total, total);
+            future.set(DownloadResult.createSuccessfulDownloadResult(new URL(url), file, total));
+        } catch (MalformedURLException e) { // it was downloaded, so it's not expected
+            future.setException(e);
+        }
+    }
+
+    void onError(String error) {
+        future.setException(new DownloadException(error));
+    }
+
+    /***
+     * The task of the handle was dropped without a result, a task which was only rescheduled or paused is ignored.
+     */
+    synchronized void onCancelled(BackgroundTask task) {
+        if (task == this.task && !paused) {
+            future.cancel(false);
+        }
+    }
+
+    private synchronized void stop() {
+        if (task != null && !downloadManager.removeQueuedTask(task)) {
+            downloadManager.cancelRunningTask(task);
+        }
+    }
+
+    private void onDone() {
+        if (future.isCancelled()) {
+            stop();
+        }
+        downloadManager.onHandleDone(this);
+    }
+}
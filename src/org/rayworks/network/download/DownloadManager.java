@@ -18,16 +18,29 @@ package org.rayworks.network.download;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.rayworks.network.download.cache.BaseCache;
+import org.rayworks.network.download.cache.CacheLease;
 import org.rayworks.network.download.listener.DownloadListener;
+import org.rayworks.network.download.listener.PrefetchListener;
 import org.rayworks.network.download.listener.WrapperDownloadListener;
 import org.rayworks.network.storage.SyncStateStore;
 import org.rayworks.network.util.EFLogger;
@@ -37,6 +50,7 @@ import org.rayworks.service.DeviceStorageMonitor;
 
 import com.google.common.base.Predicate;
 import com.google.common.collect.Collections2;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * <ul>
@@ -57,11 +71,32 @@ public class DownloadManager implements DownloadService, ConnectivityService.Con
 
     private final SyncStateStore syncStateStore;
 
-    private final int workThreadNum;
+    private final TaskQueue ongoingTasks;
 
-    private final LinkedBlockingDeque<BackgroundTask> ongoingTasks;
+    // the draining workers are kept until they stop
+    private final List<WorkerThread> workThreads = new CopyOnWriteArrayList<>();
+    private int workerSerial;
 
-    private WorkerThread[] workThreads;
+    // runs the tasks without the workers, see DownloadSetting#isThreadPerTask() and DownloadSetting#isNonBlockingIo()
+    private final TaskDispatcher taskDispatcher;
+
+    private final AtomicLong downloadedBytes = new AtomicLong();
+    private ScheduledExecutorService autoscaleExecutor;
+
+    private final AtomicInteger idleWorkers = new AtomicInteger();
+    private final WorkerThread.WorkerStateListener workerStateListener = new WorkerThread.WorkerStateListener() {
+        @Override
+        public void onStateChanged(WorkerThread worker, WorkerThread.WorkerState from, WorkerThread.WorkerState to) {
+            if (from == WorkerThread.WorkerState.IDLE) {
+                idleWorkers.decrementAndGet();
+            }
+            if (to == WorkerThread.WorkerState.IDLE) {
+                idleWorkers.incrementAndGet();
+            } else if (to == WorkerThread.WorkerState.STOPPED) {
+                workThreads.remove(worker);
+            }
+        }
+    };
 
     private final ConnectivityService connectivityService;
     private final DeviceStorageMonitor deviceStorageMonitor;
@@ -75,6 +110,22 @@ public class DownloadManager implements DownloadService, ConnectivityService.Con
 
     public ArrayList<BackgroundTask> recoverableTasks = new ArrayList<>();
 
+    private final List<PrefetchTask> prefetchTasks = new CopyOnWriteArrayList<>();
+    private final ExecutorService prefetchExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+            .setNameFormat("Prefetch#%d").setDaemon(true).setPriority(Thread.MIN_PRIORITY).build());
+
+    /***
+     * The handles not done yet, by url
+     */
+    private final ConcurrentMap<String, DownloadHandle> handles = new ConcurrentHashMap<>();
+
+    private final BandwidthLimiter bandwidthLimiter = new BandwidthLimiter();
+    private final CallbackMetrics callbackMetrics = new CallbackMetrics();
+    private final ListenerDispatcher listenerDispatcher;
+
+    private final DownloadEventPublisher eventPublisher = new DownloadEventPublisher(Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder().setNameFormat("DownloadEvents#%d").setDaemon(true).build()));
+
     /**
      * Constructor
      *
@@ -97,11 +148,16 @@ public class DownloadManager implements DownloadService, ConnectivityService.Con
 
         downloadSetting = setting;
         this.syncStateStore = syncStateStore;
-        this.workThreadNum = setting.getThreadNum();
 
-        ongoingTasks = new LinkedBlockingDeque<>(); //new LinkedBlockingQueue<>();
-
-        workThreads = new WorkerThread[workThreadNum];
+        ongoingTasks = new TaskQueue(setting.getMaxConnectionsPerHost());
+        ongoingTasks.setIdleListener(new Runnable() {
+            @Override
+            public void run() {
+                for (PrefetchTask prefetchTask : prefetchTasks) {
+                    prefetchTask.onForegroundIdle();
+                }
+            }
+        });
 
         this.connectivityService = connectivityService;
         this.deviceStorageMonitor = deviceStorageMonitor;
@@ -113,11 +169,32 @@ public class DownloadManager implements DownloadService, ConnectivityService.Con
         downloadEnabledStrategy = setting.getDownloadEnabledStrategy();
         checkNotNull(downloadEnabledStrategy);
 
+        bandwidthLimiter.setMaxBytesPerSecond(setting.getMaxBytesPerSecond());
+        taskDispatcher = createTaskDispatcher(setting);
+        listenerDispatcher = setting.getCallbackExecutor() == null ? null
+                : new ListenerDispatcher(setting.getCallbackExecutor(), setting, callbackMetrics);
+
         restoreSyncTasks();
 
         start();
     }
 
+    private TaskDispatcher createTaskDispatcher(DownloadSetting setting) {
+        TaskDispatcher.Launcher launcher;
+        if (setting.isNonBlockingIo()) {
+            try {
+                launcher = new AsyncLauncher(syncStateStore, cache, downloadedBytes, setting);
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to set up the non-blocking io", e);
+            }
+        } else if (setting.isThreadPerTask()) {
+            launcher = new ThreadPerTaskLauncher(syncStateStore, cache, downloadedBytes, setting);
+        } else {
+            return null;
+        }
+        return new TaskDispatcher(ongoingTasks, setting, launcher);
+    }
+
     private void restoreSyncTasks() {
         /*TO DO*/
     }
@@ -127,21 +204,177 @@ public class DownloadManager implements DownloadService, ConnectivityService.Con
         int threadPriority = downloadSetting.getThreadPriority();
         EFLogger.d(TAG, String.format("Thread config : timeout | %d, priority | %d", timeout, threadPriority));
 
-        WorkerThread workThread;
-        for (int i = 0; i < workThreadNum; i++) {
-            workThread = new WorkerThread("Thread#" + i, ongoingTasks, syncStateStore, cache,
-                    timeout);
-            workThread.setPriority(threadPriority);
-            workThreads[i] = workThread;
+        if (taskDispatcher != null) {
+            taskDispatcher.start();
+            return;
+        }
+        setWorkerCount(initialWorkerCount(downloadSetting));
+        startAutoscaler(downloadSetting);
+    }
+
+    private static int initialWorkerCount(DownloadSetting setting) {
+        if (setting.isAutoscaling()) {
+            return Math.max(setting.getMinThreadNum(), Math.min(setting.getMaxThreadNum(), setting.getThreadNum()));
+        }
+        return setting.getThreadNum();
+    }
+
+    /***
+     * Grows or shrinks the worker pool. The surplus workers are drained, they quit once their current task is done,
+     * the idle ones first.
+     *
+     * @param count the number of workers, positive
+     * @throws IllegalStateException if each task runs on a thread of its own
+     */
+    public synchronized void setWorkerCount(int count) {
+        checkArgument(count > 0, "count should be positive");
+        checkState(taskDispatcher == null, "no worker to resize, each task runs on a thread of its own");
+
+        List<WorkerThread> active = getActiveWorkers();
+        for (int i = active.size(); i < count; i++) {
+            WorkerThread workThread = new WorkerThread("Thread#" + workerSerial++, ongoingTasks, syncStateStore, cache,
+                    downloadSetting.getTimeout());
+            workThread.setPriority(downloadSetting.getThreadPriority());
+            workThread.setCheckpointInterval(downloadSetting.getCheckpointInterval());
+            workThread.setByteCounter(downloadedBytes);
+            workThread.setStateListener(workerStateListener);
+            idleWorkers.incrementAndGet(); // a worker starts idle
+            workThreads.add(workThread);
 
             workThread.start();
         }
+
+        int surplus = active.size() - count;
+        for (WorkerThread.WorkerState state : new WorkerThread.WorkerState[]{
+                WorkerThread.WorkerState.IDLE, WorkerThread.WorkerState.RESTING, WorkerThread.WorkerState.RUNNING}) {
+            for (int i = active.size() - 1; i >= 0 && surplus > 0; i--) {
+                WorkerThread workThread = active.get(i);
+                if (!workThread.isDraining() && workThread.getWorkerState() == state) {
+                    EFLogger.d(TAG, "Draining " + workThread.getName());
+                    workThread.drain();
+                    surplus--;
+                }
+            }
+        }
+    }
+
+    /***
+     * @return the number of workers, the draining ones excluded
+     */
+    public int getWorkerCount() {
+        return getActiveWorkers().size();
+    }
+
+    /***
+     * @return number of the tasks waiting for a worker
+     */
+    public int getQueuedTaskCount() {
+        return ongoingTasks.size();
+    }
+
+    /***
+     * @return number of the tasks being executed
+     */
+    public int getRunningTaskCount() {
+        if (taskDispatcher != null) {
+            return taskDispatcher.getRunningTaskCount();
+        }
+        int running = 0;
+        for (WorkerThread workThread : workThreads) {
+            if (workThread.getTask() != null) {
+                running++;
+            }
+        }
+        return running;
+    }
+
+    /***
+     * @return bytes downloaded by the workers so far
+     */
+    public long getDownloadedBytes() {
+        return downloadedBytes.get();
+    }
+
+    /***
+     * @return the caps of the bandwidth, they can be changed at any time
+     */
+    public BandwidthLimiter getBandwidthLimiter() {
+        return bandwidthLimiter;
+    }
+
+    /***
+     * @return the counters of the callbacks made on the callback executor, they stay at 0 without one
+     */
+    public CallbackMetrics getCallbackMetrics() {
+        return callbackMetrics;
+    }
+
+    private List<WorkerThread> getActiveWorkers() {
+        List<WorkerThread> active = new ArrayList<>(workThreads.size());
+        for (WorkerThread workThread : workThreads) {
+            if (!workThread.isDraining()) {
+                active.add(workThread);
+            }
+        }
+        return active;
+    }
+
+    private synchronized void startAutoscaler(DownloadSetting setting) {
+        if (autoscaleExecutor != null) {
+            autoscaleExecutor.shutdownNow();
+            autoscaleExecutor = null;
+        }
+        if (setting.isAutoscaling()) {
+            autoscaleExecutor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("Autoscaler").setDaemon(true).build());
+            autoscaleExecutor.scheduleWithFixedDelay(
+                    new WorkerAutoscaler(this, setting.getMinThreadNum(), setting.getMaxThreadNum()),
+                    setting.getAutoscaleInterval(), setting.getAutoscaleInterval(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public PrefetchTask prefetch(Iterator<PrefetchEntry> manifest, PrefetchSetting setting, PrefetchListener listener) {
+        checkNotNull(manifest);
+        checkNotNull(setting);
+
+        PrefetchTask prefetchTask = new PrefetchTask(this, syncStateStore, cache, manifest, setting, listener);
+        prefetchTasks.add(prefetchTask);
+        prefetchTask.start(prefetchExecutor);
+        return prefetchTask;
+    }
+
+    @Override
+    public PrefetchTask prefetch(List<PrefetchEntry> manifest, PrefetchSetting setting, PrefetchListener listener) {
+        checkNotNull(manifest);
+        return prefetch(manifest.iterator(), setting, listener);
+    }
+
+    /***
+     * Whether any foreground task is queued or running, the prefetching waits until it's false. The prefetch runs
+     * are told by {@link PrefetchTask#onForegroundIdle()} once it is.
+     */
+    boolean hasForegroundTasks() {
+        return !ongoingTasks.isIdle();
+    }
+
+    void onPrefetchFinished(PrefetchTask prefetchTask) {
+        prefetchTasks.remove(prefetchTask);
+    }
+
+    private void yieldPrefetching() {
+        for (PrefetchTask prefetchTask : prefetchTasks) {
+            prefetchTask.yieldToForeground();
+        }
     }
 
     @Override
     public void cancelAllTasks() {
-        /*for (int i = 0; i < workThreadNum; i++) {
-            WorkerThread thread = workThreads[i];
+        for (PrefetchTask prefetchTask : prefetchTasks) {
+            prefetchTask.cancel();
+        }
+
+        /*for (WorkerThread thread : workThreads) {
             thread.stopNow();
         }*/
 
@@ -151,22 +384,34 @@ public class DownloadManager implements DownloadService, ConnectivityService.Con
     @Override
     public void config(DownloadSetting setting) {
         if (setting != null) {
-            downloadSetting = setting;
-            downloadEnabledStrategy = downloadSetting.getDownloadEnabledStrategy();
-            checkNotNull(downloadEnabledStrategy);
+            checkNotNull(setting.getDownloadEnabledStrategy());
+            synchronized (this) {
+                downloadSetting = setting;
+                downloadEnabledStrategy = downloadSetting.getDownloadEnabledStrategy();
+                if (listenerDispatcher != null) {
+                    listenerDispatcher.configure(setting);
+                }
+                bandwidthLimiter.setMaxBytesPerSecond(setting.getMaxBytesPerSecond());
+                ongoingTasks.setMaxTasksPerHost(setting.getMaxConnectionsPerHost());
+
+                if (taskDispatcher != null) {
+                    taskDispatcher.configure(setting);
+                    return;
+                }
+                for (WorkerThread workThread : workThreads) {
+                    workThread.setTimeout(setting.getTimeout());
+                    workThread.setPriority(setting.getThreadPriority());
+                    workThread.setCheckpointInterval(setting.getCheckpointInterval());
+                }
+                setWorkerCount(initialWorkerCount(setting));
+                startAutoscaler(setting);
+            }
         }
     }
 
     @Override
     public boolean haveAllFilesDownloaded(List<String> urls) {
-        boolean allDownloaded = false;
-        for (String url : urls) {
-            allDownloaded = cache.existFile(url);
-            if (!allDownloaded) {
-                return allDownloaded;
-            }
-        }
-        return true;
+        return cache.existFiles(urls).cardinality() == urls.size();
     }
 
     @Override
@@ -174,16 +419,36 @@ public class DownloadManager implements DownloadService, ConnectivityService.Con
         return cache.getFile(remoteUrl);
     }
 
+    @Override
+    public InputStream openCachedStream(String remoteUrl) throws IOException {
+        return cache.openStream(remoteUrl);
+    }
+
+    @Override
+    public InputStream openProgressiveStream(String remoteUrl, long timeoutMillis) throws IOException {
+        checkArgument(timeoutMillis > 0, "timeoutMillis should be positive");
+        return cache.openProgressiveStream(remoteUrl, timeoutMillis);
+    }
+
+    @Override
+    public CacheLease acquireCachedFile(String remoteUrl) {
+        return cache.acquire(remoteUrl);
+    }
+
     private void wakeupWorkers() {
-        for (int i = 0; i < workThreadNum; i++) {
-            WorkerThread thread = workThreads[i];
+        if (taskDispatcher != null) {
+            taskDispatcher.wakeup();
+        }
+        for (WorkerThread thread : workThreads) {
             thread.wakeup();
         }
     }
 
     private void restWorkers() {
-        for (int i = 0; i < workThreadNum; i++) {
-            WorkerThread thread = workThreads[i];
+        if (taskDispatcher != null) {
+            taskDispatcher.rest();
+        }
+        for (WorkerThread thread : workThreads) {
             thread.rest();
         }
     }
@@ -213,7 +478,8 @@ public class DownloadManager implements DownloadService, ConnectivityService.Con
     private boolean isTaskOngoing(final String taskTag) {
         boolean ongoing = foundTaskInQueue(taskTag);
         if (!ongoing) {
-            ongoing = locateThreadWithTaskTag(taskTag) != null;
+            ongoing = taskDispatcher != null ? taskDispatcher.isRunning(taskTag)
+                    : locateThreadWithTaskTag(taskTag) != null;
         }
         return ongoing;
     }
@@ -260,8 +526,7 @@ public class DownloadManager implements DownloadService, ConnectivityService.Con
      * @return
      */
     private WorkerThread locateThreadWithTaskTag(String tag) {
-        for (int i = 0; i < workThreadNum; i++) {
-            WorkerThread thread = workThreads[i];
+        for (WorkerThread thread : workThreads) {
             final BackgroundTask backgroundTask = thread.getTask();
             if (backgroundTask != null && backgroundTask.containTargetKey(tag)) {
                 EFLogger.d(TAG, "Worker located " + thread.getName() + " when running task #" + tag);
@@ -273,6 +538,10 @@ public class DownloadManager implements DownloadService, ConnectivityService.Con
 
 
     private void cancelRunningTaskWithTag(String tag) {
+        if (taskDispatcher != null) {
+            taskDispatcher.cancel(tag);
+            return;
+        }
         WorkerThread thread = locateThreadWithTaskTag(tag);
         if (thread != null) {
 
@@ -296,11 +565,21 @@ public class DownloadManager implements DownloadService, ConnectivityService.Con
 
     @Override
     public void add(String url, DownloadListener downloadListener) {
+        add(url, downloadListener, null, null);
+    }
+
+    private void add(String url, DownloadListener downloadListener, Checksum checksum, String tag) {
         checkArgument(url != null);
 
         if (downloadEnabledStrategy.isNetworkAvailableForDownloading()) {
             if (!isTaskOngoing(url)) {
-                ongoingTasks.add(new BackgroundTask(url, downloadListener));
+                BackgroundTask task = createTask(url, downloadListener);
+                task.setChecksum(url, checksum);
+                if (tag != null) {
+                    task.setTag(tag);
+                }
+                ongoingTasks.add(task);
+                yieldPrefetching();
             } else {
                 EFLogger.d(TAG, "Ongoing task detected, request dumped now ...");
             }
@@ -309,12 +588,91 @@ public class DownloadManager implements DownloadService, ConnectivityService.Con
         }
     }
 
+    @Override
+    public DownloadEventPublisher getEventPublisher() {
+        return eventPublisher;
+    }
+
+    @Override
+    public DownloadHandle submit(String url) {
+        return submit(new DownloadRequest(url, url, null));
+    }
+
+    @Override
+    public DownloadHandle submit(DownloadRequest request) {
+        checkNotNull(request);
+        String url = request.getUrl();
+        checkArgument(url != null);
+
+        DownloadHandle handle = new DownloadHandle(this, url);
+        DownloadHandle current = handles.putIfAbsent(url, handle);
+        if (current != null) {
+            if (!current.isDone()) {
+                return current;
+            }
+            handles.put(url, handle); // it's just done, the entry is being removed
+        }
+
+        if (!downloadEnabledStrategy.isNetworkAvailableForDownloading()) {
+            handle.onError("network not available for downloading");
+            return handle;
+        }
+
+        BackgroundTask task = createTask(url, request.getDownloadListener());
+        task.setChecksum(url, request.getChecksum());
+        if (request.getTag() != null) {
+            task.setTag(request.getTag());
+        }
+        task.setHandle(handle);
+        enqueueTask(task);
+        return handle;
+    }
+
+    private BackgroundTask createTask(String url, DownloadListener downloadListener) {
+        BackgroundTask task = new BackgroundTask(url, downloadListener);
+        task.setEventPublisher(eventPublisher);
+        task.setListenerDispatcher(listenerDispatcher);
+        task.setBandwidthLimiter(bandwidthLimiter);
+        return task;
+    }
+
+    void enqueueTask(BackgroundTask task) {
+        ongoingTasks.add(task);
+        yieldPrefetching();
+    }
+
+    /***
+     * @return whether the task was waiting in the queue
+     */
+    boolean removeQueuedTask(BackgroundTask task) {
+        return ongoingTasks.remove(task);
+    }
+
+    /***
+     * Cancels the task if it's running, another task of the same url is left alone
+     */
+    void cancelRunningTask(BackgroundTask task) {
+        if (taskDispatcher != null) {
+            taskDispatcher.cancel(task);
+            return;
+        }
+        for (WorkerThread thread : workThreads) {
+            if (thread.getTask() == task) {
+                thread.cancelRunningTask();
+            }
+        }
+    }
+
+    void onHandleDone(DownloadHandle handle) {
+        handles.remove(handle.getUrl(), handle);
+    }
+
     @Override
     public void add(ArrayList<DownloadRequest> requests) {
         checkNotNull(requests);
 
         for (DownloadRequest request : requests) {
-            add(request.getUrl(), request.getDownloadListener());
+            add(request.getUrl(), request.getDownloadListener(), request.getChecksum(), request.getTag());
         }
     }
 
@@ -329,7 +687,13 @@ public class DownloadManager implements DownloadService, ConnectivityService.Con
 
                 if (!isTaskOngoing(tag)) {
                     WrapperDownloadListener listener = new WrapperDownloadListener(downloadListener, urls);
-                    ongoingTasks.add(new BackgroundTask(urls, listener));
+                    BackgroundTask task = new BackgroundTask(urls, listener);
+                    task.setEventPublisher(eventPublisher);
+                    task.setListenerDispatcher(listenerDispatcher);
+                    task.setBandwidthLimiter(bandwidthLimiter);
+                    task.setPriority(BandwidthLimiter.Priority.LOW);
+                    ongoingTasks.add(task);
+                    yieldPrefetching();
                 } else {
                     EFLogger.d(TAG, "Ongoing task detected, request dumped now ...");
                 }
@@ -354,6 +718,7 @@ public class DownloadManager implements DownloadService, ConnectivityService.Con
 
             if (predicate.apply(bkgTask)) {
                 iterator.remove();
+                bkgTask.notifyCancelled();
                 EFLogger.d(TAG, "Task" + url + " removed from queue");
                 found = true;
                 break;
@@ -369,53 +734,64 @@ public class DownloadManager implements DownloadService, ConnectivityService.Con
             EFLogger.d(TAG, "same task detected, prioritizing operation cancelled tag#" + url);
         } else {
             if (downloadEnabledStrategy.isNetworkAvailableForDownloading()) {
-                if (hasExtraWorker()) {
-                    // we have spare thread now, so just do it
-                    ongoingTasks.addFirst(new BackgroundTask(url, downloadListener));
-                    EFLogger.d(TAG, ">>> Having enough worker, just add the task at header, total task num:" + ongoingTasks.size());
-                } else {
-                    // adjust the queue
-                    // TODO: find a longest running thread, interrupt it and reschedule the tasks
-                    // switch the last thread to avoid interrupting the first one all the time
-                    final WorkerThread workerThread = workThreads[workThreadNum - 1];
-                    EFLogger.d(TAG, ">>>||| Reschedule the thread :" + workerThread.getName());
-
-                    rescheduleEnqueuedTasksAndResetThread(workerThread, new WorkerThread.TaskCancelledEventListener() {
-                        @Override
-                        public void onTaskCancelled() {
-                            EFLogger.d(TAG, ">>>||| interrupted tasks, task num:" + recoverableTasks.size());
-
-                            Iterator<BackgroundTask> iterator = ongoingTasks.iterator();
-                            while (iterator.hasNext()) {
-                                BackgroundTask backgroundTask = iterator.next();
-                                recoverableTasks.add(backgroundTask);
-                                iterator.remove();
-                            }
-                            ongoingTasks.addFirst(new BackgroundTask(url, downloadListener));
-                            ongoingTasks.addAll(recoverableTasks);
-                            EFLogger.d(TAG, ">>>||| recover old tasks, total task num:" + ongoingTasks.size());
-
-                            recoverableTasks.clear();
-
-                            workerThread.wakeup();
-                            workerThread.setTaskCancelledEventListener(null);
-                        }
-                    });
-                }
+                BackgroundTask task = createTask(url, downloadListener);
+                task.setPriority(BandwidthLimiter.Priority.HIGH);
+                prioritizeTask(task);
             }
         }
 
     }
 
-    private boolean hasExtraWorker() {
-        boolean hasRemainingWorker = false;
-        for (int i = 0; i < workThreadNum; i++) {
-            if (workThreads[i].getState().equals(Thread.State.WAITING)) {
-                hasRemainingWorker = true;
-                break;
-            }
+    /***
+     * Puts the task at the head of the queue, a worker is preempted for it if none is idle
+     */
+    void prioritizeTask(final BackgroundTask task) {
+        yieldPrefetching();
+        if (hasExtraWorker() || taskDispatcher != null) {
+            // we have spare thread now, so just do it; the dispatcher never preempts, the task gets its next slot
+            ongoingTasks.addFirst(task);
+            EFLogger.d(TAG, ">>> Having enough worker, just add the task at header, total task num:" + ongoingTasks.size());
+        } else {
+            // adjust the queue
+            // TODO: find a longest running thread, interrupt it and reschedule the tasks
+            // switch the last thread to avoid interrupting the first one all the time
+            List<WorkerThread> activeWorkers = getActiveWorkers();
+            final WorkerThread workerThread = activeWorkers.get(activeWorkers.size() - 1);
+            EFLogger.d(TAG, ">>>||| Reschedule the thread :" + workerThread.getName());
+
+            rescheduleEnqueuedTasksAndResetThread(workerThread, new WorkerThread.TaskCancelledEventListener() {
+                @Override
+                public void onTaskCancelled() {
+                    EFLogger.d(TAG, ">>>||| interrupted tasks, task num:" + recoverableTasks.size());
+
+                    Iterator<BackgroundTask> iterator = ongoingTasks.iterator();
+                    while (iterator.hasNext()) {
+                        BackgroundTask backgroundTask = iterator.next();
+                        recoverableTasks.add(backgroundTask);
+                        iterator.remove();
+                    }
+                    ongoingTasks.addFirst(task);
+                    ongoingTasks.addAll(recoverableTasks);
+                    EFLogger.d(TAG, ">>>||| recover old tasks, total task num:" + ongoingTasks.size());
+
+                    recoverableTasks.clear();
+
+                    workerThread.wakeup();
+                    workerThread.setTaskCancelledEventListener(null);
+                }
+            });
         }
-        return hasRemainingWorker;
+    }
+
+    private boolean hasExtraWorker() {
+        return idleWorkers.get() > 0;
+    }
+
+    /***
+     * @return number of the workers waiting for a task
+     */
+    public int getIdleWorkerCount() {
+        return idleWorkers.get();
     }
 
     @Override
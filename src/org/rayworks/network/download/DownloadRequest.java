@@ -21,14 +21,27 @@ import org.rayworks.network.download.listener.DownloadListener;
 public class DownloadRequest {
 	private boolean compoundRequest = false;
 	public DownloadRequest(String url, String localStoragePath, DownloadListener downloadListener) {
+		this(url, localStoragePath, downloadListener, null);
+	}
+
+	/**
+	 * @param url
+	 * @param localStoragePath
+	 * @param downloadListener
+	 * @param checksum expected digest of the resource, the download fails and will be retried on mismatch
+	 */
+	public DownloadRequest(String url, String localStoragePath, DownloadListener downloadListener, Checksum checksum) {
 		this.url = url;
 		this.localStoragePath = url;
 		this.downloadListener = downloadListener;
+		this.checksum = checksum;
 	}
 	
 	private String url;
 	private String localStoragePath;
 	private DownloadListener downloadListener;
+	private Checksum checksum;
+	private String tag;
 	
 	private int tagId = -1;
 	
@@ -47,4 +60,26 @@ public class DownloadRequest {
 	public DownloadListener getDownloadListener() {
 		return downloadListener;
 	}
+
+	/**
+	 * @return the expected digest, null if no verification is required
+	 */
+	public Checksum getChecksum() {
+		return checksum;
+	}
+
+	/**
+	 * Tags the request, the tag also names the cache partition of the downloaded file.
+	 *
+	 * @param tag
+	 * @return this
+	 */
+	public DownloadRequest setTag(String tag) {
+		this.tag = tag;
+		return this;
+	}
+
+	public String getTag() {
+		return tag;
+	}
 }
@@ -17,10 +17,15 @@
 package org.rayworks.network.download;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
+import org.rayworks.network.download.cache.CacheLease;
 import org.rayworks.network.download.listener.DownloadListener;
+import org.rayworks.network.download.listener.PrefetchListener;
 
 public interface DownloadService {
     /**
@@ -37,13 +42,42 @@ public interface DownloadService {
     boolean haveAllFilesDownloaded(List<String> urls);
 
     /**
-     * Retrieves the specified cached file by its url
+     * Retrieves the specified cached file by its url, a file compressed at rest is handed out as an inflated
+     * copy which the caller may delete once it's done
      *
      * @param remoteUrl
      * @return a file if cache hits, otherwise null.
      */
     File getCachedFileByUrl(String remoteUrl);
 
+    /**
+     * Opens the content of the specified cached file, which is decompressed if it's compressed at rest
+     *
+     * @param remoteUrl
+     * @return stream of the original content, the caller should close it.
+     * @throws IOException if the file wasn't cached
+     */
+    InputStream openCachedStream(String remoteUrl) throws IOException;
+
+    /**
+     * Opens the content of the specified file while it's still being downloaded, e.g. right after it's added.
+     * A read blocks only when it catches up with the download.
+     *
+     * @param remoteUrl
+     * @param timeoutMillis how long a read waits for more bytes before it fails
+     * @return stream of the original content, the caller should close it.
+     * @throws IOException if the file can't be opened
+     */
+    InputStream openProgressiveStream(String remoteUrl, long timeoutMillis) throws IOException;
+
+    /**
+     * Retrieves the specified cached file and keeps it from being evicted until the lease is released
+     *
+     * @param remoteUrl
+     * @return the lease if cache hits, otherwise null.
+     */
+    CacheLease acquireCachedFile(String remoteUrl);
+
     /**
      * Adds a simple task
      *
@@ -52,6 +86,29 @@ public interface DownloadService {
      */
     void add(String url, DownloadListener downloadListener);
 
+    /**
+     * Submits a download and returns its handle, the result doesn't depend on a listener being kept alive.
+     * Submitting a url whose handle isn't done yet returns that handle.
+     *
+     * @param url
+     * @return handle to follow, pause, prioritize or cancel the download
+     */
+    DownloadHandle submit(String url);
+
+    /**
+     * @see #submit(String)
+     * @param request its listener, if any, is notified as well
+     */
+    DownloadHandle submit(DownloadRequest request);
+
+    /**
+     * Publishes the progress and the results of all the downloads, whichever way they're added. The subscribers are
+     * called on threads of their own, never on the downloading ones.
+     *
+     * @return the publisher, the same one for the life of the service
+     */
+    DownloadEventPublisher getEventPublisher();
+
     /**
      * Adds a batch of unrelated tasks which will keep their own progress
      *
@@ -67,6 +124,22 @@ public interface DownloadService {
      */
     void addBatchedTask(List<String> urls, DownloadListener downloadListener);
 
+    /**
+     * Warms the cache up with the resources listed in the manifest. The entries cached already are skipped, and the
+     * prefetching always gives way to the tasks added by the other methods.
+     *
+     * @param manifest entries to prefetch, it's read lazily so that a streamed manifest can be used.
+     * @param setting  concurrency and bandwidth budget
+     * @param listener null-ok; listener of the aggregate progress
+     * @return the ongoing prefetch run
+     */
+    PrefetchTask prefetch(Iterator<PrefetchEntry> manifest, PrefetchSetting setting, PrefetchListener listener);
+
+    /**
+     * @see #prefetch(Iterator, PrefetchSetting, PrefetchListener)
+     */
+    PrefetchTask prefetch(List<PrefetchEntry> manifest, PrefetchSetting setting, PrefetchListener listener);
+
     /**
      * Cancels all the tasks
      */
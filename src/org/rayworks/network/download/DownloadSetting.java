@@ -16,6 +16,9 @@
 
 package org.rayworks.network.download;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+
 public class DownloadSetting {
 
     private int threadPriority;
@@ -23,7 +26,18 @@ public class DownloadSetting {
     private int threadNum;
     private long maxSizeForDownloadContent;
     private long minSizeKeptForDeviceStorage;
-
+    private long checkpointInterval;
+    private int minThreadNum;
+    private int maxThreadNum;
+    private long autoscaleInterval;
+    private ThreadFactory taskThreadFactory;
+    private int maxConcurrentTasks;
+    private int maxConnectionsPerHost;
+    private int ioThreadNum;
+    private Executor callbackExecutor;
+    private int callbackQueueCapacity;
+    private long progressCallbackInterval;
+    private long maxBytesPerSecond;
 
     private DownloadEnabledStrategy downloadEnabledStrategy;
 
@@ -47,6 +61,97 @@ public class DownloadSetting {
         return minSizeKeptForDeviceStorage;
     }
 
+    /***
+     * @return how often the progress of a download is checkpointed, in milliseconds
+     */
+    public long getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /***
+     * @return whether the number of threads is adjusted to the throughput, within
+     * [{@link #getMinThreadNum()}, {@link #getMaxThreadNum()}]
+     */
+    public boolean isAutoscaling() {
+        return maxThreadNum > 0;
+    }
+
+    public int getMinThreadNum() {
+        return minThreadNum;
+    }
+
+    public int getMaxThreadNum() {
+        return maxThreadNum;
+    }
+
+    /***
+     * @return how often the number of threads is reconsidered, in milliseconds
+     */
+    public long getAutoscaleInterval() {
+        return autoscaleInterval;
+    }
+
+    /***
+     * @return whether each task runs on a thread of its own from {@link #getTaskThreadFactory()}, instead of on a
+     * pool of {@link #getThreadNum()} workers
+     */
+    public boolean isThreadPerTask() {
+        return taskThreadFactory != null;
+    }
+
+    /***
+     * @return whether the downloads run on non-blocking sockets driven by {@link #getIoThreadNum()} threads, instead
+     * of on a pool of {@link #getThreadNum()} workers
+     */
+    public boolean isNonBlockingIo() {
+        return ioThreadNum > 0;
+    }
+
+    public int getIoThreadNum() {
+        return ioThreadNum;
+    }
+
+    public ThreadFactory getTaskThreadFactory() {
+        return taskThreadFactory;
+    }
+
+    public int getMaxConcurrentTasks() {
+        return maxConcurrentTasks;
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    /***
+     * @return the executor the {@link org.rayworks.network.download.listener.DownloadListener}s are called on, null
+     * if they're called on the downloading threads
+     */
+    public Executor getCallbackExecutor() {
+        return callbackExecutor;
+    }
+
+    /***
+     * @return how many callbacks may wait per listener, see {@link Builder#setCallbackExecutor(Executor)}
+     */
+    public int getCallbackQueueCapacity() {
+        return callbackQueueCapacity;
+    }
+
+    /***
+     * @return the shortest time between two progress callbacks of a download, in milliseconds
+     */
+    public long getProgressCallbackInterval() {
+        return progressCallbackInterval;
+    }
+
+    /***
+     * @return the cap of the bandwidth of all the downloads, 0 for none
+     */
+    public long getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
     public DownloadEnabledStrategy getDownloadEnabledStrategy() {
         return downloadEnabledStrategy;
     }
@@ -59,6 +164,18 @@ public class DownloadSetting {
         this.maxSizeForDownloadContent = builder.maxSizeForDownloadContent;
         this.minSizeKeptForDeviceStorage = builder.minSizeKeptForDeviceStorage;
         this.downloadEnabledStrategy = builder.downloadEnabledStrategy;
+        this.checkpointInterval = builder.checkpointInterval;
+        this.minThreadNum = builder.minThreadNum;
+        this.maxThreadNum = builder.maxThreadNum;
+        this.autoscaleInterval = builder.autoscaleInterval;
+        this.taskThreadFactory = builder.taskThreadFactory;
+        this.maxConcurrentTasks = builder.maxConcurrentTasks;
+        this.maxConnectionsPerHost = builder.maxConnectionsPerHost;
+        this.ioThreadNum = builder.ioThreadNum;
+        this.callbackExecutor = builder.callbackExecutor;
+        this.callbackQueueCapacity = builder.callbackQueueCapacity;
+        this.progressCallbackInterval = builder.progressCallbackInterval;
+        this.maxBytesPerSecond = builder.maxBytesPerSecond;
     }
 
     public static class Builder {
@@ -68,6 +185,18 @@ public class DownloadSetting {
         private long maxSizeForDownloadContent = 1024 * 1024 * 450L;
         private long minSizeKeptForDeviceStorage = 100 * 1024 * 1024L;
         private DownloadEnabledStrategy downloadEnabledStrategy;
+        private long checkpointInterval = Downloader.DEFAULT_CHECKPOINT_INTERVAL;
+        private int minThreadNum;
+        private int maxThreadNum;
+        private long autoscaleInterval = 2 * 1000; // in Milliseconds
+        private ThreadFactory taskThreadFactory;
+        private int maxConcurrentTasks = 256;
+        private int maxConnectionsPerHost = 8;
+        private int ioThreadNum;
+        private Executor callbackExecutor;
+        private int callbackQueueCapacity = 64;
+        private long progressCallbackInterval = 100; // in Milliseconds
+        private long maxBytesPerSecond;
 
         public Builder() {
 
@@ -103,11 +232,162 @@ public class DownloadSetting {
             return this;
         }
 
+        /***
+         * @param checkpointInterval how often the progress of a download is persisted, in milliseconds. 0 means only
+         *                           when the download stops.
+         */
+        public Builder setCheckpointInterval(long checkpointInterval) {
+            this.checkpointInterval = checkpointInterval;
+            return this;
+        }
+
+        /***
+         * Lets the number of threads follow the load: a thread is added while tasks are queued and no thread is
+         * idle, as long as it raises the aggregate throughput, and an idle one is removed. The thread number set by
+         * {@link #setThreadNum(int)} is the initial one.
+         *
+         * @param minThreadNum
+         * @param maxThreadNum
+         */
+        public Builder setAutoscaling(int minThreadNum, int maxThreadNum) {
+            this.minThreadNum = minThreadNum;
+            this.maxThreadNum = maxThreadNum;
+            return this;
+        }
+
+        public Builder setAutoscaleInterval(long autoscaleInterval) {
+            this.autoscaleInterval = autoscaleInterval;
+            return this;
+        }
+
+        /***
+         * Runs each task on a thread of its own instead of on the pool of workers, the concurrency is then bounded
+         * by {@link #setMaxConcurrentTasks(int)} and {@link #setMaxConnectionsPerHost(int)} only. It pays off with
+         * cheap threads, e.g. the virtual threads of a newer runtime: {@code Thread.ofVirtual().factory()}.
+         * <p>
+         * The engine is chosen when the {@link DownloadManager} is created, a later setting only changes the limits.
+         *
+         * @param taskThreadFactory null for the pool of workers
+         */
+        public Builder setTaskThreadFactory(ThreadFactory taskThreadFactory) {
+            this.taskThreadFactory = taskThreadFactory;
+            return this;
+        }
+
+        /***
+         * Runs the downloads on non-blocking sockets instead of on the pool of workers, a few threads drive all the
+         * connections, which are kept alive and reused per host. The concurrency is bounded by
+         * {@link #setMaxConcurrentTasks(int)} and {@link #setMaxConnectionsPerHost(int)}. The urls other than plain
+         * http are downloaded on a thread of their own.
+         * <p>
+         * The engine is chosen when the {@link DownloadManager} is created, a later setting only changes the limits.
+         *
+         * @param ioThreadNum number of the threads driving the connections, 0 for the pool of workers
+         */
+        public Builder setNonBlockingIo(int ioThreadNum) {
+            this.ioThreadNum = ioThreadNum;
+            return this;
+        }
+
+        /***
+         * @param maxConcurrentTasks the number of tasks which run at the same time, see
+         *                           {@link #setTaskThreadFactory(ThreadFactory)} and {@link #setNonBlockingIo(int)}
+         */
+        public Builder setMaxConcurrentTasks(int maxConcurrentTasks) {
+            this.maxConcurrentTasks = maxConcurrentTasks;
+            return this;
+        }
+
+        /***
+         * @param maxConnectionsPerHost the number of downloads from a host at the same time, whichever the engine.
+         *                              The tasks of a host at its limit wait in the queue while the ones of the other
+         *                              hosts go, see {@link TaskQueue}.
+         */
+        public Builder setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+            this.maxConnectionsPerHost = maxConnectionsPerHost;
+            return this;
+        }
+
+        /***
+         * Calls the listeners on the executor instead of on the downloading threads, so that a slow listener never
+         * holds a download up. The callbacks of a listener are made one at a time and in order. A progress callback
+         * is merged into the pending one of the same download, and dropped if the listener is
+         * {@link #setCallbackQueueCapacity(int)} callbacks behind; the complete and error callbacks are never dropped.
+         * <p>
+         * The executor is taken when the {@link DownloadManager} is created, a later setting only changes the limits.
+         *
+         * @param callbackExecutor null to call the listeners on the downloading threads
+         */
+        public Builder setCallbackExecutor(Executor callbackExecutor) {
+            this.callbackExecutor = callbackExecutor;
+            return this;
+        }
+
+        public Builder setCallbackQueueCapacity(int callbackQueueCapacity) {
+            this.callbackQueueCapacity = callbackQueueCapacity;
+            return this;
+        }
+
+        /***
+         * @param progressCallbackInterval the shortest time between two progress callbacks of a download, in
+         *                                 milliseconds, the completion is always called back. It applies with a
+         *                                 {@link #setCallbackExecutor(Executor)} only.
+         */
+        public Builder setProgressCallbackInterval(long progressCallbackInterval) {
+            this.progressCallbackInterval = progressCallbackInterval;
+            return this;
+        }
+
+        /***
+         * @param maxBytesPerSecond the cap of the bandwidth of all the downloads, 0 for none. The finer caps are set
+         *                          on {@link DownloadManager#getBandwidthLimiter()}.
+         */
+        public Builder setMaxBytesPerSecond(long maxBytesPerSecond) {
+            this.maxBytesPerSecond = maxBytesPerSecond;
+            return this;
+        }
+
         public DownloadSetting create() {
             if (threadPriority == Integer.MIN_VALUE) {
                 throw new IllegalArgumentException("The thread priority should be set properly");
             }
 
+            if (threadNum <= 0) {
+                throw new IllegalArgumentException("The thread number should be positive");
+            }
+
+            if (maxThreadNum > 0 && (minThreadNum <= 0 || minThreadNum > maxThreadNum || autoscaleInterval <= 0)) {
+                throw new IllegalArgumentException("The autoscaling bounds should satisfy 0 < min <= max");
+            }
+
+            if (maxConcurrentTasks <= 0 || maxConnectionsPerHost <= 0) {
+                throw new IllegalArgumentException("The concurrency limits should be positive");
+            }
+
+            if (ioThreadNum < 0) {
+                throw new IllegalArgumentException("The io thread number should not be negative");
+            }
+
+            if (taskThreadFactory != null && ioThreadNum > 0) {
+                throw new IllegalArgumentException("Either a thread per task or the non-blocking io, not both");
+            }
+
+            if ((taskThreadFactory != null || ioThreadNum > 0) && maxThreadNum > 0) {
+                throw new IllegalArgumentException("The autoscaling applies to the pool of workers only");
+            }
+
+            if (callbackQueueCapacity <= 0 || progressCallbackInterval < 0) {
+                throw new IllegalArgumentException("The callback queue should be positive, the interval not negative");
+            }
+
+            if (maxBytesPerSecond < 0) {
+                throw new IllegalArgumentException("The bandwidth cap should not be negative");
+            }
+
+            if (checkpointInterval < 0) {
+                throw new IllegalArgumentException("The checkpoint interval should not be negative");
+            }
+
             if (downloadEnabledStrategy == null) {
                 throw new IllegalArgumentException("The download strategy should be specified");
             }
@@ -26,20 +26,31 @@ import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.rayworks.network.download.cache.BaseCache;
+import org.rayworks.network.download.cache.SaveOptions;
+import org.rayworks.network.download.exception.ChecksumMismatchException;
 import org.rayworks.network.download.exception.HttpRespInvalidState;
 import org.rayworks.network.download.exception.ResourceExpiredException;
 import org.rayworks.network.download.listener.DownloadListener;
+import org.rayworks.network.storage.DownloadRecord;
 import org.rayworks.network.storage.SyncStateStore;
 import org.rayworks.network.util.EFLogger;
 import org.rayworks.network.util.IOUtils;
-import org.rayworks.network.util.MonitorController;
+import org.rayworks.network.util.LeaseManager;
+import org.rayworks.network.util.StreamingDigest;
 
 public class Downloader implements IOUtils.CopyListener {
 
     private static final String TAG = "Downloader";
     public static final String LAST_MODIFIED = "Last-Modified";
+    private static final String ETAG = "ETag";
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 2000; // in Milliseconds
+
+    // only one downloader works on a url at a time
+    static final LeaseManager<String> URL_LEASES = new LeaseManager<>();
     private byte data[] = new byte[1024];
 
     private DownloadListener progressListener = null;
@@ -54,6 +65,17 @@ public class Downloader implements IOUtils.CopyListener {
     private int progress;
     private final int timeout;
 
+    private Checksum checksum;
+    private String partition;
+    private AtomicLong byteCounter;
+    private BackgroundTask task;
+    private BandwidthLimiter.Throttle throttle;
+    private long copiedBytes = -1;
+
+    private DownloadRecord record;
+    private long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    private long lastCheckpoint;
+
     /**
      * Constructor
      *
@@ -73,9 +95,34 @@ public class Downloader implements IOUtils.CopyListener {
     }
 
     @Override
-    public boolean onBytesCopied(int current, int total) {
-        if (progressListener != null) {
-            int percentageComplete = (int) (current * 100.0f / total);
+    public boolean onBytesCopied(long current, long total) {
+        // the first callback carries the existing part of a resumed file, which is free
+        long transferred = copiedBytes >= 0 && current > copiedBytes ? current - copiedBytes : 0;
+        copiedBytes = current;
+        if (transferred > 0) {
+            if (throttle != null) {
+                throttle.acquire(transferred);
+            }
+            if (byteCounter != null) {
+                byteCounter.addAndGet(transferred);
+            }
+        }
+
+        if (record != null && checkpointInterval > 0) {
+            long now = System.currentTimeMillis();
+            if (now - lastCheckpoint >= checkpointInterval) {
+                lastCheckpoint = now;
+                record.setCommittedBytes(current);
+                syncStateStore.putRecord(record);
+            }
+        }
+
+        if (task != null) {
+            task.notifyBytes(current, total);
+        }
+
+        if (progressListener != null && total > 0) {
+            int percentageComplete = (int) (current * 100 / total);
             if (progress != percentageComplete) {
                 progress = percentageComplete;
                 progressListener.onProgress(progress, remoteUrlPath);
@@ -91,7 +138,8 @@ public class Downloader implements IOUtils.CopyListener {
      */
     public DownloadResult downloadFile() {
         EFLogger.v(TAG, "downloadFile, url=" + remoteUrlPath);
-        synchronized (MonitorController.getInstance().get(remoteUrlPath)) {
+        LeaseManager.Lease<String> lease = URL_LEASES.acquire(remoteUrlPath);
+        try {
 
             // download the file
             try {
@@ -103,6 +151,9 @@ public class Downloader implements IOUtils.CopyListener {
                     return DownloadResult.createSuccessfulDownloadResult(url, file, file.length());
                 }
 
+                record = syncStateStore.getOrCreateRecord(remoteUrlPath);
+                record.setAttemptCount(record.getAttemptCount() + 1);
+
                 File targetFile = cache.getTempFile(remoteUrlPath);
                 HttpURLConnection connection = connect(remoteUrlPath, targetFile);
 
@@ -121,6 +172,13 @@ public class Downloader implements IOUtils.CopyListener {
                 if (responseCode == 206) {
                     // The downloaded content can be appended to the existing file.
                     start = targetFile.length();
+                } else {
+                    if (targetFile.exists()) {
+                        // The whole body is coming, appending it to the partial file would corrupt the content.
+                        targetFile.delete();
+                    }
+                    record.setLastModified(connection.getHeaderField(LAST_MODIFIED));
+                    record.setEtag(connection.getHeaderField(ETAG));
                 }
 
                 String location = connection.getHeaderField("Location");
@@ -134,10 +192,23 @@ public class Downloader implements IOUtils.CopyListener {
 
                 // Note: content-length is the size to be downloaded, not total file size
                 // which will be different in the case of resuming a download
-                long size = start + connection.getContentLength();
+                long size = start + connection.getContentLengthLong();
+                record.setContentLength(connection.getContentLengthLong() < 0 ? DownloadRecord.UNKNOWN_LENGTH : size);
+                record.setCommittedBytes(start);
+
+                StreamingDigest digest = prepareDigest(targetFile, start);
+                syncStateStore.putRecord(record);
+                lastCheckpoint = System.currentTimeMillis();
+
+                SaveOptions options = new SaveOptions()
+                        .setContentType(connection.getContentType(), connection.getContentEncoding())
+                        .setPartition(partition);
+                if (digest != null) {
+                    options.setDigest(digest, checksum.getHexValue());
+                }
 
                 // If successful, download returns the total file size
-                long total = download(connection.getInputStream(), start, size);
+                long total = download(connection.getInputStream(), start, size, options);
 
                 if (total == size) {
                     // All the data was copied
@@ -148,6 +219,12 @@ public class Downloader implements IOUtils.CopyListener {
                 }
             } catch (MalformedURLException e) { // bad url
                 return DownloadResult.createUnrecoverableErrorResult(e);
+            } catch (NoSuchAlgorithmException e) {
+                return DownloadResult.createUnrecoverableErrorResult(e);
+            } catch (ChecksumMismatchException e) {
+                // the partial file has been dropped, a retry will fetch the resource from scratch
+                EFLogger.w(TAG, e.getMessage() + ", url=" + remoteUrlPath);
+                return DownloadResult.createFailedDownloadResult(e);
             } catch (IOException e) {
                 e.printStackTrace();
                 return DownloadResult.createFailedDownloadResult(e);
@@ -156,8 +233,15 @@ public class Downloader implements IOUtils.CopyListener {
                 return DownloadResult.createUnrecoverableErrorResult(e);
             } catch (ResourceExpiredException e) {
                 EFLogger.d(TAG, "Resource Expired:" + remoteUrlPath);
+
+                // dump the stale partial file, so that the next round starts over
+                cache.getTempFile(remoteUrlPath).delete();
+                record.reset();
+                syncStateStore.putRecord(record);
                 return DownloadResult.createFailedDownloadResult(e);
             }
+        } finally {
+            lease.close();
         }
     }
 
@@ -177,7 +261,7 @@ public class Downloader implements IOUtils.CopyListener {
      * according to the partially downloaded file if has any.
      * </li>
      * <li>
-     * 2. The lastModified value needs to be verified before merging the partial data into local target file.
+     * 2. The lastModified and ETag values need to be verified before merging the partial data into local target file.
      * If the values are not consistent, the local temp file should be dumped and a new task for downloading will be
      * triggered.
      * </li>
@@ -200,29 +284,79 @@ public class Downloader implements IOUtils.CopyListener {
         urlConnection.setUseCaches(false);
         urlConnection.setDoInput(true);
 
-        String lastModifiedString = null;
         if (targetFile != null && targetFile.exists() && targetFile.length() > 0) {
             urlConnection.setRequestProperty("Range", "bytes=" + targetFile.length() + "-");
 
             urlConnection.connect();
-            lastModifiedString = urlConnection.getHeaderField(LAST_MODIFIED);
+            String lastModifiedString = urlConnection.getHeaderField(LAST_MODIFIED);
+            String etag = urlConnection.getHeaderField(ETAG);
 
-            if (lastModifiedString != null && !lastModifiedString.equals(syncStateStore.getDownloadedFileStamp(remoteUrlPath))) {
+            if (isExpired(record, lastModifiedString, etag)) {
                 throw new ResourceExpiredException();
             }
         } else {
             // Initial download.
             urlConnection.connect();
-            lastModifiedString = urlConnection.getHeaderField(LAST_MODIFIED);
-            if (lastModifiedString != null) {
-                syncStateStore.setDownloadedFileStamp(remoteUrlPath, lastModifiedString);
-            }
+            record.reset();
+            record.setLastModified(urlConnection.getHeaderField(LAST_MODIFIED));
+            record.setEtag(urlConnection.getHeaderField(ETAG));
         }
 
         return urlConnection;
     }
 
-    private long download(InputStream inputStream, long start, long size) throws IOException {
+    /**
+     * Checks the validators of a resumed response against the ones of the partial file.
+     *
+     * @return whether the resource has changed since the partial file was downloaded
+     */
+    static boolean isExpired(DownloadRecord record, String lastModified, String etag) {
+        return (lastModified != null && !lastModified.equals(record.getLastModified()))
+                || (etag != null && record.getEtag() != null && !etag.equals(record.getEtag()));
+    }
+
+    /**
+     * Creates the digest for verification, which already contains the <b>start</b> bytes of the partial file.
+     * The persisted state is preferred, the partial file will be hashed again only if the state is unavailable.
+     *
+     * @param targetFile
+     * @param start
+     * @return the digest or null if no checksum is expected
+     * @throws NoSuchAlgorithmException
+     * @throws IOException
+     */
+    private StreamingDigest prepareDigest(File targetFile, long start) throws NoSuchAlgorithmException, IOException {
+        return prepareDigest(checksum, record, targetFile, start);
+    }
+
+    static StreamingDigest prepareDigest(Checksum checksum, DownloadRecord record, File targetFile, long start)
+            throws NoSuchAlgorithmException, IOException {
+        if (checksum == null) {
+            return null;
+        }
+
+        StreamingDigest digest = StreamingDigest.create(checksum.getAlgorithm());
+        if (start > 0) {
+            String state = record.getDigestState();
+            if (!digest.restoreState(state) || digest.getByteCount() != start) {
+                EFLogger.d(TAG, "No digest state available, hash the partial file again: " + record.getUrl());
+                digest.catchUp(targetFile, start);
+            }
+        }
+        return digest;
+    }
+
+    private void saveDigestState(StreamingDigest digest) {
+        String state = null;
+        File tempFile = cache.getTempFile(remoteUrlPath);
+        if (tempFile.exists() && tempFile.length() == digest.getByteCount()) {
+            state = digest.saveState();
+        }
+
+        record.setDigestState(state);
+    }
+
+    private long download(InputStream inputStream, long start, long size, SaveOptions options) throws IOException {
         InputStream input = new BufferedInputStream(inputStream);
 
         EFLogger.d(TAG, "start=" + start + ",size=" + size);
@@ -230,22 +364,30 @@ public class Downloader implements IOUtils.CopyListener {
         boolean loaded = false;
         long total = start;
         try {
-            loaded = cache.save(remoteUrlPath, input, (int) size, this);
+            loaded = cache.save(remoteUrlPath, input, size, this, options);
             if (loaded) {
-                if (progressListener != null) {
-                    syncStateStore.removeDownloadedFileStamp(remoteUrlPath);// remove record when downloading is complete
+                syncStateStore.removeRecord(record);// remove record when downloading is complete
 
+                if (progressListener != null) {
                     progressListener.onProgress(100, remoteUrlPath);
                     progressListener.onComplete(remoteUrlPath);
                 }
             }
         } finally {
             if (loaded) {
-                total = cache.getFile(remoteUrlPath).length();
+                total = size; // the cached file can be smaller if it's compressed at rest
             } else {
                 total = cache.getTempFile(remoteUrlPath).length();
             }
             IOUtils.closeSilently(input);
+
+            if (!loaded) {
+                if (options.getDigest() != null) {
+                    saveDigestState(options.getDigest());
+                }
+                record.setCommittedBytes(total);
+                syncStateStore.putRecord(record);
+            }
         }
 
         return total;
@@ -255,6 +397,62 @@ public class Downloader implements IOUtils.CopyListener {
         this.progressListener = progressListener;
     }
 
+    /**
+     * Sets the expected digest of the remote resource, the downloaded content will be verified before it's cached.
+     *
+     * @param checksum null-ok
+     */
+    public void setChecksum(Checksum checksum) {
+        this.checksum = checksum;
+    }
+
+    /**
+     * Sets the cache partition the downloaded file goes to.
+     *
+     * @param partition null-ok, null means the default partition.
+     */
+    public void setPartition(String partition) {
+        this.partition = partition;
+    }
+
+    /**
+     * Counts the bytes transferred from the network.
+     *
+     * @param byteCounter null-ok, it can be shared by several downloaders.
+     */
+    public void setByteCounter(AtomicLong byteCounter) {
+        this.byteCounter = byteCounter;
+    }
+
+    /**
+     * Caps the bandwidth by the buckets of a {@link BandwidthLimiter}.
+     *
+     * @param throttle null-ok
+     */
+    void setThrottle(BandwidthLimiter.Throttle throttle) {
+        this.throttle = throttle;
+    }
+
+    /**
+     * Reports the bytes of the file to the task being run, see {@link BackgroundTask#notifyBytes(long, long)}.
+     *
+     * @param task null-ok
+     */
+    void setTask(BackgroundTask task) {
+        this.task = task;
+    }
+
+    /**
+     * Sets how often the progress of the downloading is checkpointed into the {@link SyncStateStore}, the final state
+     * is stored anyway when the downloading stops.
+     *
+     * @param checkpointInterval in milliseconds, 0 means no checkpoint in the middle.
+     */
+    public void setCheckpointInterval(long checkpointInterval) {
+        checkArgument(checkpointInterval >= 0);
+        this.checkpointInterval = checkpointInterval;
+    }
+
     /**
      * Cancels the downloading execution
      * <p>NB: Once the method gets called, the current Downloader instance will not be available any more.</p>
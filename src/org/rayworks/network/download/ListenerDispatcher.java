@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rayworks.network.download;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.rayworks.network.download.listener.DownloadListener;
+import org.rayworks.network.util.EFLogger;
+
+/***
+ * Moves the listener callbacks off the downloading threads, see
+ * {@link DownloadSetting.Builder#setCallbackExecutor(Executor)}. Each listener gets a queue of its own, which is
+ * drained on the executor by one task at a time, so the callbacks of a download keep their order.
+ */
+final class ListenerDispatcher {
+    private static final String TAG = ListenerDispatcher.class.getSimpleName();
+
+    private final Executor executor;
+    private final CallbackMetrics metrics;
+    private volatile int queueCapacity;
+    private volatile long progressIntervalNanos;
+
+    // the queue holds its listener weakly, the entry goes with the listener
+    private final Map<DownloadListener, ListenerQueue> queues = new WeakHashMap<>();
+
+    ListenerDispatcher(Executor executor, DownloadSetting setting, CallbackMetrics metrics) {
+        this.executor = executor;
+        this.metrics = metrics;
+        configure(setting);
+    }
+
+    void configure(DownloadSetting setting) {
+        queueCapacity = setting.getCallbackQueueCapacity();
+        progressIntervalNanos = TimeUnit.MILLISECONDS.toNanos(setting.getProgressCallbackInterval());
+    }
+
+    /***
+     * @return the listener whose callbacks are queued for the given one
+     */
+    DownloadListener wrap(DownloadListener listener) {
+        synchronized (queues) {
+            ListenerQueue queue = queues.get(listener);
+            if (queue == null) {
+                queue = new ListenerQueue(listener);
+                queues.put(listener, queue);
+            }
+            return queue;
+        }
+    }
+
+    private enum Type {
+        PROGRESS, COMPLETE, ERROR
+    }
+
+    private static final class Callback {
+        final Type type;
+        final String value; // the url, or the error message
+        final long createdAt;
+        int percentage; // updated while pending
+
+        Callback(Type type, String value, long createdAt) {
+            this.type = type;
+            this.value = value;
+            this.createdAt = createdAt;
+        }
+    }
+
+    private final class ListenerQueue implements DownloadListener, Runnable {
+        private final WeakReference<DownloadListener> listenerRef;
+
+        // guarded by this
+        private final ArrayDeque<Callback> callbacks = new ArrayDeque<>();
+        private final Map<String, Callback> pendingProgress = new HashMap<>();
+        private final Map<String, Long> lastProgress = new HashMap<>();
+
+        private final AtomicInteger pendingDrains = new AtomicInteger();
+
+        ListenerQueue(DownloadListener listener) {
+            listenerRef = new WeakReference<>(listener);
+        }
+
+        @Override
+        public void onProgress(int percentageComplete, String remotePath) {
+            long now = System.nanoTime();
+            synchronized (this) {
+                Callback pending = pendingProgress.get(remotePath);
+                if (pending != null) {
+                    pending.percentage = percentageComplete;
+                    metrics.onMerged();
+                    return;
+                }
+                Long last = lastProgress.get(remotePath);
+                if (percentageComplete < 100 && last != null && now - last < progressIntervalNanos) {
+                    metrics.onMerged();
+                    return;
+                }
+                if (callbacks.size() >= queueCapacity) {
+                    metrics.onDropped();
+                    return;
+                }
+                Callback callback = new Callback(Type.PROGRESS, remotePath, now);
+                callback.percentage = percentageComplete;
+                callbacks.add(callback);
+                pendingProgress.put(remotePath, callback);
+                lastProgress.put(remotePath, now);
+            }
+            drain();
+        }
+
+        @Override
+        public void onComplete(String remotePath) {
+            synchronized (this) {
+                lastProgress.remove(remotePath);
+                callbacks.add(new Callback(Type.COMPLETE, remotePath, System.nanoTime()));
+            }
+            drain();
+        }
+
+        @Override
+        public void onError(String error) {
+            synchronized (this) {
+                lastProgress.clear(); // the url isn't known, the others only lose their rate limit once
+                callbacks.add(new Callback(Type.ERROR, error, System.nanoTime()));
+            }
+            drain();
+        }
+
+        private void drain() {
+            if (pendingDrains.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        private synchronized Callback poll() {
+            Callback callback = callbacks.poll();
+            if (callback != null && callback.type == Type.PROGRESS) {
+                pendingProgress.remove(callback.value);
+            }
+            return callback;
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                Callback callback;
+                while ((callback = poll()) != null) {
+                    metrics.onDelivered(System.nanoTime() - callback.createdAt);
+                    deliver(callback);
+                }
+                missed = pendingDrains.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void deliver(Callback callback) {
+            DownloadListener listener = listenerRef.get();
+            if (listener == null) {
+                return;
+            }
+            try {
+                switch (callback.type) {
+                    case PROGRESS:
+                        listener.onProgress(callback.percentage, callback.value);
+                        break;
+                    case COMPLETE:
+                        listener.onComplete(callback.value);
+                        break;
+                    default:
+                        listener.onError(callback.value);
+                        break;
+                }
+            } catch (RuntimeException e) { // it would break the queue of the listener
+                EFLogger.d(TAG, "listener failed on " + callback.type + " " + callback.value, e);
+            }
+        }
+    }
+}
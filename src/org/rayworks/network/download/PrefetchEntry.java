@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.download;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * One resource of a prefetch manifest.
+ */
+public class PrefetchEntry {
+    private final String url;
+    private final long size;
+    private final Checksum checksum;
+
+    /**
+     * @param url      remote resource
+     * @param size     expected size in bytes, -1 if unknown
+     * @param checksum expected digest, can be null
+     */
+    public PrefetchEntry(String url, long size, Checksum checksum) {
+        checkArgument(url != null && !url.equals(""));
+
+        this.url = url;
+        this.size = size;
+        this.checksum = checksum;
+    }
+
+    public PrefetchEntry(String url) {
+        this(url, -1, null);
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /***
+     * @return expected size in bytes, -1 if unknown
+     */
+    public long getSize() {
+        return size;
+    }
+
+    public Checksum getChecksum() {
+        return checksum;
+    }
+}
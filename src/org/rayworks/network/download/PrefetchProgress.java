@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.download;
+
+/**
+ * A snapshot of the aggregate progress of a prefetch run.
+ */
+public class PrefetchProgress {
+    private final int downloadedCount;
+    private final int skippedCount;
+    private final int failedCount;
+    private final long downloadedBytes;
+    private final long expectedBytes;
+
+    PrefetchProgress(int downloadedCount, int skippedCount, int failedCount, long downloadedBytes, long expectedBytes) {
+        this.downloadedCount = downloadedCount;
+        this.skippedCount = skippedCount;
+        this.failedCount = failedCount;
+        this.downloadedBytes = downloadedBytes;
+        this.expectedBytes = expectedBytes;
+    }
+
+    public int getDownloadedCount() {
+        return downloadedCount;
+    }
+
+    /***
+     * @return number of the entries which were cached already
+     */
+    public int getSkippedCount() {
+        return skippedCount;
+    }
+
+    public int getFailedCount() {
+        return failedCount;
+    }
+
+    public int getProcessedCount() {
+        return downloadedCount + skippedCount + failedCount;
+    }
+
+    public long getDownloadedBytes() {
+        return downloadedBytes;
+    }
+
+    /***
+     * @return sum of the sizes declared by the entries read from the manifest so far
+     */
+    public long getExpectedBytes() {
+        return expectedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "PrefetchProgress{downloaded=" + downloadedCount + ", skipped=" + skippedCount + ", failed="
+                + failedCount + ", bytes=" + downloadedBytes + "/" + expectedBytes + "}";
+    }
+}
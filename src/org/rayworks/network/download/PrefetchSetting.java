@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.download;
+
+/**
+ * Budget of a prefetch run.
+ */
+public class PrefetchSetting {
+
+    private final int concurrency;
+    private final long bytesPerSecond;
+    private final int timeout;
+    private final String partition;
+
+    /***
+     * @return max number of the resources downloaded at the same time
+     */
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /***
+     * @return bandwidth cap of the whole run, 0 means unlimited
+     */
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /***
+     * @return the cache partition of the prefetched files, null for the default one
+     */
+    public String getPartition() {
+        return partition;
+    }
+
+    private PrefetchSetting(Builder builder) {
+        this.concurrency = builder.concurrency;
+        this.bytesPerSecond = builder.bytesPerSecond;
+        this.timeout = builder.timeout;
+        this.partition = builder.partition;
+    }
+
+    public static class Builder {
+        private int concurrency = 1;
+        private long bytesPerSecond = 0;
+        private int timeout = 10 * 1000; // in Milliseconds
+        private String partition;
+
+        public Builder() {
+
+        }
+
+        public Builder setConcurrency(int concurrency) {
+            this.concurrency = concurrency;
+            return this;
+        }
+
+        public Builder setBytesPerSecond(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        public Builder setTimeout(int timeout) {
+            this.timeout = timeout;
+            return this;
+        }
+
+        public Builder setPartition(String partition) {
+            this.partition = partition;
+            return this;
+        }
+
+        public PrefetchSetting create() {
+            if (concurrency <= 0) {
+                throw new IllegalArgumentException("The concurrency should be positive");
+            }
+
+            if (bytesPerSecond < 0) {
+                throw new IllegalArgumentException("The bandwidth should not be negative");
+            }
+
+            return new PrefetchSetting(this);
+        }
+    }
+}
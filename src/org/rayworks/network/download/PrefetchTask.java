@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.download;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import org.rayworks.network.download.cache.BaseCache;
+import org.rayworks.network.download.listener.PrefetchListener;
+import org.rayworks.network.storage.SyncStateStore;
+import org.rayworks.network.util.EFLogger;
+import org.rayworks.network.util.TokenBucket;
+
+/**
+ * Warms the cache up from a manifest in the background.
+ * <p>
+ * It runs on the shared low priority threads of its {@link DownloadManager}, one per unit of concurrency, and never
+ * competes with the foreground tasks: it waits while the manager has any task queued or running, and the ongoing
+ * prefetching downloads are paused by {@link #yieldToForeground()} as soon as a foreground task arrives. A paused
+ * download keeps its partial file and is resumed once the manager gets idle, see {@link #onForegroundIdle()}.
+ * </p>
+ */
+public class PrefetchTask {
+    private static final String TAG = PrefetchTask.class.getSimpleName();
+
+    private final DownloadManager downloadManager;
+    private final SyncStateStore syncStateStore;
+    private final BaseCache cache;
+    private final PrefetchSetting setting;
+    private final PrefetchListener listener;
+    private final TokenBucket bandwidth; // shared by the downloads of the run
+
+    private final Iterator<PrefetchEntry> manifest;
+    private final Deque<PrefetchEntry> pausedEntries = new ArrayDeque<>();
+    private final Set<Downloader> runningDownloaders =
+            Collections.newSetFromMap(new ConcurrentHashMap<Downloader, Boolean>());
+    // a canceled download is only a pause if it was canceled for the foreground tasks
+    private final Set<Downloader> yieldedDownloaders =
+            Collections.newSetFromMap(new ConcurrentHashMap<Downloader, Boolean>());
+
+    private volatile boolean cancelled;
+    private int activeThreads;
+
+    private int downloadedCount;
+    private int skippedCount;
+    private int failedCount;
+    private long downloadedBytes;
+    private long expectedBytes;
+
+    PrefetchTask(DownloadManager downloadManager, SyncStateStore syncStateStore, BaseCache cache,
+                 Iterator<PrefetchEntry> manifest, PrefetchSetting setting, PrefetchListener listener) {
+        this.downloadManager = downloadManager;
+        this.syncStateStore = syncStateStore;
+        this.cache = cache;
+        this.manifest = manifest;
+        this.setting = setting;
+        this.listener = listener;
+        this.bandwidth = setting.getBytesPerSecond() > 0 ? new TokenBucket(setting.getBytesPerSecond()) : null;
+    }
+
+    void start(Executor executor) {
+        synchronized (this) {
+            activeThreads = setting.getConcurrency();
+        }
+        for (int i = 0; i < setting.getConcurrency(); i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runPrefetching();
+                }
+            });
+        }
+    }
+
+    /***
+     * Stops the run, the entries left in the manifest are not processed.
+     */
+    public void cancel() {
+        cancelled = true;
+        for (Downloader downloader : runningDownloaders) {
+            downloader.cancel();
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized PrefetchProgress getProgress() {
+        return new PrefetchProgress(downloadedCount, skippedCount, failedCount, downloadedBytes, expectedBytes);
+    }
+
+    /***
+     * Pauses the ongoing downloads, they will be resumed once the foreground tasks are all done.
+     */
+    void yieldToForeground() {
+        for (Downloader downloader : runningDownloaders) {
+            pause(downloader);
+        }
+    }
+
+    private void pause(Downloader downloader) {
+        yieldedDownloaders.add(downloader);
+        downloader.cancel();
+    }
+
+    /***
+     * Wakes the threads waiting for the foreground tasks, it's called once no task is queued or running.
+     */
+    synchronized void onForegroundIdle() {
+        notifyAll();
+    }
+
+    private void runPrefetching() {
+        try {
+            while (!cancelled) {
+                waitForForegroundIdle();
+
+                PrefetchEntry entry = nextEntry();
+                if (entry == null) {
+                    break;
+                }
+
+                if (cache.existFile(entry.getUrl())) {
+                    synchronized (this) {
+                        skippedCount++;
+                    }
+                } else {
+                    prefetch(entry);
+                }
+
+                if (listener != null) {
+                    listener.onProgress(getProgress());
+                }
+            }
+        } finally {
+            boolean lastOne;
+            synchronized (this) {
+                lastOne = --activeThreads == 0;
+            }
+            if (lastOne) {
+                downloadManager.onPrefetchFinished(this);
+                if (listener != null) {
+                    listener.onComplete(getProgress(), cancelled);
+                }
+            }
+        }
+    }
+
+    private void prefetch(PrefetchEntry entry) {
+        Downloader downloader = new Downloader(entry.getUrl(), syncStateStore, cache, setting.getTimeout());
+        downloader.setChecksum(entry.getChecksum());
+        downloader.setPartition(setting.getPartition());
+        downloader.setThrottle(downloadManager.getBandwidthLimiter().throttle(BandwidthLimiter.Priority.LOW, bandwidth));
+
+        runningDownloaders.add(downloader);
+        if (downloadManager.hasForegroundTasks()) { // a foreground task came in just now
+            pause(downloader);
+        }
+
+        DownloadResult result;
+        boolean yielded;
+        try {
+            result = downloader.downloadFile();
+        } finally {
+            runningDownloaders.remove(downloader);
+            yielded = yieldedDownloaders.remove(downloader);
+        }
+
+        synchronized (this) {
+            if (result.isOk()) {
+                downloadedCount++;
+                downloadedBytes += result.getTotal();
+            } else if (result.isCanceled() && (cancelled || yielded)) {
+                if (!cancelled) {
+                    // yielded to the foreground tasks, try it again later
+                    EFLogger.d(TAG, "Prefetching paused: " + entry.getUrl());
+                    pausedEntries.addFirst(entry);
+                }
+            } else { // a body shorter than announced, or one of unknown length, ends up canceled too
+
+                EFLogger.d(TAG, "Prefetching failed: " + entry.getUrl());
+                failedCount++;
+            }
+        }
+    }
+
+    private synchronized PrefetchEntry nextEntry() {
+        if (!pausedEntries.isEmpty()) {
+            return pausedEntries.pollFirst();
+        }
+        if (!manifest.hasNext()) {
+            return null;
+        }
+
+        PrefetchEntry entry = manifest.next();
+        if (entry.getSize() > 0) {
+            expectedBytes += entry.getSize();
+        }
+        return entry;
+    }
+
+    private synchronized void waitForForegroundIdle() {
+        while (!cancelled && downloadManager.hasForegroundTasks()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                cancelled = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.download;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.locks.Lock;
+
+import org.rayworks.network.download.cache.ChunkedEntry;
+import org.rayworks.network.download.cache.ChunkedFileCache;
+import org.rayworks.network.download.exception.HttpRespInvalidState;
+import org.rayworks.network.util.EFLogger;
+import org.rayworks.network.util.IOUtils;
+
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * Reads byte ranges of remote resources through a {@link ChunkedFileCache}. The chunks present are served locally,
+ * the missing ones are fetched with HTTP Range requests, a run of adjacent missing chunks in one request.
+ * <p>
+ * The stored version is validated with If-Range, so a changed resource replaces the stored chunks instead of being
+ * mixed with them. A server ignoring the Range header is handled as well, the body is then read up to the chunks
+ * needed. A server answering with less than the range asked for is asked for the rest of it.
+ * </p>
+ */
+public class RangeReader {
+    private static final String TAG = RangeReader.class.getSimpleName();
+    private static final String ETAG = "ETag";
+    private static final int FETCH_AGAIN = -2;
+
+    private final ChunkedFileCache cache;
+    private final int timeout;
+
+    // one fetch at a time per resource, so the chunks are not fetched twice
+    private final Striped<Lock> fetchLocks = Striped.lock(64);
+
+    /***
+     * @param cache   storage of the chunks
+     * @param timeout connect and read timeout of the requests, in milliseconds
+     */
+    public RangeReader(ChunkedFileCache cache, int timeout) {
+        checkNotNull(cache);
+        checkArgument(timeout > 0, "timeout should be positive");
+        this.cache = cache;
+        this.timeout = timeout;
+    }
+
+    /***
+     * Reads a byte range of the resource.
+     *
+     * @param url
+     * @param offset offset in the resource
+     * @param length number of the bytes wanted
+     * @return the bytes, fewer than wanted if the resource ends before
+     * @throws IOException
+     * @throws HttpRespInvalidState if the server answers with an error
+     */
+    public byte[] read(String url, long offset, int length) throws IOException, HttpRespInvalidState {
+        byte[] buffer = new byte[length];
+        int n = read(url, offset, buffer, 0, length);
+        if (n == length) {
+            return buffer;
+        }
+        byte[] result = new byte[Math.max(n, 0)];
+        System.arraycopy(buffer, 0, result, 0, result.length);
+        return result;
+    }
+
+    /***
+     * Reads a byte range of the resource into the buffer.
+     *
+     * @return number of the bytes read, or -1 if the offset is at or beyond the end of the resource
+     * @throws IOException
+     * @throws HttpRespInvalidState if the server answers with an error
+     */
+    public int read(String url, long offset, byte[] buffer, int bufferOffset, int length)
+            throws IOException, HttpRespInvalidState {
+        checkArgument(offset >= 0, "offset should not be negative");
+        checkArgument(bufferOffset >= 0 && length >= 0 && bufferOffset + length <= buffer.length, "bad buffer range");
+
+        int copied = 0;
+        while (copied < length) {
+            long position = offset + copied;
+            ChunkedEntry entry = cache.getEntry(url);
+            if (entry != null && position >= entry.getLength()) {
+                break;
+            }
+
+            if (entry != null) {
+                int index = (int) (position / entry.getChunkSize());
+                int chunkOffset = (int) (position - (long) index * entry.getChunkSize());
+                int n = entry.readChunk(index, chunkOffset, buffer, bufferOffset + copied, length - copied);
+                if (n > 0) {
+                    copied += n;
+                    continue;
+                }
+            }
+
+            int n = fetch(url, position, buffer, bufferOffset + copied, length - copied);
+            if (n <= 0) { // the end of the resource
+                break;
+            }
+            copied += n;
+        }
+        return copied == 0 && length > 0 ? -1 : copied;
+    }
+
+    // fetches the missing chunks from the position on, and copies the wanted bytes from them
+    private int fetch(String url, long position, byte[] buffer, int bufferOffset, int length)
+            throws IOException, HttpRespInvalidState {
+        Lock lock = fetchLocks.get(url);
+        lock.lock();
+        try {
+            ChunkedEntry entry = cache.getEntry(url);
+            int chunkSize = entry != null ? entry.getChunkSize() : cache.getChunkSize();
+            int first = (int) (position / chunkSize);
+            int last = (int) ((position + length - 1) / chunkSize);
+            if (entry != null) {
+                if (entry.isChunkPresent(first)) { // fetched by someone else meanwhile
+                    int chunkOffset = (int) (position - (long) first * chunkSize);
+                    int n = entry.readChunk(first, chunkOffset, buffer, bufferOffset, length);
+                    if (n > 0) {
+                        return n;
+                    }
+                }
+                last = Math.min(last, entry.getChunkCount() - 1);
+                for (int i = first + 1; i <= last; i++) {
+                    if (entry.isChunkPresent(i)) {
+                        last = i - 1;
+                        break;
+                    }
+                }
+            }
+            int n = fetchChunks(url, entry, chunkSize, first, last, position, buffer, bufferOffset, length);
+            if (n == FETCH_AGAIN) {
+                return fetch(url, position, buffer, bufferOffset, length);
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int fetchChunks(String url, ChunkedEntry entry, int chunkSize, int first, int last, long position,
+                            byte[] buffer, int bufferOffset, int length) throws IOException, HttpRespInvalidState {
+        long rangeStart = (long) first * chunkSize;
+        long rangeEnd = (long) (last + 1) * chunkSize - 1;
+
+        HttpURLConnection connection = openConnection(url, rangeStart, rangeEnd,
+                entry != null ? entry.getValidator() : null);
+        InputStream input = null;
+        RangeBody body = null;
+        try {
+            int responseCode = connection.getResponseCode();
+            EFLogger.d(TAG, ">>> resp code " + responseCode + " for bytes " + rangeStart + "-" + rangeEnd + " of " + url);
+
+            String validator = connection.getHeaderField(ETAG);
+            if (validator == null) {
+                validator = connection.getHeaderField(Downloader.LAST_MODIFIED);
+            }
+
+            long bodyStart;
+            long bodyEnd;
+            long total;
+            if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                String contentRange = connection.getHeaderField("Content-Range");
+                bodyStart = parseRangeStart(contentRange);
+                bodyEnd = parseRangeEnd(contentRange);
+                total = parseTotalLength(contentRange);
+            } else if (responseCode == HttpURLConnection.HTTP_OK) {
+                // the whole body, either Range is not supported or the resource has changed
+                bodyStart = 0;
+                total = connection.getContentLengthLong();
+                bodyEnd = total - 1;
+            } else if (responseCode == 416) { // Requested Range Not Satisfiable, beyond the end
+                total = parseTotalLength(connection.getHeaderField("Content-Range"));
+                if (entry == null || entry.getLength() != total) {
+                    cache.createEntry(url, total, validator);
+                }
+                return -1;
+            } else {
+                throw new HttpRespInvalidState("Bad http response status code " + responseCode, responseCode);
+            }
+            if (total < 0 || bodyStart > rangeStart) {
+                throw new IOException("Unusable response for " + url + ", length " + total + ", start " + bodyStart);
+            }
+
+            if (entry == null || entry.getLength() != total
+                    || (validator != null && !validator.equals(entry.getValidator()))) {
+                EFLogger.d(TAG, "new version of " + url + ", length " + total + ", validator " + validator);
+                entry = cache.createEntry(url, total, validator);
+                if (entry.getChunkSize() != chunkSize) { // the requested range doesn't fit the chunks of the new entry
+                    return FETCH_AGAIN;
+                }
+                last = Math.min(last, entry.getChunkCount() - 1);
+            }
+
+            input = connection.getInputStream();
+            skipFully(input, rangeStart - bodyStart);
+            body = new RangeBody(url, validator, total, Math.min(rangeEnd, total - 1));
+            body.setResponse(connection, input, rangeStart, bodyEnd);
+
+            int copied = 0;
+            for (int i = first; i <= last; i++) {
+                byte[] chunk = new byte[entry.getChunkLength(i)];
+                body.readFully(chunk);
+                entry.writeChunk(i, chunk);
+
+                // the wanted bytes are taken from the fetched data, the chunk may be evicted already
+                long chunkStart = (long) i * chunkSize;
+                long from = Math.max(position + copied, chunkStart);
+                int n = (int) Math.min(chunk.length - (from - chunkStart), length - copied);
+                if (n > 0) {
+                    System.arraycopy(chunk, (int) (from - chunkStart), buffer, bufferOffset + copied, n);
+                    copied += n;
+                }
+            }
+            return copied;
+        } finally {
+            if (body != null) {
+                body.close();
+            } else {
+                IOUtils.closeSilently(input);
+                connection.disconnect();
+            }
+        }
+    }
+
+    private HttpURLConnection openConnection(String url, long rangeStart, long rangeEnd, String validator)
+            throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        connection.setUseCaches(false);
+        connection.setRequestProperty("Range", "bytes=" + rangeStart + "-" + rangeEnd);
+        if (validator != null) {
+            connection.setRequestProperty("If-Range", validator);
+        }
+        return connection;
+    }
+
+    /***
+     * The body of a range, read across as many responses as needed: a server may send less than the range asked for,
+     * the rest of it is requested then.
+     */
+    private final class RangeBody {
+        private final String url;
+        private final String validator;
+        private final long total;
+        private final long end;
+
+        private HttpURLConnection connection;
+        private InputStream input;
+        private long position; // of the next byte of the input in the resource
+        private long responseEnd;
+        private boolean progressed;
+
+        /***
+         * @param end the last byte of the range, inclusive
+         */
+        RangeBody(String url, String validator, long total, long end) {
+            this.url = url;
+            this.validator = validator;
+            this.total = total;
+            this.end = end;
+        }
+
+        void setResponse(HttpURLConnection connection, InputStream input, long position, long responseEnd) {
+            this.connection = connection;
+            this.input = input;
+            this.position = position;
+            this.responseEnd = responseEnd;
+            progressed = false;
+        }
+
+        void readFully(byte[] data) throws IOException {
+            int offset = 0;
+            while (offset < data.length) {
+                int n = -1;
+                if (position <= responseEnd) {
+                    n = input.read(data, offset, (int) Math.min(data.length - offset, responseEnd - position + 1));
+                }
+                if (n == -1) {
+                    requestRest();
+                    continue;
+                }
+                offset += n;
+                position += n;
+                progressed = true;
+            }
+        }
+
+        private void requestRest() throws IOException {
+            if (!progressed || position > end) {
+                throw new IOException("Unexpected end of the body");
+            }
+            close();
+
+            EFLogger.d(TAG, "short response, request bytes " + position + "-" + end + " of " + url);
+            HttpURLConnection rest = openConnection(url, position, end, validator);
+            int responseCode = rest.getResponseCode();
+            String contentRange = rest.getHeaderField("Content-Range");
+            if (responseCode != HttpURLConnection.HTTP_PARTIAL || parseRangeStart(contentRange) != position
+                    || parseTotalLength(contentRange) != total) {
+                rest.disconnect();
+                throw new IOException("Unusable response for the rest of " + url + ", code " + responseCode
+                        + ", range " + contentRange);
+            }
+            setResponse(rest, rest.getInputStream(), position, parseRangeEnd(contentRange));
+        }
+
+        void close() {
+            IOUtils.closeSilently(input);
+            input = null;
+            if (connection != null) {
+                connection.disconnect();
+                connection = null;
+            }
+        }
+    }
+
+    // "bytes 0-1023/4096"
+    private static long parseRangeStart(String contentRange) throws IOException {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            throw new IOException("Bad Content-Range: " + contentRange);
+        }
+        int dash = contentRange.indexOf('-');
+        try {
+            return Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+        } catch (RuntimeException e) {
+            throw new IOException("Bad Content-Range: " + contentRange);
+        }
+    }
+
+    private static long parseRangeEnd(String contentRange) throws IOException {
+        int dash = contentRange == null ? -1 : contentRange.indexOf('-');
+        int slash = contentRange == null ? -1 : contentRange.indexOf('/');
+        if (dash < 0 || slash < dash) {
+            throw new IOException("Bad Content-Range: " + contentRange);
+        }
+        try {
+            return Long.parseLong(contentRange.substring(dash + 1, slash).trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad Content-Range: " + contentRange);
+        }
+    }
+
+    private static long parseTotalLength(String contentRange) throws IOException {
+        int slash = contentRange == null ? -1 : contentRange.lastIndexOf('/');
+        if (slash < 0 || contentRange.endsWith("*")) {
+            throw new IOException("Unknown length in Content-Range: " + contentRange);
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad Content-Range: " + contentRange);
+        }
+    }
+
+    private static void skipFully(InputStream input, long n) throws IOException {
+        byte[] scratch = null;
+        while (n > 0) {
+            long skipped = input.skip(n);
+            if (skipped <= 0) {
+                if (scratch == null) {
+                    scratch = new byte[8 * 1024];
+                }
+                int read = input.read(scratch, 0, (int) Math.min(scratch.length, n));
+                if (read == -1) {
+                    throw new IOException("Unexpected end of the body");
+                }
+                skipped = read;
+            }
+            n -= skipped;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.download;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+import org.rayworks.network.util.EFLogger;
+
+/***
+ * Takes the tasks from the queue and hands each of them to a {@link Launcher}, which runs it without a worker. The
+ * number of running tasks is bounded by a global semaphore, which is taken before a task leaves the queue so that
+ * the queued tasks can still be prioritized and cancelled.
+ */
+final class TaskDispatcher implements Runnable {
+    private static final String TAG = TaskDispatcher.class.getSimpleName();
+
+    /***
+     * Runs the tasks taken by the dispatcher
+     */
+    interface Launcher {
+        /***
+         * Prepares the execution of a task, it's started by the dispatcher
+         */
+        Execution create(BackgroundTask task);
+
+        void configure(DownloadSetting setting);
+
+        void shutdown();
+    }
+
+    /***
+     * A task being run by a {@link Launcher}
+     */
+    abstract static class Execution {
+        final BackgroundTask task;
+        volatile boolean cancelled;
+        private TaskDispatcher dispatcher;
+
+        Execution(BackgroundTask task) {
+            this.task = task;
+        }
+
+        /***
+         * Runs the task, {@link #finish()} is called once it's done
+         */
+        abstract void start();
+
+        /***
+         * Quits the task, the execution still calls {@link #finish()}
+         */
+        void cancel() {
+            cancelled = true;
+            onCancel();
+        }
+
+        abstract void onCancel();
+
+        /***
+         * Gives the slot of the task back, it's called once
+         */
+        final void finish() {
+            dispatcher.executions.remove(this);
+            dispatcher.queue.release(task);
+            dispatcher.taskPermits.release();
+        }
+
+        final boolean isStopped() {
+            return cancelled || dispatcher.stopped;
+        }
+    }
+
+    private final TaskQueue queue;
+    private final Launcher launcher;
+
+    private final Permits taskPermits;
+    private final Set<Execution> executions = Collections.newSetFromMap(new ConcurrentHashMap<Execution, Boolean>());
+
+    private final Object pauseLock = new Object();
+    private boolean paused;
+    private volatile boolean stopped;
+    private final Thread thread;
+
+    TaskDispatcher(TaskQueue queue, DownloadSetting setting, Launcher launcher) {
+        this.queue = queue;
+        this.launcher = launcher;
+
+        taskPermits = new Permits(setting.getMaxConcurrentTasks());
+        thread = new Thread(this, TAG);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void stop() {
+        stopped = true;
+        thread.interrupt();
+        cancelAll();
+        launcher.shutdown();
+    }
+
+    /***
+     * Applies the limits and the download options of the setting, the running downloads keep the former options.
+     */
+    void configure(DownloadSetting setting) {
+        taskPermits.resize(setting.getMaxConcurrentTasks());
+        launcher.configure(setting);
+    }
+
+    /***
+     * Cancels the running tasks and stops taking tasks from the queue until {@link #wakeup()}
+     */
+    void rest() {
+        synchronized (pauseLock) {
+            paused = true;
+        }
+        thread.interrupt();
+        cancelAll();
+    }
+
+    void wakeup() {
+        synchronized (pauseLock) {
+            paused = false;
+            pauseLock.notifyAll();
+        }
+    }
+
+    int getRunningTaskCount() {
+        return executions.size();
+    }
+
+    /***
+     * @return whether a running task contains the url
+     */
+    boolean isRunning(String url) {
+        return findExecution(url) != null;
+    }
+
+    /***
+     * Cancels the running task which contains the url
+     */
+    void cancel(String url) {
+        Execution execution = findExecution(url);
+        if (execution != null) {
+            execution.cancel();
+            EFLogger.d(TAG, "Task" + url + " cancelled when running");
+        }
+    }
+
+    /***
+     * Cancels the task if it's running
+     */
+    void cancel(BackgroundTask task) {
+        for (Execution execution : executions) {
+            if (execution.task == task) {
+                execution.cancel();
+                EFLogger.d(TAG, "Task" + task + " cancelled when running");
+            }
+        }
+    }
+
+    private void cancelAll() {
+        for (Execution execution : executions) {
+            execution.cancel();
+        }
+    }
+
+    private Execution findExecution(String url) {
+        for (Execution execution : executions) {
+            if (execution.task.containTargetKey(url)) {
+                return execution;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void run() {
+        while (!stopped) {
+            try {
+                synchronized (pauseLock) {
+                    while (paused && !stopped) {
+                        pauseLock.wait();
+                    }
+                }
+                if (stopped) {
+                    break;
+                }
+
+                taskPermits.acquire();
+                BackgroundTask task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException e) {
+                    taskPermits.release();
+                    throw e;
+                }
+
+                synchronized (pauseLock) {
+                    if (paused || stopped) { // it came too late, the task waits for the wakeup
+                        queue.release(task);
+                        queue.addFirst(task);
+                        taskPermits.release();
+                        continue;
+                    }
+                }
+                dispatch(task);
+            } catch (InterruptedException e) {
+                // asked to rest or to quit, it's checked at the top of the loop
+            }
+        }
+        EFLogger.d(TAG, ">>>" + TAG + " is quitting now");
+    }
+
+    private void dispatch(BackgroundTask task) {
+        EFLogger.d(TAG, ">>> Dispatch task:" + task);
+
+        Execution execution = launcher.create(task);
+        execution.dispatcher = this;
+        executions.add(execution);
+        try {
+            execution.start();
+        } catch (RuntimeException | OutOfMemoryError e) { // e.g. no more thread for now
+            execution.finish();
+            task.notifyError("Error: failed to launch the task, " + e.getMessage());
+        }
+    }
+
+    /***
+     * A semaphore whose number of permits can change while they are taken
+     */
+    static final class Permits extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        private int limit;
+
+        Permits(int limit) {
+            super(limit);
+            this.limit = limit;
+        }
+
+        synchronized void resize(int newLimit) {
+            if (newLimit > limit) {
+                release(newLimit - limit);
+            } else if (newLimit < limit) {
+                reducePermits(limit - newLimit);
+            }
+            limit = newLimit;
+        }
+    }
+}
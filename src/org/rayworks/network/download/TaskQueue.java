@@ -0,0 +1,548 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rayworks.network.download;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.net.URI;
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The queue of the tasks waiting to run, grouped by host so that one host can't take every worker.
+ * <p>
+ * A task taken by {@link #take()} or {@link #poll()} runs until it's given back by {@link #release(BackgroundTask)},
+ * and a host never has more than {@link #setMaxTasksPerHost(int)} tasks running: the tasks of a busy host wait while
+ * the ones of the other hosts go. The hosts take turns by deficit round-robin, a host's quantum being its recent
+ * throughput relative to the average one, bounded to [{@value #MIN_QUANTUM}, {@value #MAX_QUANTUM}], so the fast
+ * hosts are served more often and a slow one is still served. The tasks added by {@link #addFirst(BackgroundTask)}
+ * go before all the others, within the limit of their host.
+ * </p>
+ * The host of a task is the one of its first url.
+ */
+public final class TaskQueue extends AbstractQueue<BackgroundTask> implements BlockingQueue<BackgroundTask> {
+    private static final double MIN_QUANTUM = 0.25;
+    private static final double MAX_QUANTUM = 4;
+    private static final double THROUGHPUT_WEIGHT = 0.3; // of the latest task in the throughput of a host
+    private static final int MAX_IDLE_HOSTS = 256; // whose throughput is remembered
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+
+    // guarded by lock
+    private final ArrayDeque<BackgroundTask> prioritized = new ArrayDeque<>();
+    private final ArrayDeque<Host> rotation = new ArrayDeque<>(); // the hosts having tasks queued
+    private final Map<BackgroundTask, Start> running = new IdentityHashMap<>();
+    private final Map<String, Host> hosts = new LinkedHashMap<String, Host>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Host> eldest) {
+            if (size() <= MAX_IDLE_HOSTS) {
+                return false;
+            }
+            // the least recently used idle host goes, a busy one is kept whatever its age; the newest entry is
+            // the host being added
+            Iterator<Host> iterator = values().iterator();
+            for (int i = size() - 1; i > 0; i--) {
+                if (iterator.next().isIdle()) {
+                    iterator.remove();
+                    break;
+                }
+            }
+            return false;
+        }
+    };
+    private int count;
+    private int maxTasksPerHost;
+
+    private volatile Runnable idleListener;
+
+    private static final class Host {
+        final String key;
+        final ArrayDeque<BackgroundTask> tasks = new ArrayDeque<>();
+        int running;
+        double deficit;
+        double throughput; // bytes per second, 0 until a download of the host is done
+        boolean inRotation;
+
+        Host(String key) {
+            this.key = key;
+        }
+
+        boolean isIdle() {
+            return running == 0 && tasks.isEmpty();
+        }
+    }
+
+    private static final class Start {
+        final Host host;
+        final long nanos;
+        final long transferredBytes;
+
+        Start(Host host, long nanos, long transferredBytes) {
+            this.host = host;
+            this.nanos = nanos;
+            this.transferredBytes = transferredBytes;
+        }
+    }
+
+    TaskQueue(int maxTasksPerHost) {
+        setMaxTasksPerHost(maxTasksPerHost);
+    }
+
+    /***
+     * @return the key a url is limited by, the host and the port of it
+     */
+    static String getHostKey(String url) {
+        String host;
+        try {
+            host = URI.create(url).getAuthority();
+        } catch (IllegalArgumentException e) {
+            host = null;
+        }
+        return host == null ? "" : host.toLowerCase(Locale.US);
+    }
+
+    /***
+     * @param maxTasksPerHost the number of running tasks per host, it applies to the next task taken
+     */
+    public void setMaxTasksPerHost(int maxTasksPerHost) {
+        checkArgument(maxTasksPerHost > 0, "maxTasksPerHost should be positive");
+        lock.lock();
+        try {
+            this.maxTasksPerHost = maxTasksPerHost;
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /***
+     * @param idleListener null-ok, it's called whenever the queue gets idle, see {@link #isIdle()}. It runs on the
+     *                     thread which made the queue idle, outside the lock of the queue.
+     */
+    void setIdleListener(Runnable idleListener) {
+        this.idleListener = idleListener;
+    }
+
+    /***
+     * @return whether no task is queued or running
+     */
+    public boolean isIdle() {
+        lock.lock();
+        try {
+            return count == 0 && running.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void notifyIfIdle(boolean idle) {
+        Runnable listener = idleListener;
+        if (idle && listener != null) {
+            listener.run();
+        }
+    }
+
+    /***
+     * @return the number of running tasks of the host of the url
+     */
+    public int getRunningTaskCount(String url) {
+        lock.lock();
+        try {
+            Host host = hosts.get(getHostKey(url));
+            return host == null ? 0 : host.running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /***
+     * @return number of the hosts known, the idle ones whose throughput is remembered included
+     */
+    int getHostCount() {
+        lock.lock();
+        try {
+            return hosts.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /***
+     * Queues the task ahead of all the others
+     */
+    public void addFirst(BackgroundTask task) {
+        lock.lock();
+        try {
+            prioritized.addFirst(task);
+            count++;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(BackgroundTask task) {
+        lock.lock();
+        try {
+            Host host = getHost(task);
+            host.tasks.add(task);
+            if (!host.inRotation) {
+                host.inRotation = true;
+                rotation.add(host);
+            }
+            count++;
+            available.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(BackgroundTask task) {
+        offer(task);
+    }
+
+    @Override
+    public boolean offer(BackgroundTask task, long timeout, TimeUnit unit) {
+        return offer(task);
+    }
+
+    @Override
+    public BackgroundTask take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            BackgroundTask task;
+            while ((task = next()) == null) {
+                available.await();
+            }
+            return task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public BackgroundTask poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            BackgroundTask task;
+            while ((task = next()) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = available.awaitNanos(nanos);
+            }
+            return task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public BackgroundTask poll() {
+        lock.lock();
+        try {
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /***
+     * Gives back the slot of a task taken from the queue, the time and the bytes of it count towards the throughput
+     * of its host.
+     */
+    public void release(BackgroundTask task) {
+        boolean idle;
+        lock.lock();
+        try {
+            Start start = running.remove(task);
+            if (start == null) {
+                return;
+            }
+            Host host = start.host;
+            host.running--;
+
+            long elapsed = System.nanoTime() - start.nanos;
+            long bytes = task.getTransferredBytes() - start.transferredBytes;
+            if (bytes > 0 && elapsed > 0) {
+                double throughput = bytes * 1e9 / elapsed;
+                host.throughput = host.throughput == 0 ? throughput
+                        : host.throughput * (1 - THROUGHPUT_WEIGHT) + throughput * THROUGHPUT_WEIGHT;
+            }
+            available.signal();
+            idle = count == 0 && running.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+        notifyIfIdle(idle);
+    }
+
+    /***
+     * @return the next task to run, or null if every host with tasks queued is at its limit
+     */
+    private BackgroundTask next() {
+        Iterator<BackgroundTask> iterator = prioritized.iterator();
+        while (iterator.hasNext()) {
+            BackgroundTask task = iterator.next();
+            Host host = getHost(task);
+            if (host.running < maxTasksPerHost) {
+                iterator.remove();
+                return start(task, host);
+            }
+        }
+
+        double averageThroughput = getAverageThroughput();
+        // a host gains at least MIN_QUANTUM per turn, so any host under its limit is served within the rounds
+        int turns = rotation.size() * ((int) Math.ceil(1 / MIN_QUANTUM) + 1);
+        for (int i = 0; i < turns; i++) {
+            Host host = rotation.poll();
+            if (host == null) {
+                break;
+            }
+            if (host.running >= maxTasksPerHost) {
+                rotation.add(host);
+                continue;
+            }
+            if (host.deficit < 1) {
+                host.deficit += getQuantum(host, averageThroughput);
+            }
+            if (host.deficit < 1) {
+                rotation.add(host);
+                continue;
+            }
+
+            host.deficit -= 1;
+            BackgroundTask task = host.tasks.poll();
+            if (host.tasks.isEmpty()) {
+                host.inRotation = false;
+                host.deficit = 0;
+            } else if (host.deficit >= 1) {
+                rotation.addFirst(host); // the rest of its turn
+            } else {
+                rotation.add(host);
+            }
+            return start(task, host);
+        }
+        return null;
+    }
+
+    private BackgroundTask start(BackgroundTask task, Host host) {
+        count--;
+        host.running++;
+        running.put(task, new Start(host, System.nanoTime(), task.getTransferredBytes()));
+        return task;
+    }
+
+    private double getAverageThroughput() {
+        double sum = 0;
+        int measured = 0;
+        for (Host host : rotation) {
+            if (host.throughput > 0) {
+                sum += host.throughput;
+                measured++;
+            }
+        }
+        return measured == 0 ? 0 : sum / measured;
+    }
+
+    private static double getQuantum(Host host, double averageThroughput) {
+        if (host.throughput <= 0 || averageThroughput <= 0) {
+            return 1;
+        }
+        return Math.max(MIN_QUANTUM, Math.min(MAX_QUANTUM, host.throughput / averageThroughput));
+    }
+
+    private Host getHost(BackgroundTask task) {
+        String key = getHostKey(task.getFirstSyncTask());
+        Host host = hosts.get(key);
+        if (host == null) {
+            host = new Host(key);
+            hosts.put(key, host);
+        }
+        return host;
+    }
+
+    @Override
+    public BackgroundTask peek() {
+        lock.lock();
+        try {
+            if (!prioritized.isEmpty()) {
+                return prioritized.peek();
+            }
+            Host host = rotation.peek();
+            return host == null ? null : host.tasks.peek();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof BackgroundTask)) {
+            return false;
+        }
+        boolean idle;
+        lock.lock();
+        try {
+            if (!removeQueued((BackgroundTask) o)) {
+                return false;
+            }
+            count--;
+            idle = count == 0 && running.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+        notifyIfIdle(idle);
+        return true;
+    }
+
+    private boolean removeQueued(BackgroundTask task) {
+        if (prioritized.remove(task)) {
+            return true;
+        }
+        Host host = hosts.get(getHostKey(task.getFirstSyncTask()));
+        if (host == null || !host.tasks.remove(task)) {
+            return false;
+        }
+        if (host.tasks.isEmpty()) {
+            rotation.remove(host);
+            host.inRotation = false;
+            host.deficit = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        boolean idle;
+        lock.lock();
+        try {
+            prioritized.clear();
+            for (Host host : rotation) {
+                host.tasks.clear();
+                host.inRotation = false;
+                host.deficit = 0;
+            }
+            rotation.clear();
+            count = 0;
+            idle = running.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+        notifyIfIdle(idle);
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super BackgroundTask> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /***
+     * Moves the queued tasks out, they're not taken to run
+     */
+    @Override
+    public int drainTo(Collection<? super BackgroundTask> c, int maxElements) {
+        int drained = 0;
+        for (BackgroundTask task : snapshot()) {
+            if (drained >= maxElements) {
+                break;
+            }
+            if (remove(task)) {
+                c.add(task);
+                drained++;
+            }
+        }
+        return drained;
+    }
+
+    /***
+     * @return a weakly consistent iterator of the queued tasks, the prioritized ones first and then host by host
+     */
+    @Override
+    public Iterator<BackgroundTask> iterator() {
+        final Iterator<BackgroundTask> iterator = snapshot().iterator();
+        return new Iterator<BackgroundTask>() {
+            private BackgroundTask last;
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public BackgroundTask next() {
+                last = iterator.next();
+                return last;
+            }
+
+            @Override
+            public void remove() {
+                if (last == null) {
+                    throw new IllegalStateException();
+                }
+                TaskQueue.this.remove(last);
+                last = null;
+            }
+        };
+    }
+
+    private List<BackgroundTask> snapshot() {
+        lock.lock();
+        try {
+            List<BackgroundTask> tasks = new ArrayList<>(count);
+            tasks.addAll(prioritized);
+            for (Host host : rotation) {
+                tasks.addAll(host.tasks);
+            }
+            return tasks;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
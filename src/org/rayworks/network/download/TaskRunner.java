@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.download;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.rayworks.network.download.cache.BaseCache;
+import org.rayworks.network.storage.SyncStateStore;
+import org.rayworks.network.util.EFLogger;
+
+/***
+ * Downloads the urls of a {@link BackgroundTask} one by one and reports the results to the task, on whichever thread
+ * calls it. A runner is used by one thread at a time, only {@link #cancel()} may be called from another one.
+ */
+final class TaskRunner {
+    private static final String TAG = TaskRunner.class.getSimpleName();
+
+    /***
+     * What to do with the task after a url is handled
+     */
+    enum Outcome {
+        /** Go on with the next url, if any */
+        NEXT,
+        /** The download was cancelled, the rest of the task is dropped */
+        CANCELLED,
+        /** The task failed, the rest of it is dropped */
+        FAILED
+    }
+
+    private final SyncStateStore mStateStore;
+    private final BaseCache baseCache;
+
+    private final Object downloaderLock = new Object();
+    private Downloader downloader;
+
+    private volatile int timeout;
+    private volatile AtomicLong byteCounter;
+    private volatile long checkpointInterval = Downloader.DEFAULT_CHECKPOINT_INTERVAL;
+
+    TaskRunner(SyncStateStore syncStateStore, BaseCache cache, int timeout) {
+        mStateStore = syncStateStore;
+        baseCache = cache;
+        this.timeout = timeout;
+    }
+
+    void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    void setByteCounter(AtomicLong byteCounter) {
+        this.byteCounter = byteCounter;
+    }
+
+    void setCheckpointInterval(long checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /***
+     * Completes the url at once if it's cached already
+     *
+     * @return whether the url was in the cache
+     */
+    boolean completeFromCache(BackgroundTask task, String remotePath) {
+        if (!baseCache.existFile(remotePath)) {
+            return false;
+        }
+        EFLogger.d(TAG, "cache hit for url: " + remotePath);
+        task.notifyComplete(remotePath);// filter the path
+        return true;
+    }
+
+    /***
+     * Downloads a url of the task, a recoverable failure is handed to the retry strategy of the task.
+     */
+    Outcome download(BackgroundTask task, String remotePath) {
+        Downloader current;
+        synchronized (downloaderLock) {
+            current = new Downloader(remotePath, mStateStore, baseCache, timeout);
+            current.setProgressListener(task.getDownloadListener());
+            current.setChecksum(task.getChecksum(remotePath));
+            current.setPartition(task.getTag().equals("") ? null : task.getTag());
+            current.setCheckpointInterval(checkpointInterval);
+            current.setByteCounter(byteCounter);
+            current.setTask(task);
+            current.setThrottle(task.getThrottle());
+            downloader = current;
+        }
+        return complete(task, remotePath, current.downloadFile());
+    }
+
+    /***
+     * Reports the result of a download of the task, a recoverable failure is handed to the retry strategy of the
+     * task.
+     */
+    Outcome complete(BackgroundTask task, String remotePath, DownloadResult downloadResult) {
+        if (downloadResult.isOk()) {
+            task.notifyComplete(remotePath);
+            EFLogger.d(TAG, "download complete with url: " + remotePath);
+            return Outcome.NEXT;
+        } else if (downloadResult.isCanceled()) {
+            EFLogger.d(TAG, "task cancelled :" + remotePath);
+            task.notifyCancelled();
+            return Outcome.CANCELLED;
+        } else if (!downloadResult.isRecoverable()) {
+            // File does not exist on server, we are unlikely to recover from this
+            task.notifyError("Error: FAILED_SERVER");
+            return Outcome.FAILED;
+        }
+
+        EFLogger.d(TAG, "Error: failed to download, retry it later... url:" + remotePath);
+        try {
+            // failed to download, retry it late.
+            task.getRetryStrategy().retry(downloadResult.getErrorCause());
+            return Outcome.NEXT;
+        } catch (Exception e) {
+            EFLogger.d(TAG, "Last Retry failed, stop trying for resource #" + remotePath);
+            task.notifyError(downloadResult.getErrorCause().getMessage());
+            return Outcome.FAILED;
+        }
+    }
+
+    /***
+     * Quits the current download, if any
+     */
+    void cancel() {
+        synchronized (downloaderLock) {
+            if (downloader != null) {
+                downloader.cancel();
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.download;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.rayworks.network.download.cache.BaseCache;
+import org.rayworks.network.storage.SyncStateStore;
+import org.rayworks.network.util.EFLogger;
+
+/***
+ * Runs each task on a thread of its own, made by the {@link DownloadSetting#getTaskThreadFactory()}. The number of
+ * downloads from a host is bounded by a semaphore per host, which a task waits for on its own thread.
+ */
+final class ThreadPerTaskLauncher implements TaskDispatcher.Launcher {
+    private static final String TAG = ThreadPerTaskLauncher.class.getSimpleName();
+
+    private final SyncStateStore syncStateStore;
+    private final BaseCache cache;
+    private final AtomicLong byteCounter;
+    private final ThreadFactory threadFactory;
+
+    private final ConcurrentMap<String, TaskDispatcher.Permits> hostPermits = new ConcurrentHashMap<>();
+
+    private volatile int maxConnectionsPerHost;
+    private volatile int timeout;
+    private volatile long checkpointInterval;
+
+    ThreadPerTaskLauncher(SyncStateStore syncStateStore, BaseCache cache, AtomicLong byteCounter,
+                          DownloadSetting setting) {
+        this.syncStateStore = syncStateStore;
+        this.cache = cache;
+        this.byteCounter = byteCounter;
+        threadFactory = setting.getTaskThreadFactory();
+
+        maxConnectionsPerHost = setting.getMaxConnectionsPerHost();
+        timeout = setting.getTimeout();
+        checkpointInterval = setting.getCheckpointInterval();
+    }
+
+    @Override
+    public TaskDispatcher.Execution create(BackgroundTask task) {
+        TaskRunner runner = new TaskRunner(syncStateStore, cache, timeout);
+        runner.setCheckpointInterval(checkpointInterval);
+        runner.setByteCounter(byteCounter);
+        return new ThreadExecution(task, runner);
+    }
+
+    @Override
+    public void configure(DownloadSetting setting) {
+        timeout = setting.getTimeout();
+        checkpointInterval = setting.getCheckpointInterval();
+
+        maxConnectionsPerHost = setting.getMaxConnectionsPerHost();
+        for (TaskDispatcher.Permits permits : hostPermits.values()) {
+            permits.resize(maxConnectionsPerHost);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        // the threads quit with their tasks
+    }
+
+    private TaskDispatcher.Permits getHostPermits(String url) {
+        String host = TaskQueue.getHostKey(url);
+        TaskDispatcher.Permits permits = hostPermits.get(host);
+        if (permits == null) {
+            TaskDispatcher.Permits newPermits = new TaskDispatcher.Permits(maxConnectionsPerHost);
+            permits = hostPermits.putIfAbsent(host, newPermits);
+            if (permits == null) {
+                permits = newPermits;
+            }
+        }
+        return permits;
+    }
+
+    /***
+     * A task on its thread
+     */
+    private final class ThreadExecution extends TaskDispatcher.Execution implements Runnable {
+        private final TaskRunner runner;
+        private Thread waitingThread; // guarded by this, set while waiting for a host
+
+        ThreadExecution(BackgroundTask task, TaskRunner runner) {
+            super(task);
+            this.runner = runner;
+        }
+
+        @Override
+        void start() {
+            threadFactory.newThread(this).start();
+        }
+
+        @Override
+        void onCancel() {
+            runner.cancel();
+            synchronized (this) {
+                if (waitingThread != null) {
+                    waitingThread.interrupt();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                do {
+                    String remotePath = task.getNextSyncTask();
+                    if (runner.completeFromCache(task, remotePath)) {
+                        continue;
+                    }
+
+                    TaskDispatcher.Permits permits = getHostPermits(remotePath);
+                    if (!acquire(permits)) {
+                        EFLogger.d(TAG, "task cancelled :" + remotePath);
+                        break;
+                    }
+                    TaskRunner.Outcome outcome;
+                    try {
+                        outcome = runner.download(task, remotePath);
+                    } finally {
+                        permits.release();
+                    }
+                    if (outcome != TaskRunner.Outcome.NEXT) {
+                        break;
+                    }
+                } while (!isStopped() && task.hasNextSyncTask());
+            } finally {
+                finish();
+            }
+        }
+
+        /***
+         * @return false if the task was cancelled while waiting
+         */
+        private boolean acquire(TaskDispatcher.Permits permits) {
+            synchronized (this) {
+                waitingThread = Thread.currentThread();
+            }
+            boolean acquired = false;
+            try {
+                if (!cancelled) {
+                    permits.acquire();
+                    acquired = true;
+                }
+            } catch (InterruptedException e) {
+                // cancelled
+            } finally {
+                synchronized (this) {
+                    waitingThread = null;
+                }
+                Thread.interrupted(); // no interruption is left over for the download
+            }
+
+            if (acquired && cancelled) {
+                permits.release();
+                acquired = false;
+            }
+            return acquired;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.download;
+
+import org.rayworks.network.util.EFLogger;
+
+/**
+ * Adjusts the number of workers of {@link DownloadManager} by hill climbing on the aggregate throughput: a worker is
+ * added while tasks are queued and none is idle, and taken back if the aggregate throughput didn't rise with it, since
+ * the bottleneck is then the network or the server. An idle worker is removed while the queue is empty.
+ */
+final class WorkerAutoscaler implements Runnable {
+    private static final String TAG = WorkerAutoscaler.class.getSimpleName();
+
+    /***
+     * An added worker should raise the throughput by this ratio at least
+     */
+    private static final double MIN_GAIN = 0.05;
+
+    /***
+     * Rounds without growing after an added worker didn't pay off
+     */
+    private static final int HOLD_ROUNDS = 5;
+
+    private final DownloadManager manager;
+    private final int minWorkers;
+    private final int maxWorkers;
+
+    private long lastBytes = -1;
+    private long lastTime;
+    private double lastThroughput;
+    private int lastStep;
+    private int holdRounds;
+
+    WorkerAutoscaler(DownloadManager manager, int minWorkers, int maxWorkers) {
+        this.manager = manager;
+        this.minWorkers = minWorkers;
+        this.maxWorkers = maxWorkers;
+    }
+
+    @Override
+    public void run() {
+        long now = System.nanoTime();
+        long bytes = manager.getDownloadedBytes();
+        if (lastBytes < 0) {
+            lastBytes = bytes;
+            lastTime = now;
+            return;
+        }
+
+        double throughput = (bytes - lastBytes) * 1e9 / Math.max(1, now - lastTime);
+        lastBytes = bytes;
+        lastTime = now;
+
+        int workers = manager.getWorkerCount();
+        int target = decide(throughput, manager.getQueuedTaskCount(), manager.getIdleWorkerCount(), workers);
+        if (target != workers) {
+            EFLogger.d(TAG, String.format("%d -> %d workers, throughput %.0f B/s", workers, target, throughput));
+            manager.setWorkerCount(target);
+        }
+    }
+
+    int decide(double throughput, int queued, int idle, int workers) {
+        int target = workers;
+        if (lastStep > 0 && throughput < lastThroughput * (1 + MIN_GAIN)) {
+            target = workers - 1; // the added worker didn't pay off
+            holdRounds = HOLD_ROUNDS;
+        } else if (queued > 0 && idle == 0) {
+            if (holdRounds > 0) {
+                holdRounds--;
+            } else {
+                target = workers + 1;
+            }
+        } else if (queued == 0 && idle > 1) {
+            target = workers - 1;
+        }
+        target = Math.max(minWorkers, Math.min(maxWorkers, target));
+
+        lastStep = target - workers;
+        lastThroughput = throughput;
+        return target;
+    }
+}
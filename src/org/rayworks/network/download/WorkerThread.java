@@ -16,7 +16,9 @@
 
 package org.rayworks.network.download;
 
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import org.rayworks.network.download.cache.BaseCache;
 import org.rayworks.network.storage.SyncStateStore;
@@ -38,17 +40,42 @@ public class WorkerThread extends Thread {
      */
     private volatile boolean resting = false;
 
-    private BlockingQueue<BackgroundTask> mQueue;
-    //final private SortedMap<SyncEntity, SyncEntity> mCompleteMap;
-    private Downloader downloader;
+    /***
+     * A flag indicates the thread will quit once the current task is done
+     */
+    private volatile boolean draining = false;
+
+    /***
+     * What the worker is doing, the transitions are reported to the {@link WorkerStateListener}
+     */
+    public enum WorkerState {
+        /** Waiting for a task in the queue */
+        IDLE,
+        /** Executing a task */
+        RUNNING,
+        /** Parked until {@link #wakeup()} */
+        RESTING,
+        /** Finishing the current task before quitting */
+        DRAINING,
+        /** Quit */
+        STOPPED
+    }
 
-    private final Object restLock = new Object();
-    private final Object downloaderLock = new Object();
+    public interface WorkerStateListener {
+        /***
+         * Called on the thread making the transition, it should be quick.
+         */
+        void onStateChanged(WorkerThread worker, WorkerState from, WorkerState to);
+    }
+
+    private final AtomicReference<WorkerState> state = new AtomicReference<>(WorkerState.IDLE);
+    private volatile WorkerStateListener stateListener;
+
+    private TaskQueue mQueue;
+    //final private SortedMap<SyncEntity, SyncEntity> mCompleteMap;
+    private final TaskRunner runner;
 
-    private final SyncStateStore mStateStore;
-    private final BaseCache baseCache;
     private volatile BackgroundTask task;
-    private final int timeout;
 
     /***
      * The event listener to observer the quiting of current task
@@ -67,17 +94,52 @@ public class WorkerThread extends Thread {
         return task;
     }
 
-    public WorkerThread(String name, final BlockingQueue<BackgroundTask> queue, final SyncStateStore syncStateStore,
+    public WorkerState getWorkerState() {
+        return state.get();
+    }
+
+    /***
+     * @return whether the thread quits once the current task is done, see {@link #drain()}
+     */
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /***
+     * @param stateListener null-ok, it should be set before the thread starts so that no transition is missed
+     */
+    public void setStateListener(WorkerStateListener stateListener) {
+        this.stateListener = stateListener;
+    }
+
+    public WorkerThread(String name, final TaskQueue queue, final SyncStateStore syncStateStore,
                         BaseCache cache, int timeout) {
         super(name);
 
         mQueue = queue;
         //mCompleteMap = completeTasks;
-        mStateStore = syncStateStore;
+        runner = new TaskRunner(syncStateStore, cache, timeout);
+    }
 
-        baseCache = cache;
+    /***
+     * @param timeout network timeout value in milliseconds, it applies from the next download
+     */
+    public void setTimeout(int timeout) {
+        runner.setTimeout(timeout);
+    }
+
+    /***
+     * @param byteCounter see {@link Downloader#setByteCounter(AtomicLong)}
+     */
+    public void setByteCounter(AtomicLong byteCounter) {
+        runner.setByteCounter(byteCounter);
+    }
 
-        this.timeout = timeout;
+    /***
+     * @param checkpointInterval see {@link Downloader#setCheckpointInterval(long)}
+     */
+    public void setCheckpointInterval(long checkpointInterval) {
+        runner.setCheckpointInterval(checkpointInterval);
     }
 
     /***
@@ -90,103 +152,91 @@ public class WorkerThread extends Thread {
         interrupt();
     }
 
+    /***
+     * Makes the thread quit once the current task, with all of its urls, is done. An idle or resting thread quits
+     * at once.
+     */
+    public void drain() {
+        draining = true;
+        if (!state.compareAndSet(WorkerState.RUNNING, WorkerState.DRAINING)) {
+            interrupt(); // waiting for a task or resting
+        } else {
+            notifyStateChanged(WorkerState.RUNNING, WorkerState.DRAINING);
+        }
+    }
+
     /***
      * Quits the current executing task
      */
     public void cancelRunningTask() {
-        synchronized (downloaderLock) {
-            if (downloader != null) {
-                downloader.cancel();
-            }
-        }
+        runner.cancel();
     }
 
     @Override
     public void run() {
         //TODO: The thread's priority should be set lower to avoid competing with main thread.
 
-        while (!existing) {
-
-            // running state controlled by outside signal
-            listenToRestSignal();
-
-            try {
-                task = mQueue.take();
-                EFLogger.d(TAG, getName() + ">>> Fetch task:" + task);
-            } catch (InterruptedException e) {
-                // e.printStackTrace();
-                if (existing) { // it was time to quit.
-                    EFLogger.d(TAG, ">>>" + getName() + " is existing now");
+        try {
+            while (!existing && !draining) {
 
-                    task = null;
-                    return;
+                // running state controlled by outside signal
+                checkSignalToWait();
+                if (existing || draining) {
+                    break;
                 }
-                continue;
-            }
 
-            do {
-                String remotePath = task.getNextSyncTask();
-                boolean targetFileDownloaded = baseCache.existFile(remotePath);
-
-                if (targetFileDownloaded) {
-                    EFLogger.d(TAG, "cache hit for url: " + remotePath);
-                    task.notifyComplete(remotePath);// filter the path
-                } else {
-                    // Realtime downloading begins
-                    if (resting) { // any rescheduling request right now?
-                        if (taskCancelledEventListener != null) {
-                            taskCancelledEventListener.onTaskCancelled();
-                        }
-                        break;
+                setWorkerState(WorkerState.IDLE);
+                try {
+                    task = mQueue.take();
+                    EFLogger.d(TAG, getName() + ">>> Fetch task:" + task);
+                } catch (InterruptedException e) {
+                    // e.printStackTrace();
+                    if (existing || draining) { // it was time to quit.
+                        EFLogger.d(TAG, ">>>" + getName() + " is existing now");
+
+                        task = null;
+                        return;
                     }
+                    continue; // asked to rest
+                }
+                if (draining) {
+                    Thread.interrupted(); // the interruption came too late, the task is executed anyway
+                }
+                setWorkerState(draining ? WorkerState.DRAINING : WorkerState.RUNNING);
 
-                    synchronized (downloaderLock) {
-                        downloader = new Downloader(remotePath, mStateStore, baseCache, timeout);
-                        downloader.setProgressListener(task.getDownloadListener());
-                    }
-                    DownloadResult downloadResult = downloader.downloadFile();
-                    if (downloadResult.isOk()) {
-                        // remove the record of realated temp file
-                        //runningTask.getSyncStateStore().removeDownloadedFileStamp(entity.getTargetFile().getAbsolutePath()); // synchronized operation
-
-                        handleSuccessfulDownload(task, remotePath);
-                    } else if (downloadResult.isCanceled()) {
-                        handleTaskCancelled(task, remotePath);
-                        if (taskCancelledEventListener != null) {
-                            taskCancelledEventListener.onTaskCancelled();
+                try {
+                    do {
+                        String remotePath = task.getNextSyncTask();
+                        if (runner.completeFromCache(task, remotePath)) {
+                            continue;
                         }
-                        break;
-                    } else if (!downloadResult.isRecoverable()) {
-                        // File does not exist on server, we are unlikely to recover from this
-                        handleUnrecoverableFailure(task);
-                        break;
-
-                    } else {
-                        EFLogger.d(TAG, "Error: failed to download, retry it later... url:" + remotePath);
-                        try {
-                            // failed to download, retry it late.
-                            handleCommonFailure(task, downloadResult.getErrorCause());
-                        } catch (Exception e) {
-                            EFLogger.d(TAG, "Last Retry failed, stop trying for resource #" + remotePath);
-                            task.notifyError(downloadResult.getErrorCause().getMessage());
+
+                        // Realtime downloading begins
+                        if (resting) { // any rescheduling request right now?
+                            task.notifyCancelled();
+                            if (taskCancelledEventListener != null) {
+                                taskCancelledEventListener.onTaskCancelled();
+                            }
                             break;
                         }
 
-                    }
-
+                        TaskRunner.Outcome outcome = runner.download(task, remotePath);
+                        if (outcome == TaskRunner.Outcome.CANCELLED) {
+                            if (taskCancelledEventListener != null) {
+                                taskCancelledEventListener.onTaskCancelled();
+                            }
+                            break;
+                        } else if (outcome == TaskRunner.Outcome.FAILED) {
+                            break;
+                        }
+                    } while (!existing && task.hasNextSyncTask());
+                } finally {
+                    mQueue.release(task); // frees the slot of the host, even if the task went wrong
                 }
-            } while (!existing && task.hasNextSyncTask());
-
-            task = null;
-            listenToRestSignal();
-        }
-    }
-
-    private void listenToRestSignal() {
-        try {
-            checkSignalToWait();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+                task = null;
+            }
+        } finally {
+            setWorkerState(WorkerState.STOPPED);
         }
     }
 
@@ -196,6 +246,9 @@ public class WorkerThread extends Thread {
     public void rest() {
         resting = true;
         cancelRunningTask();
+        if (state.get() == WorkerState.IDLE) {
+            interrupt(); // stops waiting for a task
+        }
     }
 
     /***
@@ -203,51 +256,34 @@ public class WorkerThread extends Thread {
      */
     public void wakeup() {
         resting = false;
-        synchronized (restLock) {
-            restLock.notifyAll();
-            EFLogger.d("", ">>> wakeup() invoked #" + getName());
-        }
+        LockSupport.unpark(this);
+        EFLogger.d("", ">>> wakeup() invoked #" + getName());
     }
 
-    private void checkSignalToWait() throws InterruptedException {
-        synchronized (restLock) {
-            while (resting) {
-                EFLogger.d("", ">>> before resting #" + getName());
-                restLock.wait();
-                EFLogger.d("", ">>> after resting, go back to work. #" + getName());
-            }
+    private void checkSignalToWait() {
+        if (!resting) {
+            return;
         }
+        EFLogger.d("", ">>> before resting #" + getName());
+        setWorkerState(WorkerState.RESTING);
+        while (resting && !existing && !draining) {
+            LockSupport.park(this);
+            Thread.interrupted(); // a rest() which came while waiting for a task, it's handled by now
+        }
+        EFLogger.d("", ">>> after resting, go back to work. #" + getName());
     }
 
-    private void handleTaskCancelled(BackgroundTask task, String remotePath) {
-        EFLogger.d("", "task cancelled :" + remotePath);
-
-        // should be configurable
-		/*task.reset();
-		mQueue.add(task);*/
-    }
-
-    /***
-     * Handles common failure
-     * @param task
-     */
-    private void handleCommonFailure(BackgroundTask task, Exception e) throws Exception {
-        // CompletionType.FAILED, most likely by a network problem
-
-        //sync task failed, lets try to sync it again (Retry strategy?!)
-        RetryStrategy retryStrategy = task.getRetryStrategy();
-        retryStrategy.retry(e);
-    }
-
-    private void handleUnrecoverableFailure(BackgroundTask task) {
-        task.notifyError("Error: FAILED_SERVER");
+    private void setWorkerState(WorkerState newState) {
+        WorkerState oldState = state.getAndSet(newState);
+        if (oldState != newState) {
+            notifyStateChanged(oldState, newState);
+        }
     }
 
-    private void handleSuccessfulDownload(BackgroundTask task, String remotePath) {
-		/*SyncEntity syncEntity = runningTask.getEntity();
-		syncEntity.setTimestamp(System.currentTimeMillis());*/
-
-        task.notifyComplete(remotePath);
-        EFLogger.d("WorkThread", "download complete with url: " + remotePath);
+    private void notifyStateChanged(WorkerState from, WorkerState to) {
+        WorkerStateListener listener = stateListener;
+        if (listener != null) {
+            listener.onStateChanged(this, from, to);
+        }
     }
 }
@@ -19,6 +19,8 @@ package org.rayworks.network.download.cache;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.BitSet;
+import java.util.Collection;
 
 import org.rayworks.network.util.IOUtils;
 
@@ -30,7 +32,8 @@ public interface BaseCache {
     File getCacheDir();
 
     /**
-     * Returns file of cached resource
+     * Returns file of cached resource, it holds the original bytes. For an entry compressed at rest it's an
+     * inflated copy of the caller's own, the entry itself stays compressed.
      *
      * @param fileUri Original resource URI
      * @return File of cached resource or <b>null</b> if resource wasn't cached
@@ -39,6 +42,43 @@ public interface BaseCache {
 
     boolean existFile(String fileUri);
 
+    /**
+     * Checks a batch of resources in one pass.
+     *
+     * @param fileUris Original resource URIs
+     * @return bitmap of the cached resources, bit <i>i</i> is set if the <i>i</i>-th URI in the iteration order of
+     * the collection was cached.
+     */
+    BitSet existFiles(Collection<String> fileUris);
+
+    /**
+     * Opens the content of cached resource, the entries compressed at rest are decompressed transparently.
+     *
+     * @param fileUri Original resource URI
+     * @return stream of the original bytes, the caller is responsible for closing it.
+     * @throws java.io.FileNotFoundException if the resource wasn't cached
+     */
+    InputStream openStream(String fileUri) throws IOException;
+
+    /**
+     * Opens the content of a resource which may still be downloading. The bytes already written are served at once,
+     * a read blocks only when it catches up with the download. Any number of readers can tail the same download.
+     *
+     * @param fileUri       Original resource URI
+     * @param timeoutMillis how long a read waits for more bytes, including the wait for a queued download to start
+     * @return stream of the original bytes, the caller is responsible for closing it.
+     * @throws IOException if the resource can't be opened
+     */
+    InputStream openProgressiveStream(String fileUri, long timeoutMillis) throws IOException;
+
+    /**
+     * Pins the cached file so that it won't be evicted until the lease is released.
+     *
+     * @param fileUri Original resource URI
+     * @return the lease or <b>null</b> if resource wasn't cached
+     */
+    CacheLease acquire(String fileUri);
+
 
     /***
      * Gets partial downloaded file
@@ -50,6 +90,8 @@ public interface BaseCache {
     /**
      * Saves file stream in disk cache.
      * Incoming stream shouldn't be closed in this method.
+     * <p>It's kept for the int based callers, files larger than 2 GB need
+     * {@link #save(String, InputStream, long, IOUtils.CopyListener, SaveOptions)}.</p>
      *
      * @param remoteFileUri Original file URI
      * @param inputStream   Input stream of file (shouldn't be closed in this method)
@@ -61,6 +103,39 @@ public interface BaseCache {
      */
     boolean save(String remoteFileUri, InputStream inputStream, int totalLength, IOUtils.CopyListener listener) throws IOException;
 
+    /**
+     * Saves file stream in disk cache with extra options, e.g. digest verification.
+     *
+     * @param remoteFileUri Original file URI
+     * @param inputStream   Input stream of file (shouldn't be closed in this method)
+     * @param totalLength   Total length of remote file, which can exceed 2 GB
+     * @param listener      Listener for saving progress, can be null
+     * @param options       Saving options, can be null
+     * @return <b>true</b> - if file was saved successfully; <b>false</b> - if file wasn't saved in the cache.
+     * @throws java.io.IOException
+     * @throws org.rayworks.network.download.exception.ChecksumMismatchException if the content doesn't match the
+     *                                                                           expected digest, the partial file is
+     *                                                                           removed in this case.
+     */
+    boolean save(String remoteFileUri, InputStream inputStream, long totalLength, IOUtils.CopyListener listener,
+                 SaveOptions options) throws IOException;
+
+    /**
+     * Commits a resource whose bytes were written to {@link #getTempFile(String)} by the caller, e.g. by a
+     * non-blocking downloader. The temp file is verified and moved into the cache like a saved one, it's never
+     * compressed.
+     *
+     * @param remoteFileUri Original file URI
+     * @param totalLength   Total length of remote file
+     * @param options       Saving options, can be null. The digest should contain all the bytes of the temp file.
+     * @return <b>true</b> - if file was committed; <b>false</b> - if the temp file is incomplete or can't be moved.
+     * @throws java.io.IOException
+     * @throws org.rayworks.network.download.exception.ChecksumMismatchException if the content doesn't match the
+     *                                                                           expected digest, the temp file is
+     *                                                                           removed in this case.
+     */
+    boolean commitTempFile(String remoteFileUri, long totalLength, SaveOptions options) throws IOException;
+
     /**
      * Removes specified cache by key
      *
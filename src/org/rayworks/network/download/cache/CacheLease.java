@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.download.cache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps a cached file away from eviction until it's released. Release it as soon as the file is not used any more,
+ * e.g. in a try-with-resources statement.
+ */
+public final class CacheLease implements Closeable {
+    private final LeaseRegistry registry;
+    private final File file;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    CacheLease(LeaseRegistry registry, File file) {
+        this.registry = registry;
+        this.file = file;
+        registry.pin(file.getName());
+    }
+
+    /***
+     * @return the pinned file, for an entry compressed at rest it holds the gzip'ed content.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    public boolean isReleased() {
+        return released.get();
+    }
+
+    /***
+     * Releases the lease, calling it more than once is harmless
+     */
+    public void release() {
+        if (released.compareAndSet(false, true)) {
+            registry.unpin(file.getName());
+        }
+    }
+
+    @Override
+    public void close() {
+        release();
+    }
+}
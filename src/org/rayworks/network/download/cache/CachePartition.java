@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.download.cache;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A named part of {@link DiskFileCache} with its own limitation and eviction policy, e.g. one for the bulk prefetching
+ * and another for the assets the user is waiting for. All the partitions share the cache directory.
+ * <p>
+ * A partition which is allowed to borrow may exceed its own limitation as long as the other partitions leave enough
+ * of their quota unused. The borrowed part is the first to go once the whole cache is over its limitation.
+ * </p>
+ */
+public class CachePartition {
+    private final String name;
+    private final DiskFileCache.Limits limits;
+    private final EvictionPolicy evictionPolicy;
+    private final boolean borrowingEnabled;
+
+    private volatile long byteCount;
+    private volatile long fileCount;
+    private volatile long borrowedByteCount;
+    private volatile long evictedCount;
+
+    /**
+     * Constructor
+     *
+     * @param name             name of the partition, e.g. tag of {@link org.rayworks.network.download.BackgroundTask};
+     *                         only letters, digits, '-' and '_' are allowed.
+     * @param limits           limitation for the partition
+     * @param evictionPolicy   order of removal
+     * @param borrowingEnabled whether the partition can use the quota left by others
+     */
+    public CachePartition(String name, DiskFileCache.Limits limits, EvictionPolicy evictionPolicy,
+                          boolean borrowingEnabled) {
+        checkArgument(name != null && name.matches("[A-Za-z0-9_\\-]+"), "Bad partition name: %s", name);
+        checkNotNull(limits);
+        checkNotNull(evictionPolicy);
+
+        this.name = name;
+        this.limits = limits;
+        this.evictionPolicy = evictionPolicy;
+        this.borrowingEnabled = borrowingEnabled;
+    }
+
+    public CachePartition(String name, DiskFileCache.Limits limits) {
+        this(name, limits, EvictionPolicy.OLDEST_FIRST, false);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public DiskFileCache.Limits getLimits() {
+        return limits;
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    public boolean isBorrowingEnabled() {
+        return borrowingEnabled;
+    }
+
+    /***
+     * @return bytes on disk after the latest trim
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    /***
+     * @return number of files after the latest trim
+     */
+    public long getFileCount() {
+        return fileCount;
+    }
+
+    /***
+     * @return bytes beyond the own limitation which are kept with the quota of other partitions
+     */
+    public long getBorrowedByteCount() {
+        return borrowedByteCount;
+    }
+
+    /***
+     * @return number of files evicted from this partition so far
+     */
+    public long getEvictedCount() {
+        return evictedCount;
+    }
+
+    void updateStats(long byteCount, long fileCount, long borrowedByteCount, long evicted) {
+        this.byteCount = byteCount;
+        this.fileCount = fileCount;
+        this.borrowedByteCount = borrowedByteCount;
+        this.evictedCount += evicted;
+    }
+
+    @Override
+    public String toString() {
+        return "CachePartition{" + name + ", bytes=" + byteCount + ", files=" + fileCount + "}";
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.download.cache;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.BitSet;
+
+import org.rayworks.network.util.IOUtils;
+
+/**
+ * A resource stored as fixed-size chunks, any subset of which can be present. It's a directory holding a file per
+ * present chunk, the description of the resource and the presence bitmap of the chunks, which is persisted whenever
+ * a chunk is added or evicted.
+ * <p>
+ * The chunks are named by their indexes. The last chunk can be shorter than the chunk size.
+ * </p>
+ */
+public final class ChunkedEntry {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    static final String DIRECTORY_POSTFIX = ".chunks";
+    private static final String DESCRIPTION_FILE_NAME = "description";
+    private static final String PRESENCE_FILE_NAME = "presence";
+    private static final String TEMP_FILE_POSTFIX = DiskFileCache.TEMP_FILE_POSTFIX;
+
+    private final ChunkedFileCache cache;
+    private final File dir;
+    private final long length;
+    private final int chunkSize;
+    private final String validator;
+
+    // guarded by this
+    private final BitSet presence;
+    private final long[] accessTimes;
+    private boolean removed;
+
+    private ChunkedEntry(ChunkedFileCache cache, File dir, long length, int chunkSize, String validator,
+                         BitSet presence, long accessTime) {
+        this.cache = cache;
+        this.dir = dir;
+        this.length = length;
+        this.chunkSize = chunkSize;
+        this.validator = validator;
+        this.presence = presence;
+        accessTimes = new long[getChunkCount()];
+        for (int i = presence.nextSetBit(0); i >= 0; i = presence.nextSetBit(i + 1)) {
+            accessTimes[i] = accessTime;
+        }
+    }
+
+    static ChunkedEntry create(ChunkedFileCache cache, File dir, long length, int chunkSize, String validator)
+            throws IOException {
+        if (!dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Failed to create " + dir);
+        }
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(new File(dir, DESCRIPTION_FILE_NAME)), UTF_8);
+        try {
+            writer.write(length + "\n" + chunkSize + "\n" + (validator == null ? "" : validator) + "\n");
+        } finally {
+            writer.close();
+        }
+        return new ChunkedEntry(cache, dir, length, chunkSize, validator, new BitSet(), 0);
+    }
+
+    /***
+     * @return the entry or null if the directory doesn't hold a valid one
+     */
+    static ChunkedEntry load(ChunkedFileCache cache, File dir) {
+        File description = new File(dir, DESCRIPTION_FILE_NAME);
+        File presenceFile = new File(dir, PRESENCE_FILE_NAME);
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(description), UTF_8));
+            long length = Long.parseLong(reader.readLine());
+            int chunkSize = Integer.parseInt(reader.readLine());
+            String validator = reader.readLine();
+
+            BitSet presence = new BitSet();
+            if (presenceFile.exists()) {
+                presence = BitSet.valueOf(readFully(presenceFile));
+            }
+            return new ChunkedEntry(cache, dir, length, chunkSize, validator == null || validator.isEmpty() ? null : validator,
+                    presence, presenceFile.lastModified());
+        } catch (IOException | RuntimeException e) { // a broken entry is dropped
+            return null;
+        } finally {
+            IOUtils.closeSilently(reader);
+        }
+    }
+
+    File getDirectory() {
+        return dir;
+    }
+
+    /***
+     * @return length of the whole resource
+     */
+    public long getLength() {
+        return length;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /***
+     * @return ETag or Last-Modified of the stored version, null if the server gave none
+     */
+    public String getValidator() {
+        return validator;
+    }
+
+    public int getChunkCount() {
+        return (int) ((length + chunkSize - 1) / chunkSize);
+    }
+
+    /***
+     * @param index
+     * @return length of the chunk, only the last one can be shorter than the chunk size
+     */
+    public int getChunkLength(int index) {
+        return (int) Math.min(chunkSize, length - (long) index * chunkSize);
+    }
+
+    public synchronized boolean isChunkPresent(int index) {
+        return presence.get(index);
+    }
+
+    /***
+     * @return number of the present chunks
+     */
+    public synchronized int getPresentChunkCount() {
+        return presence.cardinality();
+    }
+
+    /***
+     * @return the index of the first missing chunk at or after fromIndex, or the chunk count if there's none
+     */
+    public synchronized int nextMissingChunk(int fromIndex) {
+        return Math.min(presence.nextClearBit(fromIndex), getChunkCount());
+    }
+
+    /***
+     * Stores a chunk, it replaces the present one if any.
+     *
+     * @param index
+     * @param data  content of the chunk, exactly {@link #getChunkLength(int)} bytes are taken.
+     * @throws IOException
+     */
+    public void writeChunk(int index, byte[] data) throws IOException {
+        int chunkLength = getChunkLength(index);
+        if (data.length < chunkLength) {
+            throw new IllegalArgumentException("Chunk " + index + " needs " + chunkLength + " bytes");
+        }
+
+        File chunk = new File(dir, Integer.toString(index));
+        File tmp = new File(dir, index + TEMP_FILE_POSTFIX);
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(data, 0, chunkLength);
+        } finally {
+            out.close();
+        }
+
+        boolean added;
+        synchronized (this) {
+            if (removed || !tmp.renameTo(chunk)) {
+                tmp.delete();
+                return;
+            }
+            added = !presence.get(index);
+            presence.set(index);
+            accessTimes[index] = System.currentTimeMillis();
+            savePresence();
+        }
+        if (added) {
+            cache.onChunkAdded(chunkLength);
+        }
+    }
+
+    /***
+     * Reads from a present chunk.
+     *
+     * @return number of the bytes read, or -1 if the chunk is not present
+     */
+    public int readChunk(int index, int chunkOffset, byte[] buffer, int bufferOffset, int len) throws IOException {
+        len = Math.min(len, getChunkLength(index) - chunkOffset);
+
+        // the file is read with the lock held, so the chunk can't be evicted in between
+        synchronized (this) {
+            if (!presence.get(index)) {
+                return -1;
+            }
+
+            File chunk = new File(dir, Integer.toString(index));
+            RandomAccessFile raf;
+            try {
+                raf = new RandomAccessFile(chunk, "r");
+            } catch (IOException e) {
+                // removed behind our back
+                presence.clear(index);
+                savePresence();
+                cache.onChunkRemoved(getChunkLength(index));
+                return -1;
+            }
+            try {
+                raf.seek(chunkOffset);
+                raf.readFully(buffer, bufferOffset, len);
+            } finally {
+                raf.close();
+            }
+            accessTimes[index] = System.currentTimeMillis();
+        }
+        return len;
+    }
+
+    synchronized long getAccessTime(int index) {
+        return accessTimes[index];
+    }
+
+    synchronized BitSet getPresence() {
+        return (BitSet) presence.clone();
+    }
+
+    /***
+     * Evicts a chunk if it's not touched since the given time
+     *
+     * @return number of the bytes freed
+     */
+    synchronized int evictChunk(int index, long accessTime) {
+        if (!presence.get(index) || accessTimes[index] != accessTime) {
+            return 0;
+        }
+        presence.clear(index);
+        savePresence();
+        new File(dir, Integer.toString(index)).delete();
+        return getChunkLength(index);
+    }
+
+    /***
+     * Deletes the whole entry
+     *
+     * @return number of the bytes freed
+     */
+    synchronized long remove() {
+        long freed = 0;
+        for (int i = presence.nextSetBit(0); i >= 0; i = presence.nextSetBit(i + 1)) {
+            freed += getChunkLength(i);
+        }
+        presence.clear();
+        removed = true;
+
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+        return freed;
+    }
+
+    synchronized long getPresentByteCount() {
+        long size = 0;
+        for (int i = presence.nextSetBit(0); i >= 0; i = presence.nextSetBit(i + 1)) {
+            size += getChunkLength(i);
+        }
+        return size;
+    }
+
+    // a lost update only makes chunks look missing, which costs a refetch
+    private void savePresence() {
+        File file = new File(dir, PRESENCE_FILE_NAME);
+        File tmp = new File(dir, PRESENCE_FILE_NAME + TEMP_FILE_POSTFIX);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(presence.toByteArray());
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            tmp.delete();
+        } finally {
+            IOUtils.closeSilently(out);
+        }
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.download.cache;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.rayworks.network.util.EFLogger;
+import org.rayworks.network.util.FileNameGenerator;
+import org.rayworks.network.util.HashFileNameGenerator;
+import org.rayworks.network.util.MemoizingFileNameGenerator;
+
+/**
+ * Cache of sparse resources, each of them is a {@link ChunkedEntry} of which only the chunks ever read are stored.
+ * It suits the huge resources used piecemeal, e.g. the index of an archive or the seek points of a video, together
+ * with {@link org.rayworks.network.download.RangeReader} which fetches the missing chunks.
+ * <p>
+ * The limitation applies to the chunks: the least recently read chunks are evicted one by one, so a cold part of a
+ * huge entry goes away without dropping the rest of it. An entry is deleted once it has no chunk left.
+ * It should have its own directory, not shared with a {@link DiskFileCache}.
+ * </p>
+ */
+public class ChunkedFileCache {
+    public static final String TAG = ChunkedFileCache.class.getSimpleName();
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024; // 256 Kb
+
+    private final File root;
+    private final Executor executor;
+    private final DiskFileCache.Limits limits;
+    private final int chunkSize;
+    private final FileNameGenerator fileNameGenerator = new MemoizingFileNameGenerator(new HashFileNameGenerator(), 64);
+
+    private final ConcurrentMap<String, ChunkedEntry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong byteCount = new AtomicLong();
+    private final AtomicLong chunkCount = new AtomicLong();
+    private final Object lock = new Object();
+    private volatile boolean loaded;
+    private boolean isTrimPending;
+
+    /***
+     * @param rootDir   cache root directory
+     * @param executor  Executor for background operation
+     * @param limits    byte and chunk count limitation
+     * @param chunkSize size of the chunks of the new entries
+     */
+    public ChunkedFileCache(File rootDir, Executor executor, DiskFileCache.Limits limits, int chunkSize) {
+        checkArgument(chunkSize >= 1024, "chunkSize should be at least 1 KB");
+        root = rootDir;
+        this.executor = executor;
+        this.limits = limits;
+        this.chunkSize = chunkSize;
+    }
+
+    public ChunkedFileCache(File rootDir, Executor executor, DiskFileCache.Limits limits) {
+        this(rootDir, executor, limits, DEFAULT_CHUNK_SIZE);
+    }
+
+    /***
+     * @return size of the chunks of the new entries
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /***
+     * @param fileUri
+     * @return the entry or null if nothing of the resource is stored
+     */
+    public ChunkedEntry getEntry(String fileUri) {
+        ensureLoaded();
+        return entries.get(getEntryName(fileUri));
+    }
+
+    /***
+     * Starts a new entry, an existing one of the same resource is dropped, e.g. when the resource has changed.
+     *
+     * @param fileUri
+     * @param length    length of the whole resource
+     * @param validator ETag or Last-Modified of the resource, null-ok
+     * @return the empty entry
+     * @throws IOException
+     */
+    public ChunkedEntry createEntry(String fileUri, long length, String validator) throws IOException {
+        checkArgument(length >= 0, "length should not be negative");
+        ensureLoaded();
+
+        String name = getEntryName(fileUri);
+        synchronized (lock) {
+            ChunkedEntry old = entries.remove(name);
+            if (old != null) {
+                onEntryRemoved(old);
+            }
+            ChunkedEntry entry = ChunkedEntry.create(this, new File(root, name), length, chunkSize, validator);
+            entries.put(name, entry);
+            return entry;
+        }
+    }
+
+    public void removeByKey(String fileUri) {
+        ensureLoaded();
+        ChunkedEntry entry = entries.remove(getEntryName(fileUri));
+        if (entry != null) {
+            onEntryRemoved(entry);
+        }
+    }
+
+    public void clearAll() {
+        ensureLoaded();
+        for (String name : new ArrayList<>(entries.keySet())) {
+            ChunkedEntry entry = entries.remove(name);
+            if (entry != null) {
+                onEntryRemoved(entry);
+            }
+        }
+    }
+
+    /***
+     * @return size of the stored chunks
+     */
+    public long getByteCount() {
+        ensureLoaded();
+        return byteCount.get();
+    }
+
+    void onChunkAdded(int length) {
+        long bytes = byteCount.addAndGet(length);
+        long chunks = chunkCount.incrementAndGet();
+        if (bytes > limits.getByteCount() || chunks > limits.getFileCount()) {
+            postTrim();
+        }
+    }
+
+    void onChunkRemoved(int length) {
+        byteCount.addAndGet(-length);
+        chunkCount.decrementAndGet();
+    }
+
+    private void onEntryRemoved(ChunkedEntry entry) {
+        int chunks = entry.getPresentChunkCount();
+        long freed = entry.remove();
+        byteCount.addAndGet(-freed);
+        chunkCount.addAndGet(-chunks);
+    }
+
+    private String getEntryName(String fileUri) {
+        return fileNameGenerator.generate(fileUri) + ChunkedEntry.DIRECTORY_POSTFIX;
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        synchronized (lock) {
+            if (loaded) {
+                return;
+            }
+            File[] dirs = root.listFiles();
+            if (dirs != null) {
+                for (File dir : dirs) {
+                    if (!dir.getName().endsWith(ChunkedEntry.DIRECTORY_POSTFIX)) {
+                        continue;
+                    }
+                    ChunkedEntry entry = ChunkedEntry.load(this, dir);
+                    if (entry == null) {
+                        EFLogger.d(TAG, "dropping broken entry " + dir.getName());
+                        File[] files = dir.listFiles();
+                        if (files != null) {
+                            for (File file : files) {
+                                file.delete();
+                            }
+                        }
+                        dir.delete();
+                        continue;
+                    }
+                    entries.put(dir.getName(), entry);
+                    byteCount.addAndGet(entry.getPresentByteCount());
+                    chunkCount.addAndGet(entry.getPresentChunkCount());
+                }
+            }
+            loaded = true;
+        }
+    }
+
+    private void postTrim() {
+        synchronized (lock) {
+            if (!isTrimPending) {
+                isTrimPending = true;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        trim();
+                    }
+                });
+            }
+        }
+    }
+
+    private void trim() {
+        synchronized (lock) {
+            isTrimPending = false;
+        }
+
+        EFLogger.d(TAG, "trim started");
+        List<ChunkRef> chunks = new ArrayList<>();
+        for (ChunkedEntry entry : entries.values()) {
+            BitSet presence = entry.getPresence();
+            for (int i = presence.nextSetBit(0); i >= 0; i = presence.nextSetBit(i + 1)) {
+                chunks.add(new ChunkRef(entry, i, entry.getAccessTime(i)));
+            }
+        }
+        Collections.sort(chunks);
+
+        Set<ChunkedEntry> shrunk = new HashSet<>();
+        for (ChunkRef chunk : chunks) {
+            if (byteCount.get() <= limits.getByteCount() && chunkCount.get() <= limits.getFileCount()) {
+                break;
+            }
+            int freed = chunk.entry.evictChunk(chunk.index, chunk.accessTime);
+            if (freed > 0) {
+                onChunkRemoved(freed);
+                shrunk.add(chunk.entry);
+                EFLogger.d(TAG, "  trim removing chunk " + chunk.index + " of " + chunk.entry.getDirectory().getName());
+            }
+        }
+
+        // the entries left without any chunk, the new ones which have none yet are kept
+        synchronized (lock) {
+            for (ChunkedEntry entry : shrunk) {
+                String name = entry.getDirectory().getName();
+                if (entry.getPresentChunkCount() == 0 && entries.remove(name, entry)) {
+                    onEntryRemoved(entry);
+                }
+            }
+        }
+    }
+
+    private static final class ChunkRef implements Comparable<ChunkRef> {
+        final ChunkedEntry entry;
+        final int index;
+        final long accessTime;
+
+        ChunkRef(ChunkedEntry entry, int index, long accessTime) {
+            this.entry = entry;
+            this.index = index;
+            this.accessTime = accessTime;
+        }
+
+        @Override
+        public int compareTo(ChunkRef another) {
+            return accessTime < another.accessTime ? -1 : (accessTime == another.accessTime ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.download.cache;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Compresses textual content, e.g. JSON, SVG and plain text.
+ * Everything else, including the formats which are compressed already (images, archives, media), is kept as is.
+ */
+public class ContentTypeCompressionPolicy implements CompressionPolicy {
+
+    public static final String[] DEFAULT_TYPES = {
+            "text/*",
+            "application/json",
+            "application/xml",
+            "application/javascript",
+            "application/x-javascript",
+            "image/svg+xml"
+    };
+
+    private final Set<String> types = new HashSet<>();
+
+    public ContentTypeCompressionPolicy() {
+        this(DEFAULT_TYPES);
+    }
+
+    /**
+     * @param contentTypes compressible types, a "major/*" wildcard matches all the subtypes.
+     */
+    public ContentTypeCompressionPolicy(String... contentTypes) {
+        for (String type : Arrays.asList(contentTypes)) {
+            types.add(type.toLowerCase(Locale.US));
+        }
+    }
+
+    @Override
+    public boolean shouldCompress(String remoteFileUri, String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+
+        // drop the parameters, e.g. "text/html; charset=utf-8"
+        String type = contentType;
+        int index = type.indexOf(';');
+        if (index >= 0) {
+            type = type.substring(0, index);
+        }
+        type = type.trim().toLowerCase(Locale.US);
+
+        if (types.contains(type)) {
+            return true;
+        }
+
+        index = type.indexOf('/');
+        return index > 0 && types.contains(type.substring(0, index) + "/*");
+    }
+}
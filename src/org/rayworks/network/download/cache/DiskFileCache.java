@@ -18,18 +18,36 @@ package org.rayworks.network.download.cache;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
+import java.util.zip.GZIPInputStream;
 
+import org.rayworks.network.download.exception.ChecksumMismatchException;
 import org.rayworks.network.util.EFLogger;
 import org.rayworks.network.util.FileNameGenerator;
+import org.rayworks.network.util.HashFileNameGenerator;
 import org.rayworks.network.util.IOUtils;
 import org.rayworks.network.util.Md5FileNameGenerator;
+import org.rayworks.network.util.MemoizingFileNameGenerator;
+import org.rayworks.network.util.StreamingDigest;
 
 /**
  * Created by seanzhou on 12/25/14.
@@ -38,9 +56,26 @@ public class DiskFileCache implements BaseCache {
     public static final String TAG = DiskFileCache.class.getSimpleName();
 
     private File root;
-    private long totalCachedSize = 0;
+    private volatile long totalCachedSize = 0;
+    private volatile long logicalCachedSize = 0;
+    private volatile long pinnedCachedSize = 0;
+    private volatile long inFlightCachedSize = 0;
     public static final int DEFAULT_BUFFER_SIZE = 32 * 1024; // 32 Kb
     public static final String TEMP_FILE_POSTFIX = ".download";
+    public static final String COMPRESSED_FILE_POSTFIX = ".gz";
+
+    /***
+     * The inflated copies of the compressed entries handed out by {@link #getFile(String)}, they end with the
+     * postfix of the partial downloads so they are never taken as entries
+     */
+    public static final String INFLATED_FILE_POSTFIX = ".inflated" + TEMP_FILE_POSTFIX;
+
+    /***
+     * An abandoned partial download which is not touched for such a long time gets removed by trim
+     */
+    public static final long STALE_TEMP_FILE_AGE = 7 * 24 * 60 * 60 * 1000L; // 7 days
+
+    private static final int FILE_NAME_CACHE_SIZE = 256;
 
     private final Executor executor;
     private Object lock = new Object();
@@ -49,12 +84,27 @@ public class DiskFileCache implements BaseCache {
 
     private Limits limits;
 
+    private volatile CompressionPolicy compressionPolicy;
+
+    private final List<CachePartition> partitions = new CopyOnWriteArrayList<>();
+    private final PartitionIndex partitionIndex;
+    private final LeaseRegistry leases = new LeaseRegistry();
+    private final MembershipIndex membershipIndex = new MembershipIndex();
+    private final ProgressRegistry progressRegistry = new ProgressRegistry();
+    private final Object membershipLock = new Object();
+
     interface CacheRemovalListener{
         void onRemoveStarted();
         void onRemoveComplete();
     }
 
-    private FileNameGenerator fileNameGenerator = new Md5FileNameGenerator();
+    private volatile FileNameGenerator fileNameGenerator =
+            new MemoizingFileNameGenerator(new HashFileNameGenerator(), FILE_NAME_CACHE_SIZE);
+    private volatile FileNameGenerator legacyFileNameGenerator = new Md5FileNameGenerator();
+
+    private final Object legacyLock = new Object();
+    private volatile Set<String> legacyNames; // null until the cache directory is scanned
+
     /***
      * Constructor
      * @param rootDir   cache root directory
@@ -66,6 +116,7 @@ public class DiskFileCache implements BaseCache {
         this.executor = executor;
 
         this.limits = limits;
+        partitionIndex = new PartitionIndex(rootDir);
     }
 
     /***
@@ -82,14 +133,160 @@ public class DiskFileCache implements BaseCache {
         return root;
     }
 
+    /**
+     * Returns file of cached resource, which always holds the original bytes. An entry compressed at rest stays
+     * compressed, the caller gets its own inflated copy instead, which it should delete once it's done with it.
+     * A copy left behind is counted as in-flight bytes and removed by the trim like an abandoned partial download,
+     * so the readers which only need the content should use {@link #openStream(String)} instead.
+     */
     @Override
     public File getFile(String fileUri) {
-        return getCacheFile(fileUri);
+        File file = getCacheFile(fileUri);
+        if (!file.exists()) {
+            File compressed = getCompressedFile(file);
+            if (compressed.exists()) {
+                File copy = inflateCopy(compressed, file);
+                if (copy != null) {
+                    return copy;
+                }
+            }
+        }
+        return file;
     }
 
+    // the file of the entry as it's stored, either the plain or the compressed one
+    private File getStoredFile(String fileUri) {
+        File file = getCacheFile(fileUri);
+        if (!file.exists()) {
+            File compressed = getCompressedFile(file);
+            if (compressed.exists()) {
+                return compressed;
+            }
+        }
+        return file;
+    }
+
+    private File inflateCopy(File compressed, File cacheFile) {
+        CacheLease lease = new CacheLease(leases, compressed); // not to be evicted while it's read
+        File copy = null;
+        InputStream input = null;
+        OutputStream output = null;
+        try {
+            if (!compressed.exists()) {
+                return null;
+            }
+            copy = File.createTempFile(cacheFile.getName(), INFLATED_FILE_POSTFIX, root);
+            input = new GZIPInputStream(new FileInputStream(compressed), DEFAULT_BUFFER_SIZE);
+            output = new BufferedOutputStream(new FileOutputStream(copy), DEFAULT_BUFFER_SIZE);
+            IOUtils.copyStream(input, output, null, DEFAULT_BUFFER_SIZE, 0L);
+            output.close();
+            output = null;
+
+            EFLogger.d(TAG, "entry inflated to " + copy.getName());
+            File result = copy;
+            copy = null;
+            return result;
+        } catch (IOException e) {
+            EFLogger.d(TAG, "Failed to inflate " + compressed.getName(), e);
+            return null;
+        } finally {
+            IOUtils.closeSilently(input);
+            IOUtils.closeSilently(output);
+            if (copy != null) {
+                copy.delete();
+            }
+            lease.release();
+        }
+    }
+
+    /**
+     * Checks the in-memory index first, so a miss usually costs no I/O.
+     */
     @Override
     public boolean existFile(String fileUri) {
-        return getCacheFile(fileUri).exists();
+        return exists(getCacheFile(fileUri));
+    }
+
+    @Override
+    public BitSet existFiles(Collection<String> fileUris) {
+        BitSet cached = new BitSet(fileUris.size());
+        int i = 0;
+        for (String fileUri : fileUris) {
+            if (exists(getCacheFile(fileUri))) {
+                cached.set(i);
+            }
+            i++;
+        }
+        return cached;
+    }
+
+    private boolean exists(File cacheFile) {
+        ensureMembershipIndex();
+        if (!membershipIndex.mightContain(cacheFile.getName())) {
+            return false;
+        }
+        return cacheFile.exists() || getCompressedFile(cacheFile).exists();
+    }
+
+    private void ensureMembershipIndex() {
+        if (membershipIndex.isReady()) {
+            return;
+        }
+        synchronized (membershipLock) {
+            if (membershipIndex.isReady()) {
+                return;
+            }
+            MembershipIndex.Rebuild rebuild = membershipIndex.beginRebuild();
+            List<String> names = new ArrayList<>();
+            File[] files = root.listFiles();
+            if (files == null) { // not readable for now, the lookups fall back to the file system
+                membershipIndex.abandonRebuild(rebuild);
+                return;
+            }
+            for (File file : files) {
+                if (!PartitionIndex.isIndexFile(file) && !file.getName().endsWith(TEMP_FILE_POSTFIX)) {
+                    names.add(file.getName());
+                }
+            }
+            membershipIndex.finishRebuild(rebuild, names);
+        }
+    }
+
+    @Override
+    public InputStream openStream(String fileUri) throws IOException {
+        File file = getStoredFile(fileUri);
+        InputStream input = new FileInputStream(file);
+        if (isCompressedFile(file)) {
+            return new GZIPInputStream(input, DEFAULT_BUFFER_SIZE);
+        }
+        return input;
+    }
+
+    @Override
+    public InputStream openProgressiveStream(String fileUri, long timeoutMillis) throws IOException {
+        if (existFile(fileUri)) {
+            return openStream(fileUri);
+        }
+
+        File cacheFile = getCacheFile(fileUri);
+        ProgressRegistry.Entry entry = progressRegistry.acquire(cacheFile.getName(),
+                new File(cacheFile.getAbsoluteFile() + TEMP_FILE_POSTFIX));
+        if (existFile(fileUri)) { // committed right before the entry was created
+            progressRegistry.release(entry);
+            return openStream(fileUri);
+        }
+        return new ProgressiveInputStream(this, fileUri, progressRegistry, entry, timeoutMillis);
+    }
+
+    @Override
+    public CacheLease acquire(String fileUri) {
+        File file = getStoredFile(fileUri);
+        CacheLease lease = new CacheLease(leases, file);
+        if (!file.exists()) { // evicted before it got pinned
+            lease.release();
+            return null;
+        }
+        return lease;
     }
 
     @Override
@@ -98,16 +295,130 @@ public class DiskFileCache implements BaseCache {
         return new File(file.getAbsoluteFile() + TEMP_FILE_POSTFIX);
     }
 
+    /***
+     * Changes the naming of the cache files, it should be called before the cache is used.
+     *
+     * @param fileNameGenerator
+     */
+    public void setFileNameGenerator(FileNameGenerator fileNameGenerator) {
+        this.fileNameGenerator = fileNameGenerator;
+    }
+
+    /***
+     * Sets the naming of the files left by an earlier version, {@link Md5FileNameGenerator} by default.
+     * <p>
+     * The cache directory is scanned once for the names which don't have the width of the current names, and such an
+     * entry is renamed when its URI is looked up the next time. The entries which are never looked up again are
+     * evicted by trim as usual. Once all of them are gone a lookup doesn't pay for the legacy name any more.
+     * </p>
+     *
+     * @param legacyFileNameGenerator null-ok, null disables the migration, e.g. for a new cache directory.
+     */
+    public void setLegacyFileNameGenerator(FileNameGenerator legacyFileNameGenerator) {
+        synchronized (legacyLock) {
+            this.legacyFileNameGenerator = legacyFileNameGenerator;
+            legacyNames = null;
+        }
+    }
+
+    /***
+     * Enables compression at rest for the entries chosen by the policy
+     * @param compressionPolicy null-ok, null disables the compression for new entries.
+     */
+    public void setCompressionPolicy(CompressionPolicy compressionPolicy) {
+        this.compressionPolicy = compressionPolicy;
+    }
+
+    /***
+     * Registers a partition, the entries saved with its name are limited and evicted on their own.
+     * The limitation of the whole cache still applies on top of all the partitions.
+     *
+     * @param partition
+     */
+    public void addPartition(CachePartition partition) {
+        if (getPartition(partition.getName()) != null) {
+            throw new IllegalArgumentException("Partition exists: " + partition.getName());
+        }
+        partitions.add(partition);
+    }
+
+    /***
+     * @param name
+     * @return the partition or null if it's not registered
+     */
+    public CachePartition getPartition(String name) {
+        for (CachePartition partition : partitions) {
+            if (partition.getName().equals(name)) {
+                return partition;
+            }
+        }
+        return null;
+    }
+
+    /***
+     * @return size of the cached entries on disk, it's refreshed after each trim.
+     */
+    public long getPhysicalByteCount() {
+        return totalCachedSize;
+    }
+
+    /***
+     * @return size of the cached entries before compression, it's refreshed after each trim.
+     */
+    public long getLogicalByteCount() {
+        return logicalCachedSize;
+    }
+
+    /***
+     * @return size of the cached entries held by a {@link CacheLease}, which can't be evicted.
+     * It's refreshed after each trim.
+     */
+    public long getPinnedByteCount() {
+        return pinnedCachedSize;
+    }
+
+    /***
+     * @return size of the partial downloads, which are not counted as cached entries.
+     * It's refreshed after each trim.
+     */
+    public long getInFlightByteCount() {
+        return inFlightCachedSize;
+    }
+
     @Override
     public boolean save(String remoteFileUri, InputStream inputStream, int totalLength, IOUtils.CopyListener listener) throws IOException {
+        return save(remoteFileUri, inputStream, (long) totalLength, listener, null);
+    }
+
+    @Override
+    public boolean save(String remoteFileUri, InputStream inputStream, long totalLength, IOUtils.CopyListener listener,
+                        SaveOptions options) throws IOException {
         File cacheFile = getCacheFile(remoteFileUri);
         File tmpFile = new File(cacheFile.getAbsoluteFile() + TEMP_FILE_POSTFIX);
+        ProgressRegistry.Entry progress = progressRegistry.acquire(cacheFile.getName(), tmpFile);
+
+        // A compressed entry is written to its own temp file which is never resumed, since the offset of a
+        // partial download can't be derived from its length.
+        boolean compressed = shouldCompress(remoteFileUri, options, tmpFile);
+        if (compressed) {
+            cacheFile = getCompressedFile(cacheFile);
+            tmpFile = new File(cacheFile.getAbsoluteFile() + TEMP_FILE_POSTFIX);
+        }
+
+        StreamingDigest digest = options == null ? null : options.getDigest();
+        String expectedDigest = options == null ? null : options.getExpectedDigest();
+        String mismatchedDigest = null;
 
-        int total = 0;
+        long total = 0;
+        long written = compressed ? 0 : tmpFile.length();
         boolean loaded;
         boolean readingMode = true;
+        CacheLease writerLease = new CacheLease(leases, tmpFile);
+        progress.beginWrite(tmpFile, written, !compressed);
         try {
-            OutputStream fos = new BufferedOutputStream(new FileOutputStream(tmpFile, true), DEFAULT_BUFFER_SIZE); // appendable
+            OutputStream fos = compressed ?
+                    new SizedGzipOutputStream(tmpFile, DEFAULT_BUFFER_SIZE) :
+                    new BufferedOutputStream(new FileOutputStream(tmpFile, true), DEFAULT_BUFFER_SIZE); // appendable
             byte[] buf = new byte[DEFAULT_BUFFER_SIZE];
 
             int readCnt = 0;
@@ -116,43 +427,234 @@ public class DiskFileCache implements BaseCache {
                 total = totalLength; //inputStream.available();// not reliable?!
                 while (readingMode && (readCnt = inputStream.read(buf)) != -1) {
                     fos.write(buf, 0, readCnt);
-                    fos.flush();
+                    if (!compressed) {
+                        fos.flush();
+                    }
+                    written += readCnt;
+                    if (!compressed) {
+                        progress.advance(written);
+                    }
+
+                    // hash the bytes right after they reached the file, so no second pass is needed
+                    if (digest != null) {
+                        digest.update(buf, 0, readCnt);
+                    }
 
                     if (listener != null) { // to calculate the total progress, including the existed part
-                        readingMode = listener.onBytesCopied((int) tmpFile.length(), total);
+                        readingMode = listener.onBytesCopied(written, total);
                     }
                 }
+
+                if (compressed && readingMode) {
+                    fos.close(); // writes the gzip trailer and the length, the failure must not be ignored
+                }
             }finally {
                 IOUtils.closeSilently(fos);
             }
 
         }finally {
 
-            loaded = total == tmpFile.length();
+            loaded = compressed ? total == written : total == tmpFile.length();
+            if (readingMode && loaded) {
+                mismatchedDigest = verifyDigest(remoteFileUri, tmpFile, digest, expectedDigest);
+                loaded = mismatchedDigest == null;
+            }
+
             if(readingMode && loaded){
-                if(!tmpFile.renameTo(cacheFile)){
-                    loaded = false;
-                    tmpFile.setLastModified(System.currentTimeMillis());
-                }else{
-                    cacheFile.setLastModified(System.currentTimeMillis());
-                    EFLogger.d("", "file renamed successful dest file# " + cacheFile.getName());
-
-                    // The following logic modified from com.facebook.internal.FileLruCache
-                    // TODO: the recursive delete action needs to be considered
-
-                    // However, it does not need to be synchronized, since in the race we will just start an unnecessary trim
-                    // operation.  Avoiding the cost of holding the lock across the file operation seems worth this cost.
-                    postTrim();
-                }
+                loaded = moveIntoCache(tmpFile, cacheFile, options);
+            }
+
+            if (compressed && !loaded) {
+                tmpFile.delete();
             }
+            writerLease.release();
+            progress.endWrite(readingMode && loaded);
+            progressRegistry.release(progress);
         }
 
+        if (mismatchedDigest != null) {
+            throw new ChecksumMismatchException(expectedDigest, mismatchedDigest);
+        }
         return loaded;
     }
 
+    @Override
+    public boolean commitTempFile(String remoteFileUri, long totalLength, SaveOptions options) throws IOException {
+        File cacheFile = getCacheFile(remoteFileUri);
+        File tmpFile = new File(cacheFile.getAbsoluteFile() + TEMP_FILE_POSTFIX);
+        if (tmpFile.length() != totalLength) {
+            return false;
+        }
+
+        String expectedDigest = options == null ? null : options.getExpectedDigest();
+        String mismatchedDigest = verifyDigest(remoteFileUri, tmpFile, options == null ? null : options.getDigest(),
+                expectedDigest);
+        if (mismatchedDigest != null) {
+            throw new ChecksumMismatchException(expectedDigest, mismatchedDigest);
+        }
+        return moveIntoCache(tmpFile, cacheFile, options);
+    }
+
+    /***
+     * @return the actual digest if it doesn't match, the temp file is dropped then; null otherwise
+     */
+    private static String verifyDigest(String remoteFileUri, File tmpFile, StreamingDigest digest,
+                                       String expectedDigest) {
+        if (digest == null || expectedDigest == null) {
+            return null;
+        }
+        String actualDigest = digest.digestHex();
+        if (actualDigest.equalsIgnoreCase(expectedDigest)) {
+            return null;
+        }
+        // the content is broken, e.g. a resumed download appended to a stale partial file
+        EFLogger.w(TAG, "digest mismatch for " + remoteFileUri + ", drop the temp file");
+        tmpFile.delete();
+        return actualDigest;
+    }
+
+    private boolean moveIntoCache(File tmpFile, File cacheFile, SaveOptions options) {
+        if(!tmpFile.renameTo(cacheFile)){
+            tmpFile.setLastModified(System.currentTimeMillis());
+            return false;
+        }
+        cacheFile.setLastModified(System.currentTimeMillis());
+        EFLogger.d("", "file renamed successful dest file# " + cacheFile.getName());
+
+        partitionIndex.put(cacheFile.getName(), options == null ? null : options.getPartition());
+        membershipIndex.add(cacheFile.getName());
+
+        // The following logic modified from com.facebook.internal.FileLruCache
+        // TODO: the recursive delete action needs to be considered
+
+        // However, it does not need to be synchronized, since in the race we will just start an unnecessary trim
+        // operation.  Avoiding the cost of holding the lock across the file operation seems worth this cost.
+        postTrim();
+        return true;
+    }
+
+    private boolean shouldCompress(String remoteFileUri, SaveOptions options, File tmpFile) {
+        if (compressionPolicy == null || options == null) {
+            return false;
+        }
+        if (tmpFile.length() > 0) { // resuming a raw partial download
+            return false;
+        }
+
+        String encoding = options.getContentEncoding();
+        if (encoding != null && !encoding.equalsIgnoreCase("identity")) { // already compressed
+            return false;
+        }
+        return compressionPolicy.shouldCompress(remoteFileUri, options.getContentType());
+    }
+
+    private static File getCompressedFile(File cacheFile) {
+        return new File(cacheFile.getAbsoluteFile() + COMPRESSED_FILE_POSTFIX);
+    }
+
+    private static boolean isCompressedFile(File file) {
+        return file.getName().endsWith(COMPRESSED_FILE_POSTFIX);
+    }
+
+    private static long readLogicalLength(File file) {
+        try {
+            return SizedGzipOutputStream.readLength(file);
+        } catch (IOException e) {
+            return file.length();
+        }
+    }
+
     private File getCacheFile(String remoteFileUri) { // get the simple name of the remote file
         String realName = fileNameGenerator.generate(remoteFileUri); //remoteFileUri.substring(remoteFileUri.lastIndexOf("/") + 1);
-        return new File(root, realName);
+        File file = new File(root, realName);
+        if (legacyFileNameGenerator != null) {
+            migrateLegacyEntry(remoteFileUri, file);
+        }
+        return file;
+    }
+
+    private void migrateLegacyEntry(String remoteFileUri, File cacheFile) {
+        Set<String> names = legacyNames;
+        FileNameGenerator legacyGenerator;
+        synchronized (legacyLock) {
+            legacyGenerator = legacyFileNameGenerator;
+            if (legacyGenerator == null) {
+                return;
+            }
+            if (names == null) {
+                names = legacyNames = scanLegacyNames();
+            }
+        }
+        if (names.isEmpty()) {
+            return;
+        }
+
+        String legacyName = legacyGenerator.generate(remoteFileUri);
+        if (legacyName.equals(cacheFile.getName())) {
+            return;
+        }
+
+        String[] postfixes = {"", COMPRESSED_FILE_POSTFIX, TEMP_FILE_POSTFIX};
+        for (String postfix : postfixes) {
+            if (!names.remove(legacyName + postfix)) {
+                continue;
+            }
+
+            File legacyFile = new File(root, legacyName + postfix);
+            File target = new File(root, cacheFile.getName() + postfix);
+            if (!target.exists() && legacyFile.renameTo(target)) {
+                EFLogger.d(TAG, "legacy entry migrated: " + legacyFile.getName() + " -> " + target.getName());
+                if (!postfix.equals(TEMP_FILE_POSTFIX)) {
+                    membershipIndex.add(target.getName());
+                }
+                String partition = partitionIndex.get(legacyFile.getName());
+                if (partition != null) {
+                    partitionIndex.put(target.getName(), partition);
+                    partitionIndex.remove(legacyFile.getName());
+                }
+            }
+        }
+    }
+
+    // the legacy entries evicted by trim won't be migrated
+    private void forgetRemovedLegacyNames() {
+        Set<String> names = legacyNames;
+        if (names != null) {
+            for (String name : names) {
+                if (!new File(root, name).exists()) {
+                    names.remove(name);
+                }
+            }
+        }
+    }
+
+    // the legacy names are the ones of a different width, the width of the current naming is taken from a sample
+    private Set<String> scanLegacyNames() {
+        Set<String> names = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        int width = fileNameGenerator.generate("").length();
+
+        File[] files = root.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (PartitionIndex.isIndexFile(file)) {
+                    continue;
+                }
+
+                String baseName = name;
+                if (baseName.endsWith(TEMP_FILE_POSTFIX)) {
+                    baseName = baseName.substring(0, baseName.length() - TEMP_FILE_POSTFIX.length());
+                }
+                if (baseName.endsWith(COMPRESSED_FILE_POSTFIX)) {
+                    baseName = baseName.substring(0, baseName.length() - COMPRESSED_FILE_POSTFIX.length());
+                }
+                if (baseName.length() != width) {
+                    names.add(name);
+                }
+            }
+        }
+        EFLogger.d(TAG, "legacy entries found: " + names.size());
+        return names;
     }
 
     @Override
@@ -161,11 +663,18 @@ public class DiskFileCache implements BaseCache {
         if(file.exists()){
             file.delete();
         }
+        partitionIndex.remove(file.getName());
 
-        File tmp = getTempFile(key);
+        File tmp = new File(file.getAbsoluteFile() + TEMP_FILE_POSTFIX);
         if(tmp.exists()){
             tmp.delete();
         }
+
+        File compressed = getCompressedFile(file);
+        if (compressed.exists()) {
+            compressed.delete();
+        }
+        partitionIndex.remove(compressed.getName());
     }
 
     @Override
@@ -173,12 +682,20 @@ public class DiskFileCache implements BaseCache {
         executor.execute(new Runnable() {
             @Override
             public void run() {
+                MembershipIndex.Rebuild rebuild = membershipIndex.beginRebuild();
+                List<String> keptNames = new ArrayList<>();
                 File[] files = root.listFiles();
                 if (files != null) {
                     for (File f : files) {
-                        f.delete();
+                        if (!leases.deleteIfUnpinned(f) && !f.getName().endsWith(TEMP_FILE_POSTFIX)) {
+                            keptNames.add(f.getName());
+                        }
                     }
+                    membershipIndex.finishRebuild(rebuild, keptNames);
+                } else {
+                    membershipIndex.abandonRebuild(rebuild);
                 }
+                partitionIndex.clear();
             }
         });
     }
@@ -208,30 +725,88 @@ public class DiskFileCache implements BaseCache {
         }
         try {
             EFLogger.d(TAG, "trim started");
-            PriorityQueue<ModifiedFile> heap = new PriorityQueue<ModifiedFile>();
-            long size = 0;
-            long count = 0;
+            PartitionUsage defaultUsage = new PartitionUsage(null);
+            Map<String, PartitionUsage> usages = new HashMap<>();
+            for (CachePartition partition : partitions) {
+                usages.put(partition.getName(), new PartitionUsage(partition));
+            }
+
+            long pinnedSize = 0;
+            long inFlightSize = 0;
+            long now = System.currentTimeMillis();
+            MembershipIndex.Rebuild rebuild = membershipIndex.beginRebuild();
             File[] filesToTrim = this.root.listFiles();
             if (filesToTrim != null) {
                 for (File file : filesToTrim) {
+                    if (PartitionIndex.isIndexFile(file)) {
+                        continue;
+                    }
+
                     ModifiedFile modified = new ModifiedFile(file);
-                    heap.add(modified);
+                    if (file.getName().endsWith(TEMP_FILE_POSTFIX)) {
+                        // partial downloads are kept for resuming, unless they are abandoned
+                        if (now - modified.getModified() > STALE_TEMP_FILE_AGE && leases.deleteIfUnpinned(file)) {
+                            EFLogger.d(TAG, "  trim removing stale " + file.getName());
+                        } else {
+                            inFlightSize += modified.getLength();
+                        }
+                        continue;
+                    }
+
                     EFLogger.d(TAG, "  trim considering time=" + Long.valueOf(modified.getModified())
                             + " name=" + modified.getFile().getName());
 
-                    size += file.length();
-                    count++;
+                    boolean pinned = leases.isPinned(file.getName());
+                    if (pinned) {
+                        pinnedSize += modified.getLength();
+                    }
+
+                    PartitionUsage usage = usages.get(partitionIndex.get(file.getName()));
+                    (usage == null ? defaultUsage : usage).add(modified, !pinned);
                 }
             }
 
+            List<PartitionUsage> allUsages = new ArrayList<>(usages.values());
+            allUsages.add(defaultUsage);
+
+            trimPartitions(usages);
+
+            // the limitation applies to the bytes on disk, so compressed entries take less of the budget
+            long size = sumSize(allUsages);
+            long count = sumCount(allUsages);
             while ((size > limits.getByteCount()) || (count > limits.getFileCount())) {
-                File file = heap.remove().getFile();
-                EFLogger.d(TAG, "  trim removing " + file.getName());
-                size -= file.length();
-                count--;
-                file.delete();
-                EFLogger.d(TAG, "  after removing cache size:" + size);
+                PartitionUsage victim = pickVictim(allUsages);
+                if (victim == null) { // the rest are all pinned
+                    break;
+                }
+                ModifiedFile modified = victim.evict(leases);
+                if (modified != null) {
+                    EFLogger.d(TAG, "  trim removing " + modified.getFile().getName());
+                    size -= modified.getLength();
+                    count--;
+                    EFLogger.d(TAG, "  after removing cache size:" + size);
+                }
+            }
+
+            long logicalSize = 0;
+            Set<String> names = new HashSet<>();
+            for (PartitionUsage usage : allUsages) {
+                logicalSize += usage.logicalSize;
+                usage.publishStats();
+                names.addAll(usage.names);
+            }
+            totalCachedSize = size;
+            logicalCachedSize = logicalSize;
+            pinnedCachedSize = pinnedSize;
+            inFlightCachedSize = inFlightSize;
+
+            partitionIndex.compact(names);
+            if (filesToTrim != null) {
+                membershipIndex.finishRebuild(rebuild, names);
+            } else {
+                membershipIndex.abandonRebuild(rebuild);
             }
+            forgetRemovedLegacyNames();
         } finally {
             synchronized (lock) {
                 isTrimInProgress = false;
@@ -240,8 +815,149 @@ public class DiskFileCache implements BaseCache {
         }
     }
 
+    /***
+     * Keeps every partition within its own limitation, plus the quota it borrows from the others.
+     */
+    private void trimPartitions(Map<String, PartitionUsage> usages) {
+        long spareBytes = 0;
+        long spareFiles = 0;
+        for (CachePartition partition : partitions) {
+            PartitionUsage usage = usages.get(partition.getName());
+            spareBytes += Math.max(0, partition.getLimits().getByteCount() - usage.size);
+            spareFiles += Math.max(0, partition.getLimits().getFileCount() - usage.count);
+        }
+
+        for (CachePartition partition : partitions) {
+            PartitionUsage usage = usages.get(partition.getName());
+            long byteQuota = partition.getLimits().getByteCount();
+            long fileQuota = partition.getLimits().getFileCount();
+
+            while ((usage.size > byteQuota || usage.count > fileQuota) && !usage.heap.isEmpty()) {
+                long extraBytes = Math.max(0, usage.size - byteQuota);
+                long extraFiles = Math.max(0, usage.count - fileQuota);
+                if (partition.isBorrowingEnabled() && extraBytes <= spareBytes && extraFiles <= spareFiles) {
+                    spareBytes -= extraBytes;
+                    spareFiles -= extraFiles;
+                    EFLogger.d(TAG, "  partition " + partition.getName() + " borrows " + extraBytes + " bytes");
+                    break;
+                }
+
+                ModifiedFile modified = usage.evict(leases);
+                if (modified != null) {
+                    EFLogger.d(TAG, "  trim removing " + modified.getFile().getName() + " from " + partition.getName());
+                }
+            }
+        }
+    }
+
+    /***
+     * The borrowers give back first, otherwise the oldest file of the whole cache goes.
+     */
+    private static PartitionUsage pickVictim(List<PartitionUsage> usages) {
+        PartitionUsage oldest = null;
+        for (PartitionUsage usage : usages) {
+            if (usage.heap.isEmpty()) {
+                continue;
+            }
+            if (usage.isBorrowing()) {
+                return usage;
+            }
+            if (oldest == null || usage.heap.peek().getModified() < oldest.heap.peek().getModified()) {
+                oldest = usage;
+            }
+        }
+        return oldest;
+    }
+
+    private static long sumSize(List<PartitionUsage> usages) {
+        long size = 0;
+        for (PartitionUsage usage : usages) {
+            size += usage.size;
+        }
+        return size;
+    }
+
+    private static long sumCount(List<PartitionUsage> usages) {
+        long count = 0;
+        for (PartitionUsage usage : usages) {
+            count += usage.count;
+        }
+        return count;
+    }
+
+    private static final Comparator<ModifiedFile> LARGEST_FIRST = new Comparator<ModifiedFile>() {
+        @Override
+        public int compare(ModifiedFile lhs, ModifiedFile rhs) {
+            if (lhs.getLength() != rhs.getLength()) {
+                return lhs.getLength() > rhs.getLength() ? -1 : 1;
+            }
+            return lhs.compareTo(rhs);
+        }
+    };
+
+    // Files of one partition during a trim
+    private static final class PartitionUsage {
+        private final CachePartition partition;
+        private final PriorityQueue<ModifiedFile> heap;
+        private final Set<String> names = new HashSet<>();
+        private long size;
+        private long logicalSize;
+        private long count;
+        private long evicted;
+
+        PartitionUsage(CachePartition partition) {
+            this.partition = partition;
+            if (partition != null && partition.getEvictionPolicy() == EvictionPolicy.LARGEST_FIRST) {
+                heap = new PriorityQueue<>(11, LARGEST_FIRST);
+            } else {
+                heap = new PriorityQueue<>();
+            }
+        }
+
+        /***
+         * @param modified
+         * @param evictable <b>false</b> if the file is pinned, it's counted but never chosen for eviction.
+         */
+        void add(ModifiedFile modified, boolean evictable) {
+            if (evictable) {
+                heap.add(modified);
+            }
+            names.add(modified.getFile().getName());
+            size += modified.getLength();
+            logicalSize += modified.getLogicalLength();
+            count++;
+        }
+
+        /***
+         * @return the removed file or null if it got pinned in the meantime
+         */
+        ModifiedFile evict(LeaseRegistry leases) {
+            ModifiedFile modified = heap.remove();
+            if (!leases.deleteIfUnpinned(modified.getFile())) {
+                return null;
+            }
+            names.remove(modified.getFile().getName());
+            size -= modified.getLength();
+            logicalSize -= modified.getLogicalLength();
+            count--;
+            evicted++;
+            return modified;
+        }
+
+        boolean isBorrowing() {
+            return partition != null && (size > partition.getLimits().getByteCount()
+                    || count > partition.getLimits().getFileCount());
+        }
+
+        void publishStats() {
+            if (partition != null) {
+                partition.updateStats(size, count, Math.max(0, size - partition.getLimits().getByteCount()), evicted);
+            }
+        }
+    }
+
     public static final class Limits {
-        private int byteCount;
+        private long byteCount;
         private int fileCount;
 
         public Limits() {
@@ -259,15 +975,15 @@ public class DiskFileCache implements BaseCache {
         /**
          * Limitation for cache setting
          *
-         * @param byteLimitCnt
+         * @param byteLimitCnt byte count limitation, it can exceed 2 GB
          * @param sizeLimitCnt file count limitation; if it's 0, the value will be MAX_INT.
          */
-        public Limits(int byteLimitCnt, int sizeLimitCnt) {
+        public Limits(long byteLimitCnt, int sizeLimitCnt) {
             setByteCount(byteLimitCnt);
             setFileCount(sizeLimitCnt);
         }
 
-        int getByteCount() {
+        long getByteCount() {
             return byteCount;
         }
 
@@ -275,7 +991,7 @@ public class DiskFileCache implements BaseCache {
             return fileCount;
         }
 
-        void setByteCount(int n) {
+        void setByteCount(long n) {
             if (n < 0) {
                 throw new InvalidParameterException("Cache byte-count limit must be >= 0");
             }
@@ -300,10 +1016,22 @@ public class DiskFileCache implements BaseCache {
 
         private final File file;
         private final long modified;
+        private final long length;
+        private final long logicalLength;
 
         ModifiedFile(File file) {
             this.file = file;
             this.modified = file.lastModified();
+            this.length = file.length();
+            this.logicalLength = isCompressedFile(file) ? readLogicalLength(file) : length;
+        }
+
+        long getLength() {
+            return length;
+        }
+
+        long getLogicalLength() {
+            return logicalLength;
         }
 
         File getFile() {
@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.download.cache;
+
+/**
+ * The order in which the cached files are removed when a limitation is exceeded.
+ */
+public enum EvictionPolicy {
+    /**
+     * The least recently modified file goes first
+     */
+    OLDEST_FIRST,
+
+    /**
+     * The largest file goes first, which frees the space with fewer removals
+     */
+    LARGEST_FIRST
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.download.cache;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reference counts of the pinned files in a cache directory, keyed by file name.
+ * Deleting through {@link #deleteIfUnpinned(File)} is atomic with respect to pinning, so a file can't be removed
+ * right after someone pinned it.
+ */
+final class LeaseRegistry {
+    private final Map<String, Integer> counts = new HashMap<>();
+
+    synchronized void pin(String fileName) {
+        Integer count = counts.get(fileName);
+        counts.put(fileName, count == null ? 1 : count + 1);
+    }
+
+    synchronized void unpin(String fileName) {
+        Integer count = counts.get(fileName);
+        if (count == null) {
+            return;
+        }
+        if (count <= 1) {
+            counts.remove(fileName);
+        } else {
+            counts.put(fileName, count - 1);
+        }
+    }
+
+    synchronized boolean isPinned(String fileName) {
+        return counts.containsKey(fileName);
+    }
+
+    /***
+     * @param file
+     * @return <b>true</b> if the file was deleted
+     */
+    synchronized boolean deleteIfUnpinned(File file) {
+        return !counts.containsKey(file.getName()) && file.delete();
+    }
+}
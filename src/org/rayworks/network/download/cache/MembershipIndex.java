@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.download.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-memory index of the committed cache files, a Bloom filter over their names. It answers most of the misses
+ * without touching the disk: {@link #mightContain(String)} returning false means the file surely isn't there, while
+ * true still needs a check of the file system.
+ * <p>
+ * Bits can't be cleared, so the removed files only make the filter less useful until it's rebuilt from a listing of
+ * the cache directory, which happens on every trim. The names committed while a listing is being taken are logged
+ * and applied to the rebuilt filter, so they are never lost.
+ * </p>
+ * Lookups are lock free, the additions are serialized.
+ */
+final class MembershipIndex {
+    private static final int MIN_CAPACITY = 1024;
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+
+    private volatile Filter filter;
+    private final List<Rebuild> rebuilds = new ArrayList<>();
+
+    static final class Rebuild {
+        private final Set<String> addedNames = new HashSet<>();
+    }
+
+    /***
+     * @return whether the filter has been built, a lookup can't rely on it before.
+     */
+    boolean isReady() {
+        return filter != null;
+    }
+
+    /***
+     * @param fileName name of the cache file, a compressed file counts as its plain name.
+     * @return false if the file is surely not cached
+     */
+    boolean mightContain(String fileName) {
+        Filter current = filter;
+        return current == null || current.mightContain(baseName(fileName));
+    }
+
+    synchronized void add(String fileName) {
+        String name = baseName(fileName);
+        if (filter != null) {
+            filter.put(name);
+        }
+        for (Rebuild rebuild : rebuilds) {
+            rebuild.addedNames.add(name);
+        }
+    }
+
+    /***
+     * Starts logging the additions, it should be called before the cache directory is listed for
+     * {@link #finishRebuild(Rebuild, Collection)}.
+     */
+    synchronized Rebuild beginRebuild() {
+        Rebuild rebuild = new Rebuild();
+        rebuilds.add(rebuild);
+        return rebuild;
+    }
+
+    /***
+     * Replaces the filter with one of the listed names plus the ones added since {@link #beginRebuild()}.
+     *
+     * @param rebuild   returned by {@link #beginRebuild()}
+     * @param fileNames names of the committed files in the listing
+     */
+    void finishRebuild(Rebuild rebuild, Collection<String> fileNames) {
+        Filter rebuilt = new Filter(Math.max(MIN_CAPACITY, fileNames.size() * 2));
+        for (String fileName : fileNames) {
+            rebuilt.put(baseName(fileName));
+        }
+
+        synchronized (this) {
+            rebuilds.remove(rebuild);
+            for (String name : rebuild.addedNames) {
+                rebuilt.put(name);
+            }
+            filter = rebuilt;
+        }
+    }
+
+    /***
+     * Drops the rebuild, e.g. when the cache directory can't be listed.
+     *
+     * @param rebuild returned by {@link #beginRebuild()}
+     */
+    synchronized void abandonRebuild(Rebuild rebuild) {
+        rebuilds.remove(rebuild);
+    }
+
+    private static String baseName(String fileName) {
+        if (fileName.endsWith(DiskFileCache.COMPRESSED_FILE_POSTFIX)) {
+            return fileName.substring(0, fileName.length() - DiskFileCache.COMPRESSED_FILE_POSTFIX.length());
+        }
+        return fileName;
+    }
+
+    private static final class Filter {
+        private final AtomicLongArray bits;
+        private final long bitCount;
+        private final int hashCount;
+
+        Filter(int capacity) {
+            long size = (long) (-capacity * Math.log(FALSE_POSITIVE_RATE) / (Math.log(2) * Math.log(2)));
+            int words = (int) ((size + 63) / 64);
+            bits = new AtomicLongArray(words);
+            bitCount = words * 64L;
+            hashCount = Math.max(1, (int) Math.round((double) bitCount / capacity * Math.log(2)));
+        }
+
+        // only called with the lock of the index held, or before the filter is published
+        void put(String name) {
+            long hash = hash(name);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 1; i <= hashCount; i++) {
+                long index = probe(h1 + i * h2);
+                int word = (int) (index >>> 6);
+                bits.set(word, bits.get(word) | (1L << index));
+            }
+        }
+
+        boolean mightContain(String name) {
+            long hash = hash(name);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 1; i <= hashCount; i++) {
+                long index = probe(h1 + i * h2);
+                if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private long probe(int combined) {
+            return (combined & Integer.MAX_VALUE) % bitCount;
+        }
+
+        // FNV-1a over the chars, finished by the avalanche step of MurmurHash3
+        private static long hash(String name) {
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < name.length(); i++) {
+                h ^= name.charAt(i);
+                h *= 0x100000001b3L;
+            }
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.download.cache;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.rayworks.network.util.EFLogger;
+import org.rayworks.network.util.IOUtils;
+
+/**
+ * Remembers which partition a cached file belongs to. It lives in the cache directory as an append-only list of
+ * "file name TAB partition" lines, the later lines override the earlier ones and an empty partition means the default
+ * one. The list is rewritten by {@link #compact(Set)} once it contains too many outdated lines.
+ */
+final class PartitionIndex {
+    private static final String TAG = PartitionIndex.class.getSimpleName();
+    static final String INDEX_FILE_NAME = ".partitions";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File root;
+    private final File file;
+    private final Map<String, String> entries = new ConcurrentHashMap<>();
+    private volatile boolean loaded;
+    private int lineCount;
+
+    PartitionIndex(File root) {
+        this.root = root;
+        file = new File(root, INDEX_FILE_NAME);
+    }
+
+    static boolean isIndexFile(File file) {
+        return file.getName().startsWith(INDEX_FILE_NAME);
+    }
+
+    /***
+     * @param fileName
+     * @return name of the partition or null for the default one
+     */
+    String get(String fileName) {
+        ensureLoaded();
+        return entries.get(fileName);
+    }
+
+    synchronized void put(String fileName, String partition) {
+        ensureLoaded();
+        String old = partition == null ? entries.remove(fileName) : entries.put(fileName, partition);
+        if (old == null ? partition != null : !old.equals(partition)) {
+            append(fileName, partition);
+        }
+    }
+
+    synchronized void remove(String fileName) {
+        put(fileName, null);
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        lineCount = 0;
+        file.delete();
+    }
+
+    /***
+     * Drops the lines of the files which don't exist any more
+     * @param liveFileNames names of the files known to exist, e.g. listed by a trim. A file missing from it is
+     *                      checked again, it may have been committed after the listing.
+     */
+    synchronized void compact(Set<String> liveFileNames) {
+        ensureLoaded();
+        Iterator<String> iterator = entries.keySet().iterator();
+        while (iterator.hasNext()) {
+            String fileName = iterator.next();
+            if (!liveFileNames.contains(fileName) && !new File(root, fileName).exists()) {
+                iterator.remove();
+            }
+        }
+        if (lineCount <= entries.size() * 2 + 64) {
+            return;
+        }
+
+        File tmp = new File(file.getAbsolutePath() + DiskFileCache.TEMP_FILE_POSTFIX);
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), UTF_8));
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                writer.write(entry.getKey() + '\t' + entry.getValue() + '\n');
+            }
+            writer.close();
+            writer = null;
+
+            if (tmp.renameTo(file)) {
+                lineCount = entries.size();
+            }
+        } catch (IOException e) {
+            EFLogger.d(TAG, "Failed to compact the partition index", e);
+        } finally {
+            IOUtils.closeSilently(writer);
+            tmp.delete();
+        }
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
+            if (file.exists()) {
+                BufferedReader reader = null;
+                try {
+                    reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        int index = line.indexOf('\t');
+                        if (index <= 0) {
+                            continue;
+                        }
+                        lineCount++;
+                        String partition = line.substring(index + 1);
+                        if (partition.isEmpty()) {
+                            entries.remove(line.substring(0, index));
+                        } else {
+                            entries.put(line.substring(0, index), partition);
+                        }
+                    }
+                } catch (IOException e) {
+                    EFLogger.d(TAG, "Failed to load the partition index", e);
+                } finally {
+                    IOUtils.closeSilently(reader);
+                }
+            }
+            loaded = true;
+        }
+    }
+
+    private void append(String fileName, String partition) {
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(file, true), UTF_8);
+            writer.write(fileName + '\t' + (partition == null ? "" : partition) + '\n');
+            lineCount++;
+        } catch (IOException e) {
+            EFLogger.d(TAG, "Failed to update the partition index", e);
+        } finally {
+            IOUtils.closeSilently(writer);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.download.cache;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Progress of the temp files being written, keyed by the name of the cache file. It lets the readers of
+ * {@link ProgressiveInputStream} tail a download: the writer publishes how many bytes of the temp file are valid and
+ * wakes up the readers waiting for them.
+ * <p>
+ * An entry lives as long as a writer or a reader refers to it.
+ * </p>
+ */
+final class ProgressRegistry {
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    synchronized Entry acquire(String fileName, File tempFile) {
+        Entry entry = entries.get(fileName);
+        if (entry == null) {
+            entry = new Entry(fileName, tempFile);
+            entries.put(fileName, entry);
+        }
+        entry.refCount++;
+        return entry;
+    }
+
+    synchronized void release(Entry entry) {
+        if (--entry.refCount == 0) {
+            entries.remove(entry.fileName);
+        }
+    }
+
+    /**
+     * State of one entry, guarded by its own monitor which the readers wait on.
+     */
+    static final class Entry {
+        private final String fileName;
+        private int refCount; // guarded by the registry
+
+        File tempFile;
+        long available;
+        int session;
+        long sessionStart;
+        boolean writing;
+        boolean committed;
+
+        Entry(String fileName, File tempFile) {
+            this.fileName = fileName;
+            this.tempFile = tempFile;
+            // the bytes left by a paused download can be read before it's resumed
+            available = tempFile.length();
+        }
+
+        /***
+         * @param tempFile        file being written
+         * @param start           number of the bytes in it already, i.e. the resuming offset
+         * @param publishProgress false if the bytes written are not readable while writing, e.g. they're compressed
+         */
+        synchronized void beginWrite(File tempFile, long start, boolean publishProgress) {
+            this.tempFile = tempFile;
+            session++;
+            sessionStart = publishProgress ? start : 0;
+            available = publishProgress ? start : 0;
+            writing = true;
+            committed = false;
+            notifyAll();
+        }
+
+        synchronized void advance(long written) {
+            available = written;
+            notifyAll();
+        }
+
+        /***
+         * @param committed whether the temp file was renamed to the cache file
+         */
+        synchronized void endWrite(boolean committed) {
+            writing = false;
+            this.committed = committed;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.download.cache;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+
+import org.rayworks.network.util.IOUtils;
+
+/**
+ * Reads a resource while it's still being downloaded. It tails the temp file and blocks only when it catches up with
+ * the writer; once the download is committed it goes on with the cache file.
+ * <p>
+ * A download which fails and gets retried is waited for, as long as it resumes at or beyond the current position.
+ * A download restarting from an earlier offset fails the stream, since the bytes already read may be outdated.
+ * </p>
+ */
+final class ProgressiveInputStream extends InputStream {
+    private final DiskFileCache cache;
+    private final String fileUri;
+    private final ProgressRegistry registry;
+    private final ProgressRegistry.Entry entry;
+    private final long timeoutMillis;
+
+    private RandomAccessFile tempFile;
+    private int tempFileSession = -1;
+    private int checkedSession;
+    private long position;
+
+    private CacheLease lease;
+    private InputStream committedStream;
+    private boolean closed;
+
+    ProgressiveInputStream(DiskFileCache cache, String fileUri, ProgressRegistry registry,
+                           ProgressRegistry.Entry entry, long timeoutMillis) {
+        this.cache = cache;
+        this.fileUri = fileUri;
+        this.registry = registry;
+        this.entry = entry;
+        this.timeoutMillis = timeoutMillis;
+        synchronized (entry) {
+            checkedSession = entry.session;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        int n = read(one, 0, 1);
+        return n == -1 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (committedStream != null) {
+            return countRead(committedStream.read(b, off, len));
+        }
+
+        long available;
+        int session;
+        File file;
+        boolean committed;
+        synchronized (entry) {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (true) {
+                if (entry.session != checkedSession) {
+                    if (entry.sessionStart < position) {
+                        throw new IOException("The download of " + fileUri + " restarted from " + entry.sessionStart
+                                + ", " + position + " bytes were read");
+                    }
+                    checkedSession = entry.session;
+                }
+
+                committed = entry.committed;
+                available = entry.available;
+                session = entry.session;
+                file = entry.tempFile;
+                if (committed || available > position) {
+                    break;
+                }
+
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new InterruptedIOException("No progress of " + fileUri + " in " + timeoutMillis + " ms");
+                }
+                try {
+                    entry.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for " + fileUri);
+                }
+            }
+        }
+
+        if (committed) {
+            switchToCommittedFile();
+            return read(b, off, len);
+        }
+
+        if (tempFile == null || tempFileSession != session) {
+            IOUtils.closeSilently(tempFile);
+            tempFile = new RandomAccessFile(file, "r");
+            tempFileSession = session;
+        }
+        tempFile.seek(position);
+        int n = tempFile.read(b, off, (int) Math.min(len, available - position));
+        if (n <= 0) {
+            throw new IOException("The partial file of " + fileUri + " was truncated");
+        }
+        return countRead(n);
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (committedStream != null) {
+            return committedStream.available();
+        }
+        synchronized (entry) {
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(0, entry.available - position));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        IOUtils.closeSilently(tempFile);
+        IOUtils.closeSilently(committedStream);
+        if (lease != null) {
+            lease.release();
+        }
+        registry.release(entry);
+    }
+
+    private void switchToCommittedFile() throws IOException {
+        IOUtils.closeSilently(tempFile);
+        tempFile = null;
+
+        lease = cache.acquire(fileUri);
+        if (lease == null) {
+            throw new FileNotFoundException("The download of " + fileUri + " was evicted before it's read");
+        }
+        committedStream = cache.openStream(fileUri);
+
+        long skipped = 0;
+        while (skipped < position) {
+            long n = committedStream.skip(position - skipped);
+            if (n <= 0) {
+                throw new IOException("The cache file of " + fileUri + " is shorter than " + position);
+            }
+            skipped += n;
+        }
+    }
+
+    private int countRead(int n) {
+        if (n > 0) {
+            position += n;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.download.cache;
+
+import org.rayworks.network.util.StreamingDigest;
+
+/**
+ * Optional parameters for {@link BaseCache#save(String, java.io.InputStream, long,
+ * org.rayworks.network.util.IOUtils.CopyListener, SaveOptions)}.
+ */
+public class SaveOptions {
+    private StreamingDigest digest;
+    private String expectedDigest;
+    private String contentType;
+    private String contentEncoding;
+    private String partition;
+
+    /***
+     * Feeds every written byte to the digest and verifies the result before the file gets committed.
+     *
+     * @param digest         digest which already contains the existing part of the temp file
+     * @param expectedDigest expected hex value; if it's null, the digest is only computed.
+     * @return this
+     */
+    public SaveOptions setDigest(StreamingDigest digest, String expectedDigest) {
+        this.digest = digest;
+        this.expectedDigest = expectedDigest;
+        return this;
+    }
+
+    public StreamingDigest getDigest() {
+        return digest;
+    }
+
+    public String getExpectedDigest() {
+        return expectedDigest;
+    }
+
+    /***
+     * Describes the content, which helps the cache to decide whether the entry can be compressed at rest.
+     *
+     * @param contentType     Content-Type of the response, can be null
+     * @param contentEncoding Content-Encoding of the response, can be null
+     * @return this
+     */
+    public SaveOptions setContentType(String contentType, String contentEncoding) {
+        this.contentType = contentType;
+        this.contentEncoding = contentEncoding;
+        return this;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    /***
+     * Puts the entry into a partition registered by {@link DiskFileCache#addPartition(CachePartition)}.
+     *
+     * @param partition name of the partition; null or an unknown name goes to the default one.
+     * @return this
+     */
+    public SaveOptions setPartition(String partition) {
+        this.partition = partition;
+        return this;
+    }
+
+    public String getPartition() {
+        return partition;
+    }
+}
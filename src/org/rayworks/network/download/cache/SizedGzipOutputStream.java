@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rayworks.network.download.cache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a gzip file which records the length of the original content in an extra field of its header. Unlike the
+ * ISIZE of the gzip trailer, which is the length modulo 2^32, the field holds the full 64-bit length. The field is
+ * filled in when the stream is closed, so the file stays readable by any gzip reader.
+ */
+final class SizedGzipOutputStream extends DeflaterOutputStream {
+    private static final int LENGTH_OFFSET = 16;
+    private static final byte[] HEADER = {
+            0x1f, (byte) 0x8b, Deflater.DEFLATED, 0x04 /* FEXTRA */, 0, 0, 0, 0 /* MTIME */, 0, (byte) 0xff /* OS */,
+            12, 0 /* XLEN */, 'L', 'N', 8, 0 /* the subfield of the length */
+    };
+
+    private final File file;
+    private final CRC32 crc = new CRC32();
+    private long length;
+    private boolean closed;
+
+    SizedGzipOutputStream(File file, int bufferSize) throws IOException {
+        super(new FileOutputStream(file, false), new Deflater(Deflater.DEFAULT_COMPRESSION, true), bufferSize);
+        this.file = file;
+        try {
+            out.write(HEADER);
+            out.write(new byte[8]); // the length, see close()
+        } catch (IOException e) {
+            def.end();
+            out.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        super.write(b, off, len);
+        crc.update(b, off, len);
+        length += len;
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (def.finished()) {
+            return;
+        }
+        super.finish();
+        byte[] trailer = new byte[8];
+        writeIntLE(trailer, 0, crc.getValue());
+        writeIntLE(trailer, 4, length);
+        out.write(trailer);
+    }
+
+    /***
+     * Writes the trailer and then the length into the header
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            finish();
+        } finally {
+            def.end();
+            out.close();
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(LENGTH_OFFSET);
+            raf.writeLong(Long.reverseBytes(length));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /***
+     * @return the length of the original content; for a file of another gzip writer, it's taken from the trailer
+     * which can only tell the length modulo 2^32.
+     */
+    static long readLength(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long fileLength = raf.length();
+            if (fileLength >= LENGTH_OFFSET + 8) {
+                byte[] header = new byte[LENGTH_OFFSET];
+                raf.readFully(header);
+                if (isSizedHeader(header)) {
+                    return Long.reverseBytes(raf.readLong());
+                }
+            }
+            if (fileLength < 4) {
+                return fileLength;
+            }
+
+            raf.seek(fileLength - 4);
+            return Integer.reverseBytes(raf.readInt()) & 0xffffffffL;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static boolean isSizedHeader(byte[] header) {
+        for (int i = 0; i < HEADER.length; i++) {
+            // MTIME, XFL and OS are up to the writer
+            if ((i < 4 || i >= 10) && header[i] != HEADER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeIntLE(byte[] buf, int offset, long value) {
+        buf[offset] = (byte) value;
+        buf[offset + 1] = (byte) (value >> 8);
+        buf[offset + 2] = (byte) (value >> 16);
+        buf[offset + 3] = (byte) (value >> 24);
+    }
+}
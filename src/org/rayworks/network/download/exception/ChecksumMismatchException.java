@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.download.exception;
+
+import java.io.IOException;
+
+/**
+ * The exception indicates the saved content doesn't match the expected digest.
+ * <p>
+ * It's an {@link IOException} so that it comes out of the cache saving path and the download will be treated as a
+ * recoverable failure: the corrupted partial file has been dropped and the next retry fetches the resource again.
+ * </p>
+ */
+public class ChecksumMismatchException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final String expected;
+    private final String actual;
+
+    public ChecksumMismatchException(String expected, String actual) {
+        super("Checksum mismatch, expected " + expected + " but was " + actual);
+        this.expected = expected;
+        this.actual = actual;
+    }
+
+    public String getExpected() {
+        return expected;
+    }
+
+    public String getActual() {
+        return actual;
+    }
+}
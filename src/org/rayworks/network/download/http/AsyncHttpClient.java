@@ -0,0 +1,572 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.download.http;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.rayworks.network.util.EFLogger;
+import org.rayworks.network.util.IOUtils;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/***
+ * A non-blocking HTTP/1.1 client for GET requests on {@link AsynchronousSocketChannel}s, a few threads drive any
+ * number of connections. The connections are kept alive and reused per host, up to a limit per host; the requests
+ * beyond the limit wait for a free connection.
+ * <p>
+ * Only plain http is supported.
+ */
+public final class AsyncHttpClient implements Closeable {
+    private static final String TAG = AsyncHttpClient.class.getSimpleName();
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final long KEEP_ALIVE_MILLIS = 30 * 1000;
+
+    /***
+     * Receives the response of an {@link Exchange}, on the threads of the client. Exactly one of
+     * {@link #onComplete(Exchange)} and {@link #onFailure(Exchange, Throwable)} ends an exchange, unless
+     * {@link #onResponse(Exchange, HttpResponseParser)} refuses the response.
+     */
+    public interface ResponseHandler {
+        /***
+         * The head of the response arrived, the body is read after {@link Exchange#resume()}, so the handler can
+         * get ready for it on another thread.
+         *
+         * @return false to drop the response, the exchange ends silently
+         */
+        boolean onResponse(Exchange exchange, HttpResponseParser response);
+
+        /***
+         * A piece of the body arrived, the next one is read after {@link Exchange#resume()}, which has to be called
+         * once the handler is done with the data, even if the exchange was cancelled meanwhile.
+         *
+         * @param data valid until {@link Exchange#resume()}
+         */
+        void onBody(Exchange exchange, ByteBuffer data);
+
+        void onComplete(Exchange exchange);
+
+        /***
+         * @param cause a {@link CancellationException} if the exchange was cancelled
+         */
+        void onFailure(Exchange exchange, Throwable cause);
+    }
+
+    private final AsynchronousChannelGroup group;
+    private final ScheduledExecutorService timer;
+    private final ConcurrentMap<String, HostPool> pools = new ConcurrentHashMap<>();
+
+    private volatile int maxConnectionsPerHost;
+    private volatile int timeout;
+
+    /***
+     * @param threadNum             number of the threads driving the connections
+     * @param maxConnectionsPerHost number of the connections to a host at the same time
+     * @param timeout               connecting and reading timeout in milliseconds
+     * @throws IOException if the channel group can't be created
+     */
+    public AsyncHttpClient(int threadNum, int maxConnectionsPerHost, int timeout) throws IOException {
+        checkArgument(threadNum > 0);
+        checkArgument(maxConnectionsPerHost > 0);
+        checkArgument(timeout > 0);
+
+        group = AsynchronousChannelGroup.withFixedThreadPool(threadNum,
+                new ThreadFactoryBuilder().setNameFormat("HttpIo#%d").setDaemon(true).build());
+        timer = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("HttpTimer").setDaemon(true).build());
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.timeout = timeout;
+    }
+
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        checkArgument(maxConnectionsPerHost > 0);
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public void setTimeout(int timeout) {
+        checkArgument(timeout > 0);
+        this.timeout = timeout;
+    }
+
+    /***
+     * Sends a GET request.
+     *
+     * @param uri     a http uri
+     * @param headers extra request headers, e.g. Range, null-ok
+     * @param handler receives the response
+     * @return the exchange, which can be cancelled
+     */
+    public Exchange execute(URI uri, Map<String, String> headers, ResponseHandler handler) {
+        checkNotNull(handler);
+        checkArgument("http".equalsIgnoreCase(uri.getScheme()), "Only http is supported: %s", uri);
+        checkArgument(uri.getHost() != null, "No host: %s", uri);
+
+        int port = uri.getPort() < 0 ? 80 : uri.getPort();
+        String key = uri.getHost().toLowerCase(Locale.US) + ":" + port;
+        HostPool pool = pools.get(key);
+        if (pool == null) {
+            HostPool newPool = new HostPool(uri.getHost(), port);
+            pool = pools.putIfAbsent(key, newPool);
+            if (pool == null) {
+                pool = newPool;
+            }
+        }
+
+        Exchange exchange = new Exchange(pool, uri, headers, handler);
+        pool.acquire(exchange);
+        return exchange;
+    }
+
+    /***
+     * @return number of the open connections, idle or busy
+     */
+    public int getConnectionCount() {
+        int count = 0;
+        for (HostPool pool : pools.values()) {
+            count += pool.getOpenCount();
+        }
+        return count;
+    }
+
+    /***
+     * Closes all the connections, the ongoing exchanges fail.
+     */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        try {
+            group.shutdownNow();
+        } catch (IOException e) {
+            EFLogger.d(TAG, "Failed to close the channels", e);
+        }
+    }
+
+    /***
+     * A connection to a host, it carries one exchange at a time
+     */
+    private static final class Connection {
+        final AsynchronousSocketChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long idleSince;
+
+        Connection(AsynchronousSocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /***
+     * The connections to a host and the exchanges waiting for one
+     */
+    private final class HostPool {
+        private final String host;
+        private final int port;
+
+        private final Deque<Connection> idle = new ArrayDeque<>();
+        private final Deque<Exchange> waiting = new ArrayDeque<>();
+        private int open;
+
+        HostPool(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        synchronized int getOpenCount() {
+            return open;
+        }
+
+        void acquire(Exchange exchange) {
+            Connection connection;
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                while ((connection = idle.pollFirst()) != null) {
+                    if (connection.channel.isOpen() && now - connection.idleSince < KEEP_ALIVE_MILLIS) {
+                        break;
+                    }
+                    IOUtils.closeSilently(connection.channel);
+                    open--;
+                }
+                if (connection == null) {
+                    if (open >= maxConnectionsPerHost) {
+                        waiting.addLast(exchange);
+                        return;
+                    }
+                    open++;
+                }
+            }
+
+            if (connection != null) {
+                exchange.onConnection(connection, true);
+            } else {
+                connect(exchange);
+            }
+        }
+
+        /***
+         * Gives the connection back, it's handed to the next waiting exchange or kept for reuse if it's reusable
+         *
+         * @param connection null if it couldn't be opened
+         */
+        void release(Connection connection, boolean reusable) {
+            Exchange next;
+            synchronized (this) {
+                if (connection == null || !reusable) {
+                    if (connection != null) {
+                        IOUtils.closeSilently(connection.channel);
+                    }
+                    open--;
+                    connection = null;
+                }
+
+                next = waiting.pollFirst();
+                if (next == null) {
+                    if (connection != null) {
+                        connection.idleSince = System.currentTimeMillis();
+                        idle.addFirst(connection); // the most recent one is the least likely to be stale
+                    }
+                    return;
+                }
+                if (connection == null) {
+                    open++;
+                }
+            }
+
+            if (connection != null) {
+                next.onConnection(connection, true);
+            } else {
+                connect(next);
+            }
+        }
+
+        /***
+         * Drops the idle connections, e.g. after one of them turned out to be closed by the server
+         */
+        void evictIdle() {
+            synchronized (this) {
+                for (Connection connection : idle) {
+                    IOUtils.closeSilently(connection.channel);
+                    open--;
+                }
+                idle.clear();
+            }
+        }
+
+        synchronized boolean removeWaiting(Exchange exchange) {
+            return waiting.remove(exchange);
+        }
+
+        private void connect(final Exchange exchange) {
+            AsynchronousSocketChannel opened = null;
+            InetSocketAddress address;
+            try {
+                opened = AsynchronousSocketChannel.open(group);
+                opened.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                address = new InetSocketAddress(host, port);
+            } catch (IOException | RuntimeException e) {
+                IOUtils.closeSilently(opened);
+                release(null, false);
+                exchange.fail(e);
+                return;
+            }
+
+            final AsynchronousSocketChannel channel = opened;
+            final Connection connection = new Connection(channel);
+            exchange.connection.set(connection);
+            final ScheduledFuture<?> timeoutFuture = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    IOUtils.closeSilently(channel); // the connecting fails
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+
+            try {
+                channel.connect(address, null, new CompletionHandler<Void, Void>() {
+                    @Override
+                    public void completed(Void result, Void attachment) {
+                        timeoutFuture.cancel(false);
+                        exchange.onConnection(connection, false);
+                    }
+
+                    @Override
+                    public void failed(Throwable exc, Void attachment) {
+                        timeoutFuture.cancel(false);
+                        exchange.onIoFailure(exc);
+                    }
+                });
+            } catch (RuntimeException e) { // e.g. unresolved address
+                timeoutFuture.cancel(false);
+                exchange.onIoFailure(e);
+            }
+        }
+    }
+
+    /***
+     * A request and its response
+     */
+    public final class Exchange {
+        private final HostPool pool;
+        private final URI uri;
+        private final Map<String, String> headers;
+        private final ResponseHandler handler;
+
+        private final AtomicReference<Connection> connection = new AtomicReference<>();
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private volatile boolean cancelled;
+
+        private HttpResponseParser parser;
+        private boolean reused;
+        private boolean received;
+        private boolean retried;
+
+        Exchange(HostPool pool, URI uri, Map<String, String> headers, ResponseHandler handler) {
+            this.pool = pool;
+            this.uri = uri;
+            this.headers = headers;
+            this.handler = handler;
+        }
+
+        public URI getUri() {
+            return uri;
+        }
+
+        /***
+         * Reads the next piece of the body, see {@link ResponseHandler#onBody(Exchange, ByteBuffer)}
+         */
+        public void resume() {
+            deliver();
+        }
+
+        /***
+         * Aborts the exchange, the handler is told by {@link ResponseHandler#onFailure(Exchange, Throwable)}
+         */
+        public void cancel() {
+            cancelled = true;
+            if (pool.removeWaiting(this)) {
+                fail(new CancellationException());
+                return;
+            }
+            Connection current = connection.get();
+            if (current != null) {
+                IOUtils.closeSilently(current.channel); // the pending operation fails
+            }
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        private void onConnection(Connection newConnection, boolean reused) {
+            connection.set(newConnection);
+            if (cancelled) {
+                releaseConnection(true);
+                fail(new CancellationException());
+                return;
+            }
+
+            this.reused = reused;
+            received = false;
+            parser = new HttpResponseParser();
+            newConnection.buffer.clear();
+            write(newConnection, encodeRequest());
+        }
+
+        private ByteBuffer encodeRequest() {
+            StringBuilder request = new StringBuilder(256);
+            String path = uri.getRawPath();
+            request.append("GET ").append(path == null || path.isEmpty() ? "/" : path);
+            if (uri.getRawQuery() != null) {
+                request.append('?').append(uri.getRawQuery());
+            }
+            request.append(" HTTP/1.1\r\n");
+            request.append("Host: ").append(uri.getHost());
+            if (uri.getPort() >= 0 && uri.getPort() != 80) {
+                request.append(':').append(uri.getPort());
+            }
+            request.append("\r\n");
+            request.append("Connection: keep-alive\r\n");
+            if (headers != null) {
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    request.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+                }
+            }
+            request.append("\r\n");
+            return ByteBuffer.wrap(request.toString().getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        private void write(final Connection current, final ByteBuffer request) {
+            current.channel.write(request, timeout, TimeUnit.MILLISECONDS, null,
+                    new CompletionHandler<Integer, Void>() {
+                        @Override
+                        public void completed(Integer result, Void attachment) {
+                            if (request.hasRemaining()) {
+                                write(current, request);
+                            } else {
+                                read(current);
+                            }
+                        }
+
+                        @Override
+                        public void failed(Throwable exc, Void attachment) {
+                            onIoFailure(exc);
+                        }
+                    });
+        }
+
+        private void read(final Connection current) {
+            current.channel.read(current.buffer, timeout, TimeUnit.MILLISECONDS, null,
+                    new CompletionHandler<Integer, Void>() {
+                        @Override
+                        public void completed(Integer result, Void attachment) {
+                            if (result < 0) {
+                                onEndOfStream();
+                                return;
+                            }
+                            received = true;
+                            current.buffer.flip();
+                            process();
+                        }
+
+                        @Override
+                        public void failed(Throwable exc, Void attachment) {
+                            onIoFailure(exc);
+                        }
+                    });
+        }
+
+        private void process() {
+            Connection current = connection.get();
+            try {
+                if (!parser.isHeadComplete()) {
+                    if (!parser.parseHead(current.buffer)) {
+                        current.buffer.compact();
+                        read(current);
+                        return;
+                    }
+                    if (!handler.onResponse(this, parser)) {
+                        releaseConnection(false);
+                        finished.set(true);
+                    }
+                    return; // the handler resumes it
+                }
+            } catch (ProtocolException e) {
+                releaseConnection(false);
+                fail(e);
+                return;
+            }
+            deliver();
+        }
+
+        private void deliver() {
+            Connection current = connection.get();
+            if (current == null) {
+                return; // it has failed already
+            }
+            if (cancelled) {
+                releaseConnection(false);
+                fail(new CancellationException());
+                return;
+            }
+
+            ByteBuffer body;
+            try {
+                body = parser.parseBody(current.buffer);
+            } catch (ProtocolException e) {
+                releaseConnection(false);
+                fail(e);
+                return;
+            }
+
+            if (body != null) {
+                handler.onBody(this, body);
+            } else if (parser.isComplete()) {
+                // bytes beyond the response mean the connection is out of step
+                releaseConnection(parser.isKeepAlive() && !current.buffer.hasRemaining());
+                if (finished.compareAndSet(false, true)) {
+                    handler.onComplete(this);
+                }
+            } else {
+                current.buffer.compact();
+                read(current);
+            }
+        }
+
+        private void onEndOfStream() {
+            try {
+                parser.onEndOfStream();
+            } catch (ProtocolException e) {
+                onIoFailure(e);
+                return;
+            }
+            releaseConnection(false);
+            if (finished.compareAndSet(false, true)) {
+                handler.onComplete(this);
+            }
+        }
+
+        private void onIoFailure(Throwable exc) {
+            releaseConnection(false);
+            if (cancelled) {
+                fail(new CancellationException());
+            } else if (reused && !received && !retried) {
+                // the server closed the idle connection meanwhile, the others are likely stale as well
+                EFLogger.d(TAG, "Stale connection, retry " + uri);
+                retried = true;
+                pool.evictIdle();
+                pool.acquire(this);
+            } else {
+                fail(exc);
+            }
+        }
+
+        private void releaseConnection(boolean reusable) {
+            Connection current = connection.getAndSet(null);
+            if (current != null) {
+                pool.release(current, reusable);
+            }
+        }
+
+        private void fail(Throwable cause) {
+            if (finished.compareAndSet(false, true)) {
+                handler.onFailure(this, cause);
+            }
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.download.http;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/***
+ * Incremental parser of a HTTP/1.1 response to a GET request. The bytes are fed as they arrive from the connection,
+ * the head first by {@link #parseHead(ByteBuffer)}, then the body by {@link #parseBody(ByteBuffer)}, which takes the
+ * framing of it, fixed length, chunked or until the end of the stream, off the caller.
+ */
+public final class HttpResponseParser {
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
+    private static final int MAX_HEAD_LENGTH = 64 * 1024;
+
+    private enum State {
+        STATUS_LINE, HEADERS, FIXED_BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS, UNTIL_CLOSE, DONE
+    }
+
+    private State state = State.STATUS_LINE;
+    private final StringBuilder line = new StringBuilder();
+    private boolean lineEnded;
+    private int headLength;
+
+    private String version;
+    private int statusCode;
+    private String reasonPhrase;
+    private final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    private long contentLength = -1;
+    private long remaining; // of the fixed body or of the current chunk
+    private long bodyLength;
+
+    /***
+     * Consumes the bytes of the head, an interim 1xx response is skipped.
+     *
+     * @param in the bytes arrived, its position is moved past the consumed ones
+     * @return whether the head is complete, the rest of the bytes belong to the body then
+     * @throws ProtocolException if it's not a valid response
+     */
+    public boolean parseHead(ByteBuffer in) throws ProtocolException {
+        while (state == State.STATUS_LINE || state == State.HEADERS) {
+            String text = readLine(in);
+            if (text == null) {
+                return false;
+            }
+            headLength += text.length();
+            if (headLength > MAX_HEAD_LENGTH) {
+                throw new ProtocolException("Response head too large");
+            }
+
+            if (state == State.STATUS_LINE) {
+                if (text.isEmpty()) {
+                    continue; // tolerates the blank lines before a response
+                }
+                parseStatusLine(text);
+                state = State.HEADERS;
+            } else if (!text.isEmpty()) {
+                parseHeader(text);
+            } else if (statusCode >= 100 && statusCode < 200) {
+                headers.clear(); // the final response follows
+                state = State.STATUS_LINE;
+            } else {
+                state = startBody();
+            }
+        }
+        return true;
+    }
+
+    /***
+     * Consumes the next piece of the body.
+     *
+     * @param in the bytes arrived, its position is moved past the consumed ones
+     * @return a slice of <b>in</b> with the body bytes, it's valid until <b>in</b> is changed; null if more bytes
+     * are needed or the body is complete
+     * @throws ProtocolException if the body is malformed
+     */
+    public ByteBuffer parseBody(ByteBuffer in) throws ProtocolException {
+        while (in.hasRemaining()) {
+            switch (state) {
+                case FIXED_BODY:
+                case CHUNK_DATA: {
+                    int len = (int) Math.min(remaining, in.remaining());
+                    ByteBuffer slice = in.slice();
+                    slice.limit(len);
+                    in.position(in.position() + len);
+                    remaining -= len;
+                    bodyLength += len;
+                    if (remaining == 0) {
+                        state = state == State.FIXED_BODY ? State.DONE : State.CHUNK_END;
+                    }
+                    return slice;
+                }
+                case UNTIL_CLOSE: {
+                    ByteBuffer slice = in.slice();
+                    bodyLength += slice.remaining();
+                    in.position(in.limit());
+                    return slice;
+                }
+                case CHUNK_SIZE: {
+                    String text = readLine(in);
+                    if (text == null) {
+                        return null;
+                    }
+                    remaining = parseChunkSize(text);
+                    state = remaining == 0 ? State.TRAILERS : State.CHUNK_DATA;
+                    break;
+                }
+                case CHUNK_END: {
+                    String text = readLine(in);
+                    if (text == null) {
+                        return null;
+                    }
+                    if (!text.isEmpty()) {
+                        throw new ProtocolException("Missing CRLF after a chunk");
+                    }
+                    state = State.CHUNK_SIZE;
+                    break;
+                }
+                case TRAILERS: {
+                    String text = readLine(in);
+                    if (text == null) {
+                        return null;
+                    }
+                    if (text.isEmpty()) {
+                        state = State.DONE;
+                    }
+                    break;
+                }
+                default:
+                    return null;
+            }
+        }
+        return null;
+    }
+
+    /***
+     * Tells the parser that the connection was closed by the server.
+     *
+     * @throws ProtocolException if the response was cut short
+     */
+    public void onEndOfStream() throws ProtocolException {
+        if (state == State.UNTIL_CLOSE) {
+            state = State.DONE;
+        } else if (state != State.DONE) {
+            throw new ProtocolException("Connection closed before the response was complete");
+        }
+    }
+
+    public boolean isHeadComplete() {
+        return state != State.STATUS_LINE && state != State.HEADERS;
+    }
+
+    public boolean isComplete() {
+        return state == State.DONE;
+    }
+
+    /***
+     * @return whether the connection can carry another request once the response is complete
+     */
+    public boolean isKeepAlive() {
+        String connection = getHeader("Connection");
+        boolean persistent = "HTTP/1.1".equals(version)
+                ? !"close".equalsIgnoreCase(connection) : "keep-alive".equalsIgnoreCase(connection);
+        return persistent && state != State.UNTIL_CLOSE;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public String getReasonPhrase() {
+        return reasonPhrase;
+    }
+
+    /***
+     * @return the value of the header, the values of a repeated header are joined by commas; null if absent
+     */
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    /***
+     * @return the Content-Length, -1 if the body isn't framed by it
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    /***
+     * @return the number of body bytes parsed so far, without the chunk framing
+     */
+    public long getBodyLength() {
+        return bodyLength;
+    }
+
+    private void parseStatusLine(String text) throws ProtocolException {
+        int first = text.indexOf(' ');
+        if (first < 0 || !text.startsWith("HTTP/")) {
+            throw new ProtocolException("Bad status line: " + text);
+        }
+        int second = text.indexOf(' ', first + 1);
+        try {
+            statusCode = Integer.parseInt(second < 0 ? text.substring(first + 1) : text.substring(first + 1, second));
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Bad status line: " + text);
+        }
+        version = text.substring(0, first);
+        reasonPhrase = second < 0 ? "" : text.substring(second + 1);
+    }
+
+    private void parseHeader(String text) throws ProtocolException {
+        int colon = text.indexOf(':');
+        if (colon <= 0) {
+            throw new ProtocolException("Bad header: " + text);
+        }
+        String name = text.substring(0, colon).trim();
+        String value = text.substring(colon + 1).trim();
+        String former = headers.get(name);
+        headers.put(name, former == null ? value : former + ", " + value);
+    }
+
+    private State startBody() throws ProtocolException {
+        if (statusCode == 204 || statusCode == 304) {
+            contentLength = 0;
+            return State.DONE;
+        }
+
+        String transferEncoding = getHeader("Transfer-Encoding");
+        if (transferEncoding != null && !transferEncoding.equalsIgnoreCase("identity")) {
+            if (!transferEncoding.toLowerCase(Locale.US).endsWith("chunked")) {
+                return State.UNTIL_CLOSE;
+            }
+            return State.CHUNK_SIZE;
+        }
+
+        String length = getHeader("Content-Length");
+        if (length == null) {
+            return State.UNTIL_CLOSE;
+        }
+        try {
+            contentLength = Long.parseLong(length.trim());
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Bad Content-Length: " + length);
+        }
+        if (contentLength < 0) {
+            throw new ProtocolException("Bad Content-Length: " + length);
+        }
+        remaining = contentLength;
+        return contentLength == 0 ? State.DONE : State.FIXED_BODY;
+    }
+
+    private static long parseChunkSize(String text) throws ProtocolException {
+        int end = text.indexOf(';'); // chunk extensions are ignored
+        String size = (end < 0 ? text : text.substring(0, end)).trim();
+        try {
+            long value = Long.parseLong(size, 16);
+            if (value < 0) {
+                throw new ProtocolException("Bad chunk size: " + text);
+            }
+            return value;
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Bad chunk size: " + text);
+        }
+    }
+
+    /***
+     * @return the line without its CRLF, or null if it's incomplete; the partial line is kept for the next call
+     */
+    private String readLine(ByteBuffer in) throws ProtocolException {
+        if (lineEnded) {
+            line.setLength(0);
+            lineEnded = false;
+        }
+        while (in.hasRemaining()) {
+            char c = (char) (in.get() & 0xff); // ISO-8859-1
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                lineEnded = true;
+                return line.toString();
+            }
+            if (line.length() >= MAX_LINE_LENGTH) {
+                throw new ProtocolException("Line too long");
+            }
+            line.append(c);
+        }
+        return null;
+    }
+}
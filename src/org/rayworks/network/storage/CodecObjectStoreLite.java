@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.storage;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.rayworks.network.storage.codec.CodecRegistry;
+
+/**
+ * A {@link KeyedObjectStoreLite} on top of any {@link KeyValueStore}, the objects are encoded by a
+ * {@link CodecRegistry}: in binary if a codec is registered for their type, as JSON otherwise.
+ */
+public class CodecObjectStoreLite implements KeyedObjectStoreLite {
+    private final KeyValueStore store;
+    private final CodecRegistry codecs;
+
+    public CodecObjectStoreLite(KeyValueStore store, CodecRegistry codecs) {
+        this.store = store;
+        this.codecs = codecs;
+    }
+
+    @Override
+    public void store(KeyedObject object) {
+        store.save(object.getKey(), codecs.encode(object));
+    }
+
+    @Override
+    public <E> E get(String key, Class<E> cls) {
+        return codecs.decode(store.get(key), cls);
+    }
+
+    /***
+     * @return the objects of the registered types, the others as JSON
+     */
+    @Override
+    public Map<String, Object> getAllObjects() {
+        Map<String, Object> objects = new HashMap<>();
+        for (Map.Entry<String, String> entry : store.getAll().entrySet()) {
+            objects.put(entry.getKey(), codecs.decode(entry.getValue()));
+        }
+        return objects;
+    }
+
+    @Override
+    public void save(String key, String value) {
+        store.save(key, value);
+    }
+
+    @Override
+    public String get(String key) {
+        return store.get(key);
+    }
+
+    @Override
+    public void remove(String key) {
+        store.remove(key);
+    }
+
+    @Override
+    public Map<String, String> getAll() {
+        return store.getAll();
+    }
+
+    @Override
+    public void clear() {
+        store.clear();
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.storage;
+
+import org.rayworks.network.storage.codec.BinaryReader;
+import org.rayworks.network.storage.codec.BinaryWriter;
+import org.rayworks.network.storage.codec.ObjectCodec;
+
+/**
+ * What is known about the download of one URL: the validators of the resource, the progress and the attempts. It's
+ * kept by {@link SyncStateStore} as a single binary record, see {@link #CODEC}.
+ */
+public class DownloadRecord implements KeyedObject {
+    public static final long UNKNOWN_LENGTH = -1;
+
+    private final String url;
+    private final String storeKey; // built once, the checkpoints of a download reuse it
+    private String etag;
+    private String lastModified;
+    private long contentLength = UNKNOWN_LENGTH;
+    private long committedBytes;
+    private String digestState;
+    private int attemptCount;
+    private long createdAt;
+    private long updatedAt;
+
+    public DownloadRecord(String url) {
+        this.url = url;
+        this.storeKey = SyncStateStore.SYNC_RECORD_PREFIX + url;
+        this.createdAt = System.currentTimeMillis();
+        this.updatedAt = createdAt;
+    }
+
+    @Override
+    public String getKey() {
+        return url;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /***
+     * @return the key of the record in the {@link KeyValueStore} of {@link SyncStateStore}
+     */
+    String getStoreKey() {
+        return storeKey;
+    }
+
+    /***
+     * @return the ETag of the resource when the download began, null if the server sent none
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    public void setEtag(String etag) {
+        this.etag = etag;
+    }
+
+    /***
+     * @return the Last-Modified of the resource when the download began, null if the server sent none
+     */
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(String lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    /***
+     * @return the full size of the resource or {@link #UNKNOWN_LENGTH}
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    public void setContentLength(long contentLength) {
+        this.contentLength = contentLength;
+    }
+
+    /***
+     * @return the bytes of the resource in the partial file as of the latest checkpoint
+     */
+    public long getCommittedBytes() {
+        return committedBytes;
+    }
+
+    public void setCommittedBytes(long committedBytes) {
+        this.committedBytes = committedBytes;
+    }
+
+    /***
+     * @return the intermediate state of the digest of the partial file, null if there is none
+     */
+    public String getDigestState() {
+        return digestState;
+    }
+
+    public void setDigestState(String digestState) {
+        this.digestState = digestState;
+    }
+
+    public int getAttemptCount() {
+        return attemptCount;
+    }
+
+    public void setAttemptCount(int attemptCount) {
+        this.attemptCount = attemptCount;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /***
+     * @return when the record was stored last time, in milliseconds since the epoch
+     */
+    public long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    void setUpdatedAt(long updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+
+    /***
+     * Drops what belongs to the current version of the resource, the attempts are kept.
+     */
+    public void reset() {
+        etag = null;
+        lastModified = null;
+        contentLength = UNKNOWN_LENGTH;
+        committedBytes = 0;
+        digestState = null;
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadRecord{url=" + url + ", etag=" + etag + ", lastModified=" + lastModified
+                + ", contentLength=" + contentLength + ", committedBytes=" + committedBytes
+                + ", attemptCount=" + attemptCount + "}";
+    }
+
+    public static final int TYPE_ID = 1;
+
+    /***
+     * The layout of version 1: url, etag, lastModified, digestState as strings, contentLength as zigzag varint,
+     * committedBytes, attemptCount, createdAt and updatedAt as varints.
+     */
+    public static final ObjectCodec<DownloadRecord> CODEC = new ObjectCodec<DownloadRecord>() {
+        @Override
+        public int getVersion() {
+            return 1;
+        }
+
+        @Override
+        public void encode(DownloadRecord record, BinaryWriter out) {
+            out.writeString(record.url)
+                    .writeString(record.etag)
+                    .writeString(record.lastModified)
+                    .writeString(record.digestState)
+                    .writeZigZagLong(record.contentLength)
+                    .writeVarLong(record.committedBytes)
+                    .writeVarInt(record.attemptCount)
+                    .writeVarLong(record.createdAt)
+                    .writeVarLong(record.updatedAt);
+        }
+
+        @Override
+        public DownloadRecord decode(BinaryReader in, int version) {
+            DownloadRecord record = new DownloadRecord(in.readString());
+            record.etag = in.readString();
+            record.lastModified = in.readString();
+            record.digestState = in.readString();
+            record.contentLength = in.readZigZagLong();
+            record.committedBytes = in.readVarLong();
+            record.attemptCount = in.readVarInt();
+            record.createdAt = in.readVarLong();
+            record.updatedAt = in.readVarLong();
+            return record;
+        }
+    };
+}
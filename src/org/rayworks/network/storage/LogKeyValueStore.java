@@ -0,0 +1,656 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+import org.rayworks.network.util.EFLogger;
+import org.rayworks.network.util.IOUtils;
+
+/**
+ * A {@link KeyValueStore} persisted as an append-only log, so a write costs one small append instead of rewriting
+ * all the entries. The entries are kept in memory, reads never touch the disk.
+ * <p>
+ * Every record carries a CRC32. On opening the log is replayed and a torn record at the end, left by a crash in the
+ * middle of a write, is cut off. Once the records overwritten or removed outweigh the live ones the log is compacted
+ * in the background: the live entries are written to a new log which then replaces the old one atomically.
+ * </p>
+ * <p>
+ * With {@link #setGroupCommit(boolean, long)} the writes of concurrent threads are combined: a write is visible to the readers
+ * at once, and the first writer of a group appends the records of the whole group with a single write, and a single
+ * fsync if {@link #setSyncOnWrite(boolean)} is on, before all of them return.
+ * </p>
+ */
+public class LogKeyValueStore implements KeyValueStore {
+    private static final String TAG = LogKeyValueStore.class.getSimpleName();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final String LOG_FILE_NAME = "store.log";
+    private static final String COMPACT_FILE_NAME = "store.log.compact";
+    private static final int MAGIC = 0x4b564c31; // "KVL1"
+
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_REMOVE = 2;
+    private static final byte TYPE_BATCH = 3; // the value holds the records committed together
+    private static final int RECORD_OVERHEAD = 1 + 4 + 4 + 4; // type, key length, value length, crc
+
+    /***
+     * The log is compacted only beyond this amount of dead bytes
+     */
+    private static final long MIN_COMPACTION_BYTES = 256 * 1024;
+
+    private final File logFile;
+    private final File compactFile;
+    private final Executor compactionExecutor;
+    private final Map<String, String> entries = new ConcurrentHashMap<>();
+
+    // Locking order: this, ioLock, queueLock
+
+    // guarded by this
+    private long deadBytes;
+    private boolean compacting;
+    private int generation; // changed by clear(), a compaction started before is dropped
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream(256);
+    private final CRC32 crc = new CRC32();
+
+    // guarded by ioLock
+    private final Object ioLock = new Object();
+    private FileOutputStream appender;
+    private long logLength;
+
+    // guarded by queueLock
+    private final Object queueLock = new Object();
+    private final ByteArrayOutputStream pendingRecords = new ByteArrayOutputStream();
+    private long queuedSequence;
+    private long committedSequence;
+    private boolean leaderActive;
+    private long lastGroupSize;
+
+    private volatile boolean syncOnWrite;
+    private volatile boolean groupCommit;
+    private volatile long groupCommitDelay;
+
+    /***
+     * @param dir                directory of the log
+     * @param compactionExecutor null-ok, the compaction runs in the writing thread if it's null
+     */
+    public LogKeyValueStore(File dir, Executor compactionExecutor) {
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        logFile = new File(dir, LOG_FILE_NAME);
+        compactFile = new File(dir, COMPACT_FILE_NAME);
+        this.compactionExecutor = compactionExecutor;
+
+        compactFile.delete(); // left by an interrupted compaction, the log is still complete
+        replay();
+    }
+
+    public LogKeyValueStore(File dir) {
+        this(dir, null);
+    }
+
+    /***
+     * Forces every write to the storage device before it returns. Without it a write survives a crash of the
+     * process, but the latest ones can be lost with a power failure.
+     *
+     * @param syncOnWrite
+     */
+    public void setSyncOnWrite(boolean syncOnWrite) {
+        this.syncOnWrite = syncOnWrite;
+    }
+
+    /***
+     * Combines the writes of concurrent threads into group commits. The records queued while a group is being
+     * written make up the next group.
+     *
+     * @param enabled
+     * @param maxDelayMillis how long the first writer of a group may wait for the others to join it, 0 for no wait.
+     *                       It's worth it only if a sync costs more than the delay.
+     */
+    public void setGroupCommit(boolean enabled, long maxDelayMillis) {
+        if (maxDelayMillis < 0) {
+            throw new IllegalArgumentException("maxDelayMillis should not be negative");
+        }
+        groupCommitDelay = maxDelayMillis;
+        groupCommit = enabled;
+    }
+
+    @Override
+    public void save(String key, String value) {
+        if (value == null) {
+            remove(key);
+            return;
+        }
+        long sequence;
+        synchronized (this) {
+            String old = entries.put(key, value);
+            if (old != null) {
+                deadBytes += recordSize(key, old);
+            }
+            sequence = submit(encode(TYPE_PUT, key, value));
+        }
+        awaitCommit(sequence);
+    }
+
+    @Override
+    public String get(String key) {
+        return entries.get(key);
+    }
+
+    @Override
+    public void remove(String key) {
+        long sequence;
+        synchronized (this) {
+            String old = entries.remove(key);
+            if (old == null) {
+                return;
+            }
+            byte[] record = encode(TYPE_REMOVE, key, null);
+            deadBytes += recordSize(key, old) + record.length;
+            sequence = submit(record);
+        }
+        awaitCommit(sequence);
+    }
+
+    /***
+     * Applies the changes atomically, after a crash either all of them or none are found in the log.
+     *
+     * @param changes the new values in the order of applying, a null value removes the key.
+     */
+    public void commit(Map<String, String> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        long sequence;
+        synchronized (this) {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            for (Map.Entry<String, String> change : changes.entrySet()) {
+                String key = change.getKey();
+                String value = change.getValue();
+                String old = value == null ? entries.remove(key) : entries.put(key, value);
+                if (old != null) {
+                    deadBytes += recordSize(key, old);
+                }
+                if (value == null) {
+                    deadBytes += recordSize(key, null);
+                }
+
+                encodeRecord(recordBuffer, crc, value == null ? TYPE_REMOVE : TYPE_PUT, key.getBytes(UTF_8),
+                        value == null ? null : value.getBytes(UTF_8));
+                writeTo(recordBuffer, payload);
+            }
+            encodeRecord(recordBuffer, crc, TYPE_BATCH, new byte[0], payload.toByteArray());
+            deadBytes += RECORD_OVERHEAD;
+            sequence = submit(recordBuffer.toByteArray());
+        }
+        awaitCommit(sequence);
+    }
+
+    @Override
+    public Map<String, String> getAll() {
+        return Collections.unmodifiableMap(new HashMap<>(entries));
+    }
+
+    @Override
+    public synchronized void clear() {
+        entries.clear();
+        generation++;
+        deadBytes = 0;
+        synchronized (ioLock) {
+            synchronized (queueLock) {
+                pendingRecords.reset(); // applied to the entries just cleared
+            }
+            IOUtils.closeSilently(appender);
+            appender = null;
+            try {
+                writeLog(logFile, Collections.<String, String>emptyMap());
+            } catch (IOException e) {
+                EFLogger.d(TAG, "Failed to clear the log", e);
+            }
+            logLength = logFile.length();
+        }
+    }
+
+    /***
+     * @return size of the log file
+     */
+    public long getLogLength() {
+        synchronized (ioLock) {
+            return logLength;
+        }
+    }
+
+    /***
+     * Rewrites the log with the live entries only, it's done automatically once there are enough dead records.
+     */
+    public void compact() {
+        Map<String, String> snapshot;
+        long snapshotLength;
+        int snapshotGeneration;
+        synchronized (this) {
+            if (compacting) {
+                return;
+            }
+            compacting = true;
+            // every record before this length was applied to the entries before the snapshot is taken
+            synchronized (ioLock) {
+                snapshotLength = logLength;
+            }
+            snapshot = new HashMap<>(entries);
+            snapshotGeneration = generation;
+        }
+
+        try {
+            writeLog(compactFile, snapshot);
+            synchronized (this) {
+                synchronized (ioLock) {
+                    if (generation != snapshotGeneration) {
+                        throw new IOException("Cleared while compacting");
+                    }
+                    // the records appended meanwhile follow the snapshot, replaying them again is harmless
+                    copyTail(snapshotLength, logLength - snapshotLength);
+
+                    IOUtils.closeSilently(appender);
+                    appender = null;
+                    if (!compactFile.renameTo(logFile)) {
+                        throw new IOException("Failed to replace the log");
+                    }
+                    long compactedLength = logFile.length();
+                    EFLogger.d(TAG, "log compacted from " + logLength + " to " + compactedLength + " bytes");
+                    logLength = compactedLength;
+                }
+                deadBytes = 0;
+                for (Map.Entry<String, String> entry : snapshot.entrySet()) {
+                    if (!entry.getValue().equals(entries.get(entry.getKey()))) {
+                        deadBytes += recordSize(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            EFLogger.d(TAG, "Failed to compact the log", e);
+            compactFile.delete();
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    // guarded by this; returns the sequence to wait for, 0 if the record is written already
+    private long submit(byte[] record) {
+        if (!groupCommit) {
+            synchronized (ioLock) {
+                appendToLog(record, record.length);
+            }
+            return 0;
+        }
+        synchronized (queueLock) {
+            pendingRecords.write(record, 0, record.length);
+            return ++queuedSequence;
+        }
+    }
+
+    private void awaitCommit(long sequence) {
+        if (sequence > 0 && !waitForGroup(sequence)) {
+            leadGroup();
+        }
+
+        boolean shouldCompact;
+        synchronized (this) {
+            long length = getLogLength();
+            shouldCompact = !compacting && deadBytes > MIN_COMPACTION_BYTES && deadBytes > length - deadBytes;
+        }
+        if (shouldCompact) {
+            if (compactionExecutor == null) {
+                compact();
+            } else {
+                compactionExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        compact();
+                    }
+                });
+            }
+        }
+    }
+
+    // returns false if the caller should lead the group instead
+    private boolean waitForGroup(long sequence) {
+        boolean interrupted = false;
+        try {
+            synchronized (queueLock) {
+                while (committedSequence < sequence) {
+                    if (!leaderActive) {
+                        leaderActive = true;
+                        return false;
+                    }
+                    try {
+                        queueLock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true; // the record is queued, it must be committed anyway
+                    }
+                }
+                return true;
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void leadGroup() {
+        long deadline = System.currentTimeMillis() + groupCommitDelay;
+        boolean interrupted = false;
+        synchronized (queueLock) {
+            // a writer alone doesn't wait, the records queued while it's writing make up the next group anyway
+            long remaining;
+            while (lastGroupSize > 1 && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    queueLock.wait(remaining); // nobody notifies, it just lets the others queue meanwhile
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    break;
+                }
+            }
+        }
+
+        long committed;
+        synchronized (ioLock) {
+            byte[] group;
+            synchronized (queueLock) {
+                group = pendingRecords.toByteArray();
+                pendingRecords.reset();
+                lastGroupSize = queuedSequence - committedSequence;
+                committed = queuedSequence;
+            }
+            appendToLog(group, group.length);
+        }
+
+        synchronized (queueLock) {
+            committedSequence = committed;
+            leaderActive = false;
+            queueLock.notifyAll();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // guarded by ioLock
+    private void appendToLog(byte[] records, int length) {
+        if (length == 0) {
+            return;
+        }
+        try {
+            if (appender == null) {
+                appender = new FileOutputStream(logFile, true);
+                if (logLength == 0) {
+                    writeMagic(appender);
+                    logLength = 4;
+                }
+            }
+            appender.write(records, 0, length);
+            if (syncOnWrite) {
+                appender.getFD().sync();
+            }
+            logLength += length;
+        } catch (IOException e) {
+            EFLogger.d(TAG, "Failed to append to the log", e);
+            IOUtils.closeSilently(appender);
+            appender = null;
+            logLength = logFile.length();
+        }
+    }
+
+    private byte[] encode(byte type, String key, String value) {
+        encodeRecord(recordBuffer, crc, type, key.getBytes(UTF_8), value == null ? null : value.getBytes(UTF_8));
+        return recordBuffer.toByteArray();
+    }
+
+    /***
+     * Encodes a record into the buffer: type, key length, value length (-1 for none), key, value and the CRC32 of
+     * all of them.
+     */
+    private static void encodeRecord(ByteArrayOutputStream buffer, CRC32 crc, int type, byte[] key, byte[] value) {
+        buffer.reset();
+        DataOutputStream out = new DataOutputStream(buffer);
+        try {
+            out.writeByte(type);
+            out.writeInt(key.length);
+            out.writeInt(value == null ? -1 : value.length);
+            out.write(key);
+            if (value != null) {
+                out.write(value);
+            }
+
+            crc.reset();
+            crc.update(buffer.toByteArray(), 0, buffer.size());
+            out.writeInt((int) crc.getValue());
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // not thrown by ByteArrayOutputStream
+        }
+    }
+
+    private static void writeTo(ByteArrayOutputStream buffer, ByteArrayOutputStream out) {
+        try {
+            buffer.writeTo(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // not thrown by ByteArrayOutputStream
+        }
+    }
+
+    private static long recordSize(String key, String value) {
+        return RECORD_OVERHEAD + utf8Length(key) + (value == null ? 0 : utf8Length(value));
+    }
+
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += Character.isSurrogate(c) ? 1 : 3;
+            }
+        }
+        return length;
+    }
+
+    private void writeLog(File file, Map<String, String> snapshot) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            OutputStream out = new BufferedOutputStream(fos, 64 * 1024);
+            writeMagic(out);
+            CRC32 snapshotCrc = new CRC32();
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+            for (Map.Entry<String, String> entry : snapshot.entrySet()) {
+                encodeRecord(buffer, snapshotCrc, TYPE_PUT, entry.getKey().getBytes(UTF_8),
+                        entry.getValue().getBytes(UTF_8));
+                buffer.writeTo(out);
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+    }
+
+    private static void writeMagic(OutputStream out) throws IOException {
+        new DataOutputStream(out).writeInt(MAGIC);
+    }
+
+    private void copyTail(long offset, long length) throws IOException {
+        if (length <= 0) {
+            return;
+        }
+        RandomAccessFile in = new RandomAccessFile(logFile, "r");
+        FileOutputStream out = new FileOutputStream(compactFile, true);
+        try {
+            in.seek(offset);
+            byte[] buf = new byte[64 * 1024];
+            while (length > 0) {
+                int n = in.read(buf, 0, (int) Math.min(buf.length, length));
+                if (n == -1) {
+                    throw new EOFException();
+                }
+                out.write(buf, 0, n);
+                length -= n;
+            }
+            out.getFD().sync();
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    // loads the entries and cuts off a torn record at the end
+    private synchronized void replay() {
+        if (!logFile.exists()) {
+            return;
+        }
+
+        long validLength = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile), 64 * 1024));
+            if (in.readInt() != MAGIC) {
+                EFLogger.w(TAG, "Unknown log format, starting over: " + logFile);
+                in.close();
+                in = null;
+                logFile.delete();
+                return;
+            }
+            validLength = 4;
+
+            long fileLength = logFile.length();
+            Record record = new Record();
+            while (record.read(in, fileLength - validLength)) {
+                if (record.type == TYPE_BATCH) {
+                    DataInputStream batch = new DataInputStream(new ByteArrayInputStream(record.value));
+                    Record change = new Record();
+                    while (change.read(batch, record.value.length)) {
+                        apply(change);
+                    }
+                    deadBytes += RECORD_OVERHEAD;
+                } else {
+                    apply(record);
+                }
+                validLength += record.size;
+            }
+        } catch (EOFException e) {
+            // a torn record
+        } catch (IOException e) {
+            EFLogger.d(TAG, "Failed to read the log", e);
+        } finally {
+            IOUtils.closeSilently(in);
+        }
+
+        if (validLength < logFile.length()) {
+            EFLogger.w(TAG, "Cutting off " + (logFile.length() - validLength) + " bytes of torn records");
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(logFile, "rw");
+                raf.setLength(validLength);
+            } catch (IOException e) {
+                EFLogger.d(TAG, "Failed to truncate the log", e);
+            } finally {
+                IOUtils.closeSilently(raf);
+            }
+        }
+        logLength = validLength;
+    }
+
+    // guarded by this
+    private void apply(Record record) {
+        String key = new String(record.key, UTF_8);
+        String old;
+        if (record.type == TYPE_PUT) {
+            old = entries.put(key, new String(record.value, UTF_8));
+        } else {
+            old = entries.remove(key);
+            deadBytes += record.size;
+        }
+        if (old != null) {
+            deadBytes += recordSize(key, old);
+        }
+    }
+
+    private static final class Record {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        private final CRC32 crc = new CRC32();
+
+        int type;
+        byte[] key;
+        byte[] value;
+        int size;
+
+        /***
+         * @param in
+         * @param remaining bytes left in the input
+         * @return false at the end of the input or at a broken record
+         * @throws EOFException at a torn record
+         */
+        boolean read(DataInputStream in, long remaining) throws IOException {
+            type = in.read();
+            if (type == -1) {
+                return false;
+            }
+            int keyLength = in.readInt();
+            int valueLength = in.readInt();
+            if (keyLength < 0 || valueLength < -1 || type < TYPE_PUT || type > TYPE_BATCH
+                    || (long) keyLength + Math.max(valueLength, 0) > remaining) {
+                return false;
+            }
+            key = new byte[keyLength];
+            in.readFully(key);
+            value = valueLength < 0 ? null : new byte[valueLength];
+            if (value != null) {
+                in.readFully(value);
+            }
+            int storedCrc = in.readInt();
+
+            encodeRecord(buffer, crc, type, key, value);
+            size = buffer.size();
+            return (int) crc.getValue() == storedCrc && (type != TYPE_PUT || value != null);
+        }
+    }
+}
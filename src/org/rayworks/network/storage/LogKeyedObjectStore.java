@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.storage;
+
+import java.lang.reflect.Type;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.rayworks.network.storage.codec.CodecRegistry;
+
+/**
+ * A {@link KeyedObjectStore} on top of a {@link LogKeyValueStore}, the objects are encoded by a {@link CodecRegistry}.
+ * <p>
+ * The writes between {@link #beginBatchCommit()} and {@link #endBatchCommit()} are buffered per thread and committed
+ * atomically by the outermost {@link #endBatchCommit()}, with a single fsync if the log syncs on write. Until then they
+ * are seen by the reads of the same thread only. The batches may be nested.
+ * </p>
+ */
+public class LogKeyedObjectStore implements KeyedObjectStore {
+    private final LogKeyValueStore store;
+    private final CodecRegistry codecs;
+
+    private final ThreadLocal<Batch> batches = new ThreadLocal<Batch>() {
+        @Override
+        protected Batch initialValue() {
+            return new Batch();
+        }
+    };
+
+    public LogKeyedObjectStore(LogKeyValueStore store, CodecRegistry codecs) {
+        this.store = store;
+        this.codecs = codecs;
+    }
+
+    /***
+     * Stores all the objects as JSON.
+     */
+    public LogKeyedObjectStore(LogKeyValueStore store) {
+        this(store, new CodecRegistry());
+    }
+
+    @Override
+    public void store(KeyedObject object) {
+        store(object.getKey(), object);
+    }
+
+    @Override
+    public void store(String key, Object object) {
+        put(key, object == null ? null : codecs.encode(object));
+    }
+
+    @Override
+    public <E> E get(String key, Class<E> cls) {
+        return codecs.decode(read(key), cls);
+    }
+
+    @Override
+    public <E> E get(String key, Type type) {
+        return codecs.decode(read(key), type);
+    }
+
+    @Override
+    public void clear() {
+        batches.get().changes.clear();
+        store.clear();
+    }
+
+    @Override
+    public void beginBatchCommit() {
+        batches.get().depth++;
+    }
+
+    @Override
+    public void endBatchCommit() {
+        Batch batch = batches.get();
+        if (batch.depth == 0) {
+            throw new IllegalStateException("No batch commit began");
+        }
+        if (--batch.depth == 0 && !batch.changes.isEmpty()) {
+            try {
+                store.commit(batch.changes);
+            } finally {
+                batch.changes.clear();
+            }
+        }
+    }
+
+    @Override
+    public void storeString(String key, String string) {
+        put(key, string);
+    }
+
+    @Override
+    public String getString(String key) {
+        return read(key);
+    }
+
+    @Override
+    public long getLong(String key) {
+        String value = read(key);
+        return value == null ? 0 : Long.parseLong(value);
+    }
+
+    @Override
+    public void storeLong(String key, long longValue) {
+        put(key, Long.toString(longValue));
+    }
+
+    /***
+     * @return the stored values as they are kept in the log, the objects encoded
+     */
+    @Override
+    public Map<String, Object> getAll() {
+        Map<String, Object> all = new HashMap<String, Object>(store.getAll());
+        for (Map.Entry<String, String> change : batches.get().changes.entrySet()) {
+            if (change.getValue() == null) {
+                all.remove(change.getKey());
+            } else {
+                all.put(change.getKey(), change.getValue());
+            }
+        }
+        return all;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = read(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    @Override
+    public void storeBoolean(String key, boolean value) {
+        put(key, Boolean.toString(value));
+    }
+
+    @Override
+    public int getInt(String key, int defaultValue) {
+        String value = read(key);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    @Override
+    public void storeInt(String key, int value) {
+        put(key, Integer.toString(value));
+    }
+
+    @Override
+    public void remove(String key) {
+        put(key, null);
+    }
+
+    private void put(String key, String value) {
+        Batch batch = batches.get();
+        if (batch.depth > 0) {
+            batch.changes.remove(key); // keeps the order of the last writes
+            batch.changes.put(key, value);
+        } else if (value == null) {
+            store.remove(key);
+        } else {
+            store.save(key, value);
+        }
+    }
+
+    private String read(String key) {
+        Map<String, String> changes = batches.get().changes;
+        if (changes.containsKey(key)) {
+            return changes.get(key);
+        }
+        return store.get(key);
+    }
+
+    private static final class Batch {
+        int depth;
+        final Map<String, String> changes = new LinkedHashMap<>();
+    }
+}
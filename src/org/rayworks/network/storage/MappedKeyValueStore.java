@@ -0,0 +1,618 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.rayworks.network.util.EFLogger;
+import org.rayworks.network.util.IOUtils;
+
+/**
+ * A {@link KeyValueStore} kept in a memory-mapped file, meant for the small and hot download state of
+ * {@link SyncStateStore}. Keys and values live in the file only, an access costs a hash table probe.
+ * <p>
+ * The keys are spread over {@value #STRIPES} stripes, each with its own open addressing hash table. A writer locks the
+ * stripe of the key, readers never lock: they read optimistically and retry if the stamp of the stripe shows that a
+ * writer was there meanwhile. The records are immutable, an update appends a new record and swaps the offset in its
+ * slot, so a crash of the process leaves either the old or the new value. The file grows as needed and is rewritten
+ * once the replaced records outweigh the live ones.
+ * </p>
+ * <p>
+ * The changes survive a crash of the process at once, but reach the storage device only with {@link #flush()} or
+ * whenever the system writes the pages back.
+ * </p>
+ */
+public class MappedKeyValueStore implements KeyValueStore {
+    private static final String TAG = MappedKeyValueStore.class.getSimpleName();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final String FILE_NAME = "store.map";
+    private static final String REWRITE_FILE_NAME = "store.map.rewrite";
+    private static final int MAGIC = 0x4b564d31; // "KVM1"
+
+    // header: magic, stripe count, 8 reserved bytes, the table offset of every stripe
+    private static final int STRIPES = 16;
+    private static final int STRIPE_SHIFT = 28;
+    private static final int HEADER_SIZE = 16 + STRIPES * 4;
+
+    // table: capacity, 4 reserved bytes, slots of (hash, record offset)
+    private static final int TABLE_HEADER_SIZE = 8;
+    private static final int SLOT_SIZE = 8;
+    private static final int MIN_TABLE_CAPACITY = 8;
+    private static final int EMPTY = 0;
+    private static final int TOMBSTONE = -1;
+
+    // record: key length, value length, key, value
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final int INITIAL_FILE_SIZE = 64 * 1024;
+    private static final long MIN_REWRITE_BYTES = 1024 * 1024;
+
+    private final File file;
+    private final File rewriteFile;
+
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+    private final AtomicIntegerArray stamps = new AtomicIntegerArray(STRIPES); // odd while a writer is changing
+    private final int[] usedSlots = new int[STRIPES]; // guarded by the lock of the stripe
+    private final int[] liveSlots = new int[STRIPES];
+
+    private final Object growLock = new Object();
+    private volatile Mapping mapping;
+    private final AtomicLong dataEnd = new AtomicLong();
+    private final AtomicLong deadBytes = new AtomicLong();
+    private final AtomicBoolean rewriting = new AtomicBoolean();
+
+    /***
+     * @param dir directory of the file
+     * @throws IllegalStateException if the file can't be mapped
+     */
+    public MappedKeyValueStore(File dir) {
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        file = new File(dir, FILE_NAME);
+        rewriteFile = new File(dir, REWRITE_FILE_NAME);
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+
+        rewriteFile.delete(); // left by an interrupted rewrite, the file is still complete
+        try {
+            if (!open()) {
+                rewrite(Collections.<String, String>emptyMap());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to map " + file, e);
+        }
+    }
+
+    @Override
+    public String get(String key) {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        int hash = hash(key);
+        int stripe = hash >>> STRIPE_SHIFT;
+        for (; ; ) {
+            int stamp = stamps.get(stripe);
+            if ((stamp & 1) == 0) {
+                MappedByteBuffer buffer = mapping.buffer;
+                try {
+                    int slot = findSlot(buffer, stripe, hash, keyBytes);
+                    String value = slot < 0 ? null : readValue(buffer, buffer.getInt(slot + 4));
+                    if (stamps.get(stripe) == stamp) {
+                        return value;
+                    }
+                } catch (RuntimeException e) {
+                    // torn by a writer or beyond the older mapping, read it again
+                }
+            }
+            Thread.yield();
+        }
+    }
+
+    @Override
+    public void save(String key, String value) {
+        if (value == null) {
+            remove(key);
+            return;
+        }
+        byte[] keyBytes = key.getBytes(UTF_8);
+        byte[] valueBytes = value.getBytes(UTF_8);
+        int hash = hash(key);
+        int stripe = hash >>> STRIPE_SHIFT;
+
+        locks[stripe].lock();
+        stamps.incrementAndGet(stripe);
+        try {
+            int record = allocate(RECORD_HEADER_SIZE + keyBytes.length + valueBytes.length);
+            MappedByteBuffer buffer = mapping.buffer;
+            buffer.putInt(record, keyBytes.length);
+            buffer.putInt(record + 4, valueBytes.length);
+            putBytes(buffer, record + RECORD_HEADER_SIZE, keyBytes);
+            putBytes(buffer, record + RECORD_HEADER_SIZE + keyBytes.length, valueBytes);
+
+            int slot = findSlot(buffer, stripe, hash, keyBytes);
+            if (slot >= 0) {
+                deadBytes.addAndGet(recordSize(buffer, buffer.getInt(slot + 4)));
+                buffer.putInt(slot + 4, record);
+            } else {
+                insert(stripe, hash, record);
+            }
+        } finally {
+            stamps.incrementAndGet(stripe);
+            locks[stripe].unlock();
+        }
+        rewriteIfWasteful();
+    }
+
+    @Override
+    public void remove(String key) {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        int hash = hash(key);
+        int stripe = hash >>> STRIPE_SHIFT;
+
+        locks[stripe].lock();
+        try {
+            MappedByteBuffer buffer = mapping.buffer;
+            int slot = findSlot(buffer, stripe, hash, keyBytes);
+            if (slot < 0) {
+                return;
+            }
+            stamps.incrementAndGet(stripe);
+            deadBytes.addAndGet(recordSize(buffer, buffer.getInt(slot + 4)));
+            buffer.putInt(slot + 4, TOMBSTONE);
+            liveSlots[stripe]--;
+            stamps.incrementAndGet(stripe);
+        } finally {
+            locks[stripe].unlock();
+        }
+        rewriteIfWasteful();
+    }
+
+    @Override
+    public Map<String, String> getAll() {
+        Map<String, String> all = new HashMap<>();
+        Map<String, String> stripeEntries = new HashMap<>();
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            for (; ; ) {
+                int stamp = stamps.get(stripe);
+                if ((stamp & 1) == 0) {
+                    stripeEntries.clear();
+                    try {
+                        readStripe(mapping.buffer, stripe, stripeEntries);
+                        if (stamps.get(stripe) == stamp) {
+                            break;
+                        }
+                    } catch (RuntimeException e) {
+                        // torn by a writer, read it again
+                    }
+                }
+                Thread.yield();
+            }
+            all.putAll(stripeEntries);
+        }
+        return Collections.unmodifiableMap(all);
+    }
+
+    @Override
+    public void clear() {
+        lockAll();
+        try {
+            rewrite(Collections.<String, String>emptyMap());
+        } catch (IOException e) {
+            EFLogger.d(TAG, "Failed to clear the store", e);
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /***
+     * Forces the changes to the storage device.
+     */
+    public void flush() {
+        mapping.buffer.force();
+    }
+
+    /***
+     * @return size of the mapped file
+     */
+    public long getFileLength() {
+        return mapping.size;
+    }
+
+    // guarded by the lock of the stripe; returns the position of the slot of the key, -1 if it's missing
+    private static int findSlot(MappedByteBuffer buffer, int stripe, int hash, byte[] key) {
+        int table = buffer.getInt(16 + stripe * 4);
+        int capacity = buffer.getInt(table);
+        int mask = capacity - 1;
+        for (int i = 0, index = hash & mask; i < capacity; i++, index = (index + 1) & mask) {
+            int slot = table + TABLE_HEADER_SIZE + index * SLOT_SIZE;
+            int record = buffer.getInt(slot + 4);
+            if (record == EMPTY) {
+                return -1;
+            }
+            if (record != TOMBSTONE && buffer.getInt(slot) == hash && keyEquals(buffer, record, key)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    // guarded by the lock of the stripe, the key is known to be missing
+    private void insert(int stripe, int hash, int record) {
+        MappedByteBuffer buffer = mapping.buffer;
+        int capacity = buffer.getInt(buffer.getInt(16 + stripe * 4));
+        if ((usedSlots[stripe] + 1) * 4 > capacity * 3) {
+            // grows if the live keys need it, otherwise it just drops the tombstones
+            resizeTable(stripe, (liveSlots[stripe] + 1) * 2 > capacity ? capacity * 2 : capacity);
+            buffer = mapping.buffer;
+        }
+
+        int table = buffer.getInt(16 + stripe * 4);
+        int mask = buffer.getInt(table) - 1;
+        int index = hash & mask;
+        int slot;
+        int current;
+        for (; ; index = (index + 1) & mask) {
+            slot = table + TABLE_HEADER_SIZE + index * SLOT_SIZE;
+            current = buffer.getInt(slot + 4);
+            if (current == EMPTY || current == TOMBSTONE) {
+                break;
+            }
+        }
+        if (current == EMPTY) {
+            usedSlots[stripe]++;
+        }
+        liveSlots[stripe]++;
+        buffer.putInt(slot, hash);
+        buffer.putInt(slot + 4, record); // publishes the slot
+    }
+
+    // guarded by the lock of the stripe
+    private void resizeTable(int stripe, int newCapacity) {
+        int newTable = allocate(TABLE_HEADER_SIZE + newCapacity * SLOT_SIZE);
+        MappedByteBuffer buffer = mapping.buffer;
+        for (int i = newTable; i < newTable + TABLE_HEADER_SIZE + newCapacity * SLOT_SIZE; i += 4) {
+            buffer.putInt(i, 0); // the space may hold the garbage of a crash
+        }
+        buffer.putInt(newTable, newCapacity);
+
+        int table = buffer.getInt(16 + stripe * 4);
+        int capacity = buffer.getInt(table);
+        int mask = newCapacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            int slot = table + TABLE_HEADER_SIZE + i * SLOT_SIZE;
+            int record = buffer.getInt(slot + 4);
+            if (record == EMPTY || record == TOMBSTONE) {
+                continue;
+            }
+            int hash = buffer.getInt(slot);
+            int index = hash & mask;
+            while (buffer.getInt(newTable + TABLE_HEADER_SIZE + index * SLOT_SIZE + 4) != EMPTY) {
+                index = (index + 1) & mask;
+            }
+            buffer.putInt(newTable + TABLE_HEADER_SIZE + index * SLOT_SIZE, hash);
+            buffer.putInt(newTable + TABLE_HEADER_SIZE + index * SLOT_SIZE + 4, record);
+        }
+
+        buffer.putInt(16 + stripe * 4, newTable); // publishes the table
+        deadBytes.addAndGet(align(TABLE_HEADER_SIZE + capacity * SLOT_SIZE));
+        usedSlots[stripe] = liveSlots[stripe];
+    }
+
+    private int allocate(int size) {
+        size = align(size);
+        long offset = dataEnd.getAndAdd(size);
+        if (offset + size > Integer.MAX_VALUE) {
+            dataEnd.addAndGet(-size);
+            throw new IllegalStateException("The store is full: " + file);
+        }
+        ensureMapped(offset + size);
+        return (int) offset;
+    }
+
+    private void ensureMapped(long end) {
+        if (end <= mapping.size) {
+            return;
+        }
+        synchronized (growLock) {
+            Mapping current = mapping;
+            if (end <= current.size) {
+                return;
+            }
+            long newSize = Math.min(Math.max(current.size * 2, end), Integer.MAX_VALUE);
+            try {
+                current.file.setLength(newSize);
+                // the older mapping stays valid, the writers and readers still using it see the same pages
+                mapping = new Mapping(current.file, newSize);
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to grow " + file, e);
+            }
+        }
+    }
+
+    private void rewriteIfWasteful() {
+        long dead = deadBytes.get();
+        if (dead < MIN_REWRITE_BYTES || dead * 2 < dataEnd.get() || !rewriting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            lockAll();
+            try {
+                Map<String, String> entries = new HashMap<>();
+                for (int stripe = 0; stripe < STRIPES; stripe++) {
+                    readStripe(mapping.buffer, stripe, entries);
+                }
+                long before = mapping.size;
+                rewrite(entries);
+                EFLogger.d(TAG, "store rewritten from " + before + " to " + mapping.size + " bytes");
+            } finally {
+                unlockAll();
+            }
+        } catch (IOException e) {
+            EFLogger.d(TAG, "Failed to rewrite the store", e);
+        } finally {
+            rewriting.set(false);
+        }
+    }
+
+    private void lockAll() {
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            locks[stripe].lock();
+            stamps.incrementAndGet(stripe);
+        }
+    }
+
+    private void unlockAll() {
+        for (int stripe = STRIPES - 1; stripe >= 0; stripe--) {
+            stamps.incrementAndGet(stripe);
+            locks[stripe].unlock();
+        }
+    }
+
+    // guarded by all the locks; writes the entries to a new file which then replaces the current one
+    private void rewrite(Map<String, String> entries) throws IOException {
+        int[] counts = new int[STRIPES];
+        long size = HEADER_SIZE;
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            counts[hash(entry.getKey()) >>> STRIPE_SHIFT]++;
+            size += align(RECORD_HEADER_SIZE + entry.getKey().getBytes(UTF_8).length
+                    + entry.getValue().getBytes(UTF_8).length);
+        }
+        int[] capacities = new int[STRIPES];
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            int capacity = MIN_TABLE_CAPACITY;
+            while (counts[stripe] * 2 > capacity) {
+                capacity *= 2;
+            }
+            capacities[stripe] = capacity;
+            size += align(TABLE_HEADER_SIZE + capacity * SLOT_SIZE);
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Too many entries for " + file);
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(rewriteFile, "rw");
+        Mapping rewritten;
+        try {
+            long fileSize = INITIAL_FILE_SIZE;
+            while (fileSize < size * 2 && fileSize < Integer.MAX_VALUE) {
+                fileSize *= 2;
+            }
+            fileSize = Math.min(fileSize, Integer.MAX_VALUE);
+            raf.setLength(0);
+            raf.setLength(fileSize);
+            rewritten = new Mapping(raf, fileSize);
+        } catch (IOException e) {
+            IOUtils.closeSilently(raf);
+            rewriteFile.delete();
+            throw e;
+        }
+
+        MappedByteBuffer buffer = rewritten.buffer;
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, STRIPES);
+        int end = HEADER_SIZE;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            buffer.putInt(16 + stripe * 4, end);
+            buffer.putInt(end, capacities[stripe]);
+            end += align(TABLE_HEADER_SIZE + capacities[stripe] * SLOT_SIZE);
+        }
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            byte[] keyBytes = entry.getKey().getBytes(UTF_8);
+            byte[] valueBytes = entry.getValue().getBytes(UTF_8);
+            int record = end;
+            buffer.putInt(record, keyBytes.length);
+            buffer.putInt(record + 4, valueBytes.length);
+            putBytes(buffer, record + RECORD_HEADER_SIZE, keyBytes);
+            putBytes(buffer, record + RECORD_HEADER_SIZE + keyBytes.length, valueBytes);
+            end += align(RECORD_HEADER_SIZE + keyBytes.length + valueBytes.length);
+
+            int hash = hash(entry.getKey());
+            int table = buffer.getInt(16 + (hash >>> STRIPE_SHIFT) * 4);
+            int mask = buffer.getInt(table) - 1;
+            int index = hash & mask;
+            while (buffer.getInt(table + TABLE_HEADER_SIZE + index * SLOT_SIZE + 4) != EMPTY) {
+                index = (index + 1) & mask;
+            }
+            buffer.putInt(table + TABLE_HEADER_SIZE + index * SLOT_SIZE, hash);
+            buffer.putInt(table + TABLE_HEADER_SIZE + index * SLOT_SIZE + 4, record);
+        }
+        buffer.force();
+
+        if (!rewriteFile.renameTo(file)) {
+            IOUtils.closeSilently(raf);
+            rewriteFile.delete();
+            throw new IOException("Failed to replace " + file);
+        }
+        Mapping old = mapping;
+        mapping = rewritten;
+        if (old != null) {
+            IOUtils.closeSilently(old.file); // the readers still using the old mapping can finish
+        }
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            usedSlots[stripe] = counts[stripe];
+            liveSlots[stripe] = counts[stripe];
+        }
+        dataEnd.set(end);
+        deadBytes.set(0);
+    }
+
+    // maps the existing file and restores the counters, returns false if there is no valid file
+    private boolean open() throws IOException {
+        if (!file.exists() || file.length() < HEADER_SIZE) {
+            return false;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        Mapping opened = new Mapping(raf, Math.min(raf.length(), Integer.MAX_VALUE));
+        MappedByteBuffer buffer = opened.buffer;
+        try {
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != STRIPES) {
+                EFLogger.w(TAG, "Unknown store format, starting over: " + file);
+                IOUtils.closeSilently(raf);
+                return false;
+            }
+
+            long end = HEADER_SIZE;
+            long liveBytes = HEADER_SIZE;
+            for (int stripe = 0; stripe < STRIPES; stripe++) {
+                int table = buffer.getInt(16 + stripe * 4);
+                int capacity = buffer.getInt(table);
+                if (capacity < MIN_TABLE_CAPACITY || Integer.bitCount(capacity) != 1) {
+                    throw new IllegalStateException("Broken table of stripe " + stripe);
+                }
+                int tableSize = align(TABLE_HEADER_SIZE + capacity * SLOT_SIZE);
+                end = Math.max(end, (long) table + tableSize);
+                liveBytes += tableSize;
+                for (int i = 0; i < capacity; i++) {
+                    int record = buffer.getInt(table + TABLE_HEADER_SIZE + i * SLOT_SIZE + 4);
+                    if (record == EMPTY) {
+                        continue;
+                    }
+                    usedSlots[stripe]++;
+                    if (record == TOMBSTONE) {
+                        continue;
+                    }
+                    liveSlots[stripe]++;
+                    int recordSize = recordSize(buffer, record);
+                    end = Math.max(end, (long) record + recordSize);
+                    liveBytes += recordSize;
+                }
+            }
+            if (end > opened.size) {
+                throw new IllegalStateException("Offset beyond the end of file");
+            }
+            mapping = opened;
+            dataEnd.set(end);
+            deadBytes.set(end - liveBytes);
+            return true;
+        } catch (RuntimeException e) {
+            EFLogger.w(TAG, "Broken store, starting over: " + file + ", " + e);
+            IOUtils.closeSilently(raf);
+            Arrays.fill(usedSlots, 0);
+            Arrays.fill(liveSlots, 0);
+            return false;
+        }
+    }
+
+    private static void readStripe(MappedByteBuffer buffer, int stripe, Map<String, String> out) {
+        int table = buffer.getInt(16 + stripe * 4);
+        int capacity = buffer.getInt(table);
+        for (int i = 0; i < capacity; i++) {
+            int record = buffer.getInt(table + TABLE_HEADER_SIZE + i * SLOT_SIZE + 4);
+            if (record != EMPTY && record != TOMBSTONE) {
+                out.put(new String(getBytes(buffer, record + RECORD_HEADER_SIZE, buffer.getInt(record)), UTF_8),
+                        readValue(buffer, record));
+            }
+        }
+    }
+
+    private static String readValue(MappedByteBuffer buffer, int record) {
+        int keyLength = buffer.getInt(record);
+        return new String(getBytes(buffer, record + RECORD_HEADER_SIZE + keyLength, buffer.getInt(record + 4)),
+                UTF_8);
+    }
+
+    private static boolean keyEquals(MappedByteBuffer buffer, int record, byte[] key) {
+        if (buffer.getInt(record) != key.length) {
+            return false;
+        }
+        int offset = record + RECORD_HEADER_SIZE;
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(offset + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int recordSize(MappedByteBuffer buffer, int record) {
+        return align(RECORD_HEADER_SIZE + buffer.getInt(record) + buffer.getInt(record + 4));
+    }
+
+    private static byte[] getBytes(MappedByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return bytes;
+    }
+
+    private static void putBytes(MappedByteBuffer buffer, int offset, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            buffer.put(offset + i, bytes[i]);
+        }
+    }
+
+    private static int align(int size) {
+        return (size + 7) & ~7;
+    }
+
+    // String.hashCode() is specified, so the hashes stay valid in the file across the runs
+    private static int hash(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static final class Mapping {
+        final RandomAccessFile file;
+        final MappedByteBuffer buffer;
+        final long size;
+
+        Mapping(RandomAccessFile file, long size) throws IOException {
+            this.file = file;
+            this.size = size;
+            this.buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+}
@@ -1,4 +1,3 @@
-
 /*
  * Copyright (c) 2015 rayworks
  * Licensed under the Apache License, Version 2.0 (the "License");
@@ -16,31 +15,198 @@
 
 package org.rayworks.network.storage;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.rayworks.network.storage.codec.CodecRegistry;
+import org.rayworks.network.util.EFLogger;
 
 /***
- * Persist the lastModified timestamp of the current downloading files 
+ * Persist the state of the current downloading files, one {@link DownloadRecord} per url. The keys are namespaced, so
+ * the given store may be shared with other data, which is never touched.
  * @author Sean
  *
  */
 public class SyncStateStore {
-	
+    private static final String TAG = SyncStateStore.class.getSimpleName();
+
+    static final String SYNC_RECORD_PREFIX = "sss_#record#";
+
+    // the keys of the older versions, they are migrated into the records on the first access
     private static final String SYNC_FILESTAMP_PREFIX = "sss_#filestamp#";
+    private static final String SYNC_DIGEST_PREFIX = "sss_#digest#";
 
-    private KeyValueStore store;
+    private final KeyValueStore store;
+    private final CodecRegistry codecs = new CodecRegistry()
+            .register(DownloadRecord.TYPE_ID, DownloadRecord.class, DownloadRecord.CODEC);
+    private volatile boolean migrated;
 
-	public SyncStateStore(KeyValueStore store) {
+    public SyncStateStore(KeyValueStore store) {
         this.store = store;
-	}
-	
+    }
+
+    /***
+     * @param url
+     * @return a copy of the record, null if there is none
+     */
+    public DownloadRecord getRecord(String url) {
+        ensureMigrated();
+        String encoded = store.get(SYNC_RECORD_PREFIX + url);
+        if (encoded == null) {
+            return null;
+        }
+        try {
+            if (CodecRegistry.isBinary(encoded)) {
+                return codecs.decode(encoded, DownloadRecord.class);
+            }
+        } catch (IllegalArgumentException e) {
+            // fall through
+        }
+        // left as it is, the next record of the url replaces it
+        EFLogger.w(TAG, "Ignoring the broken record of " + url);
+        return null;
+    }
+
+    /***
+     * @return the record of the url, a new one if there is none yet
+     */
+    public DownloadRecord getOrCreateRecord(String url) {
+        DownloadRecord record = getRecord(url);
+        return record != null ? record : new DownloadRecord(url);
+    }
+
+    /***
+     * Stores the whole record with a single write
+     */
+    public void putRecord(DownloadRecord record) {
+        ensureMigrated();
+        record.setUpdatedAt(System.currentTimeMillis());
+        store.save(record.getStoreKey(), codecs.encode(record));
+    }
+
+    public void removeRecord(String url) {
+        ensureMigrated();
+        store.remove(SYNC_RECORD_PREFIX + url);
+    }
+
+    /***
+     * Removes the record by the key it was loaded or created with
+     */
+    public void removeRecord(DownloadRecord record) {
+        ensureMigrated();
+        store.remove(record.getStoreKey());
+    }
+
+    /***
+     * @deprecated use {@link DownloadRecord#setLastModified(String)}, each call costs a read and a write
+     */
+    @Deprecated
     public void setDownloadedFileStamp(String targetDir, String lastModifiedString) {
-        store.save(SYNC_FILESTAMP_PREFIX + targetDir, lastModifiedString);
+        DownloadRecord record = getOrCreateRecord(targetDir);
+        record.setLastModified(lastModifiedString);
+        putRecord(record);
     }
 
+    /***
+     * @deprecated use {@link #getRecord(String)}
+     */
+    @Deprecated
     public String getDownloadedFileStamp(String targetDir) {
-        return store.get(SYNC_FILESTAMP_PREFIX + targetDir);
+        DownloadRecord record = getRecord(targetDir);
+        return record == null ? null : record.getLastModified();
+    }
+
+    /***
+     * @deprecated use {@link #removeRecord(String)}
+     */
+    @Deprecated
+    public void removeDownloadedFileStamp(String targetDir) {
+        DownloadRecord record = getRecord(targetDir);
+        if (record != null) {
+            record.setLastModified(null);
+            putRecord(record);
+        }
+    }
+
+    /**
+     * Persists the intermediate digest state of a partially downloaded file
+     * @deprecated use {@link DownloadRecord#setDigestState(String)}, each call costs a read and a write
+     */
+    @Deprecated
+    public void setDigestState(String targetDir, String digestState) {
+        DownloadRecord record = getOrCreateRecord(targetDir);
+        record.setDigestState(digestState);
+        putRecord(record);
+    }
+
+    /***
+     * @deprecated use {@link #getRecord(String)}
+     */
+    @Deprecated
+    public String getDigestState(String targetDir) {
+        DownloadRecord record = getRecord(targetDir);
+        return record == null ? null : record.getDigestState();
+    }
+
+    /***
+     * @deprecated use {@link DownloadRecord#setDigestState(String)}
+     */
+    @Deprecated
+    public void removeDigestState(String targetDir) {
+        DownloadRecord record = getRecord(targetDir);
+        if (record != null) {
+            record.setDigestState(null);
+            putRecord(record);
+        }
+    }
+
+    private void ensureMigrated() {
+        if (migrated) {
+            return;
+        }
+        synchronized (this) {
+            if (migrated) {
+                return;
+            }
+            Map<String, String> all = store.getAll();
+            if (all != null) {
+                Map<String, DownloadRecord> records = new HashMap<>();
+                List<String> legacyKeys = new ArrayList<>();
+                for (Map.Entry<String, String> entry : all.entrySet()) {
+                    String key = entry.getKey();
+                    if (key.startsWith(SYNC_FILESTAMP_PREFIX)) {
+                        legacyRecord(records, key.substring(SYNC_FILESTAMP_PREFIX.length()))
+                                .setLastModified(entry.getValue());
+                    } else if (key.startsWith(SYNC_DIGEST_PREFIX)) {
+                        legacyRecord(records, key.substring(SYNC_DIGEST_PREFIX.length()))
+                                .setDigestState(entry.getValue());
+                    } else {
+                        continue;
+                    }
+                    legacyKeys.add(key);
+                }
+                for (DownloadRecord record : records.values()) {
+                    store.save(record.getStoreKey(), codecs.encode(record));
+                }
+                for (String key : legacyKeys) {
+                    store.remove(key);
+                }
+                if (!records.isEmpty()) {
+                    EFLogger.d(TAG, "Migrated the state of " + records.size() + " downloads");
+                }
+            }
+            migrated = true;
+        }
     }
 
-    public void removeDownloadedFileStamp(String targetDir){
-        store.remove(SYNC_FILESTAMP_PREFIX + targetDir);
+    private static DownloadRecord legacyRecord(Map<String, DownloadRecord> records, String url) {
+        DownloadRecord record = records.get(url);
+        if (record == null) {
+            record = new DownloadRecord(url);
+            records.put(url, record);
+        }
+        return record;
     }
 }
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.storage.codec;
+
+import java.nio.charset.Charset;
+
+/**
+ * Reads what {@link BinaryWriter} writes, straight from the chars of the stored string.
+ */
+public final class BinaryReader {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String encoded;
+    private int position;
+
+    BinaryReader(String encoded, int position) {
+        this.encoded = encoded;
+        this.position = position;
+    }
+
+    public boolean readBoolean() {
+        return readByte() != 0;
+    }
+
+    public int readByte() {
+        if (position >= encoded.length()) {
+            throw new IllegalArgumentException("Truncated record");
+        }
+        return encoded.charAt(position++) & 0xff;
+    }
+
+    public int readVarInt() {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    public long readVarLong() {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    public long readZigZagLong() {
+        long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public String readString() {
+        int length = readVarInt() - 1;
+        if (length < 0) {
+            return null;
+        }
+        if (length > encoded.length() - position) {
+            throw new IllegalArgumentException("Truncated record");
+        }
+
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            char c = encoded.charAt(position + i);
+            if (c >= 0x80) {
+                return readUtf8(length); // not ASCII only
+            }
+            chars[i] = c;
+        }
+        position += length;
+        return new String(chars);
+    }
+
+    /***
+     * @return whether the whole record is read, the fields appended by a newer version are left otherwise
+     */
+    public boolean isAtEnd() {
+        return position >= encoded.length();
+    }
+
+    private String readUtf8(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) encoded.charAt(position + i);
+        }
+        position += length;
+        return new String(bytes, UTF_8);
+    }
+}
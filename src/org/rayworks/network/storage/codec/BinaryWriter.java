@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.storage.codec;
+
+import java.util.Arrays;
+
+/**
+ * Writes varints, zigzag varints and length-prefixed UTF-8 strings. The bytes are kept as the chars 0-255 of a
+ * string, so that the record goes to a {@link org.rayworks.network.storage.KeyValueStore} without another copy.
+ */
+public final class BinaryWriter {
+    private char[] buf = new char[64];
+    private int count;
+
+    public BinaryWriter writeBoolean(boolean value) {
+        return writeByte(value ? 1 : 0);
+    }
+
+    public BinaryWriter writeByte(int value) {
+        ensureCapacity(1);
+        buf[count++] = (char) (value & 0xff);
+        return this;
+    }
+
+    /***
+     * Writes an unsigned varint, 1 byte up to 127 and 5 bytes at most.
+     */
+    public BinaryWriter writeVarInt(int value) {
+        ensureCapacity(5);
+        while ((value & ~0x7f) != 0) {
+            buf[count++] = (char) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buf[count++] = (char) value;
+        return this;
+    }
+
+    /***
+     * Writes an unsigned varint, 10 bytes at most.
+     */
+    public BinaryWriter writeVarLong(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7fL) != 0) {
+            buf[count++] = (char) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buf[count++] = (char) value;
+        return this;
+    }
+
+    /***
+     * Writes a varint whose size depends on the magnitude of the value, -1 takes 1 byte as well.
+     */
+    public BinaryWriter writeZigZagLong(long value) {
+        return writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    /***
+     * @param value null-ok
+     */
+    public BinaryWriter writeString(String value) {
+        if (value == null) {
+            return writeVarInt(0);
+        }
+
+        int length = value.length();
+        int utf8Length = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                utf8Length++;
+            } else if (c < 0x800) {
+                utf8Length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                utf8Length += 4;
+                i++;
+            } else {
+                utf8Length += 3;
+            }
+        }
+
+        writeVarInt(utf8Length + 1); // 0 for null
+        ensureCapacity(utf8Length);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buf[count++] = c;
+            } else if (c < 0x800) {
+                buf[count++] = (char) (0xc0 | (c >> 6));
+                buf[count++] = (char) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buf[count++] = (char) (0xf0 | (codePoint >> 18));
+                buf[count++] = (char) (0x80 | ((codePoint >> 12) & 0x3f));
+                buf[count++] = (char) (0x80 | ((codePoint >> 6) & 0x3f));
+                buf[count++] = (char) (0x80 | (codePoint & 0x3f));
+            } else {
+                // an unpaired surrogate is kept as it is, like the modified UTF-8 of DataOutput does
+                buf[count++] = (char) (0xe0 | (c >> 12));
+                buf[count++] = (char) (0x80 | ((c >> 6) & 0x3f));
+                buf[count++] = (char) (0x80 | (c & 0x3f));
+            }
+        }
+        return this;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public void reset() {
+        count = 0;
+    }
+
+    /***
+     * @return the bytes written as the chars 0-255 of a string
+     */
+    public String toEncodedString() {
+        return new String(buf, 0, count);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (count + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + extra));
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.storage.codec;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.lang.reflect.Type;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.gson.Gson;
+
+/**
+ * Encodes the objects stored in a {@link org.rayworks.network.storage.KeyValueStore}, with the {@link ObjectCodec}
+ * registered for their type, or as JSON by Gson otherwise.
+ * <p>
+ * A binary record starts with a NUL char, which JSON never does, followed by the varint type id and codec version.
+ * The records written as JSON before a codec was registered are still read by Gson.
+ * </p>
+ */
+public final class CodecRegistry {
+    static final char BINARY_MARKER = '\u0000';
+
+    private final Map<Class<?>, Registration<?>> byClass = new ConcurrentHashMap<>();
+    private final Map<Integer, Registration<?>> byTypeId = new ConcurrentHashMap<>();
+    private final Gson gson = new Gson();
+
+    private final ThreadLocal<BinaryWriter> writers = new ThreadLocal<BinaryWriter>() {
+        @Override
+        protected BinaryWriter initialValue() {
+            return new BinaryWriter();
+        }
+    };
+
+    /***
+     * @param typeId stored in every record, it must never change for the type
+     * @param cls    the exact class, subclasses are not covered
+     * @param codec
+     * @return this registry
+     */
+    public synchronized <T> CodecRegistry register(int typeId, Class<T> cls, ObjectCodec<T> codec) {
+        checkArgument(typeId >= 0, "typeId should not be negative");
+        checkArgument(codec.getVersion() > 0, "the codec version should start at 1");
+        checkArgument(!byTypeId.containsKey(typeId), "typeId %s is already registered", typeId);
+        checkArgument(!byClass.containsKey(cls), "%s is already registered", cls);
+
+        Registration<T> registration = new Registration<>(typeId, codec);
+        byClass.put(cls, registration);
+        byTypeId.put(typeId, registration);
+        return this;
+    }
+
+    public boolean isRegistered(Class<?> cls) {
+        return byClass.containsKey(cls);
+    }
+
+    public String encode(Object object) {
+        checkNotNull(object);
+        @SuppressWarnings("unchecked")
+        Registration<Object> registration = (Registration<Object>) byClass.get(object.getClass());
+        if (registration == null) {
+            return gson.toJson(object);
+        }
+
+        BinaryWriter writer = writers.get();
+        writer.reset();
+        writer.writeByte(BINARY_MARKER)
+                .writeVarInt(registration.typeId)
+                .writeVarInt(registration.codec.getVersion());
+        registration.codec.encode(object, writer);
+        return writer.toEncodedString();
+    }
+
+    /***
+     * @param encoded
+     * @param cls
+     * @return the object, null if encoded is null
+     * @throws IllegalArgumentException if the record is broken or of another type
+     */
+    public <T> T decode(String encoded, Class<T> cls) {
+        if (encoded == null || !isBinary(encoded)) {
+            return gson.fromJson(encoded, cls);
+        }
+        Object object = decodeBinary(encoded);
+        checkArgument(cls.isInstance(object), "%s is not a %s", object.getClass(), cls);
+        return cls.cast(object);
+    }
+
+    /***
+     * @see #decode(String, Class)
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T decode(String encoded, Type type) {
+        if (encoded == null || !isBinary(encoded)) {
+            return gson.fromJson(encoded, type);
+        }
+        return (T) decodeBinary(encoded);
+    }
+
+    /***
+     * @return the object of a binary record, a JSON record is returned as it is
+     */
+    public Object decode(String encoded) {
+        return encoded == null || !isBinary(encoded) ? encoded : decodeBinary(encoded);
+    }
+
+    public static boolean isBinary(String encoded) {
+        return !encoded.isEmpty() && encoded.charAt(0) == BINARY_MARKER;
+    }
+
+    private Object decodeBinary(String encoded) {
+        BinaryReader reader = new BinaryReader(encoded, 1);
+        int typeId = reader.readVarInt();
+        int version = reader.readVarInt();
+        Registration<?> registration = byTypeId.get(typeId);
+        checkArgument(registration != null, "No codec registered for type %s", typeId);
+        return registration.codec.decode(reader, version);
+    }
+
+    private static final class Registration<T> {
+        final int typeId;
+        final ObjectCodec<T> codec;
+
+        Registration(int typeId, ObjectCodec<T> codec) {
+            this.typeId = typeId;
+            this.codec = codec;
+        }
+    }
+}
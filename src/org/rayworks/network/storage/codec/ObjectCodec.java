@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.storage.codec;
+
+/**
+ * Writes the fields of an object of a registered type, see {@link CodecRegistry#register(int, Class, ObjectCodec)}.
+ * <p>
+ * The fields are not tagged, so a codec evolves by its version: a new version appends fields and its
+ * {@link #decode(BinaryReader, int)} still reads the records written by the older versions.
+ * </p>
+ *
+ * @param <T> the type
+ */
+public interface ObjectCodec<T> {
+    /***
+     * @return the version written along with every record, starting at 1
+     */
+    int getVersion();
+
+    void encode(T object, BinaryWriter out);
+
+    /***
+     * @param in
+     * @param version the version the record was written with. It's newer than {@link #getVersion()} after a
+     *                downgrade, the fields appended by that version are then left unread.
+     * @return the object
+     */
+    T decode(BinaryReader in, int version);
+}
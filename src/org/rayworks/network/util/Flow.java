@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rayworks.network.util;
+
+/**
+ * The interfaces of the reactive streams, the same as {@code java.util.concurrent.Flow} which isn't available on the
+ * platforms we target. A subscriber is sent no more {@link Subscriber#onNext(Object)} than it has requested, and the
+ * signals to a subscriber are never concurrent.
+ */
+public final class Flow {
+    private Flow() {
+    }
+
+    public interface Publisher<T> {
+        /***
+         * Adds the subscriber, {@link Subscriber#onSubscribe(Subscription)} is called before any other signal.
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    public interface Subscriber<T> {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T item);
+
+        void onError(Throwable throwable);
+
+        void onComplete();
+    }
+
+    public interface Subscription {
+        /***
+         * Adds the demand of n items, a non-positive n fails the subscription with an
+         * {@link IllegalArgumentException}.
+         */
+        void request(long n);
+
+        /***
+         * Stops the signals, some may still arrive for a while
+         */
+        void cancel();
+    }
+}
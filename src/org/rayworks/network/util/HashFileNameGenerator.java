@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.util;
+
+/**
+ * Names the file as the 128-bit MurmurHash3 (x64 variant, seed 0) of the UTF-8 bytes of the URI, written as 32
+ * lowercase hex digits. The hash is the same as the one of guava's {@code Hashing.murmur3_128()}.
+ * <p>
+ * It's much cheaper than {@link Md5FileNameGenerator}: the URI is encoded into a per thread buffer and hashed in
+ * place, so the returned string is the only allocation for the common URI lengths.
+ * </p>
+ */
+public class HashFileNameGenerator implements FileNameGenerator {
+    /***
+     * Every generated name has exactly this length
+     */
+    public static final int NAME_LENGTH = 32;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final int MAX_RETAINED_BUFFER_SIZE = 8 * 1024;
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    private static final class Buffers {
+        byte[] bytes = new byte[512];
+        final char[] chars = new char[NAME_LENGTH];
+    }
+
+    @Override
+    public String generate(String imageUri) {
+        Buffers buffers = BUFFERS.get();
+
+        byte[] bytes = buffers.bytes;
+        int maxLength = imageUri.length() * 3;
+        if (maxLength > bytes.length) {
+            bytes = new byte[maxLength];
+            if (maxLength <= MAX_RETAINED_BUFFER_SIZE) {
+                buffers.bytes = bytes;
+            }
+        }
+
+        int length = encodeUtf8(imageUri, bytes);
+        return hash(bytes, length, buffers.chars);
+    }
+
+    /***
+     * Encodes the string like {@code String.getBytes("UTF-8")} does, an unpaired surrogate becomes '?'.
+     *
+     * @param s
+     * @param out at least 3 bytes per char of the string
+     * @return number of the encoded bytes
+     */
+    static int encodeUtf8(String s, byte[] out) {
+        int n = 0;
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out[n++] = (byte) c;
+            } else if (c < 0x800) {
+                out[n++] = (byte) (0xc0 | (c >> 6));
+                out[n++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                int codePoint = -1;
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    codePoint = Character.toCodePoint(c, s.charAt(++i));
+                }
+                if (codePoint < 0) {
+                    out[n++] = '?';
+                } else {
+                    out[n++] = (byte) (0xf0 | (codePoint >> 18));
+                    out[n++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                    out[n++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                    out[n++] = (byte) (0x80 | (codePoint & 0x3f));
+                }
+            } else {
+                out[n++] = (byte) (0xe0 | (c >> 12));
+                out[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                out[n++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return n;
+    }
+
+    @SuppressWarnings("fallthrough")
+    private static String hash(byte[] data, int length, char[] out) {
+        long h1 = 0;
+        long h2 = 0;
+
+        int blocks = length / 16;
+        for (int i = 0; i < blocks; i++) {
+            long k1 = getLong(data, i * 16);
+            long k2 = getLong(data, i * 16 + 8);
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        long k1 = 0;
+        long k2 = 0;
+        int tail = blocks * 16;
+        switch (length & 15) {
+            case 15: k2 ^= (long) (data[tail + 14] & 0xff) << 48; // fall through
+            case 14: k2 ^= (long) (data[tail + 13] & 0xff) << 40; // fall through
+            case 13: k2 ^= (long) (data[tail + 12] & 0xff) << 32; // fall through
+            case 12: k2 ^= (long) (data[tail + 11] & 0xff) << 24; // fall through
+            case 11: k2 ^= (long) (data[tail + 10] & 0xff) << 16; // fall through
+            case 10: k2 ^= (long) (data[tail + 9] & 0xff) << 8; // fall through
+            case 9:  k2 ^= (long) (data[tail + 8] & 0xff);
+                     h2 ^= mixK2(k2); // fall through
+            case 8:  k1 ^= (long) (data[tail + 7] & 0xff) << 56; // fall through
+            case 7:  k1 ^= (long) (data[tail + 6] & 0xff) << 48; // fall through
+            case 6:  k1 ^= (long) (data[tail + 5] & 0xff) << 40; // fall through
+            case 5:  k1 ^= (long) (data[tail + 4] & 0xff) << 32; // fall through
+            case 4:  k1 ^= (long) (data[tail + 3] & 0xff) << 24; // fall through
+            case 3:  k1 ^= (long) (data[tail + 2] & 0xff) << 16; // fall through
+            case 2:  k1 ^= (long) (data[tail + 1] & 0xff) << 8; // fall through
+            case 1:  k1 ^= (long) (data[tail] & 0xff);
+                     h1 ^= mixK1(k1); // fall through
+            default:
+                break;
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+
+        h1 += h2;
+        h2 += h1;
+
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+
+        h1 += h2;
+        h2 += h1;
+
+        writeHex(h1, out, 0);
+        writeHex(h2, out, 16);
+        return new String(out);
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * C2;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * C1;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static long getLong(byte[] data, int offset) {
+        return (data[offset] & 0xffL) | (data[offset + 1] & 0xffL) << 8 | (data[offset + 2] & 0xffL) << 16
+                | (data[offset + 3] & 0xffL) << 24 | (data[offset + 4] & 0xffL) << 32
+                | (data[offset + 5] & 0xffL) << 40 | (data[offset + 6] & 0xffL) << 48
+                | (data[offset + 7] & 0xffL) << 56;
+    }
+
+    // little endian, the byte order of guava's HashCode.toString()
+    private static void writeHex(long value, char[] out, int offset) {
+        for (int i = 0; i < 8; i++) {
+            int b = (int) (value >>> (8 * i)) & 0xff;
+            out[offset + i * 2] = HEX_DIGITS[b >>> 4];
+            out[offset + i * 2 + 1] = HEX_DIGITS[b & 0x0f];
+        }
+    }
+}
@@ -38,7 +38,30 @@ public final class IOUtils {
          * @param total   Total bytes for loading
          * @return <b>true</b> - if copying should be continued; <b>false</b> - if copying should be interrupted
          */
-        boolean onBytesCopied(int current, int total);
+        boolean onBytesCopied(long current, long total);
+    }
+
+    /**
+     * Adapter for the listeners written against the former int based callback.
+     * The values beyond {@link Integer#MAX_VALUE} are clamped.
+     */
+    public static abstract class IntCopyListener implements CopyListener {
+
+        @Override
+        public final boolean onBytesCopied(long current, long total) {
+            return onBytesCopied(clamp(current), clamp(total));
+        }
+
+        /**
+         * @param current Loaded bytes
+         * @param total   Total bytes for loading
+         * @return <b>true</b> - if copying should be continued; <b>false</b> - if copying should be interrupted
+         */
+        public abstract boolean onBytesCopied(int current, int total);
+
+        private static int clamp(long value) {
+            return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value));
+        }
     }
 
 
@@ -64,8 +87,18 @@ public final class IOUtils {
      */
     public static boolean copyStream(InputStream is, OutputStream os, CopyListener listener, int bufferSize, int totalSize)
             throws IOException {
-        int current = 0;
-        int total = totalSize;
+        return copyStream(is, os, listener, bufferSize, (long) totalSize);
+    }
+
+    /**
+     * Copies stream of any size, fires progress events by listener, can be interrupted by listener.
+     *
+     * @see #copyStream(InputStream, OutputStream, CopyListener, int, int)
+     */
+    public static boolean copyStream(InputStream is, OutputStream os, CopyListener listener, int bufferSize, long totalSize)
+            throws IOException {
+        long current = 0;
+        long total = totalSize;
 
         final byte[] bytes = new byte[bufferSize];
         int count;
@@ -79,7 +112,7 @@ public final class IOUtils {
         return true;
     }
 
-    private static boolean shouldStopLoading(CopyListener listener, int current, int total) {
+    private static boolean shouldStopLoading(CopyListener listener, long current, long total) {
         if (listener != null) {
             boolean shouldContinue = listener.onBytesCopied(current, total);
             return !shouldContinue;
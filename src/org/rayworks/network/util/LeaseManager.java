@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Mutual exclusion per key, e.g. per URL, without a global lock: the callers of equal keys share the same permit, the
+ * others never contend. The state of a key is reference counted and dropped once the last holder or waiter leaves, so
+ * the map only holds the keys in use.
+ * <pre>
+ * try (LeaseManager.Lease&lt;String&gt; lease = leases.acquire(url)) {
+ *     // exclusive for the url
+ * }
+ * </pre>
+ *
+ * @param <K> the key, compared by {@link Object#equals(Object)}
+ */
+public final class LeaseManager<K> {
+    private final ConcurrentMap<K, Slot<K>> slots = new ConcurrentHashMap<>();
+
+    /***
+     * Blocks until the key is free, then holds it.
+     *
+     * @param key
+     * @return the lease, {@link Lease#close()} it to leave
+     */
+    public Lease<K> acquire(K key) {
+        Slot<K> slot = retain(key);
+        slot.permit.acquireUninterruptibly();
+        return new Lease<>(this, slot);
+    }
+
+    /***
+     * @return the lease held, or null if the key is held by someone else
+     */
+    public Lease<K> tryAcquire(K key) {
+        Slot<K> slot = retain(key);
+        if (slot.permit.tryAcquire()) {
+            return new Lease<>(this, slot);
+        }
+        release(slot);
+        return null;
+    }
+
+    /***
+     * @return number of the keys held or waited for
+     */
+    public int size() {
+        return slots.size();
+    }
+
+    private Slot<K> retain(K key) {
+        for (; ; ) {
+            Slot<K> slot = slots.get(key);
+            if (slot == null) {
+                Slot<K> created = new Slot<>(key);
+                slot = slots.putIfAbsent(key, created);
+                if (slot == null) {
+                    slot = created;
+                }
+            }
+            if (slot.retain()) {
+                return slot;
+            }
+            // the last holder is removing it right now
+        }
+    }
+
+    private void release(Slot<K> slot) {
+        if (slot.references.decrementAndGet() == 0 && slot.references.compareAndSet(0, -1)) {
+            slots.remove(slot.key, slot);
+        }
+    }
+
+    /***
+     * A key held once, by one {@link #acquire(Object)} or {@link #tryAcquire(Object)}.
+     */
+    public static final class Lease<K> implements AutoCloseable {
+        private final LeaseManager<K> manager;
+        private final Slot<K> slot;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Lease(LeaseManager<K> manager, Slot<K> slot) {
+            this.manager = manager;
+            this.slot = slot;
+        }
+
+        public K getKey() {
+            return slot.key;
+        }
+
+        /***
+         * Leaves the key, the next waiter of it gets it. It needn't be called by the holder thread, e.g. an
+         * asynchronous operation hands it over to its completion. The calls after the first one do nothing.
+         */
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                slot.permit.release();
+                manager.release(slot);
+            }
+        }
+    }
+
+    // the state of a key, shared by its holder and waiters
+    private static final class Slot<K> {
+        private final K key;
+        private final Semaphore permit = new Semaphore(1); // not owned, any thread may close the lease
+        private final AtomicInteger references = new AtomicInteger(); // -1 once it's dropped
+
+        private Slot(K key) {
+            this.key = key;
+        }
+
+        private boolean retain() {
+            for (; ; ) {
+                int count = references.get();
+                if (count < 0) {
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+    }
+}
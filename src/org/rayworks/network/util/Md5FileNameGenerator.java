@@ -21,6 +21,10 @@ import java.security.NoSuchAlgorithmException;
 
 /**
  * Names image file as MD5 hash of image URI
+ * <p>
+ * It was the default naming of {@code DiskFileCache}, {@link HashFileNameGenerator} replaced it. The names depend on
+ * the platform charset and they are kept unchanged so that the existing entries can still be found.
+ * </p>
  *
  * @author Sergey Tarasevich (nostra13[at]gmail[dot]com)
  * @since 1.4.0
@@ -30,6 +34,18 @@ public class Md5FileNameGenerator implements FileNameGenerator {
 	private static final String HASH_ALGORITHM = "MD5";
 	private static final int RADIX = 10 + 26; // 10 digits + 26 letters
 
+	private static final ThreadLocal<MessageDigest> DIGESTS = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance(HASH_ALGORITHM);
+			} catch (NoSuchAlgorithmException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+	};
+
 	@Override
 	public String generate(String imageUri) {
 		byte[] md5 = getMD5(imageUri.getBytes());
@@ -38,15 +54,11 @@ public class Md5FileNameGenerator implements FileNameGenerator {
 	}
 
 	private byte[] getMD5(byte[] data) {
-		byte[] hash = null;
-		try {
-			MessageDigest digest = MessageDigest.getInstance(HASH_ALGORITHM);
-			digest.update(data);
-			hash = digest.digest();
-		} catch (NoSuchAlgorithmException e) {
-			//L.e(e);
-			e.printStackTrace();
+		MessageDigest digest = DIGESTS.get();
+		if (digest == null) {
+			return null;
 		}
-		return hash;
+		digest.reset();
+		return digest.digest(data);
 	}
 }
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Remembers the names of the recently used URIs, a download looks the same URI up several times.
+ */
+public class MemoizingFileNameGenerator implements FileNameGenerator {
+    private final FileNameGenerator delegate;
+    private final Cache<String, String> names;
+
+    /***
+     * @param delegate    generator of the names
+     * @param maximumSize the least recently used names are dropped beyond it
+     */
+    public MemoizingFileNameGenerator(FileNameGenerator delegate, int maximumSize) {
+        checkNotNull(delegate);
+        checkArgument(maximumSize > 0, "maximumSize should be positive");
+
+        this.delegate = delegate;
+        names = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .build();
+    }
+
+    @Override
+    public String generate(String imageUri) {
+        String name = names.getIfPresent(imageUri);
+        if (name == null) {
+            name = delegate.generate(imageUri);
+            names.put(imageUri, name);
+        }
+        return name;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.util;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * SHA-256 (FIPS 180-4) whose intermediate state can be exported, which {@link java.security.MessageDigest}
+ * doesn't allow.
+ */
+final class Sha256Digest extends StreamingDigest {
+    private static final int BLOCK_SIZE = 64;
+
+    private static final int[] K = {
+            0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+            0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+            0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+            0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+            0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+            0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+            0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+            0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    };
+
+    private static final int[] INITIAL_HASH = {
+            0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+
+    private final int[] hash = new int[8];
+    private final int[] w = new int[64];
+    private final byte[] block = new byte[BLOCK_SIZE];
+
+    Sha256Digest() {
+        super(SHA_256);
+        reset();
+    }
+
+    @Override
+    public void reset() {
+        System.arraycopy(INITIAL_HASH, 0, hash, 0, hash.length);
+        byteCount = 0;
+    }
+
+    @Override
+    public void update(byte[] buf, int offset, int len) {
+        int pending = (int) (byteCount % BLOCK_SIZE);
+        byteCount += len;
+
+        if (pending > 0) {
+            int n = Math.min(BLOCK_SIZE - pending, len);
+            System.arraycopy(buf, offset, block, pending, n);
+            offset += n;
+            len -= n;
+            if (pending + n < BLOCK_SIZE) {
+                return;
+            }
+            compress(block, 0);
+        }
+
+        while (len >= BLOCK_SIZE) {
+            compress(buf, offset);
+            offset += BLOCK_SIZE;
+            len -= BLOCK_SIZE;
+        }
+
+        if (len > 0) {
+            System.arraycopy(buf, offset, block, 0, len);
+        }
+    }
+
+    @Override
+    protected byte[] digest() {
+        long bitLength = byteCount * 8;
+        int pending = (int) (byteCount % BLOCK_SIZE);
+        int padLength = (pending < 56 ? 56 - pending : 120 - pending) + 8;
+
+        byte[] padding = new byte[padLength];
+        padding[0] = (byte) 0x80;
+        for (int i = 0; i < 8; i++) {
+            padding[padLength - 1 - i] = (byte) (bitLength >>> (8 * i));
+        }
+        update(padding, 0, padding.length);
+
+        byte[] out = new byte[32];
+        for (int i = 0; i < hash.length; i++) {
+            putInt(out, i * 4, hash[i]);
+        }
+        return out;
+    }
+
+    @Override
+    protected String exportState() {
+        byte[] raw = new byte[hash.length * 4 + (int) (byteCount % BLOCK_SIZE)];
+        for (int i = 0; i < hash.length; i++) {
+            putInt(raw, i * 4, hash[i]);
+        }
+        System.arraycopy(block, 0, raw, hash.length * 4, raw.length - hash.length * 4);
+        return BaseEncoding.base16().lowerCase().encode(raw);
+    }
+
+    @Override
+    protected boolean importState(String state, long count) {
+        byte[] raw = BaseEncoding.base16().lowerCase().decode(state);
+        int pending = (int) (count % BLOCK_SIZE);
+        if (raw.length != hash.length * 4 + pending) {
+            return false;
+        }
+        for (int i = 0; i < hash.length; i++) {
+            hash[i] = ((raw[i * 4] & 0xff) << 24) | ((raw[i * 4 + 1] & 0xff) << 16)
+                    | ((raw[i * 4 + 2] & 0xff) << 8) | (raw[i * 4 + 3] & 0xff);
+        }
+        System.arraycopy(raw, hash.length * 4, block, 0, pending);
+        return true;
+    }
+
+    private void compress(byte[] buf, int offset) {
+        for (int t = 0; t < 16; t++) {
+            int i = offset + t * 4;
+            w[t] = ((buf[i] & 0xff) << 24) | ((buf[i + 1] & 0xff) << 16) | ((buf[i + 2] & 0xff) << 8) | (buf[i + 3] & 0xff);
+        }
+        for (int t = 16; t < 64; t++) {
+            int s0 = Integer.rotateRight(w[t - 15], 7) ^ Integer.rotateRight(w[t - 15], 18) ^ (w[t - 15] >>> 3);
+            int s1 = Integer.rotateRight(w[t - 2], 17) ^ Integer.rotateRight(w[t - 2], 19) ^ (w[t - 2] >>> 10);
+            w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+        }
+
+        int a = hash[0], b = hash[1], c = hash[2], d = hash[3];
+        int e = hash[4], f = hash[5], g = hash[6], h = hash[7];
+
+        for (int t = 0; t < 64; t++) {
+            int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25);
+            int ch = (e & f) ^ (~e & g);
+            int temp1 = h + s1 + ch + K[t] + w[t];
+            int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22);
+            int maj = (a & b) ^ (a & c) ^ (b & c);
+            int temp2 = s0 + maj;
+
+            h = g;
+            g = f;
+            f = e;
+            e = d + temp1;
+            d = c;
+            c = b;
+            b = a;
+            a = temp1 + temp2;
+        }
+
+        hash[0] += a;
+        hash[1] += b;
+        hash[2] += c;
+        hash[3] += d;
+        hash[4] += e;
+        hash[5] += f;
+        hash[6] += g;
+        hash[7] += h;
+    }
+
+    private static void putInt(byte[] out, int offset, int value) {
+        out[offset] = (byte) (value >>> 24);
+        out[offset + 1] = (byte) (value >>> 16);
+        out[offset + 2] = (byte) (value >>> 8);
+        out[offset + 3] = (byte) value;
+    }
+}
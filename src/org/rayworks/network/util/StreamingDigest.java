@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.rayworks.network.util;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * A message digest which is fed chunk by chunk while the bytes are written to disk.
+ * <p>
+ * Digests of the "SHA-256" algorithm can export their intermediate state through {@link #saveState()}, so that
+ * a paused download is able to continue hashing from the break point. For any other algorithm supported by
+ * {@link MessageDigest} the state is not exportable and the already downloaded part has to be re-read once
+ * by {@link #catchUp(File, long)} when resuming.
+ * </p>
+ */
+public abstract class StreamingDigest {
+    public static final String SHA_256 = "SHA-256";
+
+    private static final String STATE_SEPARATOR = "|";
+
+    private final String algorithm;
+    protected long byteCount;
+
+    protected StreamingDigest(String algorithm) {
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Creates a digest for the specified algorithm
+     *
+     * @param algorithm name of the algorithm, e.g. "SHA-256", "MD5"
+     * @return a fresh digest
+     * @throws NoSuchAlgorithmException if the algorithm is not available
+     */
+    public static StreamingDigest create(String algorithm) throws NoSuchAlgorithmException {
+        if (SHA_256.equalsIgnoreCase(algorithm)) {
+            return new Sha256Digest();
+        }
+        return new JdkDigest(algorithm, MessageDigest.getInstance(algorithm));
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /***
+     * @return number of bytes hashed so far
+     */
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    public abstract void update(byte[] buf, int offset, int len);
+
+    /***
+     * Completes the computation. The digest should not be updated any more afterwards.
+     * @return hash value in lower case hex
+     */
+    public String digestHex() {
+        return BaseEncoding.base16().lowerCase().encode(digest());
+    }
+
+    protected abstract byte[] digest();
+
+    /***
+     * Drops all the bytes hashed so far
+     */
+    public abstract void reset();
+
+    /***
+     * Exports the intermediate state
+     * @return the state or <b>null</b> if the algorithm doesn't support it
+     */
+    public String saveState() {
+        String state = exportState();
+        if (state == null) {
+            return null;
+        }
+        return algorithm + STATE_SEPARATOR + byteCount + STATE_SEPARATOR + state;
+    }
+
+    /***
+     * Restores the state exported by {@link #saveState()}
+     * @param state
+     * @return <b>true</b> if the state was restored, otherwise the digest is reset.
+     */
+    public boolean restoreState(String state) {
+        reset();
+        if (state == null) {
+            return false;
+        }
+
+        String[] parts = state.split("\\" + STATE_SEPARATOR, 3);
+        if (parts.length != 3 || !algorithm.equalsIgnoreCase(parts[0])) {
+            return false;
+        }
+
+        try {
+            long count = Long.parseLong(parts[1]);
+            if (count >= 0 && importState(parts[2], count)) {
+                byteCount = count;
+                return true;
+            }
+        } catch (IllegalArgumentException e) {
+            EFLogger.d("StreamingDigest", "Bad digest state", e);
+        }
+        reset();
+        return false;
+    }
+
+    protected String exportState() {
+        return null;
+    }
+
+    protected boolean importState(String state, long count) {
+        return false;
+    }
+
+    /***
+     * Re-hashes the first <b>length</b> bytes of a partially downloaded file from scratch
+     * @param file
+     * @param length
+     * @throws IOException
+     */
+    public void catchUp(File file, long length) throws IOException {
+        reset();
+        if (length <= 0) {
+            return;
+        }
+
+        InputStream input = new BufferedInputStream(new FileInputStream(file));
+        try {
+            byte[] buf = new byte[8 * 1024];
+            long remaining = length;
+            int cnt;
+            while (remaining > 0 && (cnt = input.read(buf, 0, (int) Math.min(buf.length, remaining))) != -1) {
+                update(buf, 0, cnt);
+                remaining -= cnt;
+            }
+            if (remaining > 0) {
+                throw new IOException("Partial file is shorter than " + length);
+            }
+        } finally {
+            IOUtils.closeSilently(input);
+        }
+    }
+
+    private static final class JdkDigest extends StreamingDigest {
+        private final MessageDigest messageDigest;
+
+        JdkDigest(String algorithm, MessageDigest messageDigest) {
+            super(algorithm);
+            this.messageDigest = messageDigest;
+        }
+
+        @Override
+        public void update(byte[] buf, int offset, int len) {
+            messageDigest.update(buf, offset, len);
+            byteCount += len;
+        }
+
+        @Override
+        protected byte[] digest() {
+            return messageDigest.digest();
+        }
+
+        @Override
+        public void reset() {
+            messageDigest.reset();
+            byteCount = 0;
+        }
+    }
+}
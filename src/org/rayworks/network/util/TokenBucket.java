@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2015 rayworks
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.rayworks.network.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket: the callers reserve their permits with a compare-and-set on the time the bucket is
+ * drained until, and wait the returned delay themselves. Permits unused for a while accumulate up to
+ * {@link #BURST_NANOS} worth of the rate, so small chunks pass without any wait.
+ * <p>
+ * The rate can be changed at any time, the permits reserved already keep their former cost.
+ * </p>
+ */
+public final class TokenBucket {
+    public static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private volatile long permitsPerSecond;
+    private final AtomicLong drainedUntil = new AtomicLong(System.nanoTime());
+
+    /***
+     * @param permitsPerSecond 0 for no limit
+     */
+    public TokenBucket(long permitsPerSecond) {
+        setRate(permitsPerSecond);
+    }
+
+    /***
+     * @param permitsPerSecond 0 for no limit
+     */
+    public void setRate(long permitsPerSecond) {
+        checkArgument(permitsPerSecond >= 0, "the rate should not be negative");
+        this.permitsPerSecond = permitsPerSecond;
+    }
+
+    public long getRate() {
+        return permitsPerSecond;
+    }
+
+    /***
+     * Takes the permits, whether they're available or not.
+     *
+     * @param permits
+     * @return how long the caller should wait before using the permits in nanoseconds, 0 if it can go on at once
+     */
+    public long reserve(long permits) {
+        long rate = permitsPerSecond;
+        if (rate <= 0 || permits <= 0) {
+            return 0;
+        }
+        long cost = permits > Long.MAX_VALUE / NANOS_PER_SECOND ? Long.MAX_VALUE / 2
+                : permits * NANOS_PER_SECOND / rate;
+        long now = System.nanoTime();
+        long until;
+        long drained;
+        do {
+            drained = drainedUntil.get();
+            until = (drained - now > 0 ? drained : now) + cost;
+        } while (!drainedUntil.compareAndSet(drained, until));
+        return Math.max(0, until - now - BURST_NANOS);
+    }
+}
@@ -0,0 +1,151 @@
+package org.rayworks.network.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.rayworks.network.util.Flow;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+public class DownloadEventPublisherTest {
+    private DownloadEventPublisher publisher;
+    private RecordingSubscriber subscriber;
+
+    @Before
+    public void setUp() {
+        // delivered right away, on the publishing thread
+        publisher = new DownloadEventPublisher(MoreExecutors.sameThreadExecutor());
+        subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        assertTrue(publisher.hasSubscribers());
+    }
+
+    @Test
+    public void testNothingDeliveredWithoutDemand() {
+        publisher.publish(DownloadEvent.createProgressEvent("a", 10, 100));
+        publisher.publish(DownloadEvent.createCompleteEvent("b"));
+        assertEquals(0, subscriber.events.size());
+
+        subscriber.subscription.request(1);
+        assertEquals(Arrays.asList("COMPLETE b"), subscriber.events);
+        subscriber.subscription.request(1);
+        assertEquals(Arrays.asList("COMPLETE b", "PROGRESS a 10"), subscriber.events);
+    }
+
+    @Test
+    public void testProgressConflatedPerUrl() {
+        publisher.publish(DownloadEvent.createProgressEvent("a", 10, 100));
+        publisher.publish(DownloadEvent.createProgressEvent("a", 20, 100));
+        publisher.publish(DownloadEvent.createProgressEvent("b", 5, 100));
+        publisher.publish(DownloadEvent.createProgressEvent("a", 30, 100));
+        assertEquals(2, publisher.getConflatedEventCount());
+
+        subscriber.subscription.request(10);
+        assertEquals(Arrays.asList("PROGRESS a 30", "PROGRESS b 5"), subscriber.events);
+    }
+
+    @Test
+    public void testResultReplacesPendingProgress() {
+        publisher.publish(DownloadEvent.createProgressEvent("a", 10, 100));
+        publisher.publish(DownloadEvent.createProgressEvent("b", 10, 100));
+        publisher.publish(DownloadEvent.createErrorEvent("a", "failed"));
+        publisher.publish(DownloadEvent.createCompleteEvent("c"));
+        assertEquals(1, publisher.getConflatedEventCount());
+
+        subscriber.subscription.request(10);
+        assertEquals(Arrays.asList("ERROR a", "COMPLETE c", "PROGRESS b 10"), subscriber.events);
+    }
+
+    @Test
+    public void testDemandCounted() {
+        subscriber.subscription.request(2);
+        publisher.publish(DownloadEvent.createProgressEvent("a", 10, 100));
+        publisher.publish(DownloadEvent.createProgressEvent("b", 10, 100));
+        publisher.publish(DownloadEvent.createProgressEvent("c", 10, 100));
+        assertEquals(2, subscriber.events.size());
+
+        subscriber.subscription.request(1);
+        assertEquals(Arrays.asList("PROGRESS a 10", "PROGRESS b 10", "PROGRESS c 10"), subscriber.events);
+    }
+
+    @Test
+    public void testUnboundedDemandDeliversEachEvent() {
+        subscriber.subscription.request(Long.MAX_VALUE);
+        subscriber.subscription.request(1); // no overflow
+        for (int i = 1; i <= 5; i++) {
+            publisher.publish(DownloadEvent.createProgressEvent("a", i, 100));
+        }
+        assertEquals(5, subscriber.events.size());
+        assertEquals(0, publisher.getConflatedEventCount());
+    }
+
+    @Test
+    public void testNonPositiveRequestFails() {
+        subscriber.subscription.request(0);
+        assertTrue(subscriber.failure instanceof IllegalArgumentException);
+        assertFalse(publisher.hasSubscribers());
+    }
+
+    @Test
+    public void testCancelledSubscriberDropped() {
+        subscriber.subscription.request(10);
+        subscriber.subscription.cancel();
+        assertFalse(publisher.hasSubscribers());
+
+        publisher.publish(DownloadEvent.createCompleteEvent("a"));
+        assertEquals(0, subscriber.events.size());
+    }
+
+    @Test
+    public void testFailingSubscriberDropped() {
+        RecordingSubscriber broken = new RecordingSubscriber() {
+            @Override
+            public void onNext(DownloadEvent item) {
+                throw new IllegalStateException("broken");
+            }
+        };
+        publisher.subscribe(broken);
+        broken.subscription.request(10);
+        subscriber.subscription.request(10);
+
+        publisher.publish(DownloadEvent.createCompleteEvent("a"));
+        publisher.publish(DownloadEvent.createCompleteEvent("b"));
+        assertEquals(Arrays.asList("COMPLETE a", "COMPLETE b"), subscriber.events);
+
+        subscriber.subscription.cancel();
+        assertFalse(publisher.hasSubscribers()); // the broken one is gone already
+    }
+
+    private static class RecordingSubscriber implements Flow.Subscriber<DownloadEvent> {
+        final List<String> events = new ArrayList<>();
+        Flow.Subscription subscription;
+        Throwable failure;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(DownloadEvent item) {
+            events.add(item.getType() + " " + item.getUrl()
+                    + (item.getType() == DownloadEvent.Type.PROGRESS ? " " + item.getDownloadedBytes() : ""));
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            failure = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+}
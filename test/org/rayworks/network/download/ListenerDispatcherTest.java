@@ -0,0 +1,170 @@
+package org.rayworks.network.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.rayworks.network.download.listener.DownloadListener;
+
+public class ListenerDispatcherTest {
+    private ManualExecutor executor;
+    private CallbackMetrics metrics;
+    private RecordingListener listener;
+
+    @Before
+    public void setUp() {
+        executor = new ManualExecutor();
+        metrics = new CallbackMetrics();
+        listener = new RecordingListener();
+    }
+
+    @Test
+    public void testOrderKeptPerListener() {
+        DownloadListener queued = newDispatcher(16, 0).wrap(listener);
+        queued.onProgress(10, "a");
+        queued.onComplete("a");
+        queued.onProgress(20, "b");
+        queued.onError("failed");
+        assertEquals(0, listener.calls.size());
+        assertEquals(1, executor.tasks.size()); // one drain at a time
+
+        executor.runAll();
+        assertEquals(Arrays.asList("progress a 10", "complete a", "progress b 20", "error failed"), listener.calls);
+        assertEquals(4, metrics.getDeliveredCount());
+    }
+
+    @Test
+    public void testSameQueueForSameListener() {
+        ListenerDispatcher dispatcher = newDispatcher(16, 0);
+        assertSame(dispatcher.wrap(listener), dispatcher.wrap(listener));
+    }
+
+    @Test
+    public void testPendingProgressMerged() {
+        DownloadListener queued = newDispatcher(16, 0).wrap(listener);
+        queued.onProgress(10, "a");
+        queued.onProgress(20, "b");
+        queued.onProgress(30, "a");
+        queued.onProgress(40, "a");
+
+        executor.runAll();
+        assertEquals(Arrays.asList("progress a 40", "progress b 20"), listener.calls);
+        assertEquals(2, metrics.getMergedCount());
+    }
+
+    @Test
+    public void testProgressRateLimited() {
+        DownloadListener queued = newDispatcher(16, 60 * 60 * 1000).wrap(listener);
+        queued.onProgress(10, "a");
+        executor.runAll();
+
+        queued.onProgress(20, "a"); // too soon after the last one
+        queued.onProgress(100, "a"); // the last one always goes
+        executor.runAll();
+
+        queued.onComplete("a");
+        queued.onProgress(0, "a"); // a new download of the url
+        executor.runAll();
+
+        assertEquals(Arrays.asList("progress a 10", "progress a 100", "complete a", "progress a 0"), listener.calls);
+        assertEquals(1, metrics.getMergedCount());
+    }
+
+    @Test
+    public void testProgressDroppedWhenFull() {
+        DownloadListener queued = newDispatcher(2, 0).wrap(listener);
+        queued.onProgress(10, "a");
+        queued.onProgress(10, "b");
+        queued.onProgress(10, "c");
+        queued.onComplete("c"); // never dropped
+        queued.onError("failed");
+
+        executor.runAll();
+        assertEquals(Arrays.asList("progress a 10", "progress b 10", "complete c", "error failed"), listener.calls);
+        assertEquals(1, metrics.getDroppedCount());
+    }
+
+    @Test
+    public void testFailingListenerKeepsItsQueue() {
+        RecordingListener failing = new RecordingListener() {
+            @Override
+            public void onProgress(int percentageComplete, String remotePath) {
+                super.onProgress(percentageComplete, remotePath);
+                throw new IllegalStateException("broken");
+            }
+        };
+        DownloadListener queued = newDispatcher(16, 0).wrap(failing);
+        queued.onProgress(10, "a");
+        queued.onComplete("a");
+
+        executor.runAll();
+        assertEquals(Arrays.asList("progress a 10", "complete a"), failing.calls);
+    }
+
+    @Test
+    public void testListenersQueuedApart() {
+        ListenerDispatcher dispatcher = newDispatcher(1, 0);
+        RecordingListener other = new RecordingListener();
+        dispatcher.wrap(listener).onProgress(10, "a");
+        dispatcher.wrap(other).onProgress(20, "a"); // a full queue of another listener drops nothing
+        assertEquals(2, executor.tasks.size());
+
+        executor.runAll();
+        assertEquals(Arrays.asList("progress a 10"), listener.calls);
+        assertEquals(Arrays.asList("progress a 20"), other.calls);
+        assertEquals(0, metrics.getDroppedCount());
+    }
+
+    private ListenerDispatcher newDispatcher(int queueCapacity, long progressInterval) {
+        DownloadSetting setting = new DownloadSetting.Builder().setDownloadEnabledStrategy(new DownloadEnabledStrategy() {
+            @Override
+            public boolean isNetworkAvailableForDownloading() {
+                return true;
+            }
+        }).setThreadPriority(Thread.NORM_PRIORITY).setCallbackExecutor(executor)
+                .setCallbackQueueCapacity(queueCapacity).setProgressCallbackInterval(progressInterval).create();
+        return new ListenerDispatcher(executor, setting, metrics);
+    }
+
+    private static class ManualExecutor implements Executor {
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+
+    private static class RecordingListener implements DownloadListener {
+        final List<String> calls = new ArrayList<>();
+
+        @Override
+        public void onProgress(int percentageComplete, String remotePath) {
+            calls.add("progress " + remotePath + " " + percentageComplete);
+        }
+
+        @Override
+        public void onComplete(String remotePath) {
+            calls.add("complete " + remotePath);
+        }
+
+        @Override
+        public void onError(String error) {
+            calls.add("error " + error);
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package org.rayworks.network.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TaskQueueTest {
+
+    @Test
+    public void testHostKey() {
+        assertEquals("example.com:8080", TaskQueue.getHostKey("http://Example.com:8080/a?b"));
+        assertEquals("example.com", TaskQueue.getHostKey("https://example.com/a"));
+        assertEquals("", TaskQueue.getHostKey("not a url"));
+    }
+
+    @Test
+    public void testLimitPerHost() {
+        TaskQueue queue = new TaskQueue(2);
+        BackgroundTask a1 = task("a", 1);
+        BackgroundTask a2 = task("a", 2);
+        BackgroundTask a3 = task("a", 3);
+        BackgroundTask b1 = task("b", 1);
+        queue.addAll(Arrays.asList(a1, a2, a3, b1));
+
+        assertSame(a1, queue.poll());
+        assertSame(b1, queue.poll());
+        assertSame(a2, queue.poll());
+        assertNull(queue.poll()); // a3 waits for a slot of its host
+        assertEquals(2, queue.getRunningTaskCount("http://a/other"));
+        assertEquals(1, queue.size());
+
+        queue.release(a1);
+        assertSame(a3, queue.poll());
+
+        queue.setMaxTasksPerHost(3);
+        queue.offer(task("a", 4));
+        assertEquals("http://a/4", queue.poll().getFirstSyncTask());
+    }
+
+    @Test
+    public void testHostsTakeTurns() {
+        TaskQueue queue = new TaskQueue(10);
+        for (int i = 0; i < 3; i++) {
+            queue.offer(task("a", i));
+        }
+        for (int i = 0; i < 3; i++) {
+            queue.offer(task("b", i));
+        }
+        queue.offer(task("c", 0));
+
+        assertEquals(Arrays.asList("a", "b", "c", "a", "b", "a", "b"), pollHosts(queue, 7));
+    }
+
+    @Test
+    public void testQuantumFollowsThroughputWithinBounds() throws Exception {
+        TaskQueue queue = new TaskQueue(100);
+        measure(queue, "fast", 100L * 1000 * 1000);
+        for (int h = 0; h < 4; h++) {
+            measure(queue, "slow" + h, 1);
+        }
+
+        for (int i = 0; i < 40; i++) {
+            queue.offer(task("fast", i));
+            for (int h = 0; h < 4; h++) {
+                queue.offer(task("slow" + h, i));
+            }
+        }
+
+        // the fast host is 5 times the average, it's served 4 tasks per turn at most; the slow ones are served a
+        // task each 4 turns at least
+        Map<String, Integer> served = count(pollHosts(queue, 20));
+        assertEquals(Integer.valueOf(16), served.get("fast"));
+        for (int h = 0; h < 4; h++) {
+            assertEquals(Integer.valueOf(1), served.get("slow" + h));
+        }
+    }
+
+    @Test
+    public void testAddFirstWithinLimit() {
+        TaskQueue queue = new TaskQueue(1);
+        BackgroundTask a1 = task("a", 1);
+        queue.offer(a1);
+        assertSame(a1, queue.poll());
+
+        BackgroundTask a2 = task("a", 2);
+        BackgroundTask b1 = task("b", 1);
+        queue.addFirst(a2);
+        queue.offer(b1);
+        assertSame(a2, queue.peek());
+        assertSame(b1, queue.poll()); // a2 goes first, but not beyond the limit of its host
+        assertNull(queue.poll());
+
+        queue.release(a1);
+        assertSame(a2, queue.poll());
+
+        BackgroundTask c1 = task("c", 1);
+        BackgroundTask c2 = task("c", 2);
+        queue.offer(c1);
+        queue.addFirst(c2);
+        assertSame(c2, queue.poll());
+    }
+
+    @Test
+    public void testReleaseBookkeeping() {
+        TaskQueue queue = new TaskQueue(1);
+        BackgroundTask a1 = task("a", 1);
+        BackgroundTask a2 = task("a", 2);
+        queue.offer(a1);
+        queue.offer(a2);
+
+        queue.release(a2); // not taken, ignored
+        assertSame(a1, queue.poll());
+        assertEquals(1, queue.getRunningTaskCount("http://a/"));
+
+        queue.release(a1);
+        queue.release(a1); // once only
+        assertEquals(0, queue.getRunningTaskCount("http://a/"));
+
+        assertSame(a2, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testRemoveDrainAndIterate() {
+        TaskQueue queue = new TaskQueue(1);
+        BackgroundTask a1 = task("a", 1);
+        BackgroundTask a2 = task("a", 2);
+        BackgroundTask b1 = task("b", 1);
+        BackgroundTask p1 = task("p", 1);
+        queue.addAll(Arrays.asList(a1, a2, b1));
+        queue.addFirst(p1);
+        assertEquals(4, queue.size());
+
+        assertTrue(queue.remove(a2));
+        assertFalse(queue.remove(a2));
+        assertFalse(queue.remove("a"));
+
+        List<BackgroundTask> tasks = new ArrayList<>();
+        for (BackgroundTask task : queue) {
+            tasks.add(task);
+        }
+        assertEquals(Arrays.asList(p1, a1, b1), tasks);
+
+        Iterator<BackgroundTask> iterator = queue.iterator();
+        assertSame(p1, iterator.next());
+        iterator.remove();
+        assertEquals(2, queue.size());
+
+        List<BackgroundTask> drained = new ArrayList<>();
+        assertEquals(1, queue.drainTo(drained, 1));
+        assertEquals(1, queue.drainTo(drained));
+        assertEquals(Arrays.asList(a1, b1), drained);
+        assertEquals(0, queue.size());
+        assertNull(queue.poll());
+
+        // the hosts emptied by removal are out of the rotation
+        BackgroundTask a3 = task("a", 3);
+        queue.offer(a3);
+        assertSame(a3, queue.poll());
+        assertFalse(queue.remove(a3)); // running, not queued
+    }
+
+    @Test
+    public void testIdleListener() {
+        TaskQueue queue = new TaskQueue(2);
+        final AtomicInteger idleCount = new AtomicInteger();
+        queue.setIdleListener(new Runnable() {
+            @Override
+            public void run() {
+                idleCount.incrementAndGet();
+            }
+        });
+        assertTrue(queue.isIdle());
+
+        BackgroundTask a1 = task("a", 1);
+        BackgroundTask a2 = task("a", 2);
+        queue.offer(a1);
+        queue.offer(a2);
+        assertFalse(queue.isIdle());
+        assertSame(a1, queue.poll());
+
+        queue.remove(a2);
+        assertFalse(queue.isIdle()); // a1 runs
+        assertEquals(0, idleCount.get());
+
+        queue.release(a1);
+        assertTrue(queue.isIdle());
+        assertEquals(1, idleCount.get());
+
+        queue.offer(a2);
+        queue.clear();
+        assertEquals(2, idleCount.get());
+    }
+
+    @Test
+    public void testIdleHostsEvicted() {
+        TaskQueue queue = new TaskQueue(1);
+        BackgroundTask busy = task("busy", 1);
+        queue.offer(busy);
+        assertSame(busy, queue.poll());
+
+        for (int i = 0; i < 300; i++) {
+            BackgroundTask task = task("host" + i, 0);
+            queue.offer(task);
+            assertSame(task, queue.poll());
+            queue.release(task);
+        }
+        // a host with a task running is kept whatever its age
+        assertEquals(256, queue.getHostCount());
+        assertEquals(1, queue.getRunningTaskCount("http://busy/"));
+    }
+
+    // makes a host known with the throughput of a task
+    private static void measure(TaskQueue queue, String host, long bytes) throws InterruptedException {
+        BackgroundTask task = task(host, 0);
+        queue.offer(task);
+        assertSame(task, queue.poll());
+        task.notifyBytes(0, -1);
+        Thread.sleep(2);
+        task.notifyBytes(bytes, -1);
+        queue.release(task);
+    }
+
+    private static List<String> pollHosts(TaskQueue queue, int count) {
+        List<String> hosts = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            BackgroundTask task = queue.poll();
+            hosts.add(TaskQueue.getHostKey(task.getFirstSyncTask()));
+            queue.release(task);
+        }
+        return hosts;
+    }
+
+    private static Map<String, Integer> count(List<String> hosts) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String host : hosts) {
+            Integer count = counts.get(host);
+            counts.put(host, count == null ? 1 : count + 1);
+        }
+        return counts;
+    }
+
+    private static BackgroundTask task(String host, int index) {
+        return new BackgroundTask("http://" + host + "/" + index, null);
+    }
+}
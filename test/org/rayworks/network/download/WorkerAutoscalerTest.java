@@ -0,0 +1,51 @@
+package org.rayworks.network.download;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class WorkerAutoscalerTest {
+
+    @Test
+    public void testGrowsWhileTasksWait() {
+        WorkerAutoscaler autoscaler = new WorkerAutoscaler(null, 1, 4);
+        assertEquals(3, autoscaler.decide(100, 5, 0, 2));
+        assertEquals(4, autoscaler.decide(200, 5, 0, 3)); // paid off
+        assertEquals(4, autoscaler.decide(300, 5, 0, 4)); // at the max
+    }
+
+    @Test
+    public void testStaysWithIdleWorkerOrEmptyQueue() {
+        WorkerAutoscaler autoscaler = new WorkerAutoscaler(null, 1, 8);
+        assertEquals(3, autoscaler.decide(100, 5, 1, 3));
+        assertEquals(3, autoscaler.decide(100, 0, 1, 3));
+    }
+
+    @Test
+    public void testTakesBackWorkerThatDidNotPayOff() {
+        WorkerAutoscaler autoscaler = new WorkerAutoscaler(null, 1, 8);
+        assertEquals(3, autoscaler.decide(1000, 5, 0, 2));
+        assertEquals(2, autoscaler.decide(1040, 5, 0, 3)); // less than 5% more
+
+        // holds for 5 rounds before trying again
+        for (int i = 0; i < 5; i++) {
+            assertEquals(2, autoscaler.decide(1000, 5, 0, 2));
+        }
+        assertEquals(3, autoscaler.decide(1000, 5, 0, 2));
+    }
+
+    @Test
+    public void testShrinksWhileIdle() {
+        WorkerAutoscaler autoscaler = new WorkerAutoscaler(null, 2, 8);
+        assertEquals(3, autoscaler.decide(0, 0, 2, 4));
+        assertEquals(2, autoscaler.decide(0, 0, 2, 3));
+        assertEquals(2, autoscaler.decide(0, 0, 2, 2)); // at the min
+    }
+
+    @Test
+    public void testClampsToBounds() {
+        WorkerAutoscaler autoscaler = new WorkerAutoscaler(null, 2, 4);
+        assertEquals(2, autoscaler.decide(0, 0, 0, 1));
+        assertEquals(4, autoscaler.decide(0, 0, 0, 6));
+    }
+}
@@ -0,0 +1,175 @@
+package org.rayworks.network.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rayworks.network.download.WorkerThread.WorkerState;
+import org.rayworks.network.download.cache.DiskFileCache;
+import org.rayworks.network.download.listener.DownloadListener;
+import org.rayworks.network.storage.SyncStateStore;
+import org.rayworks.network.test.KeyValueStoreImpl;
+import org.rayworks.network.test.TestHttpServer;
+
+public class WorkerThreadTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TestHttpServer server;
+    private ExecutorService executor;
+    private TaskQueue queue;
+    private WorkerThread worker;
+    private final List<String> transitions = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestHttpServer();
+        executor = Executors.newSingleThreadExecutor();
+        DiskFileCache cache = new DiskFileCache(folder.newFolder("cache"), executor,
+                new DiskFileCache.Limits(Integer.MAX_VALUE, 0));
+
+        byte[] body = new byte[200 * 1000];
+        new Random(3).nextBytes(body);
+        server.serve("/slow", body).setPacing(10 * 1000, 20);
+
+        queue = new TaskQueue(2);
+        worker = new WorkerThread("Thread#test", queue, new SyncStateStore(new KeyValueStoreImpl()), cache, 5000);
+        worker.setStateListener(new WorkerThread.WorkerStateListener() {
+            @Override
+            public void onStateChanged(WorkerThread worker, WorkerState from, WorkerState to) {
+                transitions.add(from + ">" + to);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        worker.stopNow();
+        worker.join(5000);
+        server.stop();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testRunsTaskAndGoesBackIdle() throws Exception {
+        worker.start();
+        CompletionListener listener = new CompletionListener();
+        queue.put(new BackgroundTask(server.url("/slow"), listener));
+
+        assertTrue(listener.await());
+        awaitState(WorkerState.IDLE);
+        assertEquals(Arrays.asList("IDLE>RUNNING", "RUNNING>IDLE"), transitions);
+        assertTrue(queue.isIdle());
+    }
+
+    @Test
+    public void testDrainFinishesRunningTask() throws Exception {
+        worker.start();
+        CompletionListener listener = new CompletionListener();
+        queue.put(new BackgroundTask(server.url("/slow"), listener));
+        awaitState(WorkerState.RUNNING);
+
+        worker.drain();
+        assertTrue(worker.isDraining());
+        assertEquals(WorkerState.DRAINING, worker.getWorkerState());
+
+        worker.join(5000);
+        assertFalse(worker.isAlive());
+        assertTrue(listener.completed);
+        assertEquals(Arrays.asList("IDLE>RUNNING", "RUNNING>DRAINING", "DRAINING>STOPPED"), transitions);
+        assertTrue(queue.isIdle()); // the slot of the host was given back
+    }
+
+    @Test
+    public void testDrainIdleWorkerStopsAtOnce() throws Exception {
+        worker.start();
+        Thread.sleep(100); // waiting for a task
+
+        worker.drain();
+        worker.join(1000);
+        assertFalse(worker.isAlive());
+        assertEquals(WorkerState.STOPPED, worker.getWorkerState());
+        assertEquals(Collections.singletonList("IDLE>STOPPED"), transitions);
+    }
+
+    @Test
+    public void testRestAndWakeup() throws Exception {
+        worker.start();
+        Thread.sleep(100);
+
+        worker.rest();
+        awaitState(WorkerState.RESTING);
+
+        // a task queued meanwhile waits for the wakeup
+        CompletionListener listener = new CompletionListener();
+        queue.put(new BackgroundTask(server.url("/slow"), listener));
+        Thread.sleep(100);
+        assertEquals(WorkerState.RESTING, worker.getWorkerState());
+        assertEquals(1, queue.size());
+
+        worker.wakeup();
+        assertTrue(listener.await());
+        awaitState(WorkerState.IDLE);
+        assertEquals(Arrays.asList("IDLE>RESTING", "RESTING>IDLE", "IDLE>RUNNING", "RUNNING>IDLE"), transitions);
+    }
+
+    @Test
+    public void testDrainRestingWorker() throws Exception {
+        worker.start();
+        Thread.sleep(100);
+        worker.rest();
+        awaitState(WorkerState.RESTING);
+
+        worker.drain();
+        worker.join(1000);
+        assertFalse(worker.isAlive());
+        assertEquals(Arrays.asList("IDLE>RESTING", "RESTING>STOPPED"), transitions);
+    }
+
+    private void awaitState(WorkerState state) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (worker.getWorkerState() != state) {
+            assertTrue("still " + worker.getWorkerState(), System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static class CompletionListener implements DownloadListener {
+        private final CountDownLatch done = new CountDownLatch(1);
+        volatile boolean completed;
+
+        @Override
+        public void onProgress(int percentageComplete, String remotePath) {
+        }
+
+        @Override
+        public void onComplete(String remotePath) {
+            completed = true;
+            done.countDown();
+        }
+
+        @Override
+        public void onError(String error) {
+            done.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            return done.await(10, TimeUnit.SECONDS);
+        }
+    }
+}
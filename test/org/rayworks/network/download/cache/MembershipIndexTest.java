@@ -0,0 +1,67 @@
+package org.rayworks.network.download.cache;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class MembershipIndexTest {
+
+    @Test
+    public void testLookups() {
+        MembershipIndex index = new MembershipIndex();
+        assertFalse(index.isReady());
+        assertTrue(index.mightContain("anything")); // no answer before the first listing
+
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            names.add("file" + i);
+        }
+        index.finishRebuild(index.beginRebuild(), names);
+
+        assertTrue(index.isReady());
+        for (String name : names) {
+            assertTrue(index.mightContain(name));
+        }
+
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (index.mightContain("missing" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue("false positives " + falsePositives, falsePositives < 300);
+    }
+
+    @Test
+    public void testAdditionsDuringRebuildAreKept() {
+        MembershipIndex index = new MembershipIndex();
+        index.finishRebuild(index.beginRebuild(), Arrays.asList("old"));
+
+        MembershipIndex.Rebuild rebuild = index.beginRebuild();
+        index.add("committed" + DiskFileCache.COMPRESSED_FILE_POSTFIX); // after the directory was listed
+        index.finishRebuild(rebuild, Arrays.asList("listed"));
+
+        assertTrue(index.mightContain("listed"));
+        assertTrue(index.mightContain("committed"));
+        assertTrue(index.mightContain("committed" + DiskFileCache.COMPRESSED_FILE_POSTFIX));
+        assertFalse(index.mightContain("old"));
+    }
+
+    @Test
+    public void testAbandonedRebuildKeepsFilter() {
+        MembershipIndex index = new MembershipIndex();
+        index.finishRebuild(index.beginRebuild(), Arrays.asList("kept"));
+
+        MembershipIndex.Rebuild rebuild = index.beginRebuild();
+        index.abandonRebuild(rebuild);
+        index.add("added");
+
+        assertTrue(index.mightContain("kept"));
+        assertTrue(index.mightContain("added"));
+    }
+}
@@ -0,0 +1,62 @@
+package org.rayworks.network.download.cache;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PartitionIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testCompactKeepsFilesCommittedAfterListing() throws Exception {
+        File root = folder.newFolder("cache");
+        PartitionIndex index = new PartitionIndex(root);
+
+        // a trim lists the directory, then a download commits its file
+        Set<String> listed = Collections.emptySet();
+        new File(root, "late").createNewFile();
+        index.put("late", "images");
+
+        index.compact(listed);
+
+        assertEquals("images", index.get("late"));
+        assertEquals("images", new PartitionIndex(root).get("late"));
+    }
+
+    @Test
+    public void testCompactDropsRemovedFiles() throws Exception {
+        File root = folder.newFolder("cache");
+        PartitionIndex index = new PartitionIndex(root);
+
+        Set<String> listed = new HashSet<>();
+        for (int i = 0; i < 200; i++) {
+            new File(root, "file" + i).createNewFile();
+            index.put("file" + i, "images");
+            listed.add("file" + i);
+        }
+        for (int i = 0; i < 200; i++) { // most of them are evicted by the trim
+            if (i % 4 != 0) {
+                new File(root, "file" + i).delete();
+                listed.remove("file" + i);
+            }
+        }
+
+        // the outdated lines outnumber the live ones, so the list is rewritten
+        index.compact(listed);
+
+        PartitionIndex reloaded = new PartitionIndex(root);
+        for (int i = 0; i < 200; i++) {
+            String expected = i % 4 == 0 ? "images" : null;
+            assertEquals(expected, index.get("file" + i));
+            assertEquals(expected, reloaded.get("file" + i));
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package org.rayworks.network.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rayworks.network.download.Checksum;
+import org.rayworks.network.download.DownloadEnabledStrategy;
+import org.rayworks.network.download.DownloadManager;
+import org.rayworks.network.download.DownloadRequest;
+import org.rayworks.network.download.DownloadResult;
+import org.rayworks.network.download.DownloadSetting;
+import org.rayworks.network.download.cache.DiskFileCache;
+import org.rayworks.network.storage.DownloadRecord;
+import org.rayworks.network.storage.SyncStateStore;
+import org.rayworks.network.util.IOUtils;
+
+import com.google.common.io.BaseEncoding;
+
+/**
+ * The resume and commit path of the non-blocking io engine.
+ */
+public class AsyncLauncherTest {
+    private static final String LAST_MODIFIED = "Thu, 01 Jan 2015 00:00:00 GMT";
+    private static final int PARTIAL = 123 * 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TestHttpServer server;
+    private ExecutorService executor;
+    private DiskFileCache cache;
+    private SyncStateStore store;
+    private DownloadManager downloadMgr;
+    private byte[] body;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestHttpServer();
+        executor = Executors.newSingleThreadExecutor();
+        cache = new DiskFileCache(folder.newFolder("cache"), executor, new DiskFileCache.Limits(Integer.MAX_VALUE, 0));
+        store = new SyncStateStore(new KeyValueStoreImpl());
+        DownloadSetting setting = new DownloadSetting.Builder().setDownloadEnabledStrategy(new DownloadEnabledStrategy() {
+            @Override
+            public boolean isNetworkAvailableForDownloading() {
+                return true;
+            }
+        }).setNonBlockingIo(1).setTimeout(5000).setThreadPriority(Thread.NORM_PRIORITY).create();
+        downloadMgr = new DownloadManager(store, setting, new ConnectivityServiceImpl(),
+                new DeviceStorageMonitorImpl(), cache);
+
+        body = new byte[500 * 1000];
+        new Random(17).nextBytes(body);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        downloadMgr.cancelAllTasks();
+        server.stop();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testResumesPartialFile() throws Exception {
+        TestHttpServer.Resource resource = server.serve("/resumed", body).setLastModified(LAST_MODIFIED);
+        String url = server.url("/resumed");
+        leavePartialFile(url, LAST_MODIFIED);
+
+        DownloadResult result = download(new DownloadRequest(url, url, null, Checksum.sha256(sha256(body))));
+
+        assertTrue(result.isOk());
+        assertEquals(body.length, result.getTotal());
+        assertEquals(Arrays.asList("bytes=" + PARTIAL + "-"), resource.getRanges());
+        assertArrayEquals(body, read(url));
+        assertFalse(cache.getTempFile(url).exists());
+        assertNull(store.getRecord(url));
+    }
+
+    @Test
+    public void testExpiredPartialFileStartsOver() throws Exception {
+        TestHttpServer.Resource resource = server.serve("/changed", body).setLastModified(LAST_MODIFIED);
+        String url = server.url("/changed");
+        leavePartialFile(url, "Wed, 31 Dec 2014 00:00:00 GMT");
+
+        DownloadResult result = download(new DownloadRequest(url, url, null));
+
+        assertTrue(result.isOk());
+        assertEquals(Arrays.asList("bytes=" + PARTIAL + "-", null), resource.getRanges());
+        assertArrayEquals(body, read(url));
+        assertNull(store.getRecord(url));
+    }
+
+    @Test
+    public void testFullResponseReplacesPartialFile() throws Exception {
+        server.serve("/full", body).setLastModified(LAST_MODIFIED).setRangeSupported(false);
+        String url = server.url("/full");
+        leavePartialFile(url, LAST_MODIFIED);
+
+        DownloadResult result = download(new DownloadRequest(url, url, null, Checksum.sha256(sha256(body))));
+
+        assertTrue(result.isOk());
+        assertEquals(body.length, result.getTotal());
+        assertArrayEquals(body, read(url));
+    }
+
+    @Test
+    public void testChecksumMismatchIsNotCommitted() throws Exception {
+        server.serve("/bad", body);
+        String url = server.url("/bad");
+
+        try {
+            download(new DownloadRequest(url, url, null, Checksum.sha256("00")));
+            fail("the body doesn't match the checksum");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().getMessage().startsWith("Checksum mismatch"));
+        }
+        assertFalse(cache.existFile(url));
+        assertFalse(cache.getTempFile(url).exists());
+    }
+
+    // as left by an earlier attempt, the first PARTIAL bytes of the body
+    private void leavePartialFile(String url, String lastModified) throws Exception {
+        FileOutputStream output = new FileOutputStream(cache.getTempFile(url));
+        try {
+            output.write(body, 0, PARTIAL);
+        } finally {
+            output.close();
+        }
+        DownloadRecord record = store.getOrCreateRecord(url);
+        record.setLastModified(lastModified);
+        record.setContentLength(body.length);
+        record.setCommittedBytes(PARTIAL);
+        store.putRecord(record);
+    }
+
+    private DownloadResult download(DownloadRequest request) throws Exception {
+        return downloadMgr.submit(request).getFuture().get(10, TimeUnit.SECONDS);
+    }
+
+    private byte[] read(String url) throws Exception {
+        InputStream input = cache.openStream(url);
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            IOUtils.copyStream(input, output, null, 8192, 0L);
+            return output.toByteArray();
+        } finally {
+            IOUtils.closeSilently(input);
+        }
+    }
+
+    private static String sha256(byte[] bytes) throws Exception {
+        // not the digest under test
+        return BaseEncoding.base16().lowerCase().encode(MessageDigest.getInstance("SHA-256").digest(bytes));
+    }
+}
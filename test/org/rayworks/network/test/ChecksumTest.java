@@ -0,0 +1,177 @@
+package org.rayworks.network.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rayworks.network.download.Checksum;
+import org.rayworks.network.download.DownloadResult;
+import org.rayworks.network.download.Downloader;
+import org.rayworks.network.download.cache.DiskFileCache;
+import org.rayworks.network.download.exception.ChecksumMismatchException;
+import org.rayworks.network.download.listener.DownloadListener;
+import org.rayworks.network.storage.DownloadRecord;
+import org.rayworks.network.storage.SyncStateStore;
+import org.rayworks.network.util.IOUtils;
+import org.rayworks.network.util.StreamingDigest;
+
+import com.google.common.io.BaseEncoding;
+
+public class ChecksumTest {
+    private static final String LAST_MODIFIED = "Thu, 01 Jan 2015 00:00:00 GMT";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TestHttpServer server;
+    private ExecutorService executor;
+    private DiskFileCache cache;
+    private SyncStateStore store;
+    private byte[] body;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestHttpServer();
+        executor = Executors.newSingleThreadExecutor();
+        cache = new DiskFileCache(folder.newFolder("cache"), executor, new DiskFileCache.Limits(Integer.MAX_VALUE, 0));
+        store = new SyncStateStore(new KeyValueStoreImpl());
+
+        body = new byte[500 * 1000];
+        new Random(7).nextBytes(body);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testMismatchDropsTempFile() throws Exception {
+        server.serve("/bad", body);
+        String url = server.url("/bad");
+
+        Downloader downloader = new Downloader(url, store, cache, 5000);
+        downloader.setChecksum(Checksum.sha256("00"));
+        DownloadResult result = downloader.downloadFile();
+
+        assertFalse(result.isOk());
+        assertTrue(result.isRecoverable());
+        assertTrue(result.getErrorCause() instanceof ChecksumMismatchException);
+        assertFalse(cache.getTempFile(url).exists());
+        assertFalse(cache.existFile(url));
+    }
+
+    @Test
+    public void testDigestResumedAcrossRangedResume() throws Exception {
+        TestHttpServer.Resource resource = server.serve("/resumed", body)
+                .setLastModified(LAST_MODIFIED)
+                .setPacing(10 * 1000, 2);
+        String url = server.url("/resumed");
+
+        // cancelled half way, the state of the digest goes with the record
+        Downloader first = new Downloader(url, store, cache, 5000);
+        first.setChecksum(Checksum.sha256(sha256(body)));
+        first.setProgressListener(new CancellingListener(first, 50));
+        assertTrue(first.downloadFile().isCanceled());
+
+        long partial = cache.getTempFile(url).length();
+        assertTrue(partial > 0 && partial < body.length);
+        DownloadRecord record = store.getRecord(url);
+        assertNotNull(record.getDigestState());
+        StreamingDigest state = StreamingDigest.create(StreamingDigest.SHA_256);
+        assertTrue(state.restoreState(record.getDigestState()));
+        assertEquals(partial, state.getByteCount());
+
+        Downloader second = new Downloader(url, store, cache, 5000);
+        second.setChecksum(Checksum.sha256(sha256(body)));
+        DownloadResult result = second.downloadFile();
+
+        assertTrue(result.isOk());
+        assertEquals("bytes=" + partial + "-", resource.getRanges().get(1));
+        assertArrayEquals(body, read(cache, url));
+        assertNull(store.getRecord(url));
+    }
+
+    @Test
+    public void testFullResponseAfterPartialDropsStaleFile() throws Exception {
+        TestHttpServer.Resource resource = server.serve("/full", body).setRangeSupported(false);
+        String url = server.url("/full");
+
+        // garbage left by an earlier attempt, appending the body to it would break the digest
+        FileOutputStream stale = new FileOutputStream(cache.getTempFile(url));
+        stale.write(new byte[1000]);
+        stale.close();
+
+        Downloader downloader = new Downloader(url, store, cache, 5000);
+        downloader.setChecksum(Checksum.sha256(sha256(body)));
+        DownloadResult result = downloader.downloadFile();
+
+        assertTrue(result.isOk());
+        assertEquals("bytes=1000-", resource.getRanges().get(0));
+        assertEquals(body.length, result.getTotal());
+        assertArrayEquals(body, read(cache, url));
+        assertFalse(cache.getTempFile(url).exists());
+    }
+
+    private static String sha256(byte[] bytes) throws Exception {
+        // not the digest under test
+        return BaseEncoding.base16().lowerCase().encode(MessageDigest.getInstance("SHA-256").digest(bytes));
+    }
+
+    private static byte[] read(DiskFileCache cache, String url) throws Exception {
+        InputStream input = cache.openStream(url);
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int count;
+            while ((count = input.read(buf)) != -1) {
+                output.write(buf, 0, count);
+            }
+            return output.toByteArray();
+        } finally {
+            IOUtils.closeSilently(input);
+        }
+    }
+
+    private static class CancellingListener implements DownloadListener {
+        private final Downloader downloader;
+        private final int percentage;
+
+        CancellingListener(Downloader downloader, int percentage) {
+            this.downloader = downloader;
+            this.percentage = percentage;
+        }
+
+        @Override
+        public void onProgress(int percentageComplete, String remotePath) {
+            if (percentageComplete >= percentage) {
+                downloader.cancel();
+            }
+        }
+
+        @Override
+        public void onComplete(String remotePath) {
+        }
+
+        @Override
+        public void onError(String error) {
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.rayworks.network.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Test;
+import org.rayworks.network.storage.CodecObjectStoreLite;
+import org.rayworks.network.storage.KeyedObject;
+import org.rayworks.network.storage.codec.BinaryReader;
+import org.rayworks.network.storage.codec.BinaryWriter;
+import org.rayworks.network.storage.codec.CodecRegistry;
+import org.rayworks.network.storage.codec.ObjectCodec;
+
+public class CodecRegistryTest {
+
+    @Test
+    public void testBinaryRoundTrip() {
+        CodecRegistry codecs = new CodecRegistry().register(1, Record.class, new RecordCodec(2));
+        Record record = new Record("http://example.com/\u00e9t\u00e9.zip", "\"etag\"", -1L, 3);
+
+        String encoded = codecs.encode(record);
+        assertTrue(CodecRegistry.isBinary(encoded));
+        assertTrue(encoded.length() < new CodecRegistry().encode(record).length());
+
+        Record decoded = codecs.decode(encoded, Record.class);
+        assertEquals(record.url, decoded.url);
+        assertEquals(record.etag, decoded.etag);
+        assertEquals(-1L, decoded.length);
+        assertEquals(3, decoded.attempts);
+    }
+
+    @Test
+    public void testOlderVersionAndJsonFallback() {
+        Record record = new Record("http://example.com/a", null, 1L << 40, 5);
+        String json = new CodecRegistry().encode(record);
+        String version1 = new CodecRegistry().register(1, Record.class, new RecordCodec(1)).encode(record);
+
+        CodecRegistry codecs = new CodecRegistry().register(1, Record.class, new RecordCodec(2));
+        Record fromJson = codecs.decode(json, Record.class);
+        assertEquals(1L << 40, fromJson.length);
+        assertEquals(5, fromJson.attempts);
+
+        Record fromVersion1 = codecs.decode(version1, Record.class);
+        assertEquals(1L << 40, fromVersion1.length);
+        assertNull(fromVersion1.etag);
+        assertEquals(0, fromVersion1.attempts); // appended by version 2
+    }
+
+    @Test
+    public void testObjectStoreLite() {
+        CodecRegistry codecs = new CodecRegistry().register(1, Record.class, new RecordCodec(2));
+        CodecObjectStoreLite store = new CodecObjectStoreLite(new KeyValueStoreImpl(), codecs);
+        store.store(new Record("http://example.com/a", "\"x\"", 10, 1));
+        store.save("plain", "{\"k\":1}");
+
+        assertEquals("\"x\"", store.get("http://example.com/a", Record.class).etag);
+        Map<String, Object> all = store.getAllObjects();
+        assertTrue(all.get("http://example.com/a") instanceof Record);
+        assertEquals("{\"k\":1}", all.get("plain"));
+        assertFalse(codecs.isRegistered(String.class));
+    }
+
+    static class Record implements KeyedObject {
+        String url;
+        String etag;
+        long length;
+        int attempts;
+
+        Record(String url, String etag, long length, int attempts) {
+            this.url = url;
+            this.etag = etag;
+            this.length = length;
+            this.attempts = attempts;
+        }
+
+        @Override
+        public String getKey() {
+            return url;
+        }
+    }
+
+    static class RecordCodec implements ObjectCodec<Record> {
+        private final int version;
+
+        RecordCodec(int version) {
+            this.version = version;
+        }
+
+        @Override
+        public int getVersion() {
+            return version;
+        }
+
+        @Override
+        public void encode(Record record, BinaryWriter out) {
+            out.writeString(record.url).writeString(record.etag).writeZigZagLong(record.length);
+            if (version >= 2) {
+                out.writeVarInt(record.attempts);
+            }
+        }
+
+        @Override
+        public Record decode(BinaryReader in, int version) {
+            Record record = new Record(in.readString(), in.readString(), in.readZigZagLong(), 0);
+            if (version >= 2) {
+                record.attempts = in.readVarInt();
+            }
+            return record;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package org.rayworks.network.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rayworks.network.download.DownloadResult;
+import org.rayworks.network.download.Downloader;
+import org.rayworks.network.download.cache.ContentTypeCompressionPolicy;
+import org.rayworks.network.download.cache.DiskFileCache;
+import org.rayworks.network.download.cache.SaveOptions;
+import org.rayworks.network.storage.SyncStateStore;
+import org.rayworks.network.util.IOUtils;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+public class CompressionTest {
+    private static final String URL = "http://127.0.0.1/data.json";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DiskFileCache cache;
+    private byte[] body;
+
+    @Before
+    public void setUp() throws Exception {
+        // trims run right away, so the byte counts are up to date after each call
+        cache = new DiskFileCache(folder.newFolder("cache"), MoreExecutors.sameThreadExecutor(),
+                new DiskFileCache.Limits(Integer.MAX_VALUE, 0));
+        cache.setCompressionPolicy(new ContentTypeCompressionPolicy());
+
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 20000; i++) {
+            json.append("{\"id\":").append(i).append(",\"name\":\"item ").append(i).append("\"},");
+        }
+        json.append("{}]");
+        body = json.toString().getBytes(Charset.forName("UTF-8"));
+
+        assertTrue(cache.save(URL, new ByteArrayInputStream(body), body.length, null,
+                new SaveOptions().setContentType("application/json", null)));
+    }
+
+    @Test
+    public void testStreamRoundTrip() throws Exception {
+        assertTrue(cache.existFile(URL));
+        assertTrue(cache.getPhysicalByteCount() < body.length);
+        assertEquals(body.length, cache.getLogicalByteCount());
+        assertArrayEquals(body, readFully(cache.openStream(URL)));
+
+        // reading by the stream keeps the entry compressed
+        assertTrue(cache.getPhysicalByteCount() < body.length);
+    }
+
+    @Test
+    public void testFileHoldsOriginalBytes() throws Exception {
+        File file = cache.getFile(URL);
+
+        assertFalse(file.getName().endsWith(DiskFileCache.COMPRESSED_FILE_POSTFIX));
+        assertEquals(body.length, file.length());
+        assertArrayEquals(body, readFully(new FileInputStream(file)));
+
+        // the copy is the caller's, the entry stays compressed
+        assertTrue(file.delete());
+        assertTrue(cache.existFile(URL));
+        assertArrayEquals(body, readFully(cache.openStream(URL)));
+        assertTrue(cache.getPhysicalByteCount() < body.length);
+        assertEquals(body.length, cache.getLogicalByteCount());
+    }
+
+    @Test
+    public void testCopiesAreNotEntries() throws Exception {
+        File first = cache.getFile(URL);
+        File second = cache.getFile(URL);
+
+        assertFalse(first.equals(second));
+        assertArrayEquals(body, readFully(new FileInputStream(second)));
+
+        cache.save("http://127.0.0.1/other.json", new ByteArrayInputStream(body), body.length, null,
+                new SaveOptions().setContentType("application/json", null)); // runs a trim
+        assertEquals(2L * body.length, cache.getLogicalByteCount());
+        assertEquals(2L * body.length, cache.getInFlightByteCount());
+        assertTrue(first.exists());
+    }
+
+    @Test
+    public void testCacheHitReportsOriginalLength() throws Exception {
+        Downloader downloader = new Downloader(URL, new SyncStateStore(new KeyValueStoreImpl()), cache, 5000);
+        DownloadResult result = downloader.downloadFile();
+
+        assertTrue(result.isOk());
+        assertEquals(body.length, result.getTotal());
+        assertEquals(body.length, result.getResultingFile().length());
+        assertArrayEquals(body, readFully(new FileInputStream(result.getResultingFile())));
+
+        // the hit doesn't rewrite the stored entry
+        assertTrue(cache.getPhysicalByteCount() < body.length);
+        int compressed = 0;
+        for (File file : cache.getCacheDir().listFiles()) {
+            if (file.getName().endsWith(DiskFileCache.COMPRESSED_FILE_POSTFIX)) {
+                compressed++;
+            }
+        }
+        assertEquals(1, compressed);
+    }
+
+    private static byte[] readFully(InputStream input) throws Exception {
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            IOUtils.copyStream(input, output, null, 8192, 0L);
+            return output.toByteArray();
+        } finally {
+            IOUtils.closeSilently(input);
+        }
+    }
+}
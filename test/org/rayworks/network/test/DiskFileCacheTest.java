@@ -0,0 +1,351 @@
+package org.rayworks.network.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rayworks.network.download.cache.CacheLease;
+import org.rayworks.network.download.cache.CachePartition;
+import org.rayworks.network.download.cache.ContentTypeCompressionPolicy;
+import org.rayworks.network.download.cache.DiskFileCache;
+import org.rayworks.network.download.cache.EvictionPolicy;
+import org.rayworks.network.download.cache.SaveOptions;
+
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.MoreExecutors;
+
+public class DiskFileCacheTest {
+    private static final String URL = "http://127.0.0.1/entry";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File root;
+    private DiskFileCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        root = folder.newFolder("cache");
+        cache = newCache();
+    }
+
+    @Test
+    public void testExistFiles() throws Exception {
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            urls.add("http://127.0.0.1/file" + i + ".txt");
+        }
+        for (int i = 0; i < 10; i += 3) {
+            save(cache, urls.get(i), i % 2 == 0 ? "text/plain" : "application/octet-stream");
+        }
+
+        BitSet cached = cache.existFiles(urls);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i % 3 == 0, cached.get(i));
+            assertEquals(i % 3 == 0, cache.existFile(urls.get(i)));
+        }
+
+        cache.removeByKey(urls.get(3));
+        assertFalse(cache.existFile(urls.get(3)));
+        assertEquals(3, cache.existFiles(urls).cardinality());
+    }
+
+    @Test
+    public void testFilesOfAnotherInstanceAreFound() throws Exception {
+        String url = "http://127.0.0.1/shared.txt";
+        assertFalse(cache.existFile(url)); // the index of the empty directory is built
+
+        // committed to the same directory behind the back of the first instance
+        save(newCache(), url, "text/plain");
+        assertFalse(cache.existFile(url));
+
+        // a trim lists the directory again
+        save(cache, "http://127.0.0.1/other.txt", "text/plain");
+        assertTrue(cache.existFile(url));
+        assertTrue(newCache().existFile(url));
+    }
+
+    @Test
+    public void testPinnedEntrySurvivesTrim() throws Exception {
+        cache = newCache(new DiskFileCache.Limits(200, 0));
+        save(URL + 1, 100, null);
+        save(URL + 2, 100, null);
+        age(URL + 1, 20000);
+        age(URL + 2, 10000);
+
+        CacheLease lease = cache.acquire(URL + 1);
+        save(URL + 3, 100, null);
+
+        // the oldest one is pinned, the next oldest goes instead
+        assertTrue(cache.existFile(URL + 1));
+        assertFalse(cache.existFile(URL + 2));
+        assertTrue(cache.existFile(URL + 3));
+        assertEquals(100, cache.getPinnedByteCount());
+        assertEquals(200, cache.getPhysicalByteCount());
+
+        lease.close();
+        assertTrue(lease.isReleased());
+        save(URL + 4, 100, null);
+
+        assertFalse(cache.existFile(URL + 1));
+        assertTrue(cache.existFile(URL + 3));
+        assertTrue(cache.existFile(URL + 4));
+        assertEquals(0, cache.getPinnedByteCount());
+    }
+
+    @Test
+    public void testLeasesAreCounted() throws Exception {
+        cache = newCache(new DiskFileCache.Limits(100, 0));
+        save(URL + 1, 100, null);
+        age(URL + 1, 10000);
+
+        CacheLease first = cache.acquire(URL + 1);
+        CacheLease second = cache.acquire(URL + 1);
+        first.release();
+        first.release(); // a second release doesn't take the pin of the other lease
+        save(URL + 2, 100, null);
+        assertTrue(cache.existFile(URL + 1));
+
+        second.close();
+        save(URL + 3, 100, null);
+        assertFalse(cache.existFile(URL + 1));
+        assertNull(cache.acquire(URL + 1));
+    }
+
+    @Test
+    public void testInFlightBytesAreCountedApart() throws Exception {
+        cache = newCache(new DiskFileCache.Limits(100, 0));
+        File partial = cache.getTempFile(URL + 1);
+        Files.write(new byte[150], partial);
+
+        save(URL + 2, 100, null);
+
+        // a partial download is neither an entry nor a victim, however tight the limitation is
+        assertTrue(partial.exists());
+        assertFalse(cache.existFile(URL + 1));
+        assertTrue(cache.existFile(URL + 2));
+        assertEquals(150, cache.getInFlightByteCount());
+        assertEquals(100, cache.getPhysicalByteCount());
+    }
+
+    @Test
+    public void testStaleTempFileIsRemovedUnlessWritten() throws Exception {
+        final File abandoned = cache.getTempFile(URL + 1);
+        Files.write(new byte[10], abandoned);
+        abandoned.setLastModified(System.currentTimeMillis() - DiskFileCache.STALE_TEMP_FILE_AGE - 60000);
+
+        // a save in progress pins its temp file, however old it looks
+        final CountDownLatch resumed = new CountDownLatch(1);
+        final File writing = cache.getTempFile(URL + 2);
+        final InputStream input = new InputStream() {
+            private int count;
+
+            @Override
+            public int read() throws IOException {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(byte[] buffer) throws IOException {
+                if (count++ == 1) {
+                    try {
+                        resumed.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                if (count > 2) {
+                    return -1;
+                }
+                Arrays.fill(buffer, 0, 10, (byte) count);
+                return 10;
+            }
+        };
+        final AtomicBoolean saved = new AtomicBoolean();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    saved.set(cache.save(URL + 2, input, 20, null,
+                            new SaveOptions().setContentType("application/octet-stream", null)));
+                } catch (IOException e) {
+                    saved.set(false);
+                }
+            }
+        };
+        writer.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (writing.length() < 10) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        writing.setLastModified(System.currentTimeMillis() - DiskFileCache.STALE_TEMP_FILE_AGE - 60000);
+
+        save(URL + 3, 100, null);
+        assertFalse(abandoned.exists());
+        assertTrue(writing.exists());
+        assertEquals(10, cache.getInFlightByteCount());
+
+        resumed.countDown();
+        writer.join(5000);
+        assertTrue(saved.get());
+        assertTrue(cache.existFile(URL + 2));
+    }
+
+    @Test
+    public void testClearAllKeepsPinnedEntries() throws Exception {
+        save(URL + 1, 100, null);
+        save(URL + 2, 100, null);
+
+        CacheLease lease = cache.acquire(URL + 1);
+        cache.clearAll();
+        assertTrue(cache.existFile(URL + 1));
+        assertFalse(cache.existFile(URL + 2));
+
+        lease.close();
+        cache.clearAll();
+        assertFalse(cache.existFile(URL + 1));
+    }
+
+    @Test
+    public void testPartitionsAreTrimmedToTheirQuotas() throws Exception {
+        CachePartition oldest = new CachePartition("oldest", new DiskFileCache.Limits(300, 0));
+        CachePartition largest = new CachePartition("largest", new DiskFileCache.Limits(300, 0),
+                EvictionPolicy.LARGEST_FIRST, false);
+        cache.addPartition(oldest);
+        cache.addPartition(largest);
+
+        save(URL + "a1", 100, "oldest");
+        save(URL + "a2", 100, "oldest");
+        save(URL + "a3", 100, "oldest");
+        age(URL + "a1", 30000);
+        age(URL + "a2", 20000);
+        age(URL + "a3", 10000);
+        save(URL + "b1", 50, "largest");
+        save(URL + "b2", 200, "largest");
+        save(URL + "b3", 50, "largest");
+        age(URL + "b1", 30000);
+        age(URL + "b2", 10000);
+        age(URL + "b3", 20000);
+
+        save(URL + "a4", 100, "oldest");
+        assertFalse(cache.existFile(URL + "a1"));
+        assertTrue(cache.existFile(URL + "a2"));
+        assertTrue(cache.existFile(URL + "a3"));
+        assertTrue(cache.existFile(URL + "a4"));
+
+        // the newest but largest one goes, the other partition is left alone
+        save(URL + "b4", 50, "largest");
+        assertFalse(cache.existFile(URL + "b2"));
+        assertTrue(cache.existFile(URL + "b1"));
+        assertTrue(cache.existFile(URL + "b3"));
+        assertTrue(cache.existFile(URL + "b4"));
+        assertTrue(cache.existFile(URL + "a2"));
+
+        assertEquals(300, oldest.getByteCount());
+        assertEquals(3, oldest.getFileCount());
+        assertEquals(1, oldest.getEvictedCount());
+        assertEquals(150, largest.getByteCount());
+        assertEquals(1, largest.getEvictedCount());
+    }
+
+    @Test
+    public void testBorrowingIsBoundByTheSpareQuota() throws Exception {
+        CachePartition bulk = new CachePartition("bulk", new DiskFileCache.Limits(200, 0),
+                EvictionPolicy.OLDEST_FIRST, true);
+        CachePartition assets = new CachePartition("assets", new DiskFileCache.Limits(300, 0));
+        cache.addPartition(bulk);
+        cache.addPartition(assets);
+
+        for (int i = 1; i <= 4; i++) {
+            save(URL + "bulk" + i, 100, "bulk");
+            age(URL + "bulk" + i, (5 - i) * 10000);
+        }
+        // the assets partition is empty, so its whole quota can be borrowed
+        assertEquals(400, bulk.getByteCount());
+        assertEquals(200, bulk.getBorrowedByteCount());
+
+        save(URL + "asset1", 100, "assets");
+        assertEquals(200, bulk.getBorrowedByteCount());
+
+        // only 100 bytes are left unused, the borrower gives back its oldest file
+        save(URL + "asset2", 100, "assets");
+        assertFalse(cache.existFile(URL + "bulk1"));
+        for (int i = 2; i <= 4; i++) {
+            assertTrue(cache.existFile(URL + "bulk" + i));
+        }
+        assertTrue(cache.existFile(URL + "asset1"));
+        assertTrue(cache.existFile(URL + "asset2"));
+        assertEquals(100, bulk.getBorrowedByteCount());
+        assertEquals(1, bulk.getEvictedCount());
+        assertEquals(0, assets.getEvictedCount());
+    }
+
+    @Test
+    public void testBorrowersGiveBackFirst() throws Exception {
+        cache = newCache(new DiskFileCache.Limits(300, 0));
+        CachePartition bulk = new CachePartition("bulk", new DiskFileCache.Limits(100, 0),
+                EvictionPolicy.OLDEST_FIRST, true);
+        CachePartition assets = new CachePartition("assets", new DiskFileCache.Limits(300, 0));
+        cache.addPartition(bulk);
+        cache.addPartition(assets);
+
+        save(URL + "asset", 100, "assets");
+        age(URL + "asset", 60000);
+        save(URL + "bulk1", 100, "bulk");
+        save(URL + "bulk2", 100, "bulk");
+        age(URL + "bulk1", 20000);
+        age(URL + "bulk2", 10000);
+
+        // the whole cache is over its limitation, the borrowed file goes although the asset is older
+        save(URL + "bulk3", 100, "bulk");
+        assertTrue(cache.existFile(URL + "asset"));
+        assertFalse(cache.existFile(URL + "bulk1"));
+        assertTrue(cache.existFile(URL + "bulk2"));
+        assertTrue(cache.existFile(URL + "bulk3"));
+        assertEquals(300, cache.getPhysicalByteCount());
+        assertEquals(100, bulk.getBorrowedByteCount());
+    }
+
+    private DiskFileCache newCache() {
+        return newCache(new DiskFileCache.Limits(Integer.MAX_VALUE, 0));
+    }
+
+    // trims run right away, so the files are in place and the byte counts are up to date after each call
+    private DiskFileCache newCache(DiskFileCache.Limits limits) {
+        DiskFileCache cache = new DiskFileCache(root, MoreExecutors.sameThreadExecutor(), limits);
+        cache.setCompressionPolicy(new ContentTypeCompressionPolicy());
+        return cache;
+    }
+
+    private void save(String url, int size, String partition) throws Exception {
+        assertTrue(cache.save(url, new ByteArrayInputStream(new byte[size]), size, null,
+                new SaveOptions().setContentType("application/octet-stream", null).setPartition(partition)));
+    }
+
+    private void age(String url, long millis) {
+        assertTrue(cache.getFile(url).setLastModified(System.currentTimeMillis() - millis));
+    }
+
+    private static void save(DiskFileCache cache, String url, String contentType) throws Exception {
+        byte[] body = ("content of " + url).getBytes("UTF-8");
+        assertTrue(cache.save(url, new ByteArrayInputStream(body), body.length, null,
+                new SaveOptions().setContentType(contentType, null)));
+    }
+}
@@ -0,0 +1,107 @@
+package org.rayworks.network.test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rayworks.network.download.DownloadEnabledStrategy;
+import org.rayworks.network.download.DownloadHandle;
+import org.rayworks.network.download.DownloadManager;
+import org.rayworks.network.download.DownloadSetting;
+import org.rayworks.network.download.cache.DiskFileCache;
+import org.rayworks.network.storage.SyncStateStore;
+
+public class DownloadHandleTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TestHttpServer server;
+    private ExecutorService executor;
+    private DiskFileCache cache;
+    private volatile boolean networkAvailable = true;
+    private DownloadManager downloadMgr;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestHttpServer();
+        executor = Executors.newSingleThreadExecutor();
+        cache = new DiskFileCache(folder.newFolder("cache"), executor, new DiskFileCache.Limits(Integer.MAX_VALUE, 0));
+        DownloadSetting setting = new DownloadSetting.Builder().setDownloadEnabledStrategy(new DownloadEnabledStrategy() {
+            @Override
+            public boolean isNetworkAvailableForDownloading() {
+                return networkAvailable;
+            }
+        }).setThreadNum(1).setTimeout(5000).setThreadPriority(Thread.NORM_PRIORITY).create();
+
+        downloadMgr = new DownloadManager(new SyncStateStore(new KeyValueStoreImpl()), setting,
+                new ConnectivityServiceImpl(), new DeviceStorageMonitorImpl(), cache);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        downloadMgr.cancelAllTasks();
+        server.stop();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testCapOfFailedSubmitIsIgnored() throws Exception {
+        networkAvailable = false;
+        DownloadHandle handle = downloadMgr.submit(server.url("/never"));
+        assertTrue(handle.isDone());
+
+        handle.setMaxBytesPerSecond(1000);
+        try {
+            handle.getFuture().get();
+            fail("no network");
+        } catch (ExecutionException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCapAppliesToDownload() throws Exception {
+        server.serve("/capped", randomBytes(300 * 1000)).setPacing(10 * 1000, 0);
+
+        long start = System.nanoTime();
+        DownloadHandle handle = downloadMgr.submit(server.url("/capped"));
+        handle.setMaxBytesPerSecond(200 * 1000);
+        assertTrue(handle.getFuture().get(10, TimeUnit.SECONDS).isOk());
+
+        // 1.5 s at the cap, less the burst allowed
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(1000));
+
+        handle.setMaxBytesPerSecond(0); // done already, nothing to cap
+    }
+
+    @Test
+    public void testCapKeptAcrossPauseAndResume() throws Exception {
+        server.serve("/capped", randomBytes(300 * 1000)).setPacing(10 * 1000, 0);
+
+        DownloadHandle handle = downloadMgr.submit(server.url("/capped"));
+        handle.setMaxBytesPerSecond(200 * 1000);
+        Thread.sleep(300);
+        assertTrue(handle.pause());
+
+        long start = System.nanoTime();
+        assertTrue(handle.resume());
+        assertTrue(handle.getFuture().get(10, TimeUnit.SECONDS).isOk());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(500));
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,78 @@
+package org.rayworks.network.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rayworks.network.download.cache.DiskFileCache;
+import org.rayworks.network.util.HashFileNameGenerator;
+import org.rayworks.network.util.Md5FileNameGenerator;
+
+import com.google.common.hash.Hashing;
+
+public class FileNameGeneratorTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testSameAsGuavaMurmur3() {
+        HashFileNameGenerator generator = new HashFileNameGenerator();
+        StringBuilder longUri = new StringBuilder("http://example.com/");
+        for (int i = 0; i < 3000; i++) {
+            longUri.append((char) ('a' + i % 26));
+        }
+
+        String[] uris = {
+                "", "a", "http://example.com/a.png", "http://example.com/0123456789abcde",
+                "http://example.com/\u00e9t\u00e9/\u4e2d\u6587.json", "http://example.com/\ud83d\ude00",
+                "http://example.com/broken\ud83d", longUri.toString()
+        };
+        for (String uri : uris) {
+            String name = generator.generate(uri);
+            assertEquals(Hashing.murmur3_128().hashBytes(uri.getBytes(UTF_8)).toString(), name);
+            assertEquals(HashFileNameGenerator.NAME_LENGTH, name.length());
+        }
+    }
+
+    @Test
+    public void testLegacyEntryMigrated() throws Exception {
+        File dir = folder.newFolder("cache");
+        String url = "http://example.com/legacy.bin";
+        String legacyName = new Md5FileNameGenerator().generate(url);
+
+        FileOutputStream out = new FileOutputStream(new File(dir, legacyName));
+        out.write(new byte[]{1, 2, 3});
+        out.close();
+
+        DiskFileCache cache = new DiskFileCache(dir, executor);
+        assertTrue(cache.existFile(url));
+        assertEquals(new HashFileNameGenerator().generate(url), cache.getFile(url).getName());
+        assertEquals(3, cache.getFile(url).length());
+        assertFalse(new File(dir, legacyName).exists());
+    }
+}
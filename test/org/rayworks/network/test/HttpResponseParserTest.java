@@ -0,0 +1,117 @@
+package org.rayworks.network.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+import org.rayworks.network.download.http.HttpResponseParser;
+
+public class HttpResponseParserTest {
+
+    /***
+     * Feeds the response a few bytes at a time, as a slow connection would
+     */
+    private static String parse(HttpResponseParser parser, String response, int step, boolean close)
+            throws ProtocolException {
+        byte[] bytes = response.getBytes(StandardCharsets.ISO_8859_1);
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+        for (int i = 0; i < bytes.length; i += step) {
+            buffer.put(bytes, i, Math.min(step, bytes.length - i));
+            buffer.flip();
+            if (parser.parseHead(buffer)) {
+                ByteBuffer slice;
+                while ((slice = parser.parseBody(buffer)) != null) {
+                    byte[] data = new byte[slice.remaining()];
+                    slice.get(data);
+                    body.write(data, 0, data.length);
+                }
+            }
+            buffer.compact();
+        }
+        if (close) {
+            parser.onEndOfStream();
+        }
+        return new String(body.toByteArray(), StandardCharsets.ISO_8859_1);
+    }
+
+    @Test
+    public void testContentLength() throws Exception {
+        for (int step = 1; step <= 7; step++) {
+            HttpResponseParser parser = new HttpResponseParser();
+            String body = parse(parser, "HTTP/1.1 206 Partial Content\r\nContent-Length: 10\r\n"
+                    + "ETag: \"a\"\r\nContent-Range: bytes 5-14/15\r\n\r\n0123456789", step, false);
+
+            assertEquals("0123456789", body);
+            assertTrue(parser.isComplete());
+            assertTrue(parser.isKeepAlive());
+            assertEquals(206, parser.getStatusCode());
+            assertEquals(10, parser.getContentLength());
+            assertEquals("\"a\"", parser.getHeader("etag"));
+        }
+    }
+
+    @Test
+    public void testChunked() throws Exception {
+        for (int step = 1; step <= 7; step++) {
+            HttpResponseParser parser = new HttpResponseParser();
+            String body = parse(parser, "HTTP/1.1 100 Continue\r\n\r\nHTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n"
+                    + "5;ext=1\r\nhello\r\n1A\r\nabcdefghijklmnopqrstuvwxyz\r\n0\r\nX-Trailer: 1\r\n\r\n", step, false);
+
+            assertEquals("helloabcdefghijklmnopqrstuvwxyz", body);
+            assertTrue(parser.isComplete());
+            assertTrue(parser.isKeepAlive());
+            assertEquals(200, parser.getStatusCode());
+            assertEquals(-1, parser.getContentLength());
+            assertEquals(31, parser.getBodyLength());
+        }
+    }
+
+    @Test
+    public void testUntilClose() throws Exception {
+        HttpResponseParser parser = new HttpResponseParser();
+        String body = parse(parser, "HTTP/1.0 200 OK\r\nContent-Type: text/plain\r\n\r\nall of it", 4, false);
+        assertFalse(parser.isComplete());
+        assertFalse(parser.isKeepAlive());
+
+        parser.onEndOfStream();
+        assertTrue(parser.isComplete());
+        assertEquals("all of it", body);
+    }
+
+    @Test
+    public void testConnectionClose() throws Exception {
+        HttpResponseParser parser = new HttpResponseParser();
+        parse(parser, "HTTP/1.1 404 Not Found\r\nConnection: close\r\nContent-Length: 0\r\n\r\n", 64, false);
+        assertTrue(parser.isComplete());
+        assertFalse(parser.isKeepAlive());
+        assertEquals("Not Found", parser.getReasonPhrase());
+        assertNull(parser.parseBody(ByteBuffer.allocate(0)));
+    }
+
+    @Test
+    public void testMalformedResponses() throws Exception {
+        String[] responses = {
+                "HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\n01234", // cut short
+                "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n",
+                "HTTP/1.1 200 OK\r\nContent-Length: -1\r\n\r\n",
+                "SSH-2.0-OpenSSH\r\n\r\n"
+        };
+        for (String response : responses) {
+            try {
+                parse(new HttpResponseParser(), response, 3, true);
+                fail("accepted " + response);
+            } catch (ProtocolException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package org.rayworks.network.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rayworks.network.download.DownloadResult;
+import org.rayworks.network.download.Downloader;
+import org.rayworks.network.download.cache.ContentTypeCompressionPolicy;
+import org.rayworks.network.download.cache.DiskFileCache;
+import org.rayworks.network.download.cache.SaveOptions;
+import org.rayworks.network.download.listener.DownloadListener;
+import org.rayworks.network.storage.SyncStateStore;
+import org.rayworks.network.util.IOUtils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Checks the sizes beyond 2 GB. The server generates a sparse body of zeros and the partial file is a sparse file,
+ * so only the tail of the resource is really transferred.
+ */
+public class LargeFileDownloadTest {
+    private static final long GB = 1024L * 1024 * 1024;
+    private static final long BODY_SIZE = 5 * GB;
+    private static final int TAIL_SIZE = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new SparseBodyHandler());
+        server.start();
+
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testResumeBeyond2GB() throws Exception {
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/disk.img";
+        DiskFileCache cache = new DiskFileCache(folder.newFolder("cache"), executor,
+                new DiskFileCache.Limits(8 * GB, 0));
+
+        RandomAccessFile partial = new RandomAccessFile(cache.getTempFile(url), "rw");
+        partial.setLength(BODY_SIZE - TAIL_SIZE);
+        partial.close();
+
+        ProgressRecorder recorder = new ProgressRecorder();
+        Downloader downloader = new Downloader(url, new SyncStateStore(new KeyValueStoreImpl()), cache, 15000);
+        downloader.setProgressListener(recorder);
+
+        DownloadResult result = downloader.downloadFile();
+
+        assertTrue(result.isOk());
+        assertEquals(BODY_SIZE, result.getTotal());
+        assertEquals(BODY_SIZE, cache.getFile(url).length());
+        assertEquals(100, recorder.lastProgress);
+        assertTrue(recorder.completed);
+    }
+
+    @Test
+    public void testCompressedEntryBeyond4GB() throws Exception {
+        String url = "http://127.0.0.1/zeros.txt";
+        DiskFileCache cache = new DiskFileCache(folder.newFolder("cache"), executor,
+                new DiskFileCache.Limits(8 * GB, 0));
+        cache.setCompressionPolicy(new ContentTypeCompressionPolicy());
+
+        long size = 4 * GB + TAIL_SIZE;
+        assertTrue(cache.save(url, new ZeroInputStream(size), size, null,
+                new SaveOptions().setContentType("text/plain", null)));
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                // waits for the trim posted by the save
+            }
+        }).get();
+
+        // the gzip trailer only knows the size modulo 2^32
+        assertTrue(cache.getPhysicalByteCount() < TAIL_SIZE * 16);
+        assertEquals(size, cache.getLogicalByteCount());
+    }
+
+    @Test
+    public void testCopyStreamBeyond2GB() throws Exception {
+        final long size = 3 * GB;
+        final long[] lastCopied = new long[1];
+        final int[] lastIntCopied = new int[1];
+
+        boolean copied = IOUtils.copyStream(new ZeroInputStream(size), new NullOutputStream(), new IOUtils.CopyListener() {
+            @Override
+            public boolean onBytesCopied(long current, long total) {
+                lastCopied[0] = current;
+                return true;
+            }
+        }, 1024 * 1024, size);
+        assertTrue(copied);
+        assertEquals(size, lastCopied[0]);
+
+        // the int based listener still works, the values are clamped
+        copied = IOUtils.copyStream(new ZeroInputStream(size), new NullOutputStream(), new IOUtils.IntCopyListener() {
+            @Override
+            public boolean onBytesCopied(int current, int total) {
+                lastIntCopied[0] = current;
+                return true;
+            }
+        }, 1024 * 1024, size);
+        assertTrue(copied);
+        assertEquals(Integer.MAX_VALUE, lastIntCopied[0]);
+    }
+
+    private static class SparseBodyHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            long start = 0;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range != null && range.startsWith("bytes=") && range.endsWith("-")) {
+                start = Long.parseLong(range.substring("bytes=".length(), range.length() - 1));
+            }
+
+            long length = BODY_SIZE - start;
+            if (start > 0) {
+                exchange.getResponseHeaders().add("Content-Range",
+                        "bytes " + start + "-" + (BODY_SIZE - 1) + "/" + BODY_SIZE);
+                exchange.sendResponseHeaders(206, length);
+            } else {
+                exchange.sendResponseHeaders(200, length);
+            }
+
+            OutputStream out = exchange.getResponseBody();
+            byte[] zeros = new byte[64 * 1024];
+            try {
+                while (length > 0) {
+                    int n = (int) Math.min(zeros.length, length);
+                    out.write(zeros, 0, n);
+                    length -= n;
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    private static class ProgressRecorder implements DownloadListener {
+        volatile int lastProgress;
+        volatile boolean completed;
+
+        @Override
+        public void onProgress(int percentageComplete, String remotePath) {
+            lastProgress = percentageComplete;
+        }
+
+        @Override
+        public void onComplete(String remotePath) {
+            completed = true;
+        }
+
+        @Override
+        public void onError(String error) {
+        }
+    }
+
+    private static class ZeroInputStream extends InputStream {
+        private long remaining;
+
+        ZeroInputStream(long size) {
+            remaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            remaining--;
+            return 0;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = (int) Math.min(len, remaining);
+            remaining -= n;
+            return n;
+        }
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+        }
+    }
+}
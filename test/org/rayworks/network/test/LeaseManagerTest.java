@@ -0,0 +1,96 @@
+package org.rayworks.network.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.rayworks.network.util.LeaseManager;
+
+public class LeaseManagerTest {
+
+    @Test
+    public void testExclusivePerKey() throws Exception {
+        final LeaseManager<String> leases = new LeaseManager<>();
+        final int[] counters = new int[8];
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 16; t++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 20000; i++) {
+                        int key = i % counters.length;
+                        // equal but distinct instances
+                        String url = new String("http://example.com/" + key);
+                        try (LeaseManager.Lease<String> lease = leases.acquire(url)) {
+                            assertEquals(url, lease.getKey());
+                            int value = counters[key];
+                            Thread.yield();
+                            counters[key] = value + 1;
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (int counter : counters) {
+            assertEquals(16 * 20000 / counters.length, counter);
+        }
+        assertEquals(0, leases.size());
+    }
+
+    @Test
+    public void testTryAcquire() throws Exception {
+        final LeaseManager<String> leases = new LeaseManager<>();
+        LeaseManager.Lease<String> lease = leases.acquire("a");
+
+        final List<LeaseManager.Lease<String>> other = new ArrayList<>();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                other.add(leases.tryAcquire("a"));
+                other.add(leases.tryAcquire("b"));
+                other.get(1).close();
+            }
+        };
+        thread.start();
+        thread.join();
+        assertNull(other.get(0));
+        assertEquals(1, leases.size());
+
+        lease.close();
+        assertEquals(0, leases.size());
+    }
+
+    @Test
+    public void testCloseIsIdempotent() throws Exception {
+        LeaseManager<String> leases = new LeaseManager<>();
+        LeaseManager.Lease<String> first = leases.acquire("a");
+        first.close();
+
+        LeaseManager.Lease<String> second = leases.acquire("a");
+        first.close(); // neither frees the key held by the second nor drops its state
+        assertNull(leases.tryAcquire("a"));
+        assertEquals(1, leases.size());
+
+        second.close();
+        second.close();
+        assertEquals(0, leases.size());
+
+        LeaseManager.Lease<String> third = leases.tryAcquire("a");
+        assertNotNull(third);
+        assertNull(leases.tryAcquire("a"));
+        third.close();
+        assertEquals(0, leases.size());
+    }
+}
@@ -0,0 +1,165 @@
+package org.rayworks.network.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rayworks.network.storage.LogKeyValueStore;
+import org.rayworks.network.storage.LogKeyedObjectStore;
+
+public class LogKeyValueStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReplay() throws Exception {
+        File dir = folder.newFolder("kv");
+        LogKeyValueStore store = new LogKeyValueStore(dir);
+        store.save("a", "1");
+        store.save("b", "2");
+        store.save("a", "\u00e9t\u00e9");
+        store.remove("b");
+
+        LogKeyValueStore reopened = new LogKeyValueStore(dir);
+        assertEquals("\u00e9t\u00e9", reopened.get("a"));
+        assertNull(reopened.get("b"));
+        assertEquals(1, reopened.getAll().size());
+    }
+
+    @Test
+    public void testTornRecordCutOff() throws Exception {
+        File dir = folder.newFolder("kv");
+        LogKeyValueStore store = new LogKeyValueStore(dir);
+        store.save("a", "1");
+        store.save("b", "2");
+        long length = store.getLogLength();
+
+        // a crash in the middle of the next write
+        File log = new File(dir, "store.log");
+        RandomAccessFile raf = new RandomAccessFile(log, "rw");
+        raf.setLength(length - 3);
+        raf.close();
+        FileOutputStream garbage = new FileOutputStream(log, true);
+        garbage.write(new byte[]{1, 0, 0});
+        garbage.close();
+
+        LogKeyValueStore reopened = new LogKeyValueStore(dir);
+        assertEquals("1", reopened.get("a"));
+        assertNull(reopened.get("b"));
+
+        reopened.save("c", "3");
+        LogKeyValueStore again = new LogKeyValueStore(dir);
+        assertEquals("1", again.get("a"));
+        assertEquals("3", again.get("c"));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        File dir = folder.newFolder("kv");
+        LogKeyValueStore store = new LogKeyValueStore(dir);
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            value.append("0123456789");
+        }
+        for (int round = 0; round < 100; round++) {
+            for (int i = 0; i < 10; i++) {
+                store.save("key" + i, value.toString() + round);
+            }
+        }
+
+        // 1000 records of ~1 KB were written, the dead ones are compacted away on the way
+        assertTrue(store.getLogLength() < 300 * 1024);
+
+        LogKeyValueStore reopened = new LogKeyValueStore(dir);
+        assertEquals(10, reopened.getAll().size());
+        assertEquals(value.toString() + 99, reopened.get("key5"));
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        File dir = folder.newFolder("kv");
+        LogKeyValueStore store = new LogKeyValueStore(dir);
+        store.save("a", "1");
+        store.clear();
+        store.save("b", "2");
+
+        LogKeyValueStore reopened = new LogKeyValueStore(dir);
+        assertNull(reopened.get("a"));
+        assertEquals("2", reopened.get("b"));
+    }
+
+    @Test
+    public void testBatchCommitIsAtomic() throws Exception {
+        File dir = folder.newFolder("kv");
+        LogKeyValueStore store = new LogKeyValueStore(dir);
+        store.save("a", "1");
+        long length = store.getLogLength();
+
+        LogKeyedObjectStore objects = new LogKeyedObjectStore(store);
+        objects.beginBatchCommit();
+        objects.storeLong("b", 2);
+        objects.beginBatchCommit();
+        objects.storeString("c", "3");
+        objects.remove("a");
+        objects.endBatchCommit();
+        assertEquals(2, objects.getLong("b")); // read-your-writes
+        assertNull(store.get("b"));
+        objects.endBatchCommit();
+
+        assertNull(store.get("a"));
+        assertEquals("3", store.get("c"));
+        LogKeyValueStore reopened = new LogKeyValueStore(dir);
+        assertEquals("2", reopened.get("b"));
+        assertNull(reopened.get("a"));
+
+        // a batch torn by a crash is dropped as a whole
+        RandomAccessFile raf = new RandomAccessFile(new File(dir, "store.log"), "rw");
+        raf.setLength(store.getLogLength() - 1);
+        raf.close();
+        reopened = new LogKeyValueStore(dir);
+        assertEquals("1", reopened.get("a"));
+        assertNull(reopened.get("b"));
+        assertNull(reopened.get("c"));
+        assertEquals(length, reopened.getLogLength());
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        File dir = folder.newFolder("kv");
+        final LogKeyValueStore store = new LogKeyValueStore(dir);
+        store.setGroupCommit(true, 2);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final int id = t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 50; i++) {
+                        store.save("t" + id + "-" + i, Integer.toString(i));
+                        assertEquals(Integer.toString(i), store.get("t" + id + "-" + i));
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        LogKeyValueStore reopened = new LogKeyValueStore(dir);
+        assertEquals(400, reopened.getAll().size());
+        assertEquals("49", reopened.get("t7-49"));
+    }
+}
@@ -0,0 +1,112 @@
+package org.rayworks.network.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rayworks.network.storage.MappedKeyValueStore;
+
+public class MappedKeyValueStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReopen() throws Exception {
+        File dir = folder.newFolder("kv");
+        MappedKeyValueStore store = new MappedKeyValueStore(dir);
+        store.save("a", "1");
+        store.save("b", "2");
+        store.save("a", "\u00e9t\u00e9");
+        store.remove("b");
+        assertEquals("\u00e9t\u00e9", store.get("a"));
+        assertNull(store.get("b"));
+
+        MappedKeyValueStore reopened = new MappedKeyValueStore(dir);
+        assertEquals("\u00e9t\u00e9", reopened.get("a"));
+        assertNull(reopened.get("b"));
+        assertEquals(1, reopened.getAll().size());
+    }
+
+    @Test
+    public void testGrowAndRewrite() throws Exception {
+        File dir = folder.newFolder("kv");
+        MappedKeyValueStore store = new MappedKeyValueStore(dir);
+        for (int i = 0; i < 20000; i++) {
+            store.save("http://example.com/file" + i, "Thu, 01 Jan 2015 00:00:00 GMT#" + i);
+        }
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 20000; i += 2) {
+                store.remove("http://example.com/file" + i);
+                store.save("http://example.com/file" + i, "round" + round);
+            }
+        }
+
+        // the replaced records are dropped on the way
+        assertTrue(store.getFileLength() < 16 * 1024 * 1024);
+        assertEquals(20000, store.getAll().size());
+
+        MappedKeyValueStore reopened = new MappedKeyValueStore(dir);
+        assertEquals("round9", reopened.get("http://example.com/file100"));
+        assertEquals("Thu, 01 Jan 2015 00:00:00 GMT#101", reopened.get("http://example.com/file101"));
+        reopened.clear();
+        assertNull(reopened.get("http://example.com/file101"));
+        assertEquals(0, new MappedKeyValueStore(dir).getAll().size());
+    }
+
+    @Test
+    public void testConcurrentReadersAndWriters() throws Exception {
+        final MappedKeyValueStore store = new MappedKeyValueStore(folder.newFolder("kv"));
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger errors = new AtomicInteger();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int id = t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 20000; i++) {
+                        store.save("w" + id + "-" + (i % 500), Integer.toString(i));
+                    }
+                }
+            });
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    while (!done.get()) {
+                        for (int i = 0; i < 500; i++) {
+                            String value = store.get("w" + id + "-" + i);
+                            // every value ever written is i modulo 500
+                            if (value != null && Integer.parseInt(value) % 500 != i) {
+                                errors.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (int i = 0; i < threads.size(); i += 2) {
+            threads.get(i).join();
+        }
+        done.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, errors.get());
+        assertEquals("19999", store.get("w3-499"));
+        assertEquals(2000, store.getAll().size());
+    }
+}
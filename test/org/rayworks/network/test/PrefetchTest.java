@@ -0,0 +1,232 @@
+package org.rayworks.network.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rayworks.network.download.DownloadEnabledStrategy;
+import org.rayworks.network.download.DownloadHandle;
+import org.rayworks.network.download.DownloadManager;
+import org.rayworks.network.download.DownloadSetting;
+import org.rayworks.network.download.PrefetchEntry;
+import org.rayworks.network.download.PrefetchProgress;
+import org.rayworks.network.download.PrefetchSetting;
+import org.rayworks.network.download.PrefetchTask;
+import org.rayworks.network.download.cache.DiskFileCache;
+import org.rayworks.network.download.listener.PrefetchListener;
+import org.rayworks.network.storage.SyncStateStore;
+import org.rayworks.network.util.IOUtils;
+
+public class PrefetchTest {
+    private static final String LAST_MODIFIED = "Thu, 01 Jan 2015 00:00:00 GMT";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TestHttpServer server;
+    private ExecutorService executor;
+    private DiskFileCache cache;
+    private DownloadManager downloadMgr;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestHttpServer();
+        executor = Executors.newSingleThreadExecutor();
+        cache = new DiskFileCache(folder.newFolder("cache"), executor, new DiskFileCache.Limits(Integer.MAX_VALUE, 0));
+        DownloadSetting setting = new DownloadSetting.Builder().setDownloadEnabledStrategy(new DownloadEnabledStrategy() {
+            @Override
+            public boolean isNetworkAvailableForDownloading() {
+                return true;
+            }
+        }).setThreadNum(2).setTimeout(5000).setThreadPriority(Thread.NORM_PRIORITY).create();
+
+        downloadMgr = new DownloadManager(new SyncStateStore(new KeyValueStoreImpl()), setting,
+                new ConnectivityServiceImpl(), new DeviceStorageMonitorImpl(), cache);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        downloadMgr.cancelAllTasks();
+        server.stop();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testWaitsForForegroundTasks() throws Exception {
+        TestHttpServer.Resource foreground = server.serve("/foreground", randomBytes(200 * 1000))
+                .setPacing(10 * 1000, 20);
+        TestHttpServer.Resource background = server.serve("/background", randomBytes(100 * 1000));
+
+        DownloadHandle handle = downloadMgr.submit(server.url("/foreground"));
+        waitForRequests(foreground, 1);
+
+        RecordingListener listener = new RecordingListener();
+        downloadMgr.prefetch(Collections.singletonList(new PrefetchEntry(server.url("/background"))),
+                new PrefetchSetting.Builder().create(), listener);
+
+        Thread.sleep(100);
+        assertEquals(0, background.getRequestCount());
+
+        assertTrue(handle.getFuture().get(10, TimeUnit.SECONDS).isOk());
+        assertTrue(listener.await());
+        assertFalse(listener.cancelled);
+        assertEquals(1, listener.progress.getDownloadedCount());
+        assertEquals(1, background.getRequestCount());
+    }
+
+    @Test
+    public void testYieldsToForegroundAndResumes() throws Exception {
+        byte[] body = randomBytes(1000 * 1000);
+        TestHttpServer.Resource background = server.serve("/background", body)
+                .setLastModified(LAST_MODIFIED)
+                .setPacing(16 * 1000, 10);
+        server.serve("/foreground", randomBytes(10 * 1000));
+        String url = server.url("/background");
+
+        RecordingListener listener = new RecordingListener();
+        downloadMgr.prefetch(Collections.singletonList(new PrefetchEntry(url)),
+                new PrefetchSetting.Builder().create(), listener);
+        waitForRequests(background, 1);
+        Thread.sleep(100);
+
+        DownloadHandle handle = downloadMgr.submit(server.url("/foreground"));
+        assertTrue(handle.getFuture().get(10, TimeUnit.SECONDS).isOk());
+
+        assertTrue(listener.await());
+        assertFalse(listener.cancelled);
+        assertEquals(1, listener.progress.getDownloadedCount());
+        assertEquals(0, listener.progress.getFailedCount());
+
+        // paused with its partial file kept, then resumed from it
+        List<String> ranges = background.getRanges();
+        assertEquals(2, ranges.size());
+        assertNull(ranges.get(0));
+        assertTrue(ranges.get(1).startsWith("bytes=") && !ranges.get(1).equals("bytes=0-"));
+        assertArrayEquals(body, read(url));
+    }
+
+    @Test
+    public void testCancelStopsRun() throws Exception {
+        List<PrefetchEntry> manifest = new ArrayList<>();
+        List<TestHttpServer.Resource> resources = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            resources.add(server.serve("/entry" + i, randomBytes(500 * 1000)).setPacing(10 * 1000, 20));
+            manifest.add(new PrefetchEntry(server.url("/entry" + i)));
+        }
+
+        RecordingListener listener = new RecordingListener();
+        PrefetchTask prefetchTask = downloadMgr.prefetch(manifest, new PrefetchSetting.Builder().create(), listener);
+        waitForRequests(resources.get(0), 1);
+
+        prefetchTask.cancel();
+
+        assertTrue(listener.await());
+        assertTrue(listener.cancelled);
+        assertTrue(prefetchTask.isCancelled());
+        assertEquals(0, listener.progress.getDownloadedCount());
+        assertEquals(0, resources.get(1).getRequestCount());
+        assertEquals(0, resources.get(2).getRequestCount());
+        assertFalse(cache.existFile(server.url("/entry0")));
+    }
+
+    @Test
+    public void testUnknownLengthIsNotRetriedForever() throws Exception {
+        TestHttpServer.Resource chunked = server.serve("/chunked", randomBytes(100 * 1000))
+                .setChunked(true)
+                .setRangeSupported(false);
+        server.serve("/next", randomBytes(10 * 1000));
+
+        RecordingListener listener = new RecordingListener();
+        downloadMgr.prefetch(Arrays.asList(new PrefetchEntry(server.url("/chunked")),
+                new PrefetchEntry(server.url("/next"))), new PrefetchSetting.Builder().create(), listener);
+
+        // the download ends up canceled without being yielded, that's a failure rather than a pause
+        assertTrue(listener.await());
+        assertFalse(listener.cancelled);
+        assertEquals(1, listener.progress.getFailedCount());
+        assertEquals(1, listener.progress.getDownloadedCount());
+        assertEquals(1, chunked.getRequestCount());
+    }
+
+    @Test
+    public void testBandwidthCap() throws Exception {
+        byte[] body = randomBytes(600 * 1000);
+        server.serve("/capped", body);
+
+        RecordingListener listener = new RecordingListener();
+        long started = System.currentTimeMillis();
+        downloadMgr.prefetch(Collections.singletonList(new PrefetchEntry(server.url("/capped"))),
+                new PrefetchSetting.Builder().setBytesPerSecond(1000 * 1000).create(), listener);
+
+        assertTrue(listener.await());
+        // 0.6 s worth of the cap, less the burst the bucket lets through
+        assertTrue(System.currentTimeMillis() - started >= 350);
+        assertEquals(1, listener.progress.getDownloadedCount());
+        assertArrayEquals(body, read(server.url("/capped")));
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void waitForRequests(TestHttpServer.Resource resource, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (resource.getRequestCount() < count) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private byte[] read(String url) throws Exception {
+        InputStream input = cache.openStream(url);
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            IOUtils.copyStream(input, output, null, 8192, 0L);
+            return output.toByteArray();
+        } finally {
+            IOUtils.closeSilently(input);
+        }
+    }
+
+    private static class RecordingListener implements PrefetchListener {
+        private final CountDownLatch completed = new CountDownLatch(1);
+        volatile PrefetchProgress progress;
+        volatile boolean cancelled;
+
+        @Override
+        public void onProgress(PrefetchProgress progress) {
+        }
+
+        @Override
+        public void onComplete(PrefetchProgress progress, boolean cancelled) {
+            this.progress = progress;
+            this.cancelled = cancelled;
+            completed.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            return completed.await(10, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.rayworks.network.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rayworks.network.download.DownloadResult;
+import org.rayworks.network.download.Downloader;
+import org.rayworks.network.download.cache.DiskFileCache;
+import org.rayworks.network.storage.SyncStateStore;
+import org.rayworks.network.util.IOUtils;
+
+public class ProgressiveStreamTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TestHttpServer server;
+    private ExecutorService executor;
+    private DiskFileCache cache;
+    private byte[] body;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestHttpServer();
+        executor = Executors.newCachedThreadPool();
+        cache = new DiskFileCache(folder.newFolder("cache"), executor, new DiskFileCache.Limits(Integer.MAX_VALUE, 0));
+
+        body = new byte[500 * 1000];
+        new Random(5).nextBytes(body);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testReadsWhileDownloading() throws Exception {
+        server.serve("/media", body).setPacing(25 * 1000, 20);
+        final String url = server.url("/media");
+
+        // opened before the download starts, it waits for it
+        InputStream input = cache.openProgressiveStream(url, 5000);
+        try {
+            Future<DownloadResult> download = executor.submit(new Callable<DownloadResult>() {
+                @Override
+                public DownloadResult call() {
+                    return new Downloader(url, new SyncStateStore(new KeyValueStoreImpl()), cache, 5000).downloadFile();
+                }
+            });
+
+            byte[] buf = new byte[8192];
+            int first = input.read(buf);
+            assertTrue(first > 0);
+            assertFalse(cache.existFile(url)); // still downloading
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            output.write(buf, 0, first);
+            IOUtils.copyStream(input, output, null, 8192, 0L);
+
+            assertArrayEquals(body, output.toByteArray());
+            assertTrue(download.get(10, TimeUnit.SECONDS).isOk());
+        } finally {
+            input.close();
+        }
+    }
+
+    @Test
+    public void testCommittedEntryIsReadAtOnce() throws Exception {
+        String url = server.url("/cached");
+        assertTrue(cache.save(url, new ByteArrayInputStream(body), body.length, null, null));
+
+        InputStream input = cache.openProgressiveStream(url, 100);
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            IOUtils.copyStream(input, output, null, 8192, 0L);
+            assertArrayEquals(body, output.toByteArray());
+        } finally {
+            input.close();
+        }
+    }
+
+    @Test
+    public void testTimesOutWithoutDownload() throws Exception {
+        InputStream input = cache.openProgressiveStream(server.url("/never"), 200);
+        long start = System.currentTimeMillis();
+        try {
+            input.read();
+            fail("no download came");
+        } catch (IOException e) {
+            assertTrue(System.currentTimeMillis() - start >= 150);
+        } finally {
+            input.close();
+        }
+    }
+}
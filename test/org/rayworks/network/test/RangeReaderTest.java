@@ -0,0 +1,167 @@
+package org.rayworks.network.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rayworks.network.download.RangeReader;
+import org.rayworks.network.download.cache.ChunkedEntry;
+import org.rayworks.network.download.cache.ChunkedFileCache;
+import org.rayworks.network.download.cache.DiskFileCache;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+public class RangeReaderTest {
+    private static final int CHUNK = 16 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TestHttpServer server;
+    private File dir;
+    private ChunkedFileCache cache;
+    private RangeReader reader;
+    private byte[] body;
+    private TestHttpServer.Resource resource;
+    private String url;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestHttpServer();
+        dir = folder.newFolder("chunks");
+        cache = newCache();
+        reader = new RangeReader(cache, 5000);
+
+        body = new byte[200 * 1000];
+        new Random(11).nextBytes(body);
+        resource = server.serve("/media", body).setEtag("\"v1\"");
+        url = server.url("/media");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void testShortPartialResponseRequestsTheRest() throws Exception {
+        resource.setMaxRangeLength(20 * 1000);
+
+        assertArrayEquals(slice(0, 100 * 1000), reader.read(url, 0, 100 * 1000));
+
+        List<String> ranges = resource.getRanges();
+        assertEquals("bytes=0-" + (7 * CHUNK - 1), ranges.get(0));
+        assertEquals("bytes=20000-" + (7 * CHUNK - 1), ranges.get(1));
+        assertEquals(7, cache.getEntry(url).getPresentChunkCount());
+    }
+
+    @Test
+    public void testResponsesShorterThanChunk() throws Exception {
+        resource.setMaxRangeLength(5000);
+
+        assertArrayEquals(slice(CHUNK + 100, 3000), reader.read(url, CHUNK + 100, 3000));
+        assertEquals(1, cache.getEntry(url).getPresentChunkCount());
+        assertArrayEquals(slice(CHUNK, CHUNK), readChunk(cache.getEntry(url), 1));
+    }
+
+    @Test
+    public void testOverlappingReadFetchesOnlyMissingChunks() throws Exception {
+        assertArrayEquals(slice(0, 2 * CHUNK), reader.read(url, 0, 2 * CHUNK));
+        assertArrayEquals(slice(CHUNK, 3 * CHUNK), reader.read(url, CHUNK, 3 * CHUNK));
+
+        List<String> ranges = resource.getRanges();
+        assertEquals(2, ranges.size());
+        assertEquals("bytes=" + 2 * CHUNK + "-" + (4 * CHUNK - 1), ranges.get(1));
+    }
+
+    @Test
+    public void testAdjacentMissingChunksInOneRequest() throws Exception {
+        assertArrayEquals(slice(3 * CHUNK, CHUNK), reader.read(url, 3 * CHUNK, CHUNK));
+        assertArrayEquals(slice(0, 5 * CHUNK), reader.read(url, 0, 5 * CHUNK));
+
+        // split by the chunk present only
+        List<String> ranges = resource.getRanges();
+        assertEquals(3, ranges.size());
+        assertEquals("bytes=0-" + (3 * CHUNK - 1), ranges.get(1));
+        assertEquals("bytes=" + 4 * CHUNK + "-" + (5 * CHUNK - 1), ranges.get(2));
+    }
+
+    @Test
+    public void testReadToTheEnd() throws Exception {
+        assertArrayEquals(slice(body.length - 1000, 1000), reader.read(url, body.length - 1000, 5000));
+        assertEquals(-1, reader.read(url, body.length, new byte[10], 0, 10));
+    }
+
+    @Test
+    public void testReopensPartiallyFilledEntry() throws Exception {
+        reader.read(url, 0, CHUNK);
+        reader.read(url, 5 * CHUNK, CHUNK);
+
+        ChunkedFileCache reopened = newCache();
+        ChunkedEntry entry = reopened.getEntry(url);
+        assertEquals(body.length, entry.getLength());
+        assertEquals("\"v1\"", entry.getValidator());
+        assertEquals(2, entry.getPresentChunkCount());
+        assertTrue(entry.isChunkPresent(5) && !entry.isChunkPresent(1));
+        assertEquals(2 * CHUNK, reopened.getByteCount());
+
+        RangeReader reader = new RangeReader(reopened, 5000);
+        assertArrayEquals(slice(5 * CHUNK, CHUNK), reader.read(url, 5 * CHUNK, CHUNK));
+        assertEquals(2, resource.getRequestCount());
+
+        assertArrayEquals(slice(0, 3 * CHUNK), reader.read(url, 0, 3 * CHUNK));
+        assertEquals("bytes=" + CHUNK + "-" + (3 * CHUNK - 1), resource.getRanges().get(2));
+    }
+
+    @Test
+    public void testServerIgnoringRange() throws Exception {
+        resource.setRangeSupported(false);
+
+        assertArrayEquals(slice(100 * 1000, 1000), reader.read(url, 100 * 1000, 1000));
+        ChunkedEntry entry = cache.getEntry(url);
+        assertEquals(body.length, entry.getLength());
+        assertEquals(1, entry.getPresentChunkCount());
+        assertTrue(entry.isChunkPresent(100 * 1000 / CHUNK));
+    }
+
+    @Test
+    public void testChangedResourceReplacesEntry() throws Exception {
+        reader.read(url, 0, 2 * CHUNK);
+
+        byte[] changed = Arrays.copyOf(body, 100 * 1000);
+        new Random(13).nextBytes(changed);
+        body = changed;
+        resource.setBody(changed).setEtag("\"v2\"");
+
+        assertArrayEquals(slice(3 * CHUNK, 1000), reader.read(url, 3 * CHUNK, 1000));
+        ChunkedEntry entry = cache.getEntry(url);
+        assertEquals(changed.length, entry.getLength());
+        assertEquals("\"v2\"", entry.getValidator());
+        assertEquals(1, entry.getPresentChunkCount());
+    }
+
+    private ChunkedFileCache newCache() {
+        return new ChunkedFileCache(dir, MoreExecutors.sameThreadExecutor(),
+                new DiskFileCache.Limits(Integer.MAX_VALUE, 0), CHUNK);
+    }
+
+    private byte[] slice(int offset, int length) {
+        return Arrays.copyOfRange(body, offset, offset + length);
+    }
+
+    private static byte[] readChunk(ChunkedEntry entry, int index) throws Exception {
+        byte[] data = new byte[entry.getChunkLength(index)];
+        assertEquals(data.length, entry.readChunk(index, 0, data, 0, data.length));
+        return data;
+    }
+}
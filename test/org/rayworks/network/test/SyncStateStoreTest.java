@@ -0,0 +1,93 @@
+package org.rayworks.network.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.rayworks.network.storage.DownloadRecord;
+import org.rayworks.network.storage.SyncStateStore;
+
+public class SyncStateStoreTest {
+
+    @Test
+    public void testRecordRoundTrip() {
+        KeyValueStoreImpl kv = new KeyValueStoreImpl();
+        SyncStateStore store = new SyncStateStore(kv);
+        assertNull(store.getRecord("http://example.com/a"));
+
+        DownloadRecord record = store.getOrCreateRecord("http://example.com/a");
+        record.setEtag("\"abc\"");
+        record.setContentLength(5L << 32);
+        record.setCommittedBytes(1024);
+        record.setAttemptCount(2);
+        store.putRecord(record);
+        assertEquals(1, kv.getAll().size());
+
+        DownloadRecord stored = new SyncStateStore(kv).getRecord("http://example.com/a");
+        assertEquals("\"abc\"", stored.getEtag());
+        assertNull(stored.getLastModified());
+        assertEquals(5L << 32, stored.getContentLength());
+        assertEquals(1024, stored.getCommittedBytes());
+        assertEquals(2, stored.getAttemptCount());
+
+        store.removeRecord("http://example.com/a");
+        assertNull(store.getRecord("http://example.com/a"));
+
+        store.putRecord(stored);
+        store.removeRecord(stored);
+        assertNull(store.getRecord("http://example.com/a"));
+        assertEquals(0, kv.getAll().size());
+    }
+
+    @Test
+    public void testLegacyKeysMigrated() {
+        KeyValueStoreImpl kv = new KeyValueStoreImpl();
+        kv.save("sss_#filestamp#http://example.com/a", "Thu, 01 Jan 2015 00:00:00 GMT");
+        kv.save("sss_#digest#http://example.com/a", "state");
+        kv.save("sss_#filestamp#http://example.com/b", "Fri, 02 Jan 2015 00:00:00 GMT");
+
+        SyncStateStore store = new SyncStateStore(kv);
+        DownloadRecord record = store.getRecord("http://example.com/a");
+        assertEquals("Thu, 01 Jan 2015 00:00:00 GMT", record.getLastModified());
+        assertEquals("state", record.getDigestState());
+        assertEquals("Fri, 02 Jan 2015 00:00:00 GMT", store.getRecord("http://example.com/b").getLastModified());
+        assertEquals(2, kv.getAll().size());
+    }
+
+    @Test
+    public void testSharedStoreLeftAlone() {
+        KeyValueStoreImpl kv = new KeyValueStoreImpl();
+        kv.save("http://example.com/a", "not a record");
+        kv.save("user_token", "secret");
+
+        SyncStateStore store = new SyncStateStore(kv);
+        assertNull(store.getRecord("http://example.com/a"));
+        assertEquals("not a record", kv.get("http://example.com/a"));
+
+        store.putRecord(store.getOrCreateRecord("http://example.com/a"));
+        assertNotNull(store.getRecord("http://example.com/a"));
+        assertEquals("not a record", kv.get("http://example.com/a"));
+        assertEquals(3, kv.getAll().size());
+
+        store.removeRecord("http://example.com/a");
+        assertEquals("not a record", kv.get("http://example.com/a"));
+        assertEquals("secret", kv.get("user_token"));
+        assertEquals(2, kv.getAll().size());
+    }
+
+    @Test
+    public void testBrokenRecordIgnored() {
+        KeyValueStoreImpl kv = new KeyValueStoreImpl();
+        kv.save("sss_#record#http://example.com/a", "garbage");
+
+        SyncStateStore store = new SyncStateStore(kv);
+        assertNull(store.getRecord("http://example.com/a"));
+        assertEquals("garbage", kv.get("sss_#record#http://example.com/a"));
+
+        DownloadRecord record = store.getOrCreateRecord("http://example.com/a");
+        record.setAttemptCount(1);
+        store.putRecord(record);
+        assertEquals(1, store.getRecord("http://example.com/a").getAttemptCount());
+    }
+}
@@ -0,0 +1,231 @@
+package org.rayworks.network.test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local http server serving in-memory resources, with optional Range support.
+ */
+public class TestHttpServer {
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Map<String, Resource> resources = new ConcurrentHashMap<>();
+    private final AtomicInteger activeRequests = new AtomicInteger();
+    private final AtomicInteger maxActiveRequests = new AtomicInteger();
+
+    public TestHttpServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    Resource resource = resources.get(exchange.getRequestURI().getPath());
+                    if (resource == null) {
+                        exchange.sendResponseHeaders(404, -1);
+                    } else {
+                        resource.handle(exchange);
+                    }
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public Resource serve(String path, byte[] body) {
+        Resource resource = new Resource(body);
+        resources.put(path, resource);
+        return resource;
+    }
+
+    public String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    /***
+     * @return the most requests served at the same time so far, a request is over once its last bytes are sent
+     */
+    public int getMaxActiveRequests() {
+        return maxActiveRequests.get();
+    }
+
+    private void beginRequest() {
+        int active = activeRequests.incrementAndGet();
+        int max;
+        do {
+            max = maxActiveRequests.get();
+        } while (active > max && !maxActiveRequests.compareAndSet(max, active));
+    }
+
+    // the client can't start another request before it gets the last bytes, so the count is never behind
+    private void endRequest(AtomicBoolean active) {
+        if (active.compareAndSet(true, false)) {
+            activeRequests.decrementAndGet();
+        }
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public class Resource {
+        private volatile byte[] body;
+        private volatile boolean rangeSupported = true;
+        private volatile int maxRangeLength = Integer.MAX_VALUE;
+        private volatile String lastModified;
+        private volatile String etag;
+        private volatile String contentType = "application/octet-stream";
+        private volatile int chunkSize = 64 * 1024;
+        private volatile long chunkDelayMillis;
+        private volatile boolean chunked;
+        private final List<String> ranges = Collections.synchronizedList(new ArrayList<String>());
+
+        Resource(byte[] body) {
+            this.body = body;
+        }
+
+        public Resource setBody(byte[] body) {
+            this.body = body;
+            return this;
+        }
+
+        /***
+         * The Range header is ignored if not supported, the whole body is sent with 200.
+         */
+        public Resource setRangeSupported(boolean rangeSupported) {
+            this.rangeSupported = rangeSupported;
+            return this;
+        }
+
+        /***
+         * Sends at most this many bytes in a 206 response, whatever the range asked for.
+         */
+        public Resource setMaxRangeLength(int maxRangeLength) {
+            this.maxRangeLength = maxRangeLength;
+            return this;
+        }
+
+        public Resource setLastModified(String lastModified) {
+            this.lastModified = lastModified;
+            return this;
+        }
+
+        public Resource setEtag(String etag) {
+            this.etag = etag;
+            return this;
+        }
+
+        public Resource setContentType(String contentType) {
+            this.contentType = contentType;
+            return this;
+        }
+
+        /***
+         * Writes the body in chunks with a pause after each one.
+         */
+        public Resource setPacing(int chunkSize, long chunkDelayMillis) {
+            this.chunkSize = chunkSize;
+            this.chunkDelayMillis = chunkDelayMillis;
+            return this;
+        }
+
+        /***
+         * Sends a full body with the chunked transfer encoding, so the response has no Content-Length.
+         */
+        public Resource setChunked(boolean chunked) {
+            this.chunked = chunked;
+            return this;
+        }
+
+        /***
+         * @return the Range headers of the requests so far, null for a request without one
+         */
+        public List<String> getRanges() {
+            synchronized (ranges) {
+                return new ArrayList<>(ranges);
+            }
+        }
+
+        public int getRequestCount() {
+            return ranges.size();
+        }
+
+        void handle(HttpExchange exchange) throws IOException {
+            AtomicBoolean active = new AtomicBoolean(true);
+            beginRequest();
+            try {
+                respond(exchange, active);
+            } finally {
+                endRequest(active);
+            }
+        }
+
+        private void respond(HttpExchange exchange, AtomicBoolean active) throws IOException {
+            byte[] bytes = body;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            ranges.add(range);
+
+            if (lastModified != null) {
+                exchange.getResponseHeaders().add("Last-Modified", lastModified);
+            }
+            if (etag != null) {
+                exchange.getResponseHeaders().add("ETag", etag);
+            }
+            exchange.getResponseHeaders().add("Content-Type", contentType);
+
+            int start = 0;
+            int end = bytes.length - 1;
+            if (rangeSupported && range != null && range.startsWith("bytes=")) {
+                String[] bounds = range.substring("bytes=".length()).split("-", -1);
+                start = Integer.parseInt(bounds[0]);
+                if (bounds[1].length() > 0) {
+                    end = Math.min(end, Integer.parseInt(bounds[1]));
+                }
+                if (start >= bytes.length) {
+                    exchange.getResponseHeaders().add("Content-Range", "bytes */" + bytes.length);
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+                end = (int) Math.min(end, (long) start + maxRangeLength - 1);
+                exchange.getResponseHeaders().add("Content-Range",
+                        "bytes " + start + "-" + end + "/" + bytes.length);
+                exchange.sendResponseHeaders(206, end - start + 1);
+            } else {
+                exchange.sendResponseHeaders(200, chunked ? 0 : bytes.length);
+            }
+
+            OutputStream output = exchange.getResponseBody();
+            try {
+                for (int i = start; i <= end; i += chunkSize) {
+                    if (end - i < chunkSize) {
+                        endRequest(active);
+                    }
+                    output.write(bytes, i, Math.min(chunkSize, end - i + 1));
+                    output.flush();
+                    if (chunkDelayMillis > 0) {
+                        Thread.sleep(chunkDelayMillis);
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // the client went away
+            }
+        }
+    }
+}
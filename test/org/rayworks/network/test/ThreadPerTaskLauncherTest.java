@@ -0,0 +1,204 @@
+package org.rayworks.network.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.rayworks.network.download.DownloadEnabledStrategy;
+import org.rayworks.network.download.DownloadHandle;
+import org.rayworks.network.download.DownloadManager;
+import org.rayworks.network.download.DownloadSetting;
+import org.rayworks.network.download.cache.DiskFileCache;
+import org.rayworks.network.download.listener.DownloadListener;
+import org.rayworks.network.storage.SyncStateStore;
+
+/**
+ * The limits of the engine which runs each task on a thread of its own.
+ */
+public class ThreadPerTaskLauncherTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TestHttpServer server;
+    private TestHttpServer otherServer;
+    private ExecutorService executor;
+    private DiskFileCache cache;
+    private DownloadManager downloadMgr;
+    private DownloadHandle busy; // the download keeping the host busy, see startWaitingForHost()
+    private final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestHttpServer();
+        otherServer = new TestHttpServer();
+        executor = Executors.newSingleThreadExecutor();
+        cache = new DiskFileCache(folder.newFolder("cache"), executor, new DiskFileCache.Limits(Integer.MAX_VALUE, 0));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (downloadMgr != null) {
+            downloadMgr.cancelAllTasks();
+        }
+        server.stop();
+        otherServer.stop();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testConcurrentTasksAreBounded() throws Exception {
+        downloadMgr = newManager(2, 8);
+
+        List<DownloadHandle> handles = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            server.serve("/file" + i, randomBytes(200 * 1000)).setPacing(10 * 1000, 20);
+            handles.add(downloadMgr.submit(server.url("/file" + i)));
+        }
+        for (DownloadHandle handle : handles) {
+            assertTrue(handle.getFuture().get(10, TimeUnit.SECONDS).isOk());
+        }
+
+        assertEquals(2, server.getMaxActiveRequests());
+        assertEquals(4, threads.size());
+    }
+
+    @Test
+    public void testTasksPerHostAreBounded() throws Exception {
+        downloadMgr = newManager(8, 1);
+
+        List<DownloadHandle> handles = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            server.serve("/file" + i, randomBytes(200 * 1000)).setPacing(10 * 1000, 20);
+            otherServer.serve("/file" + i, randomBytes(200 * 1000)).setPacing(10 * 1000, 20);
+            handles.add(downloadMgr.submit(server.url("/file" + i)));
+            handles.add(downloadMgr.submit(otherServer.url("/file" + i)));
+        }
+        for (DownloadHandle handle : handles) {
+            assertTrue(handle.getFuture().get(10, TimeUnit.SECONDS).isOk());
+        }
+
+        assertEquals(1, server.getMaxActiveRequests());
+        assertEquals(1, otherServer.getMaxActiveRequests());
+    }
+
+    @Test
+    public void testCancelWhileWaitingForHost() throws Exception {
+        downloadMgr = newManager(8, 1);
+        TestHttpServer.Resource waiting = startWaitingForHost();
+
+        downloadMgr.cancelTask(otherServer.url("/first"));
+
+        // the batch quits at once, while the host is still busy
+        Thread batch = threads.get(1);
+        batch.join(1000);
+        assertFalse(batch.isAlive());
+        assertFalse(busy.isDone());
+
+        assertTrue(busy.getFuture().get(10, TimeUnit.SECONDS).isOk());
+        assertEquals(0, waiting.getRequestCount());
+    }
+
+    @Test
+    public void testMorePermitsPerHostApplyAtOnce() throws Exception {
+        downloadMgr = newManager(8, 1);
+        TestHttpServer.Resource waiting = startWaitingForHost();
+
+        downloadMgr.config(newSetting(8, 2));
+
+        long deadline = System.currentTimeMillis() + 2000;
+        while (waiting.getRequestCount() == 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        assertFalse(busy.isDone());
+        assertTrue(busy.getFuture().get(10, TimeUnit.SECONDS).isOk());
+    }
+
+    /***
+     * Keeps the host busy with a slow download, then runs a batch whose second url is on that host
+     *
+     * @return resource of the second url of the batch, it's waiting for the host when this returns
+     */
+    private TestHttpServer.Resource startWaitingForHost() throws Exception {
+        TestHttpServer.Resource slow = server.serve("/busy", randomBytes(1000 * 1000)).setPacing(10 * 1000, 20);
+        TestHttpServer.Resource first = otherServer.serve("/first", randomBytes(10 * 1000));
+        TestHttpServer.Resource waiting = server.serve("/waiting", randomBytes(10 * 1000));
+
+        busy = downloadMgr.submit(server.url("/busy"));
+        waitForRequests(slow, 1);
+
+        downloadMgr.addBatchedTask(Arrays.asList(otherServer.url("/first"), server.url("/waiting")),
+                new DownloadListener() {
+                    @Override
+                    public void onProgress(int percentageComplete, String remotePath) {
+                    }
+
+                    @Override
+                    public void onComplete(String remotePath) {
+                    }
+
+                    @Override
+                    public void onError(String error) {
+                    }
+                });
+        waitForRequests(first, 1);
+        Thread.sleep(200);
+
+        assertEquals(0, waiting.getRequestCount());
+        assertFalse(busy.isDone());
+        assertEquals(2, threads.size());
+        return waiting;
+    }
+
+    private DownloadManager newManager(int maxConcurrentTasks, int maxConnectionsPerHost) {
+        return new DownloadManager(new SyncStateStore(new KeyValueStoreImpl()),
+                newSetting(maxConcurrentTasks, maxConnectionsPerHost), new ConnectivityServiceImpl(),
+                new DeviceStorageMonitorImpl(), cache);
+    }
+
+    private DownloadSetting newSetting(int maxConcurrentTasks, int maxConnectionsPerHost) {
+        return new DownloadSetting.Builder().setDownloadEnabledStrategy(new DownloadEnabledStrategy() {
+            @Override
+            public boolean isNetworkAvailableForDownloading() {
+                return true;
+            }
+        }).setTaskThreadFactory(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "Task#" + threads.size());
+                threads.add(thread);
+                return thread;
+            }
+        }).setMaxConcurrentTasks(maxConcurrentTasks).setMaxConnectionsPerHost(maxConnectionsPerHost)
+                .setTimeout(5000).setThreadPriority(Thread.NORM_PRIORITY).create();
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void waitForRequests(TestHttpServer.Resource resource, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (resource.getRequestCount() < count) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.rayworks.network.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.rayworks.network.util.TokenBucket;
+
+public class TokenBucketTest {
+
+    @Test
+    public void testUnlimited() {
+        TokenBucket bucket = new TokenBucket(0);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, bucket.reserve(1024 * 1024));
+        }
+    }
+
+    @Test
+    public void testDelayFollowsRate() {
+        TokenBucket bucket = new TokenBucket(1000);
+        // within the burst of 200 permits
+        assertEquals(0, bucket.reserve(100));
+
+        // 1100 permits at 1000 per second, less the burst
+        long delay = TimeUnit.NANOSECONDS.toMillis(bucket.reserve(1000));
+        assertTrue("delay " + delay, delay > 850 && delay <= 900);
+    }
+
+    @Test
+    public void testRateChangedAtRuntime() {
+        TokenBucket bucket = new TokenBucket(1000);
+        bucket.reserve(1000);
+
+        bucket.setRate(0);
+        assertEquals(0, bucket.reserve(1000));
+
+        bucket.setRate(1000 * 1000);
+        // the debt taken at the former rate is kept
+        long delay = TimeUnit.NANOSECONDS.toMillis(bucket.reserve(1000));
+        assertTrue("delay " + delay, delay > 700 && delay <= 801);
+    }
+}
@@ -0,0 +1,104 @@
+package org.rayworks.network.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.io.BaseEncoding;
+
+public class Sha256DigestTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    // the examples of FIPS 180-4
+    @Test
+    public void testKnownAnswers() {
+        assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855", sha256(new byte[0]));
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+                sha256("abc".getBytes(ASCII)));
+        assertEquals("248d6a61d20638b8e5c026930c3e6039a33ce45964ff2167f6ecedd419db06c1",
+                sha256("abcdbcdecdefdefgefghfghighijhijkijkljklmklmnlmnomnopnopq".getBytes(ASCII)));
+        assertEquals("cf5b16a778af8380036ce59e7b0492370b249b11e8f07a51afac45037afee9d1",
+                sha256(("abcdefghbcdefghicdefghijdefghijkefghijklfghijklmghijklmnhijklmnoijklmnopjklmnopqklmnopqr"
+                        + "lmnopqrsmnopqrstnopqrstu").getBytes(ASCII)));
+
+        byte[] million = new byte[1000 * 1000];
+        Arrays.fill(million, (byte) 'a');
+        assertEquals("cdc76e5c9914fb9281a1c7e284d73e67f1809a48a497200e046d39ccc7112cd0", sha256(million));
+    }
+
+    @Test
+    public void testMatchesMessageDigestAcrossPadding() throws Exception {
+        Random random = new Random(1);
+        // around the lengths where the padding spills into another block
+        for (int length = 0; length <= 200; length++) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            assertEquals("length " + length, jdkSha256(data), sha256(data));
+        }
+    }
+
+    @Test
+    public void testSplitUpdates() throws Exception {
+        byte[] data = new byte[10000];
+        new Random(2).nextBytes(data);
+        Random random = new Random(3);
+
+        Sha256Digest digest = new Sha256Digest();
+        for (int offset = 0; offset < data.length; ) {
+            int n = Math.min(random.nextInt(150), data.length - offset);
+            digest.update(data, offset, n);
+            offset += n;
+        }
+        assertEquals(data.length, digest.getByteCount());
+        assertEquals(jdkSha256(data), digest.digestHex());
+    }
+
+    @Test
+    public void testStateRoundTripAcrossBlockBoundary() throws Exception {
+        byte[] data = new byte[300];
+        new Random(4).nextBytes(data);
+
+        for (int split : new int[]{0, 1, 63, 64, 65, 100, 128, 299}) {
+            Sha256Digest first = new Sha256Digest();
+            first.update(data, 0, split);
+            String state = first.saveState();
+
+            Sha256Digest second = new Sha256Digest();
+            assertTrue(second.restoreState(state));
+            assertEquals(split, second.getByteCount());
+            // the rest completes the pending block and goes past it
+            second.update(data, split, data.length - split);
+            assertEquals("split " + split, jdkSha256(data), second.digestHex());
+        }
+    }
+
+    @Test
+    public void testBadStateRejected() {
+        Sha256Digest digest = new Sha256Digest();
+        digest.update(new byte[10], 0, 10);
+        String state = digest.saveState();
+
+        Sha256Digest other = new Sha256Digest();
+        assertFalse(other.restoreState("MD5" + state.substring(state.indexOf('|'))));
+        assertFalse(other.restoreState(state.substring(0, state.length() - 4)));
+        assertEquals(0, other.getByteCount());
+        assertEquals(sha256(new byte[0]), other.digestHex());
+    }
+
+    private static String sha256(byte[] data) {
+        Sha256Digest digest = new Sha256Digest();
+        digest.update(data, 0, data.length);
+        return digest.digestHex();
+    }
+
+    private static String jdkSha256(byte[] data) throws Exception {
+        return BaseEncoding.base16().lowerCase().encode(MessageDigest.getInstance("SHA-256").digest(data));
+    }
+}